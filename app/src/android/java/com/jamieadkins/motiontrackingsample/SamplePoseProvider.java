@@ -5,24 +5,87 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 /**
  * Provides pose data using Android Sensors.
+ * <p/>
+ * Uses the 6DoF pose sensor where there is one. Most devices don't have it, so otherwise the
+ * orientation comes from the IMU through an {@link OrientationFilter} and the translation is
+ * held, reported as limited tracking.
  */
 public class SamplePoseProvider extends PoseProvider {
     private final String TAG = getClass().getSimpleName();
     private SensorManager mSensorManager;
     private Sensor m6DoFSensor;
+    private volatile TrackingStateMachine.PoseStatus mPoseStatus =
+            TrackingStateMachine.PoseStatus.VALID;
+    private boolean mProviding;
+    private int mSensorPeriodMicros = QualityGovernor.SENSOR_PERIOD_FASTEST;
+
+    // IMU fallback, chosen in setup() when there is no 6DoF sensor.
+    private Sensor mGyroscope;
+    private Sensor mAccelerometer;
+    private Sensor mGameRotationVector;
+    private final OrientationFilter mOrientationFilter = new OrientationFilter();
+    private HandlerThread mImuThread;
+    private Handler mImuHandler;
+    private final float[] mImuRotation = new float[4];
+    private final float[] mImuTranslation = new float[3];
 
     private SensorEventListener mSensorListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
-            synchronized (POSE_LOCK) {
-                mLatestPoseData = new PoseData(event.values, event.timestamp);
+            Tracer.beginSection("onSensorChanged");
+            try {
+                onNewPoseData(new PoseData(event.values, event.timestamp), mPoseStatus);
+            } finally {
+                Tracer.endSection();
             }
+        }
 
-            onNewPoseData(mLatestPoseData);
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            mPoseStatus = statusFromAccuracy(accuracy);
+            onPoseStatusChanged(mPoseStatus);
+        }
+    };
+
+    private SensorEventListener mImuListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            Tracer.beginSection("onSensorChanged");
+            try {
+                onImuEvent(event);
+            } finally {
+                Tracer.endSection();
+            }
+        }
+
+        private void onImuEvent(SensorEvent event) {
+            switch (event.sensor.getType()) {
+                case Sensor.TYPE_GYROSCOPE:
+                    mOrientationFilter.onGyroscope(event.timestamp,
+                            event.values[0], event.values[1], event.values[2]);
+                    if (mOrientationFilter.isInitialized()) {
+                        // A pose for every gyroscope sample, the highest rate there is.
+                        mOrientationFilter.getRotation(mImuRotation);
+                        mOrientationFilter.getTranslation(mImuTranslation);
+                        onNewPoseData(new PoseData(mImuTranslation, mImuRotation,
+                                event.timestamp), TrackingStateMachine.PoseStatus.LIMITED);
+                    }
+                    break;
+                case Sensor.TYPE_ACCELEROMETER:
+                    mOrientationFilter.onAccelerometer(event.timestamp,
+                            event.values[0], event.values[1], event.values[2]);
+                    break;
+                case Sensor.TYPE_GAME_ROTATION_VECTOR:
+                    mOrientationFilter.onRotationVector(event.timestamp, event.values,
+                            event.values.length);
+                    break;
+            }
         }
 
         @Override
@@ -32,29 +95,120 @@ public class SamplePoseProvider extends PoseProvider {
 
     public SamplePoseProvider(Context context, PoseProviderListener poseListener) {
         super(context, poseListener);
-        mIntrinsics = new Intrinsics();
     }
 
     @Override
-    public void onStartPoseProviding() {
-        mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+    public synchronized void onStartPoseProviding() {
+        mProviding = true;
+        if (m6DoFSensor != null) {
+            register6DoF();
+            return;
+        }
+        if (mGyroscope == null) {
+            Log.e(TAG, "No 6dof sensor or gyroscope, no pose available");
+            return;
+        }
 
-        m6DoFSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_POSE_6DOF);
-        boolean setupSuccessful = mSensorManager.registerListener(mSensorListener, m6DoFSensor,
-                SensorManager.SENSOR_DELAY_FASTEST);
+        // The IMU runs at several hundred Hz, keep it off the main thread.
+        mImuThread = new HandlerThread("ImuPose");
+        mImuThread.start();
+        mImuHandler = new Handler(mImuThread.getLooper());
+        mOrientationFilter.reset();
+        registerImu();
+    }
+
+    @Override
+    public synchronized void onStopPoseProviding() {
+        mProviding = false;
+        if (mSensorManager == null) {
+            return;
+        }
+        mSensorManager.unregisterListener(mSensorListener);
+        mSensorManager.unregisterListener(mImuListener);
+        if (mImuThread != null) {
+            mImuThread.quitSafely();
+            mImuThread = null;
+            mImuHandler = null;
+        }
+    }
+
+    /**
+     * Re-registers the sensors at the new rate if they are running. The orientation filter
+     * carries on from where it was.
+     */
+    @Override
+    public synchronized void setSensorPeriodMicros(int periodMicros) {
+        if (periodMicros == mSensorPeriodMicros) {
+            return;
+        }
+        mSensorPeriodMicros = periodMicros;
+        if (!mProviding) {
+            return;
+        }
+        if (m6DoFSensor != null) {
+            mSensorManager.unregisterListener(mSensorListener);
+            register6DoF();
+        } else if (mImuHandler != null) {
+            mSensorManager.unregisterListener(mImuListener);
+            registerImu();
+        }
+    }
+
+    /**
+     * @return the delay to register fast sensors with: a SENSOR_DELAY constant or a period in
+     * microseconds.
+     */
+    private int getSensorDelay() {
+        return mSensorPeriodMicros == QualityGovernor.SENSOR_PERIOD_FASTEST
+                ? SensorManager.SENSOR_DELAY_FASTEST : mSensorPeriodMicros;
+    }
 
+    private void register6DoF() {
+        boolean setupSuccessful = mSensorManager.registerListener(mSensorListener,
+                m6DoFSensor, getSensorDelay());
         if (!setupSuccessful) {
             Log.e(TAG, "Failed to set 6dof sensor");
         }
     }
 
-    @Override
-    public void onStopPoseProviding() {
-        mSensorManager.unregisterListener(mSensorListener);
+    private void registerImu() {
+        mSensorManager.registerListener(mImuListener, mGyroscope, getSensorDelay(), mImuHandler);
+        if (mAccelerometer != null) {
+            mSensorManager.registerListener(mImuListener, mAccelerometer, getSensorDelay(),
+                    mImuHandler);
+        }
+        if (mGameRotationVector != null) {
+            mSensorManager.registerListener(mImuListener, mGameRotationVector,
+                    SensorManager.SENSOR_DELAY_GAME, mImuHandler);
+        }
     }
 
     @Override
     public void setup() {
+        mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+        m6DoFSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_POSE_6DOF);
+        if (m6DoFSensor == null) {
+            mGyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+            mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            mGameRotationVector = mSensorManager.getDefaultSensor(
+                    Sensor.TYPE_GAME_ROTATION_VECTOR);
+            Log.i(TAG, "No 6dof sensor, using IMU orientation only (gyroscope "
+                    + (mGyroscope != null) + ", accelerometer " + (mAccelerometer != null)
+                    + ", game rotation vector " + (mGameRotationVector != null) + ")");
+        }
         mPoseProviderListener.onSetupComplete();
     }
+
+    private static TrackingStateMachine.PoseStatus statusFromAccuracy(int accuracy) {
+        switch (accuracy) {
+            case SensorManager.SENSOR_STATUS_ACCURACY_HIGH:
+            case SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM:
+                return TrackingStateMachine.PoseStatus.VALID;
+            case SensorManager.SENSOR_STATUS_ACCURACY_LOW:
+                return TrackingStateMachine.PoseStatus.LIMITED;
+            default:
+                // Unreliable or no contact.
+                return TrackingStateMachine.PoseStatus.INVALID;
+        }
+    }
 }
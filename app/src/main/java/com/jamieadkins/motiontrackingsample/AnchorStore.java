@@ -0,0 +1,394 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Spatial anchors that virtual content attaches to instead of fixed start of service positions.
+ * <p/>
+ * Each anchor records where it was placed and the device pose at that moment. When the pose
+ * provider re-localises, {@link #applyCorrection} moves every anchor by the same rigid transform
+ * so content stays put relative to the real world. Anchors are kept in flat arrays and a hashed
+ * uniform grid so radius queries only visit nearby cells.
+ */
+public class AnchorStore {
+    /** Returned for ids that don't refer to a live anchor. */
+    public static final int INVALID_ANCHOR_ID = -1;
+
+    /** Default grid cell edge, in meters. */
+    public static final float DEFAULT_CELL_SIZE = 0.5f;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final float mCellSize;
+    private final float mInverseCellSize;
+
+    private int mCount;
+    private int[] mIds = new int[INITIAL_CAPACITY];
+    private float[] mPositions = new float[INITIAL_CAPACITY * 3];
+    private float[] mRotations = new float[INITIAL_CAPACITY * 4];
+    private PoseData[] mCreationPoses = new PoseData[INITIAL_CAPACITY];
+
+    /** Maps anchor ids to their slot in the arrays above, or -1 once removed. */
+    private int[] mIdToIndex = new int[INITIAL_CAPACITY];
+    private int mNextId = 0;
+
+    // Grid buckets: each hashed cell holds a singly linked list of anchor slots.
+    private int[] mBucketHeads = new int[INITIAL_CAPACITY * 2];
+    private int[] mNextInBucket = new int[INITIAL_CAPACITY];
+    private int[] mBucketOf = new int[INITIAL_CAPACITY];
+
+    private long mVersion;
+
+    public AnchorStore() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    public AnchorStore(float cellSize) {
+        mCellSize = cellSize;
+        mInverseCellSize = 1 / cellSize;
+        Arrays.fill(mIdToIndex, -1);
+        Arrays.fill(mBucketHeads, -1);
+    }
+
+    /**
+     * Creates an anchor at the given position in the start of service frame.
+     *
+     * @param creationPose the device pose when the anchor was placed, may be null.
+     * @return the id of the new anchor.
+     */
+    public synchronized int createAnchor(float x, float y, float z, PoseData creationPose) {
+        if (mCount == mIds.length) {
+            grow();
+        }
+        int id = mNextId++;
+        if (id >= mIdToIndex.length) {
+            int oldLength = mIdToIndex.length;
+            mIdToIndex = Arrays.copyOf(mIdToIndex, Math.max(id + 1, oldLength * 2));
+            Arrays.fill(mIdToIndex, oldLength, mIdToIndex.length, -1);
+        }
+
+        int index = mCount++;
+        mIds[index] = id;
+        mIdToIndex[id] = index;
+        mPositions[index * 3] = x;
+        mPositions[index * 3 + 1] = y;
+        mPositions[index * 3 + 2] = z;
+        mRotations[index * 4] = 0;
+        mRotations[index * 4 + 1] = 0;
+        mRotations[index * 4 + 2] = 0;
+        mRotations[index * 4 + 3] = 1;
+        mCreationPoses[index] = creationPose;
+        insertIntoGrid(index);
+        mVersion++;
+        return id;
+    }
+
+    public synchronized boolean removeAnchor(int id) {
+        int index = indexOf(id);
+        if (index < 0) {
+            return false;
+        }
+        removeFromGrid(index);
+        int last = --mCount;
+        if (index != last) {
+            // Move the last anchor into the hole to keep the arrays dense.
+            removeFromGrid(last);
+            mIds[index] = mIds[last];
+            System.arraycopy(mPositions, last * 3, mPositions, index * 3, 3);
+            System.arraycopy(mRotations, last * 4, mRotations, index * 4, 4);
+            mCreationPoses[index] = mCreationPoses[last];
+            mIdToIndex[mIds[index]] = index;
+            insertIntoGrid(index);
+        }
+        mCreationPoses[last] = null;
+        mIdToIndex[id] = -1;
+        mVersion++;
+        return true;
+    }
+
+    public float getCellSize() {
+        return mCellSize;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return a counter that changes whenever any anchor is created, removed or moved.
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Copies the anchor's current position into {@code out}.
+     *
+     * @return false if the anchor doesn't exist.
+     */
+    public synchronized boolean getPosition(int id, float[] out) {
+        int index = indexOf(id);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(mPositions, index * 3, out, 0, 3);
+        return true;
+    }
+
+    /**
+     * Copies the anchor's current orientation, as an (x, y, z, w) quaternion, into {@code out}.
+     *
+     * @return false if the anchor doesn't exist.
+     */
+    public synchronized boolean getRotation(int id, float[] out) {
+        int index = indexOf(id);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(mRotations, index * 4, out, 0, 4);
+        return true;
+    }
+
+    /**
+     * Copies the ids of every anchor into {@code out}, up to its length.
+     *
+     * @return the number of ids written to {@code out}.
+     */
+    public synchronized int getIds(int[] out) {
+        int count = Math.min(mCount, out.length);
+        System.arraycopy(mIds, 0, out, 0, count);
+        return count;
+    }
+
+    public synchronized PoseData getCreationPose(int id) {
+        int index = indexOf(id);
+        return index < 0 ? null : mCreationPoses[index];
+    }
+
+    /**
+     * @return the bytes {@link #writeTo} takes for {@code count} anchors.
+     */
+    public static int getSerializedSize(int count) {
+        // Creation timestamp, id, position, rotation, creation translation and rotation.
+        return count * (8 + 4 + 3 * 4 + 4 * 4 + 7 * 4);
+    }
+
+    /**
+     * Writes every anchor to {@code out} at its position, column by column so each column is a
+     * single bulk copy. Takes {@link #getSerializedSize} of {@link #size()} bytes.
+     */
+    public synchronized void writeTo(ByteBuffer out) {
+        double[] creationTimestamps = new double[mCount];
+        float[] creationPoses = new float[mCount * 7];
+        for (int i = 0; i < mCount; i++) {
+            PoseData pose = mCreationPoses[i];
+            if (pose == null) {
+                creationTimestamps[i] = Double.NaN;
+                continue;
+            }
+            creationTimestamps[i] = pose.mTimestamp;
+            System.arraycopy(pose.mTranslation, 0, creationPoses, i * 7, 3);
+            System.arraycopy(pose.mRotation, 0, creationPoses, i * 7 + 3, 4);
+        }
+        int position = out.position();
+        out.asDoubleBuffer().put(creationTimestamps);
+        position += mCount * 8;
+        out.position(position);
+        out.asIntBuffer().put(mIds, 0, mCount);
+        position += mCount * 4;
+        out.position(position);
+        out.asFloatBuffer().put(mPositions, 0, mCount * 3);
+        position += mCount * 3 * 4;
+        out.position(position);
+        out.asFloatBuffer().put(mRotations, 0, mCount * 4);
+        position += mCount * 4 * 4;
+        out.position(position);
+        out.asFloatBuffer().put(creationPoses);
+        out.position(position + mCount * 7 * 4);
+    }
+
+    /**
+     * Replaces every anchor with {@code count} read from {@code in}, as written by
+     * {@link #writeTo}. Anchors keep their ids and new ones are numbered after them.
+     */
+    public synchronized void readFrom(ByteBuffer in, int count) {
+        mCount = 0;
+        mNextId = 0;
+        Arrays.fill(mIdToIndex, -1);
+        Arrays.fill(mCreationPoses, null);
+        while (mIds.length < count) {
+            grow();
+        }
+        double[] creationTimestamps = new double[count];
+        float[] creationPoses = new float[count * 7];
+        int position = in.position();
+        in.asDoubleBuffer().get(creationTimestamps);
+        position += count * 8;
+        in.position(position);
+        in.asIntBuffer().get(mIds, 0, count);
+        position += count * 4;
+        in.position(position);
+        in.asFloatBuffer().get(mPositions, 0, count * 3);
+        position += count * 3 * 4;
+        in.position(position);
+        in.asFloatBuffer().get(mRotations, 0, count * 4);
+        position += count * 4 * 4;
+        in.position(position);
+        in.asFloatBuffer().get(creationPoses);
+        in.position(position + count * 7 * 4);
+
+        for (int i = 0; i < count; i++) {
+            mNextId = Math.max(mNextId, mIds[i] + 1);
+        }
+        if (mNextId > mIdToIndex.length) {
+            int oldLength = mIdToIndex.length;
+            mIdToIndex = Arrays.copyOf(mIdToIndex, mNextId);
+            Arrays.fill(mIdToIndex, oldLength, mIdToIndex.length, -1);
+        }
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        for (int i = 0; i < count; i++) {
+            mIdToIndex[mIds[i]] = i;
+            if (!Double.isNaN(creationTimestamps[i])) {
+                System.arraycopy(creationPoses, i * 7, translation, 0, 3);
+                System.arraycopy(creationPoses, i * 7 + 3, rotation, 0, 4);
+                PoseData pose = new PoseData(translation, rotation, 0);
+                pose.mTimestamp = creationTimestamps[i];
+                mCreationPoses[i] = pose;
+            }
+        }
+        mCount = count;
+        Arrays.fill(mBucketHeads, -1);
+        for (int i = 0; i < count; i++) {
+            insertIntoGrid(i);
+        }
+        mVersion++;
+    }
+
+    /**
+     * Moves every anchor by the rigid transform {@code p' = R p + t}, e.g. the jump reported by a
+     * {@link PoseCorrectionDetector}.
+     *
+     * @param rotation    (x, y, z, w) quaternion R.
+     * @param translation translation t.
+     */
+    public synchronized void applyCorrection(float[] rotation, float[] translation) {
+        Arrays.fill(mBucketHeads, -1);
+        for (int i = 0; i < mCount; i++) {
+            PoseMath.rotateVector(rotation, 0, mPositions, i * 3, mPositions, i * 3);
+            mPositions[i * 3] += translation[0];
+            mPositions[i * 3 + 1] += translation[1];
+            mPositions[i * 3 + 2] += translation[2];
+            PoseMath.multiplyQuaternions(rotation, 0, mRotations, i * 4, mRotations, i * 4);
+            insertIntoGrid(i);
+        }
+        mVersion++;
+    }
+
+    /**
+     * Finds the anchors within {@code radius} of a point, typically the camera position.
+     *
+     * @param out receives the ids of the anchors found, up to its length.
+     * @return the number of ids written to {@code out}.
+     */
+    public synchronized int queryRadius(float x, float y, float z, float radius, int[] out) {
+        int minX = cell(x - radius), maxX = cell(x + radius);
+        int minY = cell(y - radius), maxY = cell(y + radius);
+        int minZ = cell(z - radius), maxZ = cell(z + radius);
+        float radiusSquared = radius * radius;
+        int found = 0;
+        long cells = (long) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+        if (cells > mCount) {
+            // Very large radii touch more cells than there are anchors; a plain scan is cheaper.
+            for (int i = 0; i < mCount && found < out.length; i++) {
+                float dx = mPositions[i * 3] - x;
+                float dy = mPositions[i * 3 + 1] - y;
+                float dz = mPositions[i * 3 + 2] - z;
+                if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                    out[found++] = mIds[i];
+                }
+            }
+            return found;
+        }
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cy = minY; cy <= maxY; cy++) {
+                for (int cz = minZ; cz <= maxZ; cz++) {
+                    int bucket = bucket(cx, cy, cz);
+                    for (int i = mBucketHeads[bucket]; i >= 0; i = mNextInBucket[i]) {
+                        // Different cells can hash to the same bucket, so skip anchors that
+                        // belong to another cell rather than reporting them twice.
+                        if (cell(mPositions[i * 3]) != cx || cell(mPositions[i * 3 + 1]) != cy
+                                || cell(mPositions[i * 3 + 2]) != cz) {
+                            continue;
+                        }
+                        float dx = mPositions[i * 3] - x;
+                        float dy = mPositions[i * 3 + 1] - y;
+                        float dz = mPositions[i * 3 + 2] - z;
+                        if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                            if (found == out.length) {
+                                return found;
+                            }
+                            out[found++] = mIds[i];
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private int indexOf(int id) {
+        return id >= 0 && id < mIdToIndex.length ? mIdToIndex[id] : -1;
+    }
+
+    private int cell(float coordinate) {
+        return (int) Math.floor(coordinate * mInverseCellSize);
+    }
+
+    private int bucket(int cx, int cy, int cz) {
+        int hash = cx * 73856093 ^ cy * 19349663 ^ cz * 83492791;
+        return hash & (mBucketHeads.length - 1);
+    }
+
+    private void insertIntoGrid(int index) {
+        int bucket = bucket(cell(mPositions[index * 3]), cell(mPositions[index * 3 + 1]),
+                cell(mPositions[index * 3 + 2]));
+        mBucketOf[index] = bucket;
+        mNextInBucket[index] = mBucketHeads[bucket];
+        mBucketHeads[bucket] = index;
+    }
+
+    private void removeFromGrid(int index) {
+        int bucket = mBucketOf[index];
+        int previous = -1;
+        for (int i = mBucketHeads[bucket]; i >= 0; i = mNextInBucket[i]) {
+            if (i == index) {
+                if (previous < 0) {
+                    mBucketHeads[bucket] = mNextInBucket[i];
+                } else {
+                    mNextInBucket[previous] = mNextInBucket[i];
+                }
+                return;
+            }
+            previous = i;
+        }
+    }
+
+    private void grow() {
+        int capacity = mIds.length * 2;
+        mIds = Arrays.copyOf(mIds, capacity);
+        mPositions = Arrays.copyOf(mPositions, capacity * 3);
+        mRotations = Arrays.copyOf(mRotations, capacity * 4);
+        mCreationPoses = Arrays.copyOf(mCreationPoses, capacity);
+        mNextInBucket = Arrays.copyOf(mNextInBucket, capacity);
+        mBucketOf = Arrays.copyOf(mBucketOf, capacity);
+
+        // Keep the bucket table at twice the capacity so chains stay short.
+        mBucketHeads = new int[capacity * 2];
+        Arrays.fill(mBucketHeads, -1);
+        for (int i = 0; i < mCount; i++) {
+            insertIntoGrid(i);
+        }
+    }
+}
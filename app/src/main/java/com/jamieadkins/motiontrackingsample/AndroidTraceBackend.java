@@ -0,0 +1,77 @@
+package com.jamieadkins.motiontrackingsample;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Sends trace markers to {@link android.os.Trace}, where systrace and Perfetto pick them up under
+ * the app category.
+ * <p/>
+ * Sections use the public API. Async slices and counters only became public in API 29, past the
+ * SDK this app compiles against, so they go through the hidden methods older releases already
+ * had. If those can't be found the markers are dropped.
+ */
+public class AndroidTraceBackend implements Tracer.Backend {
+    private static final String TAG = AndroidTraceBackend.class.getSimpleName();
+
+    // Trace.TRACE_TAG_APP.
+    private static final long TRACE_TAG_APP = 1L << 12;
+
+    private final Method mAsyncTraceBegin;
+    private final Method mAsyncTraceEnd;
+    private final Method mTraceCounter;
+
+    public AndroidTraceBackend() {
+        mAsyncTraceBegin = findMethod("asyncTraceBegin", long.class, String.class, int.class);
+        mAsyncTraceEnd = findMethod("asyncTraceEnd", long.class, String.class, int.class);
+        mTraceCounter = findMethod("traceCounter", long.class, String.class, int.class);
+    }
+
+    private static Method findMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return Trace.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            Log.e(TAG, "No Trace." + name + ", those markers will be dropped", e);
+            return null;
+        }
+    }
+
+    private static void invoke(Method method, Object... args) {
+        if (method == null) {
+            return;
+        }
+        try {
+            method.invoke(null, args);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not call Trace." + method.getName(), e);
+        }
+    }
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        invoke(mAsyncTraceBegin, TRACE_TAG_APP, name, cookie);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        invoke(mAsyncTraceEnd, TRACE_TAG_APP, name, cookie);
+    }
+
+    @Override
+    public void setCounter(String name, long value) {
+        invoke(mTraceCounter, TRACE_TAG_APP, name,
+                (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)));
+    }
+}
@@ -0,0 +1,410 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Drives looping spin and orbit animations for many objects at once.
+ * <p/>
+ * Rajawali's animations are an object each, updated through a virtual call per animation per
+ * frame. Here every parameter is a column of primitives, one entry per animated object, and
+ * {@link #update} evaluates them all in one loop, writing each object's position and rotation
+ * into a packed array. Above {@link #SEQUENTIAL_THRESHOLD} objects the loop is split into
+ * fork-join tasks on the {@link WorkerPool}.
+ * <p/>
+ * An object has a base position, and optionally:
+ * <ul>
+ * <li>a spin: rotation about an axis through the object, some turns per period.</li>
+ * <li>an orbit: an ellipse around a focal point starting at the periapsis, like Rajawali's
+ * {@code EllipticalOrbitAnimation3D}, or given by its centre and axes. The base position is
+ * then the ellipse's centre.</li>
+ * </ul>
+ * Both advance at a constant rate and repeat forever. Angles are in turns, and their sines are
+ * interpolated from a table small enough to stay in the L1 cache rather than calling
+ * {@link Math#sin}, accurate to about 3e-7.
+ * <p/>
+ * Objects are kept densely packed, so removing one moves the last into its place; ids stay valid
+ * and {@link #indexOf} finds where an object's transform is written.
+ * <p/>
+ * NOTE: This is not thread safe, use it from the render thread.
+ */
+public class AnimationEngine {
+    public static final int INVALID_ID = -1;
+    /** Floats per object in the packed transforms: translation x, y, z then rotation x, y, z, w. */
+    public static final int FLOATS_PER_TRANSFORM = 7;
+    /** Objects evaluated per fork-join task. */
+    static final int SEQUENTIAL_THRESHOLD = 4096;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // One turn of sine, interpolated linearly, with the first entry repeated at the end.
+    private static final int SINE_TABLE_SIZE = 4096;
+    private static final float[] SINE_TABLE = new float[SINE_TABLE_SIZE + 1];
+    // Whole turns added before truncating, so angles down to -2^16 turns truncate like floor()
+    // does and the truncated value masks straight to a table index.
+    private static final double SINE_TABLE_BIAS = (double) SINE_TABLE_SIZE * (1 << 16);
+
+    static {
+        for (int i = 0; i < SINE_TABLE.length; i++) {
+            SINE_TABLE[i] = (float) Math.sin(2 * Math.PI * i / SINE_TABLE_SIZE);
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private int mCount;
+
+    // Base position, or orbit centre.
+    private float[] mX = new float[INITIAL_CAPACITY];
+    private float[] mY = new float[INITIAL_CAPACITY];
+    private float[] mZ = new float[INITIAL_CAPACITY];
+
+    // Spin: periods per second, phase in periods, turns per period and the axis.
+    private double[] mSpinRate = new double[INITIAL_CAPACITY];
+    private double[] mSpinPhase = new double[INITIAL_CAPACITY];
+    private float[] mSpinTurns = new float[INITIAL_CAPACITY];
+    private float[] mAxisX = new float[INITIAL_CAPACITY];
+    private float[] mAxisY = new float[INITIAL_CAPACITY];
+    private float[] mAxisZ = new float[INITIAL_CAPACITY];
+
+    // Orbit: as the spin, with the ellipse's semi-major axis u, towards the periapsis, and its
+    // semi-minor axis v.
+    private double[] mOrbitRate = new double[INITIAL_CAPACITY];
+    private double[] mOrbitPhase = new double[INITIAL_CAPACITY];
+    private float[] mOrbitTurns = new float[INITIAL_CAPACITY];
+    private float[] mUx = new float[INITIAL_CAPACITY];
+    private float[] mUy = new float[INITIAL_CAPACITY];
+    private float[] mUz = new float[INITIAL_CAPACITY];
+    private float[] mVx = new float[INITIAL_CAPACITY];
+    private float[] mVy = new float[INITIAL_CAPACITY];
+    private float[] mVz = new float[INITIAL_CAPACITY];
+
+    private float[] mTransforms = new float[INITIAL_CAPACITY * FLOATS_PER_TRANSFORM];
+
+    private int[] mIds = new int[INITIAL_CAPACITY];
+    private int[] mIdToIndex = new int[INITIAL_CAPACITY];
+    private int mNextId;
+
+    public AnimationEngine() {
+        this(WorkerPool.get());
+    }
+
+    /**
+     * @param pool splits large updates across cores, or null to always run them on the calling
+     *             thread.
+     */
+    public AnimationEngine(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Adds an object that stays at a position until given a spin or an orbit.
+     *
+     * @return the object's id.
+     */
+    public int add(float x, float y, float z) {
+        if (mCount == mIds.length) {
+            grow();
+        }
+        if (mNextId == mIdToIndex.length) {
+            mIdToIndex = Arrays.copyOf(mIdToIndex, mIdToIndex.length * 2);
+        }
+        int index = mCount++;
+        int id = mNextId++;
+        mIds[index] = id;
+        mIdToIndex[id] = index;
+        mX[index] = x;
+        mY[index] = y;
+        mZ[index] = z;
+        mSpinRate[index] = 0;
+        mSpinPhase[index] = 0;
+        mSpinTurns[index] = 0;
+        mAxisX[index] = 0;
+        mAxisY[index] = 1;
+        mAxisZ[index] = 0;
+        mOrbitRate[index] = 0;
+        mOrbitPhase[index] = 0;
+        mOrbitTurns[index] = 0;
+        mUx[index] = mUy[index] = mUz[index] = 0;
+        mVx[index] = mVy[index] = mVz[index] = 0;
+        evaluate(index, index + 1, 0);
+        return id;
+    }
+
+    /**
+     * Moves an object, or the centre of its orbit.
+     */
+    public void setPosition(int id, float x, float y, float z) {
+        int index = checkedIndex(id);
+        mX[index] = x;
+        mY[index] = y;
+        mZ[index] = z;
+    }
+
+    /**
+     * Spins an object about an axis.
+     *
+     * @param turnsPerPeriod e.g. -1 to spin once clockwise, looking down the axis, per period.
+     * @param startTime      the time the spin starts from no rotation.
+     */
+    public void setSpin(int id, float[] axis, double periodSeconds, float turnsPerPeriod,
+                        double startTime) {
+        int index = checkedIndex(id);
+        float length = (float) Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1]
+                + axis[2] * axis[2]);
+        if (length == 0 || periodSeconds <= 0) {
+            throw new IllegalArgumentException("Spin needs an axis and a positive period");
+        }
+        mAxisX[index] = axis[0] / length;
+        mAxisY[index] = axis[1] / length;
+        mAxisZ[index] = axis[2] / length;
+        mSpinRate[index] = 1 / periodSeconds;
+        mSpinPhase[index] = -startTime / periodSeconds;
+        mSpinTurns[index] = turnsPerPeriod;
+    }
+
+    /**
+     * Puts an object on an elliptical orbit, at the periapsis at the start time.
+     *
+     * @param normal         the orbit's axis; positive turns go counter clockwise about it.
+     * @param eccentricity   0 for a circle, up to but not including 1.
+     * @param turnsPerPeriod how far round the ellipse the object goes each period.
+     */
+    public void setOrbit(int id, float[] focalPoint, float[] periapsis, float[] normal,
+                         double eccentricity, double periodSeconds, float turnsPerPeriod,
+                         double startTime) {
+        int index = checkedIndex(id);
+        if (eccentricity < 0 || eccentricity >= 1 || periodSeconds <= 0) {
+            throw new IllegalArgumentException("Orbit needs an eccentricity in [0, 1) and a"
+                    + " positive period");
+        }
+        // u from the focus to the periapsis, v perpendicular to it in the orbit's plane.
+        double ux = periapsis[0] - focalPoint[0];
+        double uy = periapsis[1] - focalPoint[1];
+        double uz = periapsis[2] - focalPoint[2];
+        double periapsisDistance = Math.sqrt(ux * ux + uy * uy + uz * uz);
+        double vx = normal[1] * uz - normal[2] * uy;
+        double vy = normal[2] * ux - normal[0] * uz;
+        double vz = normal[0] * uy - normal[1] * ux;
+        double vLength = Math.sqrt(vx * vx + vy * vy + vz * vz);
+        if (periapsisDistance == 0 || vLength == 0) {
+            throw new IllegalArgumentException("Periapsis must be away from the focus and off"
+                    + " the normal");
+        }
+        double semiMajor = periapsisDistance / (1 - eccentricity);
+        double semiMinor = semiMajor * Math.sqrt(1 - eccentricity * eccentricity);
+        ux /= periapsisDistance;
+        uy /= periapsisDistance;
+        uz /= periapsisDistance;
+        // The centre is behind the focus, away from the periapsis.
+        double centreOffset = semiMajor - periapsisDistance;
+        setEllipse(index,
+                (float) (focalPoint[0] - ux * centreOffset),
+                (float) (focalPoint[1] - uy * centreOffset),
+                (float) (focalPoint[2] - uz * centreOffset),
+                (float) (ux * semiMajor), (float) (uy * semiMajor), (float) (uz * semiMajor),
+                (float) (vx / vLength * semiMinor), (float) (vy / vLength * semiMinor),
+                (float) (vz / vLength * semiMinor),
+                periodSeconds, turnsPerPeriod, startTime);
+    }
+
+    /**
+     * Puts an object on an ellipse given by its centre and two semi-axes, at the end of
+     * {@code startAxis} at the start time and at the end of {@code quarterTurnAxis} a quarter
+     * turn later. Unlike {@link #setOrbit} the axes may have any lengths, e.g. to follow a path
+     * laid out some other way.
+     */
+    public void setOrbitAxes(int id, float[] centre, float[] startAxis, float[] quarterTurnAxis,
+                             double periodSeconds, float turnsPerPeriod, double startTime) {
+        int index = checkedIndex(id);
+        if (periodSeconds <= 0) {
+            throw new IllegalArgumentException("Orbit needs a positive period");
+        }
+        setEllipse(index, centre[0], centre[1], centre[2],
+                startAxis[0], startAxis[1], startAxis[2],
+                quarterTurnAxis[0], quarterTurnAxis[1], quarterTurnAxis[2],
+                periodSeconds, turnsPerPeriod, startTime);
+    }
+
+    private void setEllipse(int index, float cx, float cy, float cz, float ux, float uy, float uz,
+                            float vx, float vy, float vz, double periodSeconds,
+                            float turnsPerPeriod, double startTime) {
+        mX[index] = cx;
+        mY[index] = cy;
+        mZ[index] = cz;
+        mUx[index] = ux;
+        mUy[index] = uy;
+        mUz[index] = uz;
+        mVx[index] = vx;
+        mVy[index] = vy;
+        mVz[index] = vz;
+        mOrbitRate[index] = 1 / periodSeconds;
+        mOrbitPhase[index] = -startTime / periodSeconds;
+        mOrbitTurns[index] = turnsPerPeriod;
+    }
+
+    /**
+     * Removes an object, moving the last object into its place in the transforms.
+     */
+    public void remove(int id) {
+        int index = checkedIndex(id);
+        int last = --mCount;
+        if (index != last) {
+            mIds[index] = mIds[last];
+            mIdToIndex[mIds[index]] = index;
+            mX[index] = mX[last];
+            mY[index] = mY[last];
+            mZ[index] = mZ[last];
+            mSpinRate[index] = mSpinRate[last];
+            mSpinPhase[index] = mSpinPhase[last];
+            mSpinTurns[index] = mSpinTurns[last];
+            mAxisX[index] = mAxisX[last];
+            mAxisY[index] = mAxisY[last];
+            mAxisZ[index] = mAxisZ[last];
+            mOrbitRate[index] = mOrbitRate[last];
+            mOrbitPhase[index] = mOrbitPhase[last];
+            mOrbitTurns[index] = mOrbitTurns[last];
+            mUx[index] = mUx[last];
+            mUy[index] = mUy[last];
+            mUz[index] = mUz[last];
+            mVx[index] = mVx[last];
+            mVy[index] = mVy[last];
+            mVz[index] = mVz[last];
+            System.arraycopy(mTransforms, last * FLOATS_PER_TRANSFORM, mTransforms,
+                    index * FLOATS_PER_TRANSFORM, FLOATS_PER_TRANSFORM);
+        }
+        mIdToIndex[id] = -1;
+    }
+
+    /**
+     * Evaluates every object at a time, in seconds on the clock the start times were given in.
+     */
+    public void update(double timeSeconds) {
+        if (mPool == null || mCount <= SEQUENTIAL_THRESHOLD) {
+            evaluate(0, mCount, timeSeconds);
+        } else {
+            mPool.invoke(new UpdateTask(this, 0, mCount, timeSeconds));
+        }
+    }
+
+    private static class UpdateTask extends RecursiveAction {
+        private final AnimationEngine mEngine;
+        private final int mFrom;
+        private final int mTo;
+        private final double mTime;
+
+        UpdateTask(AnimationEngine engine, int from, int to, double time) {
+            mEngine = engine;
+            mFrom = from;
+            mTo = to;
+            mTime = time;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > SEQUENTIAL_THRESHOLD) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new UpdateTask(mEngine, mFrom, mid, mTime),
+                        new UpdateTask(mEngine, mid, mTo, mTime));
+                return;
+            }
+            mEngine.evaluate(mFrom, mTo, mTime);
+        }
+    }
+
+    private void evaluate(int from, int to, double time) {
+        float[] out = mTransforms;
+        for (int i = from; i < to; i++) {
+            // floor() compiles to a single rounding instruction; wrapping with a biased cast
+            // instead measured slower.
+            double spin = time * mSpinRate[i] + mSpinPhase[i];
+            double halfTurns = (spin - Math.floor(spin)) * mSpinTurns[i] * 0.5;
+            float sinHalf = sinTurns(halfTurns);
+            double orbit = time * mOrbitRate[i] + mOrbitPhase[i];
+            double orbitTurns = (orbit - Math.floor(orbit)) * mOrbitTurns[i];
+            float cosOrbit = sinTurns(orbitTurns + 0.25);
+            float sinOrbit = sinTurns(orbitTurns);
+
+            int o = i * FLOATS_PER_TRANSFORM;
+            out[o] = mX[i] + mUx[i] * cosOrbit + mVx[i] * sinOrbit;
+            out[o + 1] = mY[i] + mUy[i] * cosOrbit + mVy[i] * sinOrbit;
+            out[o + 2] = mZ[i] + mUz[i] * cosOrbit + mVz[i] * sinOrbit;
+            out[o + 3] = mAxisX[i] * sinHalf;
+            out[o + 4] = mAxisY[i] * sinHalf;
+            out[o + 5] = mAxisZ[i] * sinHalf;
+            out[o + 6] = sinTurns(halfTurns + 0.25);
+        }
+    }
+
+    /**
+     * @return sin(2 pi turns).
+     */
+    static float sinTurns(double turns) {
+        double x = turns * SINE_TABLE_SIZE + SINE_TABLE_BIAS;
+        int whole = (int) x;
+        float fraction = (float) (x - whole);
+        int i = whole & (SINE_TABLE_SIZE - 1);
+        return SINE_TABLE[i] + (SINE_TABLE[i + 1] - SINE_TABLE[i]) * fraction;
+    }
+
+    private void grow() {
+        int capacity = mIds.length * 2;
+        mX = Arrays.copyOf(mX, capacity);
+        mY = Arrays.copyOf(mY, capacity);
+        mZ = Arrays.copyOf(mZ, capacity);
+        mSpinRate = Arrays.copyOf(mSpinRate, capacity);
+        mSpinPhase = Arrays.copyOf(mSpinPhase, capacity);
+        mSpinTurns = Arrays.copyOf(mSpinTurns, capacity);
+        mAxisX = Arrays.copyOf(mAxisX, capacity);
+        mAxisY = Arrays.copyOf(mAxisY, capacity);
+        mAxisZ = Arrays.copyOf(mAxisZ, capacity);
+        mOrbitRate = Arrays.copyOf(mOrbitRate, capacity);
+        mOrbitPhase = Arrays.copyOf(mOrbitPhase, capacity);
+        mOrbitTurns = Arrays.copyOf(mOrbitTurns, capacity);
+        mUx = Arrays.copyOf(mUx, capacity);
+        mUy = Arrays.copyOf(mUy, capacity);
+        mUz = Arrays.copyOf(mUz, capacity);
+        mVx = Arrays.copyOf(mVx, capacity);
+        mVy = Arrays.copyOf(mVy, capacity);
+        mVz = Arrays.copyOf(mVz, capacity);
+        mTransforms = Arrays.copyOf(mTransforms, capacity * FLOATS_PER_TRANSFORM);
+        mIds = Arrays.copyOf(mIds, capacity);
+    }
+
+    private int checkedIndex(int id) {
+        int index = indexOf(id);
+        if (index < 0) {
+            throw new IllegalArgumentException("No animation " + id);
+        }
+        return index;
+    }
+
+    /**
+     * @return where the object's transform is in {@link #getTransforms()}, or -1 if it doesn't
+     * exist.
+     */
+    public int indexOf(int id) {
+        return id >= 0 && id < mNextId ? mIdToIndex[id] : -1;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the transforms worked out by the last update, {@link #FLOATS_PER_TRANSFORM} per
+     * object. Reallocated as objects are added, so fetch it after adding. Don't modify.
+     */
+    public float[] getTransforms() {
+        return mTransforms;
+    }
+
+    /**
+     * Copies an object's transform from the last update.
+     */
+    public void getTransform(int id, float[] outTranslation, float[] outRotation) {
+        int o = checkedIndex(id) * FLOATS_PER_TRANSFORM;
+        System.arraycopy(mTransforms, o, outTranslation, 0, 3);
+        System.arraycopy(mTransforms, o + 3, outRotation, 0, 4);
+    }
+}
@@ -19,20 +19,28 @@ package com.jamieadkins.motiontrackingsample;
 import android.Manifest;
 import android.app.Activity;
 import android.content.pm.PackageManager;
-import android.hardware.Camera;
 import android.hardware.display.DisplayManager;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
 import android.os.Bundle;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Display;
-import android.view.Surface;
+import android.view.MotionEvent;
+import android.view.View;
 
 import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.surface.RajawaliSurfaceView;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * This is a simple example that shows how to use the Android Sensor APIs to create an augmented
  * reality (AR)application. It displays the Planet Earth floating in space one meter in front of the
@@ -49,26 +57,315 @@ public class AugmentedRealityActivity extends Activity
         implements PoseProvider.PoseProviderListener {
     private static final String TAG = AugmentedRealityActivity.class.getSimpleName();
     private static final int INVALID_TEXTURE_ID = 0;
-    private static final int COLOR_CAMERA_ID = 0;
     private static final int PERMISSIONS_REQUEST_CODE = 1112;
 
+    // Streams every pose over UDP for external tools when enabled, e.g. to a host forwarded
+    // with "adb reverse udp:..." or another device on the same network. Only debug builds have
+    // the INTERNET permission it needs.
+    private static final boolean STREAM_POSES = false;
+    private static final String POSE_STREAM_HOST = "127.0.0.1";
+    private static final int POSE_STREAM_PORT = 5555;
+
+    // Emits trace markers for systrace and Perfetto on the pose, camera and render paths.
+    private static final boolean TRACE = false;
+
+    // Tracks corner features in a small luminance stream from the camera, alongside the poses.
+    private static final boolean TRACK_FEATURES = false;
+    private static final int FEATURE_TRACKING_WIDTH = 320;
+    private static final int FEATURE_TRACKING_HEIGHT = 240;
+
+    // Records the luminance stream, scaled down, together with every pose into the app's files,
+    // for tuning the tracking offline.
+    private static final boolean RECORD_DATASET = false;
+    private static final int DATASET_WIDTH = 160;
+    private static final int DATASET_HEIGHT = 120;
+
+    // About an hour of poses at 200Hz, 26MB.
+    private static final int TRAJECTORY_MAX_SAMPLES = 200 * 60 * 60;
+    private static final long NANOS_PER_MINUTE = 60000000000L;
+    // Error bounds of the simplified trajectory.
+    private static final float SIMPLIFIED_POSITION_ERROR = 0.01f;
+    private static final float SIMPLIFIED_ROTATION_ERROR = (float) Math.toRadians(1);
+    // Poses kept in the session snapshot, the last minute at 200Hz.
+    private static final int SNAPSHOT_MAX_POSES = 200 * 60;
+    // Occlusion depth image size. Whole objects are tested, so a coarse image is plenty.
+    private static final int DEPTH_BUFFER_WIDTH = 160;
+    private static final int DEPTH_BUFFER_HEIGHT = 120;
+    // How long the camera stays open after pausing, so a quick return doesn't reopen it.
+    private static final long CAMERA_GRACE_PERIOD_MILLIS = 3000;
+
+    // Start up phases, see startStartup().
+    private static final String PHASE_ASSETS = "assets";
+    private static final String PHASE_CAMERA_OPEN = "cameraOpen";
+    private static final String PHASE_POSE_PROVIDER = "poseProvider";
+    private static final String PHASE_TRACKING = "tracking";
+    private static final String PHASE_SCENE = "scene";
+    private static final String PHASE_CAMERA_FRAME = "firstCameraFrame";
+    private static final String PHASE_FIRST_TRACKED_FRAME = "firstTrackedFrame";
+
     private RajawaliSurfaceView mSurfaceView;
     private AugmentedRealityRenderer mRenderer;
 
     private PoseProvider mPoseProvider;
+    private CameraStreamManager mCameraStreamManager;
+
+    private volatile StartupOrchestrator mStartup;
+    private ExecutorService mStartupExecutor;
 
     private boolean mCameraPermissionGranted = false;
 
     private int mConnectedTextureId = INVALID_TEXTURE_ID;
 
-    private int mColorCameraToDisplayAndroidRotation = 0;
+    // Display rotation changes are handed to the render thread, which looks everything up in
+    // mCameraDisplayRotation. The camera's sensor orientation is read once at start up.
+    private Display mDisplay;
+    private int mSensorOrientation;
+    private volatile int mDisplayRotation;
+    private volatile long mDisplayRotationChangedNanos;
+    private CameraDisplayRotation mCameraDisplayRotation;
+    // Reset from the main thread when the transform tree is replaced, so it is volatile.
+    private volatile int mAppliedDisplayRotation = -1;
+    private final LatencyHistogram mRotationLatency = new LatencyHistogram(100000L, 100);
+    private final float[] mDisplayQuaternion = new float[4];
+
+    private PoseStreamServer mPoseStreamServer;
+    // Null unless RECORD_DATASET and resumed. A new dataset is started on every resume.
+    private volatile DatasetRecorder mDatasetRecorder;
+    private FileOutputStream mDatasetOut;
+
+    // Every pose of the session, for trajectory analytics.
+    private final TrajectoryStore mTrajectoryStore =
+            new TrajectoryStore(WorkerPool.get(), TRAJECTORY_MAX_SAMPLES);
+    // The same trajectory reduced to the key poses, for drawing and exporting.
+    private final TrajectoryStore mSimplifiedTrajectory =
+            new TrajectoryStore(WorkerPool.get(), TrajectoryStore.UNBOUNDED);
+    private final TrajectorySimplifier mTrajectorySimplifier = new TrajectorySimplifier(
+            SIMPLIFIED_POSITION_ERROR, SIMPLIFIED_ROTATION_ERROR,
+            new TrajectorySimplifier.Output() {
+                @Override
+                public void onKeyPose(long timestamp, float[] translation, float[] rotation) {
+                    mSimplifiedTrajectory.append(timestamp, translation, rotation);
+                }
+            });
+
+    private final FramePacer mFramePacer = new FramePacer();
+    private final ResolutionScaleController mResolutionScaleController =
+            new ResolutionScaleController(mFramePacer.getVsyncPeriodNanos());
+    private final Choreographer.FrameCallback mVsyncCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePacer.onVsync(frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    // Hands the latest pose to the render thread and applies it at the frame's latch point.
+    private FramePipeline mFramePipeline;
+
+    private final PoseCorrectionDetector mPoseCorrectionDetector = new PoseCorrectionDetector();
+
+    // Saved in onPause, and restored from when the activity is recreated. The saved poses go in
+    // ahead of the first pose of the new session.
+    private File mSessionFile;
+    private volatile SessionSnapshot mPendingPoses;
+
+    // Steps quality down as the device heats up or frames overrun. Fed on the render thread; the
+    // thermal status is polled on the main thread and picked up at the next frame.
+    private QualityGovernor mQualityGovernor;
+    private ThermalStatusSource mThermalStatusSource;
+    private volatile int mThermalStatus = QualityGovernor.THERMAL_STATUS_NONE;
+    private int mAppliedThermalStatus = -1;
+
+    private final PlaneDetector mPlaneDetector = new PlaneDetector();
+    private ExecutorService mPlaneDetectionExecutor;
+    private final AtomicBoolean mPlaneDetectionBusy = new AtomicBoolean(false);
+
+    // Rasterised from each cloud so the renderer can skip content behind real surfaces.
+    private final DepthBuffer mDepthBuffer =
+            new DepthBuffer(DEPTH_BUFFER_WIDTH, DEPTH_BUFFER_HEIGHT);
+    private ExecutorService mDepthBufferExecutor;
+    private final AtomicBoolean mDepthBufferBusy = new AtomicBoolean(false);
+
+    // Keeps the latest depth points for hit testing taps, see AugmentedRealityRenderer.
+    private final HitTester mHitTester = new HitTester();
+    private ExecutorService mHitTesterExecutor;
+    private final AtomicBoolean mHitTesterBusy = new AtomicBoolean(false);
+
+    private final PoseProvider.PointCloudListener mPointCloudListener =
+            new PoseProvider.PointCloudListener() {
+                @Override
+                public void onNewPointCloud(final PointCloud pointCloud) {
+                    if (mDepthBufferBusy.compareAndSet(false, true)) {
+                        mDepthBufferExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    mDepthBuffer.onNewPointCloud(pointCloud);
+                                } finally {
+                                    mDepthBufferBusy.set(false);
+                                }
+                            }
+                        });
+                    }
+                    if (mHitTesterBusy.compareAndSet(false, true)) {
+                        mHitTesterExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    mHitTester.onNewPointCloud(pointCloud);
+                                } finally {
+                                    mHitTesterBusy.set(false);
+                                }
+                            }
+                        });
+                    }
+                    // Drop clouds while the previous one is still being fitted so the provider's
+                    // callback thread never waits on plane detection.
+                    if (!mPlaneDetectionBusy.compareAndSet(false, true)) {
+                        return;
+                    }
+                    mPlaneDetectionExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                mPlaneDetector.onNewPointCloud(pointCloud);
+                            } finally {
+                                mPlaneDetectionBusy.set(false);
+                            }
+                        }
+                    });
+                }
+            };
+
+    // Null unless TRACK_FEATURES. Frames that arrive while the last is still being tracked are
+    // dropped, so the luminance buffer is only ever used by one frame at a time.
+    private FeatureTracker mFeatureTracker;
+    private ExecutorService mFeatureTrackingExecutor;
+    private final AtomicBoolean mFeatureTrackingBusy = new AtomicBoolean(false);
+    private byte[] mLuminance;
+    private final LatencyHistogram mFeatureTrackingLatency = new LatencyHistogram(1000000L, 100);
+    private volatile long mDroppedLuminanceFrames;
+
+    private final CameraStreamManager.LuminanceListener mLuminanceListener =
+            new CameraStreamManager.LuminanceListener() {
+                @Override
+                public void onLuminanceFrame(ByteBuffer luminance, int width, int height,
+                                             int rowStride, final long timestamp) {
+                    // Offered first: the recorder leaves the buffer's position alone.
+                    DatasetRecorder recorder = mDatasetRecorder;
+                    if (recorder != null) {
+                        recorder.offerFrame(luminance, width, height, rowStride, timestamp);
+                    }
+                    if (!TRACK_FEATURES) {
+                        return;
+                    }
+                    if (!mFeatureTrackingBusy.compareAndSet(false, true)) {
+                        mDroppedLuminanceFrames++;
+                        return;
+                    }
+                    if (mLuminance == null || mLuminance.length < rowStride * height) {
+                        mLuminance = new byte[rowStride * height];
+                    }
+                    // The last row may stop short of the stride.
+                    luminance.get(mLuminance, 0, Math.min(luminance.remaining(),
+                            rowStride * height));
+                    final int stride = rowStride;
+                    mFeatureTrackingExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                long start = System.nanoTime();
+                                mFeatureTracker.track(mLuminance, 0, stride, timestamp);
+                                mFeatureTrackingLatency.record(System.nanoTime() - start);
+                            } finally {
+                                mFeatureTrackingBusy.set(false);
+                            }
+                        }
+                    });
+                }
+            };
+
+    private final TrackingStateMachine.Listener mTrackingStateListener =
+            new TrackingStateMachine.Listener() {
+                @Override
+                public void onTrackingStateChanged(TrackingState previous, TrackingState current,
+                                                   long timeInPreviousNanos) {
+                    Log.i(TAG, "Tracking " + previous + " -> " + current + " after "
+                            + timeInPreviousNanos / 1000000 + "ms");
+                    if (current == TrackingState.TRACKING
+                            && previous == TrackingState.RECOVERING) {
+                        Log.i(TAG, "Recovered in " + mPoseProvider.getTrackingStateMachine()
+                                .getLastRecoveryNanos() / 1000000 + "ms");
+                    }
+                }
+            };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (TRACE) {
+            Tracer.setBackend(new AndroidTraceBackend());
+        }
         setContentView(R.layout.activity_main);
         mSurfaceView = (RajawaliSurfaceView) findViewById(R.id.surfaceview);
         mRenderer = new AugmentedRealityRenderer(this);
+        mSessionFile = new File(getFilesDir(), SessionSnapshot.FILE_NAME);
+        if (savedInstanceState != null) {
+            // Recreated by the system rather than started by the user, pick up where we were.
+            openSession();
+        }
+        mFramePipeline = new FramePipeline(FramePacer.SYSTEM_CLOCK, mFramePacer,
+                mResolutionScaleController, mRenderer, mRenderer);
+        mPlaneDetectionExecutor = Executors.newSingleThreadExecutor();
+        mDepthBufferExecutor = Executors.newSingleThreadExecutor();
+        mRenderer.setDepthBuffer(mDepthBuffer);
+        mHitTesterExecutor = Executors.newSingleThreadExecutor();
+        mHitTester.setPlaneDetector(mPlaneDetector);
+        mRenderer.setHitTester(mHitTester);
+        // Two threads so decoding assets doesn't hold up opening the camera.
+        mStartupExecutor = Executors.newFixedThreadPool(2);
+        mCameraStreamManager = new CameraStreamManager(this);
+        mCameraStreamManager.setGracePeriodMillis(CAMERA_GRACE_PERIOD_MILLIS);
+        if (TRACK_FEATURES) {
+            mFeatureTracker = new FeatureTracker(FEATURE_TRACKING_WIDTH, FEATURE_TRACKING_HEIGHT);
+            mFeatureTrackingExecutor = Executors.newSingleThreadExecutor();
+        }
+        if (TRACK_FEATURES || RECORD_DATASET) {
+            mCameraStreamManager.setLuminanceListener(mLuminanceListener, FEATURE_TRACKING_WIDTH,
+                    FEATURE_TRACKING_HEIGHT);
+        }
+        mCameraStreamManager.setListener(new CameraStreamManager.Listener() {
+            @Override
+            public void onCameraOpened() {
+                mStartup.complete(PHASE_CAMERA_OPEN);
+            }
+
+            @Override
+            public void onCameraError(int error) {
+                mStartup.fail(PHASE_CAMERA_OPEN,
+                        new IllegalStateException("Camera error " + error));
+            }
+        });
+        mQualityGovernor = new QualityGovernor(new QualityGovernor.Listener() {
+            @Override
+            public void onQualityLevelChanged(QualityGovernor.Level previous,
+                                              QualityGovernor.Level current) {
+                applyQualityLevel(current);
+                Log.i(TAG, "Quality " + previous + " -> " + current + " at thermal status "
+                        + mQualityGovernor.getThermalStatus());
+            }
+        });
+        mThermalStatusSource = new ThermalStatusSource(this, new ThermalStatusSource.Listener() {
+            @Override
+            public void onThermalStatus(int status) {
+                mThermalStatus = status;
+            }
+        });
+        mDisplay = getWindowManager().getDefaultDisplay();
+        mSensorOrientation = CameraStreamManager.getSensorOrientation(this);
+        if (STREAM_POSES) {
+            mPoseStreamServer = new PoseStreamServer(POSE_STREAM_HOST, POSE_STREAM_PORT);
+        }
 
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
@@ -78,9 +375,7 @@ public class AugmentedRealityActivity extends Activity
 
                 @Override
                 public void onDisplayChanged(int displayId) {
-                    synchronized (this) {
-                        setAndroidOrientation();
-                    }
+                    setAndroidOrientation();
                 }
 
                 @Override
@@ -99,11 +394,145 @@ public class AugmentedRealityActivity extends Activity
         setupRenderer();
     }
 
+    /**
+     * Maps the session saved when the activity was last paused and hands it to the renderer and
+     * the pose callback, which each restore their part when they first need it.
+     */
+    private void openSession() {
+        try {
+            SessionSnapshot session = SessionSnapshot.open(mSessionFile);
+            if (session == null) {
+                return;
+            }
+            Log.i(TAG, "Restoring session saved "
+                    + (System.currentTimeMillis() - session.getSavedAtMillis()) + "ms ago, "
+                    + session.getAnchorCount() + " anchors, " + session.getMarkerCount()
+                    + " markers, " + session.getPoseCount() + " poses, tracking was "
+                    + session.getTrackingState());
+            mRenderer.restoreSession(session);
+            mPendingPoses = session;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the saved session", e);
+        }
+    }
+
+    /**
+     * Saves the scene's anchors and markers, the recent trajectory and the tracking state. Called
+     * once the render thread and pose provider have stopped.
+     */
+    private void saveSession(TrackingState trackingState) {
+        long start = System.nanoTime();
+        try {
+            long bytes = SessionSnapshot.save(mSessionFile, mRenderer.getAnchorStore(),
+                    mRenderer.getMarkerAnchorIds(), mRenderer.getAnimationTime(),
+                    mTrajectoryStore, SNAPSHOT_MAX_POSES, trackingState);
+            Log.i(TAG, "Saved session, " + bytes + " bytes in "
+                    + (System.nanoTime() - start) / 1000 + "us");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the session", e);
+        }
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
         mPoseProvider = new SamplePoseProvider(this, this);
-        mPoseProvider.setup();
+        mPoseProvider.setPointCloudListener(mPointCloudListener);
+        mPoseProvider.setTrackingStateListener(mTrackingStateListener);
+        // A new provider starts at the fastest rate, keep whatever level the governor is at.
+        mPoseProvider.setSensorPeriodMicros(mQualityGovernor.getLevel().mSensorPeriodMicros);
+        TransformTree transformTree = mPoseProvider.getTransformTree();
+        mFramePipeline.setTransformTree(transformTree,
+                transformTree.getFrame(PoseProvider.FRAME_WORLD),
+                transformTree.getFrame(PoseProvider.FRAME_RENDER_CAMERA));
+        // The new tree has no display frame yet; have the next frame apply the rotation again.
+        mAppliedDisplayRotation = -1;
+        mPoseCorrectionDetector.reset();
+        startStartup();
+    }
+
+    /**
+     * Opens the camera, decodes the scene's assets and sets up the pose provider all at once,
+     * rather than one after the other as each part used to be reached, and logs how long each
+     * took once the first frame has been rendered with both a camera image and a pose.
+     */
+    private void startStartup() {
+        StartupOrchestrator startup = new StartupOrchestrator(new StartupOrchestrator.Listener() {
+            @Override
+            public void onPhaseFailed(String name, Throwable error) {
+                Log.e(TAG, "Start up phase " + name + " failed", error);
+            }
+
+            @Override
+            public void onStartupFinished(StartupOrchestrator orchestrator) {
+                Log.i(TAG, orchestrator.getTrace());
+            }
+        });
+        final boolean openCamera = mCameraPermissionGranted;
+
+        // Background phases first, the main thread ones run as soon as start() is called.
+        startup.addPhase(PHASE_ASSETS, mStartupExecutor, new StartupOrchestrator.Task() {
+            @Override
+            public boolean run() {
+                mRenderer.preloadAssets();
+                return true;
+            }
+        });
+        startup.addPhase(PHASE_CAMERA_OPEN, mStartupExecutor, new StartupOrchestrator.Task() {
+            @Override
+            public boolean run() {
+                if (!openCamera) {
+                    // Opened when the first frame is rendered once permission is granted.
+                    return true;
+                }
+                // Finished by the camera listener.
+                mCameraStreamManager.onStartCameraStream();
+                return false;
+            }
+        });
+        startup.addPhase(PHASE_POSE_PROVIDER, StartupOrchestrator.DIRECT,
+                new StartupOrchestrator.Task() {
+                    @Override
+                    public boolean run() {
+                        // Finished in onSetupComplete().
+                        mPoseProvider.setup();
+                        return false;
+                    }
+                });
+        startup.addPhase(PHASE_TRACKING, StartupOrchestrator.DIRECT,
+                new StartupOrchestrator.Task() {
+                    @Override
+                    public boolean run() {
+                        // Finished when the first pose arrives.
+                        mPoseProvider.onStartPoseProviding();
+                        return false;
+                    }
+                }, PHASE_POSE_PROVIDER);
+        // Finished by the first frame rendered.
+        startup.addMilestone(PHASE_SCENE, PHASE_ASSETS);
+        if (openCamera) {
+            startup.addMilestone(PHASE_CAMERA_FRAME, PHASE_CAMERA_OPEN, PHASE_SCENE);
+            startup.addMilestone(PHASE_FIRST_TRACKED_FRAME, PHASE_CAMERA_FRAME, PHASE_TRACKING);
+        } else {
+            startup.addMilestone(PHASE_FIRST_TRACKED_FRAME, PHASE_SCENE, PHASE_TRACKING);
+        }
+
+        mStartup = startup;
+        startup.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPlaneDetectionExecutor.shutdown();
+        mDepthBufferExecutor.shutdown();
+        mHitTesterExecutor.shutdown();
+        mStartupExecutor.shutdown();
+        if (mFeatureTrackingExecutor != null) {
+            mFeatureTrackingExecutor.shutdown();
+        }
+        // Closes a camera still kept open from onPause.
+        mCameraStreamManager.onStopCameraStream();
     }
 
     @Override
@@ -127,12 +556,67 @@ public class AugmentedRealityActivity extends Activity
         // Set render mode to RENDERMODE_CONTINUOUSLY to force getting onDraw callbacks until the
         // Tango service is properly set-up and we start getting onFrameAvailable callbacks.
         mSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+
+        mFramePacer.reset();
+        Choreographer.getInstance().postFrameCallback(mVsyncCallback);
+        mThermalStatusSource.start();
+
+        if (mPoseStreamServer != null) {
+            try {
+                mPoseStreamServer.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start pose streaming", e);
+            }
+        }
+        if (RECORD_DATASET) {
+            startDataset();
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         mSurfaceView.onPause();
+        Choreographer.getInstance().removeFrameCallback(mVsyncCallback);
+        mThermalStatusSource.stop();
+        Log.i(TAG, "Frames: " + mFramePacer.getFrameCount() + ", missed deadlines: "
+                + mFramePacer.getMissedDeadlineCount() + ", interval "
+                + mFramePacer.getFrameIntervalHistogram() + ", pose to display "
+                + mFramePacer.getPoseToDeadlineHistogram());
+        Log.i(TAG, "Pose age at latch " + mFramePipeline.getPoseAgeHistogram()
+                + ", camera latch " + mFramePipeline.getCameraLatchHistogram()
+                + ", camera to pose " + mFramePipeline.getAlignmentHistogram());
+        Log.i(TAG, "Resolution scale " + mResolutionScaleController.getScale() + ", lowest "
+                + mResolutionScaleController.getLowestScale() + ", "
+                + mResolutionScaleController.getFramesBelowMaxScale() + " of "
+                + mResolutionScaleController.getFrameCount() + " frames reduced");
+        CameraSessionKeeper cameraKeeper = mCameraStreamManager.getSessionKeeper();
+        Log.i(TAG, "Camera start to first frame "
+                + cameraKeeper.getLastStartLatencyNanos() / 1000000 + "ms, kept open "
+                + cameraKeeper.getWarmStartLatency() + ", opened "
+                + cameraKeeper.getColdStartLatency());
+        Log.i(TAG, "Quality " + mQualityGovernor.getLevel() + ", lowest level "
+                + mQualityGovernor.getLowestLevel() + ", "
+                + mQualityGovernor.getStepDownCount() + " steps down, "
+                + mQualityGovernor.getStepUpCount() + " up");
+        if (mDepthBuffer.getVersion() > 0) {
+            Log.i(TAG, "Depth buffer: " + mDepthBuffer.getVersion() + " images, last built in "
+                    + mDepthBuffer.getLastBuildNanos() / 1000 + "us with "
+                    + mDepthBuffer.getLastSkippedTiles() + " tiles over budget, "
+                    + mRenderer.getOccludedObjectCount() + " objects hidden");
+        }
+        if (mRenderer.getHitTestLatency().getCount() > 0) {
+            Log.i(TAG, "Hit tests over " + mHitTester.getPointCount() + " points, rebuilt in "
+                    + mHitTester.getLastBuildNanos() / 1000 + "us: "
+                    + mRenderer.getHitTestLatency());
+        }
+        if (mFeatureTracker != null) {
+            Log.i(TAG, "Feature tracking: " + mFeatureTracker.getFrameCount() + " frames, "
+                    + mDroppedLuminanceFrames + " dropped, " + mFeatureTracker.getCount()
+                    + " features, " + mFeatureTrackingLatency);
+            // The stream may resume somewhere else entirely.
+            mFeatureTracker.reset();
+        }
         // Synchronize against disconnecting while the service is being used in the OpenGL thread or
         // in the UI thread.
         // NOTE: DO NOT lock against this same object in the Tango callback thread. Tango.disconnect
@@ -140,11 +624,74 @@ public class AugmentedRealityActivity extends Activity
         // object in a Tango callback thread it will cause a deadlock.
         synchronized (this) {
             if (mCameraPermissionGranted) {
-                mRenderer.disconnectCamera();
+                if (isFinishing()) {
+                    mCameraStreamManager.onStopCameraStream();
+                } else {
+                    // Kept open for a while in case this is a brief interruption.
+                    mCameraStreamManager.onPauseCameraStream();
+                }
+                // Reconnect, and so resume or reopen the camera, on the first frame after
+                // resuming.
+                mConnectedTextureId = INVALID_TEXTURE_ID;
             }
         }
 
+        TrackingState trackingState = mPoseProvider.getTrackingState();
         mPoseProvider.onStopPoseProviding();
+        saveSession(trackingState);
+
+        if (mTrajectoryStore.size() > 0) {
+            long last = mTrajectoryStore.getTimestamp(mTrajectoryStore.size() - 1);
+            Log.i(TAG, "Last minute: " + mTrajectoryStore.query(last - NANOS_PER_MINUTE, last));
+            Log.i(TAG, "Simplified trajectory: " + mTrajectorySimplifier.getOutputCount()
+                    + " key poses from " + mTrajectorySimplifier.getInputCount());
+        }
+
+        if (mPoseStreamServer != null && mPoseStreamServer.isRunning()) {
+            mPoseStreamServer.stop();
+            Log.i(TAG, "Pose stream sent " + mPoseStreamServer.getSentCount() + " of "
+                    + mPoseStreamServer.getPublishedCount() + " poses, "
+                    + mPoseStreamServer.getReplacedCount() + " replaced, "
+                    + mPoseStreamServer.getDroppedCount() + " dropped");
+        }
+        stopDataset();
+    }
+
+    private void startDataset() {
+        File file = new File(getFilesDir(), "dataset-" + System.currentTimeMillis() + ".bin");
+        try {
+            mDatasetOut = new FileOutputStream(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start recording a dataset", e);
+            return;
+        }
+        DatasetRecorder recorder = new DatasetRecorder(mDatasetOut, DATASET_WIDTH,
+                DATASET_HEIGHT);
+        recorder.start();
+        mDatasetRecorder = recorder;
+        Log.i(TAG, "Recording dataset to " + file);
+    }
+
+    private void stopDataset() {
+        DatasetRecorder recorder = mDatasetRecorder;
+        if (recorder == null) {
+            return;
+        }
+        mDatasetRecorder = null;
+        recorder.stop();
+        try {
+            mDatasetOut.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close the dataset", e);
+        }
+        mDatasetOut = null;
+        Log.i(TAG, String.format("Dataset: %d frames and %d poses, %.1fMB at %.2fMB/s, %d of %d"
+                        + " frames and %d of %d poses dropped, %d write errors",
+                recorder.getFramesWritten(), recorder.getPosesWritten(),
+                recorder.getBytesWritten() / (1024.0 * 1024.0), recorder.getMegabytesPerSecond(),
+                recorder.getDroppedFrameCount(), recorder.getOfferedFrameCount(),
+                recorder.getDroppedPoseCount(), recorder.getOfferedPoseCount(),
+                recorder.getErrorCount()));
     }
 
     /**
@@ -152,43 +699,67 @@ public class AugmentedRealityActivity extends Activity
      */
     private void setupRenderer() {
         // Register a Rajawali Scene Frame Callback to update the scene camera pose whenever a new
-        // RGB frame is rendered.
+        // RGB frame is rendered. It goes on the content scene, which is rendered first.
         // (@see https://github.com/Rajawali/Rajawali/wiki/Scene-Frame-Callbacks)
-        mRenderer.getCurrentScene().registerFrameCallback(new ASceneFrameCallback() {
+        mRenderer.getContentScene().registerFrameCallback(new ASceneFrameCallback() {
             @Override
             public void onPreFrame(long sceneTime, double deltaTime) {
                 // NOTE: This is called from the OpenGL render thread, after all the renderer
                 // onRender callbacks had a chance to run and before scene objects are rendered
                 // into the scene.
+                Tracer.beginSection("onPreFrame");
+
+                // Wait until the latest point that still makes the next vsync before sampling
+                // the pose and latching the camera frame, so they are as fresh as possible.
+                Tracer.beginSection("awaitLatchPoint");
+                try {
+                    mFramePipeline.awaitLatchPoint();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    Tracer.endSection();
+                }
 
                 // Prevent concurrent access to {@code mIsFrameAvailableTangoThread} from the Tango
                 // callback thread and service disconnection from an onPause event.
+                StartupOrchestrator startup = mStartup;
                 try {
                     synchronized (AugmentedRealityActivity.this) {
-                        // Set-up scene camera projection to match RGB camera intrinsics.
-                        if (!mRenderer.isSceneCameraConfigured()) {
-                            mRenderer.setProjectionMatrix(
-                                    projectionMatrixFromCameraIntrinsics(
-                                            mPoseProvider.getIntrinsics(),
-                                            mColorCameraToDisplayAndroidRotation));
-                        }
+                        applyDisplayRotation();
 
                         if (mCameraPermissionGranted) {
                             // Connect the camera texture to the OpenGL Texture if necessary
                             // NOTE: When the OpenGL context is recycled, Rajawali may re-generate the
                             // texture with a different ID.
                             if (mConnectedTextureId != mRenderer.getTextureId()) {
-                                mRenderer.connectCamera();
+                                mRenderer.connectCamera(mCameraStreamManager);
                                 mConnectedTextureId = mRenderer.getTextureId();
                                 Log.d(TAG, "connected to texture id: " + mRenderer.getTextureId());
                             }
 
-                            mRenderer.updateTexture();
+                            if (mFramePipeline.latchCameraFrame() > 0
+                                    && !startup.isFinished()) {
+                                startup.complete(PHASE_CAMERA_FRAME);
+                            }
+                        }
+                    }
+
+                    PoseData pose = mFramePipeline.applyLatestPose();
+                    // The next cloud is rasterised from the view being drawn.
+                    mDepthBuffer.setView(mRenderer.getLatestCameraPose(),
+                            mCameraDisplayRotation.getIntrinsics());
+
+                    if (!startup.isFinished()) {
+                        startup.complete(PHASE_SCENE);
+                        if (pose != null) {
+                            // Holds until the camera image has arrived too.
+                            startup.complete(PHASE_FIRST_TRACKED_FRAME);
                         }
                     }
                 } catch (Throwable t) {
                     Log.e(TAG, "Exception on the OpenGL thread", t);
                 }
+                Tracer.endSection();
             }
 
             @Override
@@ -198,114 +769,169 @@ public class AugmentedRealityActivity extends Activity
 
             @Override
             public void onPostFrame(long sceneTime, double deltaTime) {
-
+                mFramePipeline.onFrameRendered();
+                updateQualityGovernor();
             }
 
             @Override
             public boolean callPreFrame() {
                 return true;
             }
+
+            @Override
+            public boolean callPostFrame() {
+                return true;
+            }
         });
 
         mSurfaceView.setSurfaceRenderer(mRenderer);
+        // The surface view doesn't pass touches on to its renderer itself.
+        mSurfaceView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+                    mRenderer.onTap(event.getX(), event.getY(), view.getWidth(),
+                            view.getHeight());
+                }
+                return true;
+            }
+        });
     }
 
-    private static int getColorCameraToDisplayAndroidRotation(int displayRotation,
-                                                              int cameraRotation) {
-        int cameraRotationNormalized = 0;
-        switch (cameraRotation) {
-            case 90:
-                cameraRotationNormalized = 1;
-                break;
-            case 180:
-                cameraRotationNormalized = 2;
-                break;
-            case 270:
-                cameraRotationNormalized = 3;
-                break;
-            default:
-                cameraRotationNormalized = 0;
-                break;
+    /**
+     * Hands the latest thermal status and frame time to the quality governor. Called on the
+     * OpenGL thread.
+     */
+    private void updateQualityGovernor() {
+        long now = System.nanoTime();
+        int thermalStatus = mThermalStatus;
+        if (thermalStatus != mAppliedThermalStatus) {
+            mQualityGovernor.onThermalStatus(thermalStatus, now);
+            mAppliedThermalStatus = thermalStatus;
         }
-        int ret = displayRotation - cameraRotationNormalized;
-        if (ret < 0) {
-            ret += 4;
+        long busyNanos = mFramePacer.getLastFrameBusyNanos();
+        if (busyNanos > 0) {
+            mQualityGovernor.onFrameTime(busyNanos,
+                    mFramePacer.getVsyncPeriodNanos() * mFramePacer.getFrameInterval(), now);
         }
-        return ret;
     }
 
     /**
-     * Use Tango camera intrinsics to calculate the projection Matrix for the Rajawali scene.
-     * @param intrinsics camera instrinsics for computing the project matrix.
-     * @param rotation the relative rotation between the camera intrinsics and display glContext.
+     * Applies a quality level to the sensors, camera preview, render rate and scene.
      */
-    private static float[] projectionMatrixFromCameraIntrinsics(Intrinsics intrinsics,
-                                                                int rotation) {
-        // Adjust camera intrinsics according to rotation
-        float width = (float) intrinsics.getWidth();
-        float height = (float) intrinsics.getHeight();
-        float fx = (float) intrinsics.getFocalLengthInPixelsX();
-        float fy = (float) intrinsics.getFocalLengthInPixelsY();
-
-        switch (rotation) {
-            case Surface.ROTATION_90:
-                width = (float) intrinsics.getHeight();
-                height = (float) intrinsics.getWidth();
-                fx = (float) intrinsics.getFocalLengthInPixelsY();
-                fy = (float) intrinsics.getFocalLengthInPixelsX();
-                break;
-            case Surface.ROTATION_180:
-                break;
-            case Surface.ROTATION_270:
-                width = (float) intrinsics.getHeight();
-                height = (float) intrinsics.getWidth();
-                fx = (float) intrinsics.getFocalLengthInPixelsY();
-                fy = (float) intrinsics.getFocalLengthInPixelsX();
-                break;
-            default:
-                break;
+    private void applyQualityLevel(QualityGovernor.Level level) {
+        mFramePacer.setFrameInterval(level.mFrameInterval);
+        mRenderer.setDetailLevel(level.mDetail);
+        mPoseProvider.setSensorPeriodMicros(level.mSensorPeriodMicros);
+        if (mCameraPermissionGranted) {
+            mCameraStreamManager.setPreviewSize(level.mPreviewWidth, level.mPreviewHeight);
         }
+    }
 
-        // Uses frustumM to create a projection matrix taking into account calibrated camera
-        // intrinsic parameter.
-        // Reference: http://ksimek.github.io/2013/06/03/calibrated_cameras_in_opengl/
-        float near = 0.1f;
-        float far = 100;
+    /**
+     * Records the display rotation for the render thread to pick up on its next frame.
+     */
+    private void setAndroidOrientation() {
+        int rotation = mDisplay.getRotation();
+        if (rotation != mDisplayRotation) {
+            mDisplayRotationChangedNanos = System.nanoTime();
+            mDisplayRotation = rotation;
+        }
+    }
 
-        float xScale = near / fx;
-        float yScale = near / fy;
+    /**
+     * Applies the latest display rotation to the background texture and the scene camera
+     * projection. Called on the OpenGL thread.
+     */
+    private void applyDisplayRotation() {
+        Intrinsics intrinsics = mPoseProvider.getIntrinsics();
+        if (intrinsics == null) {
+            intrinsics = mCameraStreamManager.getIntrinsics();
+        }
+        if (mCameraDisplayRotation == null || mCameraDisplayRotation.getIntrinsics() != intrinsics) {
+            mCameraDisplayRotation = new CameraDisplayRotation(mSensorOrientation, intrinsics);
+            mAppliedDisplayRotation = -1;
+            // Once per camera configuration, and only where there's something to correct.
+            mRenderer.setUndistortionMesh(intrinsics.isCentredPinhole()
+                    ? null : new UndistortionMesh(intrinsics));
+            Log.i(TAG, "Camera intrinsics " + intrinsics);
+        }
 
-        float m[] = new float[16];
-        Matrix.frustumM(m, 0,
-                xScale * -width / 2.0f,
-                xScale * width / 2.0f,
-                yScale * -height / 2.0f,
-                yScale * height / 2.0f,
-                near, far);
-        return m;
+        int displayRotation = mDisplayRotation;
+        if (displayRotation != mAppliedDisplayRotation) {
+            mRenderer.setColorCameraTextureRotation(
+                    mCameraDisplayRotation.getCameraToDisplayRotation(displayRotation));
+            mRenderer.setProjectionMatrix(
+                    mCameraDisplayRotation.getProjectionMatrix(displayRotation));
+            mAppliedDisplayRotation = displayRotation;
+            updateDisplayFrame(displayRotation);
+
+            long changedNanos = mDisplayRotationChangedNanos;
+            if (changedNanos != 0) {
+                mDisplayRotationChangedNanos = 0;
+                long latency = System.nanoTime() - changedNanos;
+                mRotationLatency.record(latency);
+                Log.d(TAG, "Display rotation " + displayRotation + " applied " + latency / 1000
+                        + "us after the change, " + mRotationLatency);
+            }
+        } else if (!mRenderer.isSceneCameraConfigured()) {
+            // The surface changed size, which resets the projection.
+            mRenderer.setProjectionMatrix(
+                    mCameraDisplayRotation.getProjectionMatrix(displayRotation));
+        }
     }
 
     /**
-     * Set the color camera background texture rotation and save the camera to display rotation.
+     * Turns the display frame about the render camera's z axis by the screen's rotation, a
+     * Surface.ROTATION_* quarter turn count.
      */
-    private void setAndroidOrientation() {
-        Display display = getWindowManager().getDefaultDisplay();
-        Camera.CameraInfo colorCameraInfo = new Camera.CameraInfo();
-        Camera.getCameraInfo(COLOR_CAMERA_ID, colorCameraInfo);
-
-        mColorCameraToDisplayAndroidRotation =
-                getColorCameraToDisplayAndroidRotation(display.getRotation(),
-                        colorCameraInfo.orientation);
-        mRenderer.updateColorCameraTextureUv(mColorCameraToDisplayAndroidRotation);
+    private void updateDisplayFrame(int displayRotation) {
+        double halfAngle = displayRotation * Math.PI / 4;
+        mDisplayQuaternion[0] = 0;
+        mDisplayQuaternion[1] = 0;
+        mDisplayQuaternion[2] = (float) Math.sin(halfAngle);
+        mDisplayQuaternion[3] = (float) Math.cos(halfAngle);
+        TransformTree transformTree = mPoseProvider.getTransformTree();
+        transformTree.setStaticTransform(transformTree.getFrame(PoseProvider.FRAME_RENDER_CAMERA),
+                transformTree.getFrame(PoseProvider.FRAME_DISPLAY), PoseProvider.NO_TRANSLATION,
+                mDisplayQuaternion);
     }
 
     @Override
     public void onSetupComplete() {
-        mPoseProvider.onStartPoseProviding();
+        mStartup.complete(PHASE_POSE_PROVIDER);
     }
 
     @Override
     public void onNewPoseData(PoseData newPoseData) {
-        mRenderer.updateRenderCameraPose(newPoseData);
+        if (mPoseCorrectionDetector.onNewPoseData(newPoseData)) {
+            Log.i(TAG, "Pose correction detected, moving anchors");
+            mRenderer.getAnchorStore().applyCorrection(
+                    mPoseCorrectionDetector.getCorrectionRotation(),
+                    mPoseCorrectionDetector.getCorrectionTranslation());
+        }
+        mFramePipeline.onNewPoseData(newPoseData);
+        long arrivalNanos = mFramePipeline.getLatestPoseArrivalNanos();
+        SessionSnapshot pendingPoses = mPendingPoses;
+        if (pendingPoses != null) {
+            mPendingPoses = null;
+            int restored = pendingPoses.restorePoses(mTrajectoryStore, arrivalNanos);
+            Log.i(TAG, "Restored " + restored + " of " + pendingPoses.getPoseCount() + " poses");
+        }
+        // Stored against arrival time, which is in nanoseconds on both providers and never goes
+        // backwards.
+        mTrajectoryStore.append(arrivalNanos, newPoseData.mTranslation, newPoseData.mRotation);
+        mTrajectorySimplifier.add(arrivalNanos, newPoseData.mTranslation, newPoseData.mRotation);
+        StartupOrchestrator startup = mStartup;
+        if (!startup.isFinished()) {
+            startup.complete(PHASE_TRACKING);
+        }
+        if (mPoseStreamServer != null) {
+            mPoseStreamServer.publish(newPoseData);
+        }
+        DatasetRecorder recorder = mDatasetRecorder;
+        if (recorder != null) {
+            recorder.offerPose(arrivalNanos, newPoseData.mTranslation, newPoseData.mRotation);
+        }
     }
 }
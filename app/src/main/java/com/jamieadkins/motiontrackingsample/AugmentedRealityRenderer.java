@@ -16,17 +16,16 @@
 package com.jamieadkins.motiontrackingsample;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.SurfaceTexture;
+import android.opengl.GLES20;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.Surface;
-import android.view.animation.LinearInterpolator;
 
+import org.rajawali3d.Geometry3D;
 import org.rajawali3d.Object3D;
-import org.rajawali3d.animation.Animation;
-import org.rajawali3d.animation.Animation3D;
-import org.rajawali3d.animation.EllipticalOrbitAnimation3D;
-import org.rajawali3d.animation.RotateOnAxisAnimation;
 import org.rajawali3d.lights.DirectionalLight;
 import org.rajawali3d.materials.Material;
 import org.rajawali3d.materials.methods.DiffuseMethod;
@@ -35,10 +34,23 @@ import org.rajawali3d.materials.textures.StreamingTexture;
 import org.rajawali3d.materials.textures.Texture;
 import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.Quaternion;
-import org.rajawali3d.math.vector.Vector3;
 import org.rajawali3d.primitives.ScreenQuad;
 import org.rajawali3d.primitives.Sphere;
 import org.rajawali3d.renderer.RajawaliRenderer;
+import org.rajawali3d.renderer.RenderTarget;
+import org.rajawali3d.scene.RajawaliScene;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -47,14 +59,24 @@ import javax.microedition.khronos.opengles.GL10;
  * It creates a scene with a background quad taking the whole screen, where the color camera is
  * rendered, and a sphere with the texture of the earth floating ahead of the start position of
  * the Tango device.
+ * <p/>
+ * The virtual content lives in its own scene which is rendered offscreen, possibly at reduced
+ * resolution, and then composited over the camera image by a second screen quad. The offscreen
+ * target is allocated at full size once; lower resolutions render into its lower left corner and
+ * the quad's texture coordinates are scaled to match, so changing the scale never reallocates.
+ * <p/>
+ * Markers are static, so they are drawn through a {@link StaticBatcher} rather than as an object
+ * each: all of them together cost one draw call. Animated content is moved by an
+ * {@link AnimationEngine}, which updates every animation in one pass per frame.
  */
-public class AugmentedRealityRenderer extends RajawaliRenderer {
+public class AugmentedRealityRenderer extends RajawaliRenderer
+        implements FramePipeline.Renderer, FramePipeline.CameraFrameSource {
     private static final String TAG = AugmentedRealityRenderer.class.getSimpleName();
 
-    private float[] textureCoords0 = new float[]{0.0F, 0.0F, 1.0F, 0.0F, 1.0F, 1.0F, 0.0F, 1.0F};
-    private float[] textureCoords270 = new float[]{0.0F, 1.0F, 0.0F, 0.0F, 1.0F, 0.0F, 1.0F, 1.0F};
-    private float[] textureCoords180 = new float[]{1.0F, 1.0F, 0.0F, 1.0F, 0.0F, 0.0F, 1.0F, 0.0F};
-    private float[] textureCoords90  = new float[]{1.0F, 0.0F, 1.0F, 1.0F, 0.0F, 1.0F, 0.0F, 0.0F};
+    // Background texture coordinates for each camera to display rotation, prebuilt so that a
+    // rotation only has to upload one of them.
+    private final FloatBuffer[] mCameraTextureCoords = new FloatBuffer[4];
+    private int mCameraTextureRotation = Surface.ROTATION_0;
 
     // Rajawali texture used to render the Tango color camera.
     private ATexture mTangoCameraTexture;
@@ -63,24 +85,140 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
     private boolean mSceneCameraConfigured;
 
     private ScreenQuad mBackgroundQuad;
+    // Corrects the lens distortion of the camera image, or null to draw it as it comes.
+    private UndistortionMesh mUndistortionMesh;
+    // The mesh's texture coordinates for each rotation, prebuilt like mCameraTextureCoords.
+    private final FloatBuffer[] mUndistortionTextureCoords = new FloatBuffer[4];
+
+    // Virtual content, rendered offscreen and composited over the background.
+    private final RajawaliScene mContentScene;
+    private RenderTarget mVirtualLayerTarget;
+    private ScreenQuad mVirtualLayerQuad;
+    private float[] mVirtualLayerBaseUv;
+    private float mVirtualLayerScale = 1.0f;
+    private int mVirtualLayerWidth;
+    private int mVirtualLayerHeight;
 
-    private CameraStreamManager mCameraManager;
     private SurfaceTexture mCameraSurfaceTexture;
+    // The camera texture mCameraSurfaceTexture was made for. A new one is made with the context.
+    private ATexture mConnectedCameraTexture;
+
+    // Decoded off the render thread during start up when possible, see preloadAssets().
+    private Bitmap mEarthBitmap;
+    private Bitmap mMoonBitmap;
+
+    // Anchors that scene content is attached to, so it follows pose corrections.
+    private final AnchorStore mAnchorStore = new AnchorStore();
+    private final List<AnchoredObject> mAnchoredObjects = new ArrayList<>();
+    private long mAppliedAnchorVersion = -1;
+    private final float[] mAnchorPosition = new float[3];
+
+    // Last pose applied to the scene camera, recorded as the creation pose of new anchors.
+    private PoseData mLatestCameraPose;
+
+    // Sphere segments at each detail level, see setDetailLevel().
+    private static final int FULL_DETAIL_SEGMENTS = 20;
+    private static final int REDUCED_DETAIL_SEGMENTS = 10;
+    private final List<Object3D> mFullDetailMeshes = new ArrayList<>();
+    private final List<Object3D> mReducedDetailMeshes = new ArrayList<>();
+    private int mDetailLevel = QualityGovernor.DETAIL_FULL;
+
+    // Markers, batched into a few objects. Keyed by anchor id, the values are batcher handles.
+    private static final float MARKER_RADIUS = 0.03f;
+    private static final int MARKER_SEGMENTS = 8;
+    private static final int MARKER_COLOR = 0xff4caf50;
+    private final StaticBatcher mStaticBatcher = new StaticBatcher();
+    private final Map<Integer, Integer> mMarkers = new HashMap<>();
+    private StaticBatcher.Mesh mMarkerMesh;
+    private Material mMarkerMaterial;
+    private final float[] mAnchorRotation = new float[4];
+    private FloatBuffer mBatchUploadBuffer;
+    private Buffer mBatchIndexUploadBuffer;
+
+    // Spins and orbits, evaluated together each frame and copied onto their objects.
+    private static final double ANIMATION_PERIOD_SECONDS = 60;
+    private static final float[] Y_AXIS = {0, 1, 0};
+    private static final float MOON_ORBIT_HALF_WIDTH = (float) (4 / Math.sqrt(26));
+    private final AnimationEngine mAnimationEngine = new AnimationEngine();
+    private final List<AnimatedObject> mAnimatedObjects = new ArrayList<>();
+    private final Quaternion mAnimatedRotation = new Quaternion();
+    private double mAnimationTime;
+
+    // Spheres hidden while they are behind real surfaces, tested together each frame.
+    private volatile DepthBuffer mDepthBuffer;
+    private final List<OccludableObject> mOccludableObjects = new ArrayList<>();
+    private float[] mOcclusionBoxes = new float[0];
+    private boolean[] mOcclusionVisible = new boolean[0];
+    private volatile int mOccludedCount;
+
+    // Taps waiting to be hit tested on the render thread, which places a marker where they hit.
+    private volatile HitTester mHitTester;
+    private final float[] mProjectionMatrix = new float[16];
+    // As fractions of the view's width and height.
+    private final float[] mPendingTap = new float[2];
+    private boolean mHasPendingTap;
+    private final float[] mRayOrigin = new float[3];
+    private final float[] mRayDirection = new float[3];
+    private final HitTester.Hit mHit = new HitTester.Hit();
+    private float[] mHitSpheres = new float[0];
+    private final LatencyHistogram mHitTestLatency = new LatencyHistogram(50000L, 100);
+
+    // A saved session to put back when the scene is built, see restoreSession().
+    private volatile SessionSnapshot mPendingSession;
 
     public AugmentedRealityRenderer(Context context) {
         super(context);
+        for (int i = 0; i < mCameraTextureCoords.length; i++) {
+            mCameraTextureCoords[i] = toFloatBuffer(CameraDisplayRotation.TEXTURE_COORDS[i]);
+        }
+        // Everything but the camera image goes into the content scene, cleared to transparent so
+        // the camera image shows through when it is composited.
+        mContentScene = new RajawaliScene(this);
+        mContentScene.setBackgroundColor(0, 0, 0, 0);
+        addScene(mContentScene);
+    }
+
+    /**
+     * Decodes the scene's textures so that building the scene doesn't have to. Can be called from
+     * any thread; if the scene is built while this is running it waits for it rather than
+     * decoding them twice.
+     */
+    public synchronized void preloadAssets() {
+        if (mEarthBitmap == null) {
+            mEarthBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.earth);
+        }
+        if (mMoonBitmap == null) {
+            mMoonBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.moon);
+        }
     }
 
     @Override
     protected void initScene() {
+        preloadAssets();
+        mFullDetailMeshes.clear();
+        mReducedDetailMeshes.clear();
+        mOccludableObjects.clear();
+        for (AnimatedObject animated : mAnimatedObjects) {
+            mAnimationEngine.remove(animated.mAnimationId);
+        }
+        mAnimatedObjects.clear();
+        for (AnchoredObject anchored : mAnchoredObjects) {
+            anchored.mAnimationId = AnimationEngine.INVALID_ID;
+        }
+        int[] restoredMarkers = null;
+        SessionSnapshot session = mPendingSession;
+        if (session != null) {
+            mPendingSession = null;
+            restoredMarkers = restoreAnchors(session);
+        }
+
         // Create a quad covering the whole background and assign a texture to it where the
         // Tango color camera contents will be rendered.
         Material tangoCameraMaterial = new Material();
         tangoCameraMaterial.setColorInfluence(0);
 
         if (mBackgroundQuad == null) {
-            mBackgroundQuad = new ScreenQuad();
-            mBackgroundQuad.getGeometry().setTextureCoords(textureCoords0);
+            mBackgroundQuad = createBackgroundQuad();
         }
         // We need to use Rajawali's {@code StreamingTexture} since it sets up the texture
         // for GL_TEXTURE_EXTERNAL_OES rendering
@@ -99,12 +237,12 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
         light.setColor(1, 1, 1);
         light.setPower(0.8f);
         light.setPosition(3, 2, 4);
-        getCurrentScene().addLight(light);
+        mContentScene.addLight(light);
 
         // Create sphere with earth texture and place it in space 3m forward from the origin.
         Material earthMaterial = new Material();
         try {
-            Texture t = new Texture("earth", R.drawable.earth);
+            Texture t = new Texture("earth", mEarthBitmap);
             earthMaterial.addTexture(t);
         } catch (ATexture.TextureException e) {
             Log.e(TAG, "Exception generating earth texture", e);
@@ -112,24 +250,17 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
         earthMaterial.setColorInfluence(0);
         earthMaterial.enableLighting(true);
         earthMaterial.setDiffuseMethod(new DiffuseMethod.Lambert());
-        Object3D earth = new Sphere(0.4f, 20, 20);
-        earth.setMaterial(earthMaterial);
-        earth.setPosition(0, 0, -3);
-        getCurrentScene().addChild(earth);
+        Object3D earth = createSphere(0.4f, earthMaterial);
+        mContentScene.addChild(earth);
+        attachToNewAnchor(earth, 0, 0, -3);
 
         // Rotate around its Y axis
-        Animation3D animEarth = new RotateOnAxisAnimation(Vector3.Axis.Y, 0, -360);
-        animEarth.setInterpolator(new LinearInterpolator());
-        animEarth.setDurationMilliseconds(60000);
-        animEarth.setRepeatMode(Animation.RepeatMode.INFINITE);
-        animEarth.setTransformable3D(earth);
-        getCurrentScene().registerAnimation(animEarth);
-        animEarth.play();
+        mAnimationEngine.setSpin(animate(earth), Y_AXIS, ANIMATION_PERIOD_SECONDS, -1, 0);
 
         // Create sphere with moon texture.
         Material moonMaterial = new Material();
         try {
-            Texture t = new Texture("moon", R.drawable.moon);
+            Texture t = new Texture("moon", mMoonBitmap);
             moonMaterial.addTexture(t);
         } catch (ATexture.TextureException e) {
             Log.e(TAG, "Exception generating moon texture", e);
@@ -137,55 +268,672 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
         moonMaterial.setColorInfluence(0);
         moonMaterial.enableLighting(true);
         moonMaterial.setDiffuseMethod(new DiffuseMethod.Lambert());
-        Object3D moon = new Sphere(0.1f, 20, 20);
-        moon.setMaterial(moonMaterial);
-        moon.setPosition(0, 0, -1);
-        getCurrentScene().addChild(moon);
+        Object3D moon = createSphere(0.1f, moonMaterial);
+        mContentScene.addChild(moon);
+        // Anchor the centre of the moon's orbit like the earth, so the two stay together when the
+        // pose is corrected.
+        attachToNewAnchor(moon, 0, 0, -5);
 
         // Rotate the moon around its Y axis
-        Animation3D animMoon = new RotateOnAxisAnimation(Vector3.Axis.Y, 0, -360);
-        animMoon.setInterpolator(new LinearInterpolator());
-        animMoon.setDurationMilliseconds(60000);
-        animMoon.setRepeatMode(Animation.RepeatMode.INFINITE);
-        animMoon.setTransformable3D(moon);
-        getCurrentScene().registerAnimation(animMoon);
-        animMoon.play();
-
-        // Make the moon orbit around the earth, the first two parameters are the focal point and
-        // periapsis of the orbit.
-        Animation3D translationMoon =  new EllipticalOrbitAnimation3D(new Vector3(0, 0, -5),
-                new Vector3(0, 0, -1), Vector3.getAxisVector(Vector3.Axis.Y), 0,
-                360, EllipticalOrbitAnimation3D.OrbitDirection.COUNTERCLOCKWISE);
-        translationMoon.setDurationMilliseconds(60000);
-        translationMoon.setRepeatMode(Animation.RepeatMode.INFINITE);
-        translationMoon.setTransformable3D(moon);
-        getCurrentScene().registerAnimation(translationMoon);
-        translationMoon.play();
+        int moonAnimation = animate(moon);
+        mAnimationEngine.setSpin(moonAnimation, Y_AXIS, ANIMATION_PERIOD_SECONDS, -1, 0);
+
+        // Make the moon orbit around the earth, counter clockwise from (0, 0, -1), on the narrow
+        // ellipse Rajawali's EllipticalOrbitAnimation3D made of a focal point of (0, 0, -5) and
+        // that periapsis: centred on the focal point, 4m deep and 4 / sqrt(26) m to either side.
+        mAnimationEngine.setOrbitAxes(moonAnimation, new float[]{0, 0, -5}, new float[]{0, 0, 4},
+                new float[]{MOON_ORBIT_HALF_WIDTH, 0, 0}, ANIMATION_PERIOD_SECONDS, 1, 0);
+
+        mMarkerMaterial = new Material();
+        mMarkerMaterial.setColor(MARKER_COLOR);
+        mMarkerMaterial.enableLighting(true);
+        mMarkerMaterial.setDiffuseMethod(new DiffuseMethod.Lambert());
+        mMarkerMesh = toMesh(new Sphere(MARKER_RADIUS, MARKER_SEGMENTS, MARKER_SEGMENTS));
+        if (restoredMarkers != null) {
+            for (int anchorId : restoredMarkers) {
+                addMarkerInstance(anchorId);
+            }
+        }
     }
 
     /**
-     * Update background texture's UV coordinates when device orientation is changed. i.e change
-     * between landscape and portrait mode.
+     * Puts a saved session's anchors and animation clock back, dropping the anchors the scene's
+     * own content was on since that gets new ones when it is created.
+     *
+     * @return the ids of the anchors that had markers.
+     */
+    private int[] restoreAnchors(SessionSnapshot session) {
+        session.restoreAnchors(mAnchorStore);
+        int[] markers = session.getMarkerAnchorIds();
+        int[] sortedMarkers = markers.clone();
+        Arrays.sort(sortedMarkers);
+        int[] ids = new int[mAnchorStore.size()];
+        int count = mAnchorStore.getIds(ids);
+        for (int i = 0; i < count; i++) {
+            if (Arrays.binarySearch(sortedMarkers, ids[i]) < 0) {
+                mAnchorStore.removeAnchor(ids[i]);
+            }
+        }
+        mAnimationTime = session.getAnimationTime();
+        return markers;
+    }
+
+    /**
+     * Puts a saved session back when the scene is first built: its anchors, markers and where the
+     * animations had got to. Call before the surface is created.
+     */
+    public void restoreSession(SessionSnapshot session) {
+        mPendingSession = session;
+    }
+
+    /**
+     * Creates a sphere with a mesh for each detail level, only one of which is shown.
+     */
+    private Object3D createSphere(float radius, Material material) {
+        Object3D sphere = new Object3D();
+        Object3D full = new Sphere(radius, FULL_DETAIL_SEGMENTS, FULL_DETAIL_SEGMENTS);
+        full.setMaterial(material);
+        Object3D reduced = new Sphere(radius, REDUCED_DETAIL_SEGMENTS, REDUCED_DETAIL_SEGMENTS);
+        reduced.setMaterial(material);
+        sphere.addChild(full);
+        sphere.addChild(reduced);
+        mFullDetailMeshes.add(full);
+        mReducedDetailMeshes.add(reduced);
+        mOccludableObjects.add(new OccludableObject(sphere, radius));
+        showDetailLevel();
+        return sphere;
+    }
+
+    /**
+     * Switches the scene's models between full and reduced detail, e.g. to save power.
+     * <p/>
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     *
+     * @param detail {@link QualityGovernor#DETAIL_FULL} or {@link QualityGovernor#DETAIL_REDUCED}.
+     */
+    public void setDetailLevel(int detail) {
+        if (detail != mDetailLevel) {
+            mDetailLevel = detail;
+            showDetailLevel();
+        }
+    }
+
+    private void showDetailLevel() {
+        boolean full = mDetailLevel == QualityGovernor.DETAIL_FULL;
+        for (Object3D mesh : mFullDetailMeshes) {
+            mesh.setVisible(full);
+        }
+        for (Object3D mesh : mReducedDetailMeshes) {
+            mesh.setVisible(!full);
+        }
+    }
+
+    /**
+     * Creates an anchor at the given position and keeps {@code object} on it from now on.
+     *
+     * @return the id of the new anchor.
+     */
+    public int attachToNewAnchor(Object3D object, float x, float y, float z) {
+        int anchorId = mAnchorStore.createAnchor(x, y, z, mLatestCameraPose);
+        mAnchoredObjects.add(new AnchoredObject(object, anchorId));
+        object.setPosition(x, y, z);
+        return anchorId;
+    }
+
+    /**
+     * Places a marker on a new anchor at the given position.
+     * <p/>
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     *
+     * @return the id of the new anchor, which also identifies the marker.
+     */
+    public int addMarker(float x, float y, float z) {
+        int anchorId = mAnchorStore.createAnchor(x, y, z, mLatestCameraPose);
+        addMarkerInstance(anchorId);
+        return anchorId;
+    }
+
+    private void addMarkerInstance(int anchorId) {
+        mAnchorStore.getPosition(anchorId, mAnchorPosition);
+        mAnchorStore.getRotation(anchorId, mAnchorRotation);
+        mMarkers.put(anchorId, mStaticBatcher.addInstance(mMarkerMaterial, mMarkerMesh,
+                mAnchorPosition, mAnchorRotation, 1));
+    }
+
+    /**
+     * Removes a marker and its anchor.
+     * <p/>
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     */
+    public void removeMarker(int anchorId) {
+        Integer handle = mMarkers.remove(anchorId);
+        if (handle != null) {
+            mStaticBatcher.remove(handle);
+            mAnchorStore.removeAnchor(anchorId);
+        }
+    }
+
+    public int getMarkerCount() {
+        return mMarkers.size();
+    }
+
+    /**
+     * NOTE: This must be called from the OpenGL render thread, or once it has been paused.
+     *
+     * @return the ids of the anchors that carry markers.
+     */
+    public int[] getMarkerAnchorIds() {
+        int[] ids = new int[mMarkers.size()];
+        int i = 0;
+        for (int anchorId : mMarkers.keySet()) {
+            ids[i++] = anchorId;
+        }
+        return ids;
+    }
+
+    /**
+     * NOTE: This must be called from the OpenGL render thread, or once it has been paused.
+     *
+     * @return the clock the scene's animations run on, in seconds.
+     */
+    public double getAnimationTime() {
+        return mAnimationTime;
+    }
+
+    /**
+     * Hands an object's movement over to the animation engine, starting where it is now.
+     *
+     * @return the object's id in the engine, to give it a spin or orbit.
+     */
+    private int animate(Object3D object) {
+        int id = mAnimationEngine.add((float) object.getX(), (float) object.getY(),
+                (float) object.getZ());
+        mAnimatedObjects.add(new AnimatedObject(object, id));
+        for (AnchoredObject anchored : mAnchoredObjects) {
+            if (anchored.mObject == object) {
+                anchored.mAnimationId = id;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Evaluates every animation at the current time and moves the objects.
+     */
+    private void updateAnimatedObjects(double deltaTime) {
+        mAnimationTime += deltaTime;
+        mAnimationEngine.update(mAnimationTime);
+        float[] transforms = mAnimationEngine.getTransforms();
+        for (AnimatedObject animated : mAnimatedObjects) {
+            int o = mAnimationEngine.indexOf(animated.mAnimationId)
+                    * AnimationEngine.FLOATS_PER_TRANSFORM;
+            animated.mObject.setPosition(transforms[o], transforms[o + 1], transforms[o + 2]);
+            animated.mObject.setOrientation(mAnimatedRotation.setAll(transforms[o + 6],
+                    transforms[o + 3], transforms[o + 4], transforms[o + 5]));
+        }
+    }
+
+    /**
+     * Hides the spheres that are behind real surfaces in the depth buffer, and shows them again
+     * once they aren't. Markers are left alone: they are batched, and hiding one would mean
+     * uploading its batch again.
+     */
+    private void updateOcclusion() {
+        DepthBuffer depthBuffer = mDepthBuffer;
+        int count = mOccludableObjects.size();
+        if (depthBuffer == null || count == 0) {
+            return;
+        }
+        if (mOcclusionVisible.length < count) {
+            mOcclusionBoxes = new float[count * DepthBuffer.FLOATS_PER_BOX];
+            mOcclusionVisible = new boolean[count];
+        }
+        for (int i = 0; i < count; i++) {
+            OccludableObject occludable = mOccludableObjects.get(i);
+            float x = (float) occludable.mObject.getX();
+            float y = (float) occludable.mObject.getY();
+            float z = (float) occludable.mObject.getZ();
+            float r = occludable.mRadius;
+            int o = i * DepthBuffer.FLOATS_PER_BOX;
+            mOcclusionBoxes[o] = x - r;
+            mOcclusionBoxes[o + 1] = y - r;
+            mOcclusionBoxes[o + 2] = z - r;
+            mOcclusionBoxes[o + 3] = x + r;
+            mOcclusionBoxes[o + 4] = y + r;
+            mOcclusionBoxes[o + 5] = z + r;
+        }
+        mOccludedCount = depthBuffer.queryVisible(mOcclusionBoxes, count, mOcclusionVisible);
+        for (int i = 0; i < count; i++) {
+            mOccludableObjects.get(i).mObject.setVisible(mOcclusionVisible[i]);
+        }
+    }
+
+    /**
+     * Hit tests the latest tap, if there is one, and places a marker where it hits.
+     */
+    private void handleTap() {
+        HitTester hitTester = mHitTester;
+        float x;
+        float y;
+        synchronized (mPendingTap) {
+            if (!mHasPendingTap) {
+                return;
+            }
+            mHasPendingTap = false;
+            x = mPendingTap[0];
+            y = mPendingTap[1];
+        }
+        if (hitTester == null || mLatestCameraPose == null || !mSceneCameraConfigured) {
+            return;
+        }
+        long start = System.nanoTime();
+        int width = getViewportWidth();
+        int height = getViewportHeight();
+        HitTester.screenToRay(x * width, y * height, width, height, mProjectionMatrix,
+                mLatestCameraPose, mRayOrigin, mRayDirection);
+        int count = mOccludableObjects.size();
+        if (mHitSpheres.length < count * HitTester.FLOATS_PER_SPHERE) {
+            mHitSpheres = new float[count * HitTester.FLOATS_PER_SPHERE];
+        }
+        for (int i = 0; i < count; i++) {
+            OccludableObject occludable = mOccludableObjects.get(i);
+            int o = i * HitTester.FLOATS_PER_SPHERE;
+            mHitSpheres[o] = (float) occludable.mObject.getX();
+            mHitSpheres[o + 1] = (float) occludable.mObject.getY();
+            mHitSpheres[o + 2] = (float) occludable.mObject.getZ();
+            mHitSpheres[o + 3] = occludable.mRadius;
+        }
+        boolean hit = hitTester.hitTest(mRayOrigin, mRayDirection, mHitSpheres, count, mHit);
+        mHitTestLatency.record(System.nanoTime() - start);
+        if (hit) {
+            float[] position = mHit.getPosition();
+            int anchorId = addMarker(position[0], position[1], position[2]);
+            Log.d(TAG, "Tap hit " + mHit.getType() + " " + mHit.getIndex() + " at "
+                    + mHit.getDistance() + "m, marker " + anchorId);
+        }
+    }
+
+    /**
+     * Places a marker wherever the screen is tapped.
+     *
+     * @param hitTester finds what taps hit, or null to ignore taps.
+     */
+    public void setHitTester(HitTester hitTester) {
+        mHitTester = hitTester;
+    }
+
+    /**
+     * @return how long hit testing taps has taken.
      */
-    public void updateColorCameraTextureUv(int rotation){
+    public LatencyHistogram getHitTestLatency() {
+        return mHitTestLatency;
+    }
+
+    /**
+     * Hides scene content that is behind real surfaces, or shows it all again.
+     *
+     * @param depthBuffer the buffer to test content against, or null to stop testing.
+     */
+    public void setDepthBuffer(DepthBuffer depthBuffer) {
+        mDepthBuffer = depthBuffer;
+        if (depthBuffer == null) {
+            mOccludedCount = 0;
+        }
+    }
+
+    /**
+     * @return how many objects were hidden behind real surfaces on the last frame.
+     */
+    public int getOccludedObjectCount() {
+        return mOccludedCount;
+    }
+
+    /**
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     *
+     * @return the pose last applied to the scene camera, or null if there hasn't been one.
+     */
+    public PoseData getLatestCameraPose() {
+        return mLatestCameraPose;
+    }
+
+    public AnchorStore getAnchorStore() {
+        return mAnchorStore;
+    }
+
+    /**
+     * @return the scene holding the virtual content. Frame callbacks that update the camera must
+     * be registered here, since it is rendered before the background scene.
+     */
+    public RajawaliScene getContentScene() {
+        return mContentScene;
+    }
+
+    @Override
+    protected void onRender(long ellapsedRealtime, double deltaTime) {
+        updateAnchoredObjects();
+        updateAnimatedObjects(deltaTime);
+        updateOcclusion();
+        handleTap();
+        mStaticBatcher.update(mBatchUploader);
+        if (mVirtualLayerTarget != null) {
+            GLES20.glViewport(0, 0, mVirtualLayerWidth, mVirtualLayerHeight);
+            mContentScene.render(ellapsedRealtime, deltaTime, mVirtualLayerTarget);
+            GLES20.glViewport(0, 0, getViewportWidth(), getViewportHeight());
+        }
+        super.onRender(ellapsedRealtime, deltaTime);
+    }
+
+    /**
+     * Sets the fraction of the screen resolution the virtual content is rendered at.
+     * <p/>
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     */
+    @Override
+    public void setVirtualLayerScale(float scale) {
+        mVirtualLayerScale = scale;
+        updateVirtualLayerViewport();
+    }
+
+    public float getVirtualLayerScale() {
+        return mVirtualLayerScale;
+    }
+
+    /**
+     * Makes sure the offscreen target can hold a full resolution frame. It is square so that
+     * rotating the display doesn't need a new one.
+     */
+    private void ensureVirtualLayerTarget(int width, int height) {
+        int size = Math.max(width, height);
+        if (mVirtualLayerTarget != null && mVirtualLayerTarget.getWidth() >= size) {
+            return;
+        }
+        if (mVirtualLayerTarget != null) {
+            removeRenderTarget(mVirtualLayerTarget);
+            getCurrentScene().removeChild(mVirtualLayerQuad);
+        }
+        mVirtualLayerTarget = new RenderTarget("virtualLayer", size, size);
+        addRenderTarget(mVirtualLayerTarget);
+
+        Material layerMaterial = new Material();
+        layerMaterial.setColorInfluence(0);
+        try {
+            layerMaterial.addTexture(mVirtualLayerTarget.getTexture());
+        } catch (ATexture.TextureException e) {
+            Log.e(TAG, "Exception creating texture for the virtual layer", e);
+        }
+        mVirtualLayerQuad = new ScreenQuad();
+        mVirtualLayerQuad.setMaterial(layerMaterial);
+        mVirtualLayerQuad.setTransparent(true);
+        if (mVirtualLayerBaseUv == null) {
+            FloatBuffer uv = mVirtualLayerQuad.getGeometry().getTextureCoords();
+            mVirtualLayerBaseUv = new float[uv.limit()];
+            uv.get(mVirtualLayerBaseUv);
+            uv.position(0);
+        }
+        getCurrentScene().addChild(mVirtualLayerQuad);
+    }
+
+    /**
+     * Points the layer quad at the part of the target the content is rendered into.
+     */
+    private void updateVirtualLayerViewport() {
+        if (mVirtualLayerTarget == null) {
+            return;
+        }
+        int targetSize = mVirtualLayerTarget.getWidth();
+        mVirtualLayerWidth = Math.max(1, Math.round(getViewportWidth() * mVirtualLayerScale));
+        mVirtualLayerHeight = Math.max(1, Math.round(getViewportHeight() * mVirtualLayerScale));
+        float uScale = mVirtualLayerWidth / (float) targetSize;
+        float vScale = mVirtualLayerHeight / (float) targetSize;
+
+        FloatBuffer uv = mVirtualLayerQuad.getGeometry().getTextureCoords();
+        for (int i = 0; i < mVirtualLayerBaseUv.length; i += 2) {
+            uv.put(i, mVirtualLayerBaseUv[i] * uScale);
+            uv.put(i + 1, mVirtualLayerBaseUv[i + 1] * vScale);
+        }
+        mVirtualLayerQuad.getGeometry().changeBufferData(
+                mVirtualLayerQuad.getGeometry().getTexCoordBufferInfo(), uv, 0);
+    }
+
+    /**
+     * Moves anchored content to wherever its anchor is now. Anchors only move on a correction, so
+     * this is skipped unless the store has changed since the last frame.
+     */
+    private void updateAnchoredObjects() {
+        long version = mAnchorStore.getVersion();
+        if (version == mAppliedAnchorVersion) {
+            return;
+        }
+        for (AnchoredObject anchored : mAnchoredObjects) {
+            if (!mAnchorStore.getPosition(anchored.mAnchorId, mAnchorPosition)) {
+                continue;
+            }
+            if (anchored.mAnimationId == AnimationEngine.INVALID_ID) {
+                anchored.mObject.setPosition(mAnchorPosition[0], mAnchorPosition[1],
+                        mAnchorPosition[2]);
+            } else {
+                // Animated objects are placed by the engine, move what it animates around.
+                mAnimationEngine.setPosition(anchored.mAnimationId, mAnchorPosition[0],
+                        mAnchorPosition[1], mAnchorPosition[2]);
+            }
+        }
+        for (Map.Entry<Integer, Integer> marker : mMarkers.entrySet()) {
+            if (mAnchorStore.getPosition(marker.getKey(), mAnchorPosition)
+                    && mAnchorStore.getRotation(marker.getKey(), mAnchorRotation)) {
+                mStaticBatcher.setTransform(marker.getValue(), mAnchorPosition, mAnchorRotation, 1);
+            }
+        }
+        mAppliedAnchorVersion = version;
+    }
+
+    /**
+     * Uploads batches the batcher has changed, creating an object in the content scene for each
+     * new one.
+     */
+    private final StaticBatcher.Listener mBatchUploader = new StaticBatcher.Listener() {
+        @Override
+        public void onBatchChanged(StaticBatcher.Batch batch, boolean layoutChanged) {
+            Object3D object = (Object3D) batch.getTag();
+            if (batch.getIndexCount() == 0) {
+                if (object != null) {
+                    object.setVisible(false);
+                }
+                return;
+            }
+            if (layoutChanged || object == null) {
+                if (object != null && !fitsBatch(object.getGeometry(), batch)) {
+                    // The batch outgrew the buffers; replace them. Only the geometry is
+                    // destroyed, the material is shared with the other batches.
+                    object.setVisible(false);
+                    mContentScene.removeChild(object);
+                    object.getGeometry().destroy();
+                    object = null;
+                }
+                int vertices = batch.getVertexCount();
+                if (object == null) {
+                    // Sized to the batch's arrays, not its contents, so it has the same room to
+                    // grow before it needs new buffers.
+                    object = new Object3D();
+                    object.setMaterial((Material) batch.getMaterial());
+                    object.setData(batch.getVertices(), batch.getNormals(),
+                            batch.getTextureCoords(), null, batch.getIndices(), true);
+                    batch.setTag(object);
+                    mContentScene.addChild(object);
+                } else {
+                    Geometry3D geometry = object.getGeometry();
+                    geometry.changeBufferData(geometry.getVertexBufferInfo(),
+                            uploadRange(batch.getVertices(), 0, vertices * 3), 0);
+                    geometry.changeBufferData(geometry.getNormalBufferInfo(),
+                            uploadRange(batch.getNormals(), 0, vertices * 3), 0);
+                    geometry.changeBufferData(geometry.getTexCoordBufferInfo(),
+                            uploadRange(batch.getTextureCoords(), 0, vertices * 2), 0);
+                    geometry.changeBufferData(geometry.getIndexBufferInfo(),
+                            uploadIndices(batch.getIndices(), batch.getIndexCount(),
+                                    geometry.areOnlyShortBuffersSupported()), 0);
+                }
+                // Anything past the batch's contents is left over and not drawn.
+                object.getGeometry().setNumIndices(batch.getIndexCount());
+                object.setVisible(true);
+                return;
+            }
+            // Only some objects moved, upload just their vertices.
+            int start = batch.getDirtyStart();
+            int count = batch.getDirtyEnd() - start;
+            object.getGeometry().changeBufferData(object.getGeometry().getVertexBufferInfo(),
+                    uploadRange(batch.getVertices(), start * 3, count * 3), start * 3);
+            object.getGeometry().changeBufferData(object.getGeometry().getNormalBufferInfo(),
+                    uploadRange(batch.getNormals(), start * 3, count * 3), start * 3);
+        }
+    };
+
+    /**
+     * @return whether the geometry's buffers were created big enough for the batch's arrays.
+     */
+    private static boolean fitsBatch(Geometry3D geometry, StaticBatcher.Batch batch) {
+        return geometry.getVertices().capacity() >= batch.getVertices().length
+                && geometry.getIndices().capacity() >= batch.getIndices().length;
+    }
+
+    /**
+     * @return a buffer holding the first {@code count} indices, as shorts if the geometry only
+     * takes shorts, reusing the same memory each time.
+     */
+    private Buffer uploadIndices(int[] indices, int count, boolean shorts) {
+        int bytes = shorts ? 2 : 4;
+        if (mBatchIndexUploadBuffer == null
+                || mBatchIndexUploadBuffer.capacity() < count
+                || (mBatchIndexUploadBuffer instanceof ShortBuffer) != shorts) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(count, indices.length) * bytes)
+                    .order(ByteOrder.nativeOrder());
+            mBatchIndexUploadBuffer = shorts ? buffer.asShortBuffer() : buffer.asIntBuffer();
+        }
+        mBatchIndexUploadBuffer.clear();
+        if (shorts) {
+            ShortBuffer buffer = (ShortBuffer) mBatchIndexUploadBuffer;
+            for (int i = 0; i < count; i++) {
+                buffer.put((short) indices[i]);
+            }
+            buffer.flip();
+            return buffer.slice();
+        }
+        IntBuffer buffer = (IntBuffer) mBatchIndexUploadBuffer;
+        buffer.put(indices, 0, count).flip();
+        return buffer.slice();
+    }
+
+    /**
+     * @return a buffer holding just the given range, reusing the same memory each time.
+     */
+    private FloatBuffer uploadRange(float[] values, int offset, int length) {
+        if (mBatchUploadBuffer == null || mBatchUploadBuffer.capacity() < length) {
+            mBatchUploadBuffer = ByteBuffer.allocateDirect(
+                    Math.max(length, StaticBatcher.MAX_BATCH_VERTICES * 3) * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        mBatchUploadBuffer.clear();
+        mBatchUploadBuffer.put(values, offset, length).flip();
+        return mBatchUploadBuffer.slice();
+    }
+
+    /**
+     * Copies a primitive's geometry so it can be batched.
+     */
+    private static StaticBatcher.Mesh toMesh(Object3D object) {
+        FloatBuffer vertices = object.getGeometry().getVertices();
+        FloatBuffer normals = object.getGeometry().getNormals();
+        FloatBuffer textureCoords = object.getGeometry().getTextureCoords();
+        float[] vertexArray = new float[vertices.limit()];
+        float[] normalArray = new float[normals.limit()];
+        float[] textureArray = new float[textureCoords.limit()];
+        vertices.duplicate().get(vertexArray);
+        normals.duplicate().get(normalArray);
+        textureCoords.duplicate().get(textureArray);
+        // Indices are shorts on devices that only support those.
+        Buffer indices = object.getGeometry().getIndices();
+        int[] indexArray = new int[indices.limit()];
+        if (indices instanceof IntBuffer) {
+            ((IntBuffer) indices).duplicate().get(indexArray);
+        } else {
+            ShortBuffer shorts = ((ShortBuffer) indices).duplicate();
+            for (int i = 0; i < indexArray.length; i++) {
+                indexArray[i] = shorts.get(i) & 0xffff;
+            }
+        }
+        return new StaticBatcher.Mesh(vertexArray, normalArray, textureArray, indexArray);
+    }
+
+    private static FloatBuffer toFloatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    /**
+     * @return a quad for the camera image, a plain one or the undistortion grid.
+     */
+    private ScreenQuad createBackgroundQuad() {
+        ScreenQuad quad = new ScreenQuad();
+        if (mUndistortionMesh == null) {
+            quad.getGeometry().setTextureCoords(
+                    CameraDisplayRotation.TEXTURE_COORDS[mCameraTextureRotation]);
+        } else {
+            quad.setData(mUndistortionMesh.getVertices(), mUndistortionMesh.getNormals(),
+                    mUndistortionMesh.getTextureCoords(mCameraTextureRotation), null,
+                    mUndistortionMesh.getIndices(), true);
+        }
+        return quad;
+    }
+
+    /**
+     * Draws the camera image through an undistortion mesh, replacing the background quad. The
+     * mesh should be built once per camera configuration.
+     * <p/>
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     *
+     * @param mesh the mesh, or null to draw the image as it comes.
+     */
+    public void setUndistortionMesh(UndistortionMesh mesh) {
+        if (mesh == mUndistortionMesh) {
+            return;
+        }
+        mUndistortionMesh = mesh;
+        for (int i = 0; i < mUndistortionTextureCoords.length; i++) {
+            mUndistortionTextureCoords[i] = mesh == null ? null
+                    : toFloatBuffer(mesh.getTextureCoords(i));
+        }
         if (mBackgroundQuad == null) {
-            mBackgroundQuad = new ScreenQuad();
+            return;
         }
-        mBackgroundQuad.getGeometry().getTextureCoords().clear();
+        ScreenQuad quad = createBackgroundQuad();
+        quad.setMaterial(mBackgroundQuad.getMaterial());
+        // Only the old quad's buffers go; its material carries on with the new quad.
+        mBackgroundQuad.setVisible(false);
+        getCurrentScene().removeChild(mBackgroundQuad);
+        mBackgroundQuad.getGeometry().destroy();
+        getCurrentScene().addChildAt(quad, 0);
+        mBackgroundQuad = quad;
+    }
 
-        switch (rotation) {
-            case Surface.ROTATION_90:
-                mBackgroundQuad.getGeometry().setTextureCoords(textureCoords90);
-                break;
-            case Surface.ROTATION_180:
-                mBackgroundQuad.getGeometry().setTextureCoords(textureCoords180);
-                break;
-            case Surface.ROTATION_270:
-                mBackgroundQuad.getGeometry().setTextureCoords(textureCoords270);
-                break;
-            default:
-                mBackgroundQuad.getGeometry().setTextureCoords(textureCoords0);
-                break;
+    /**
+     * Update background texture's UV coordinates when device orientation is changed. i.e change
+     * between landscape and portrait mode.
+     * <p/>
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     *
+     * @param rotation the camera to display rotation, see {@link CameraDisplayRotation}.
+     */
+    public void setColorCameraTextureRotation(int rotation) {
+        if (rotation == mCameraTextureRotation) {
+            return;
+        }
+        mCameraTextureRotation = rotation;
+        if (mBackgroundQuad != null) {
+            FloatBuffer coords = mUndistortionMesh == null ? mCameraTextureCoords[rotation]
+                    : mUndistortionTextureCoords[rotation];
+            mBackgroundQuad.getGeometry().changeBufferData(
+                    mBackgroundQuad.getGeometry().getTexCoordBufferInfo(), coords, 0);
         }
     }
 
@@ -196,14 +944,22 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
      * <p/>
      * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
      */
+    @Override
     public void updateRenderCameraPose(PoseData cameraPose) {
-        float[] rotation = cameraPose.getRotationAsFloats();
-        float[] translation = cameraPose.getTranslationAsFloats();
-        Quaternion quaternion = new Quaternion(rotation[3], rotation[0], rotation[1], rotation[2]);
-        // Conjugating the Quaternion is need because Rajawali uses left handed convention for
-        // quaternions.
-        getCurrentCamera().setRotation(quaternion.conjugate());
-        getCurrentCamera().setPosition(translation[0], translation[1], translation[2]);
+        Tracer.beginSection("updateRenderCameraPose");
+        try {
+            float[] rotation = cameraPose.getRotationAsFloats();
+            float[] translation = cameraPose.getTranslationAsFloats();
+            Quaternion quaternion =
+                    new Quaternion(rotation[3], rotation[0], rotation[1], rotation[2]);
+            // Conjugating the Quaternion is need because Rajawali uses left handed convention for
+            // quaternions.
+            mContentScene.getCamera().setRotation(quaternion.conjugate());
+            mContentScene.getCamera().setPosition(translation[0], translation[1], translation[2]);
+            mLatestCameraPose = cameraPose;
+        } finally {
+            Tracer.endSection();
+        }
     }
 
     /**
@@ -214,23 +970,40 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
     public synchronized double updateTexture() {
         double latestCameraFrameTimestamp = -1.0;
         if (mTangoCameraTexture.getTextureId() != -1) {
-            // Copy the camera frame from the camera to the OpenGL texture.
-            mCameraSurfaceTexture.updateTexImage();
-            latestCameraFrameTimestamp = mCameraSurfaceTexture.getTimestamp();
+            Tracer.beginSection("updateTexture");
+            try {
+                // Copy the camera frame from the camera to the OpenGL texture.
+                mCameraSurfaceTexture.updateTexImage();
+                latestCameraFrameTimestamp = mCameraSurfaceTexture.getTimestamp();
+            } finally {
+                Tracer.endSection();
+            }
         }
         return latestCameraFrameTimestamp;
     }
 
-    public void connectCamera() {
-        mCameraSurfaceTexture = new SurfaceTexture(mTangoCameraTexture.getTextureId());
-        mCameraManager = new CameraStreamManager(mContext, mCameraSurfaceTexture);
-        mCameraManager.onStartCameraStream();
+    @Override
+    public long latchCameraFrame() {
+        return (long) updateTexture();
     }
 
-    public void disconnectCamera() {
-        if (mCameraManager != null) {
-            mCameraManager.onStopCameraStream();
+    /**
+     * Streams the camera into the background texture, opening the camera if start up hasn't
+     * already.
+     */
+    public void connectCamera(CameraStreamManager cameraManager) {
+        // The texture survives a pause if the OpenGL context does, and then the camera can carry
+        // on streaming into it.
+        if (mCameraSurfaceTexture == null || mConnectedCameraTexture != mTangoCameraTexture) {
+            SurfaceTexture previous = mCameraSurfaceTexture;
+            mCameraSurfaceTexture = new SurfaceTexture(mTangoCameraTexture.getTextureId());
+            mConnectedCameraTexture = mTangoCameraTexture;
+            cameraManager.setSurfaceTexture(mCameraSurfaceTexture);
+            if (previous != null) {
+                previous.release();
+            }
         }
+        cameraManager.onStartCameraStream();
     }
 
     /**
@@ -250,6 +1023,8 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
     public void onRenderSurfaceSizeChanged(GL10 gl, int width, int height) {
         super.onRenderSurfaceSizeChanged(gl, width, height);
         mSceneCameraConfigured = false;
+        ensureVirtualLayerTarget(width, height);
+        updateVirtualLayerViewport();
     }
 
     public boolean isSceneCameraConfigured() {
@@ -261,7 +1036,9 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
      * provided by the {@code TangoCameraIntrinsics}.
      */
     public void setProjectionMatrix(float[] matrixFloats) {
-        getCurrentCamera().setProjectionMatrix(new Matrix4(matrixFloats));
+        mContentScene.getCamera().setProjectionMatrix(new Matrix4(matrixFloats));
+        System.arraycopy(matrixFloats, 0, mProjectionMatrix, 0, 16);
+        mSceneCameraConfigured = true;
     }
 
     @Override
@@ -270,8 +1047,61 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
                                  int xPixelOffset, int yPixelOffset) {
     }
 
+    /**
+     * Queues taps to be hit tested on the next frame, see {@link #setHitTester}. The event's
+     * coordinates are taken to be in the viewport's pixels; use {@link #onTap} when they are
+     * from a view of another size.
+     */
     @Override
     public void onTouchEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+            onTap(event.getX(), event.getY(), getViewportWidth(), getViewportHeight());
+        }
+    }
 
+    /**
+     * Queues a tap at {@code (x, y)} on a view of the given size to be hit tested on the next
+     * frame, see {@link #setHitTester}. Only the latest tap is kept.
+     */
+    public void onTap(float x, float y, int viewWidth, int viewHeight) {
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            return;
+        }
+        synchronized (mPendingTap) {
+            mPendingTap[0] = x / viewWidth;
+            mPendingTap[1] = y / viewHeight;
+            mHasPendingTap = true;
+        }
+    }
+
+    private static class AnchoredObject {
+        final Object3D mObject;
+        final int mAnchorId;
+        int mAnimationId = AnimationEngine.INVALID_ID;
+
+        AnchoredObject(Object3D object, int anchorId) {
+            mObject = object;
+            mAnchorId = anchorId;
+        }
+    }
+
+    private static class OccludableObject {
+        final Object3D mObject;
+        final float mRadius;
+
+        OccludableObject(Object3D object, float radius) {
+            mObject = object;
+            mRadius = radius;
+        }
+    }
+
+    private static class AnimatedObject {
+        final Object3D mObject;
+        final int mAnimationId;
+
+        AnimatedObject(Object3D object, int animationId) {
+            mObject = object;
+            mAnimationId = animationId;
+        }
     }
 }
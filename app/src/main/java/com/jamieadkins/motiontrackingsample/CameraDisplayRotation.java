@@ -0,0 +1,143 @@
+package com.jamieadkins.motiontrackingsample;
+
+import android.view.Surface;
+
+/**
+ * Everything that depends on how the color camera is rotated relative to the display, worked
+ * out once for each of the four display rotations so that handling a rotation is just a lookup.
+ * <p/>
+ * Built from the camera's sensor orientation, which never changes, and the camera intrinsics.
+ */
+public class CameraDisplayRotation {
+    /** Background quad texture coordinates, indexed by camera to display rotation. */
+    static final float[][] TEXTURE_COORDS = new float[][]{
+            {0.0F, 0.0F, 1.0F, 0.0F, 1.0F, 1.0F, 0.0F, 1.0F},
+            {1.0F, 0.0F, 1.0F, 1.0F, 0.0F, 1.0F, 0.0F, 0.0F},
+            {1.0F, 1.0F, 0.0F, 1.0F, 0.0F, 0.0F, 1.0F, 0.0F},
+            {0.0F, 1.0F, 0.0F, 0.0F, 1.0F, 0.0F, 1.0F, 1.0F},
+    };
+
+    private static final float NEAR = 0.1f;
+    private static final float FAR = 100;
+
+    private final Intrinsics mIntrinsics;
+    private final int[] mCameraToDisplayRotations = new int[4];
+    private final float[][] mProjectionMatrices = new float[4][16];
+
+    /**
+     * @param sensorOrientation the camera's {@code SENSOR_ORIENTATION}, in degrees.
+     */
+    public CameraDisplayRotation(int sensorOrientation, Intrinsics intrinsics) {
+        mIntrinsics = intrinsics;
+        for (int displayRotation = 0; displayRotation < 4; displayRotation++) {
+            int rotation = getColorCameraToDisplayAndroidRotation(displayRotation,
+                    sensorOrientation);
+            mCameraToDisplayRotations[displayRotation] = rotation;
+            projectionMatrixFromCameraIntrinsics(intrinsics, rotation,
+                    mProjectionMatrices[displayRotation]);
+        }
+    }
+
+    public Intrinsics getIntrinsics() {
+        return mIntrinsics;
+    }
+
+    /**
+     * @param displayRotation one of the {@code Surface.ROTATION_} constants.
+     * @return the rotation between the camera image and the display, in the same units.
+     */
+    public int getCameraToDisplayRotation(int displayRotation) {
+        return mCameraToDisplayRotations[displayRotation];
+    }
+
+    /**
+     * @return the background texture coordinates for the display rotation. Don't modify.
+     */
+    public float[] getTextureCoords(int displayRotation) {
+        return TEXTURE_COORDS[mCameraToDisplayRotations[displayRotation]];
+    }
+
+    /**
+     * @return the projection matrix matching the camera for the display rotation. Don't modify.
+     */
+    public float[] getProjectionMatrix(int displayRotation) {
+        return mProjectionMatrices[displayRotation];
+    }
+
+    static int getColorCameraToDisplayAndroidRotation(int displayRotation, int cameraRotation) {
+        int cameraRotationNormalized = 0;
+        switch (cameraRotation) {
+            case 90:
+                cameraRotationNormalized = 1;
+                break;
+            case 180:
+                cameraRotationNormalized = 2;
+                break;
+            case 270:
+                cameraRotationNormalized = 3;
+                break;
+            default:
+                cameraRotationNormalized = 0;
+                break;
+        }
+        int ret = displayRotation - cameraRotationNormalized;
+        if (ret < 0) {
+            ret += 4;
+        }
+        return ret;
+    }
+
+    /**
+     * Use camera intrinsics to calculate the projection Matrix for the Rajawali scene.
+     *
+     * @param intrinsics camera instrinsics for computing the project matrix.
+     * @param rotation   the relative rotation between the camera intrinsics and display glContext.
+     */
+    static void projectionMatrixFromCameraIntrinsics(Intrinsics intrinsics, int rotation,
+                                                     float[] m) {
+        // Adjust camera intrinsics according to rotation
+        float width = (float) intrinsics.getWidth();
+        float height = (float) intrinsics.getHeight();
+        float fx = (float) intrinsics.getFocalLengthInPixelsX();
+        float fy = (float) intrinsics.getFocalLengthInPixelsY();
+
+        if (rotation == Surface.ROTATION_90 || rotation == Surface.ROTATION_270) {
+            width = (float) intrinsics.getHeight();
+            height = (float) intrinsics.getWidth();
+            fx = (float) intrinsics.getFocalLengthInPixelsY();
+            fy = (float) intrinsics.getFocalLengthInPixelsX();
+        }
+
+        // Reference: http://ksimek.github.io/2013/06/03/calibrated_cameras_in_opengl/
+        float xScale = NEAR / fx;
+        float yScale = NEAR / fy;
+        frustum(m, xScale * -width / 2.0f, xScale * width / 2.0f,
+                yScale * -height / 2.0f, yScale * height / 2.0f, NEAR, FAR);
+    }
+
+    /**
+     * Same as {@code android.opengl.Matrix.frustumM}, which isn't available off device.
+     */
+    static void frustum(float[] m, float left, float right, float bottom, float top,
+                        float near, float far) {
+        float width = 1.0f / (right - left);
+        float height = 1.0f / (top - bottom);
+        float depth = 1.0f / (near - far);
+        m[0] = 2.0f * (near * width);
+        m[1] = 0;
+        m[2] = 0;
+        m[3] = 0;
+        m[4] = 0;
+        m[5] = 2.0f * (near * height);
+        m[6] = 0;
+        m[7] = 0;
+        m[8] = (right + left) * width;
+        m[9] = (top + bottom) * height;
+        m[10] = (far + near) * depth;
+        m[11] = -1.0f;
+        m[12] = 0;
+        m[13] = 0;
+        m[14] = 2.0f * (far * near * depth);
+        m[15] = 0;
+    }
+}
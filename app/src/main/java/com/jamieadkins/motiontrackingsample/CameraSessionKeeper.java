@@ -0,0 +1,210 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds on to an open camera for a grace period after its stream is stopped.
+ * <p/>
+ * A permission dialog, a pull of the notification shade or a quick app switch all pause the
+ * activity. Closing the camera each time means the next resume opens the device, starts its
+ * thread and configures a session again, hundreds of milliseconds before the first frame. The
+ * keeper only pauses the stream instead, and closes the camera if it hasn't been started again
+ * within the grace period. It also records how long each start took to deliver a frame, warm
+ * and cold separately.
+ * <p/>
+ * Start and stop may be called from any thread. The camera is always driven with the keeper's
+ * lock held, so its calls never overlap; it mustn't call back into the keeper while holding a lock
+ * of its own. {@link #onFrame} doesn't take the lock.
+ */
+public class CameraSessionKeeper {
+    /** Long enough for a permission dialog or a glance at a notification. */
+    public static final long DEFAULT_GRACE_PERIOD_NANOS = 3000000000L;
+
+    private static final long NO_PENDING_START = Long.MIN_VALUE;
+
+    /**
+     * The camera being kept.
+     */
+    public interface Camera {
+        /** Starts the thread, opens the device and starts streaming. */
+        void open();
+
+        /** Stops streaming, keeping the device, thread and session. */
+        void pause();
+
+        /**
+         * Starts streaming again after {@link #pause()}.
+         *
+         * @return false if the device had gone, e.g. to another app, and had to be reopened.
+         */
+        boolean resume();
+
+        /** Closes the session and device and stops the thread. */
+        void close();
+    }
+
+    /**
+     * Runs the close once the grace period is up.
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayNanos);
+
+        void cancel(Runnable task);
+    }
+
+    private enum State {
+        CLOSED,
+        STREAMING,
+        // Paused with the camera open, closing when the grace period is up.
+        KEPT
+    }
+
+    private final Camera mCamera;
+    private final Scheduler mScheduler;
+    private long mGracePeriodNanos = DEFAULT_GRACE_PERIOD_NANOS;
+    private State mState = State.CLOSED;
+
+    // When the stream was last started, until its first frame.
+    private final AtomicLong mPendingStart = new AtomicLong(NO_PENDING_START);
+    private volatile boolean mPendingStartWarm;
+    private final LatencyHistogram mWarmStartLatency = new LatencyHistogram(5000000L, 100);
+    private final LatencyHistogram mColdStartLatency = new LatencyHistogram(20000000L, 100);
+    private volatile long mLastStartLatencyNanos = -1;
+    private long mExpiredCount;
+
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CameraSessionKeeper.this) {
+                if (mState != State.KEPT) {
+                    return;
+                }
+                mState = State.CLOSED;
+                mExpiredCount++;
+                mCamera.close();
+            }
+        }
+    };
+
+    public CameraSessionKeeper(Camera camera, Scheduler scheduler) {
+        mCamera = camera;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * @param gracePeriodNanos how long to keep the camera open once stopped, 0 to close it
+     *                         straight away.
+     */
+    public synchronized void setGracePeriodNanos(long gracePeriodNanos) {
+        mGracePeriodNanos = gracePeriodNanos;
+    }
+
+    public synchronized long getGracePeriodNanos() {
+        return mGracePeriodNanos;
+    }
+
+    /**
+     * Starts streaming, resuming the kept camera if there is one. Does nothing if already
+     * streaming.
+     */
+    public synchronized void start(long nowNanos) {
+        switch (mState) {
+            case STREAMING:
+                return;
+            case KEPT:
+                mScheduler.cancel(mExpire);
+                mState = State.STREAMING;
+                mPendingStartWarm = mCamera.resume();
+                mPendingStart.set(nowNanos);
+                return;
+            default:
+                mState = State.STREAMING;
+                mPendingStartWarm = false;
+                mPendingStart.set(nowNanos);
+                mCamera.open();
+        }
+    }
+
+    /**
+     * Stops streaming, keeping the camera open for the grace period.
+     */
+    public synchronized void stop() {
+        if (mState != State.STREAMING) {
+            return;
+        }
+        mPendingStart.set(NO_PENDING_START);
+        if (mGracePeriodNanos <= 0) {
+            mState = State.CLOSED;
+            mCamera.close();
+            return;
+        }
+        mState = State.KEPT;
+        mCamera.pause();
+        mScheduler.schedule(mExpire, mGracePeriodNanos);
+    }
+
+    /**
+     * Stops streaming and closes the camera now, e.g. when the activity is finishing.
+     */
+    public synchronized void close() {
+        if (mState == State.CLOSED) {
+            return;
+        }
+        mScheduler.cancel(mExpire);
+        mPendingStart.set(NO_PENDING_START);
+        mState = State.CLOSED;
+        mCamera.close();
+    }
+
+    /**
+     * Reports a frame from the camera. The first after a start records how long it took.
+     */
+    public void onFrame(long nowNanos) {
+        long start = mPendingStart.get();
+        if (start == NO_PENDING_START || !mPendingStart.compareAndSet(start, NO_PENDING_START)) {
+            return;
+        }
+        long latency = nowNanos - start;
+        mLastStartLatencyNanos = latency;
+        (mPendingStartWarm ? mWarmStartLatency : mColdStartLatency).record(latency);
+    }
+
+    public synchronized boolean isStreaming() {
+        return mState == State.STREAMING;
+    }
+
+    /**
+     * @return true while the camera is stopped but still open.
+     */
+    public synchronized boolean isKept() {
+        return mState == State.KEPT;
+    }
+
+    /**
+     * @return how many times the grace period ran out and the camera was closed.
+     */
+    public synchronized long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /**
+     * @return start to first frame of the most recent start, or -1 if there hasn't been one.
+     */
+    public long getLastStartLatencyNanos() {
+        return mLastStartLatencyNanos;
+    }
+
+    /**
+     * @return start to first frame when the camera was kept open.
+     */
+    public LatencyHistogram getWarmStartLatency() {
+        return mWarmStartLatency;
+    }
+
+    /**
+     * @return start to first frame when the camera had to be opened.
+     */
+    public LatencyHistogram getColdStartLatency() {
+        return mColdStartLatency;
+    }
+}
@@ -17,7 +17,9 @@
 package com.jamieadkins.motiontrackingsample;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -27,23 +29,67 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 import android.util.Size;
+import android.util.SizeF;
 import android.view.Surface;
 import android.view.WindowManager;
 
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Streams the color camera into a {@link SurfaceTexture}.
+ * <p/>
+ * The camera can be opened before the texture exists, which lets start up open it while the
+ * OpenGL surface is still being created; the preview session starts once both are available.
+ * <p/>
+ * Pausing the stream keeps the camera open for a grace period, see {@link CameraSessionKeeper}.
+ * Where the camera supports surface sharing, from API 28, a new texture is swapped into the
+ * running session's output rather than configuring another session.
+ * <p/>
+ * A small luminance copy of each frame can be streamed alongside the preview, see
+ * {@link #setLuminanceListener}.
+ */
 public class CameraStreamManager {
+    public interface Listener {
+        /**
+         * Called on the camera thread once the device is open, or on the thread that started
+         * the stream when a camera kept open over a short pause is resumed.
+         */
+        void onCameraOpened();
+
+        void onCameraError(int error);
+    }
+
+    /**
+     * Receives the luminance plane of every frame of a small YUV stream, e.g. to track features.
+     */
+    public interface LuminanceListener {
+        /**
+         * Called on the camera thread. {@code luminance} is only valid until this returns, so
+         * anything that takes longer should copy it out.
+         */
+        void onLuminanceFrame(ByteBuffer luminance, int width, int height, int rowStride,
+                              long timestamp);
+    }
+
     private static final int MAX_WIDTH = 1920;
     private static final int MAX_HEIGHT = 1080;
 
@@ -51,6 +97,19 @@ public class CameraStreamManager {
     private SurfaceTexture mSurfaceTextureToStreamTo;
     private int mWidth;
     private int mHeight;
+    private Listener mListener;
+
+    // Keeps the camera open across short pauses. Driven outside this object's lock, as the keeper
+    // calls back in with its own lock held.
+    private final CameraSessionKeeper mSessionKeeper;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private boolean mStreaming;
+
+    // Trace slices. Only one open and one session configure are ever in flight.
+    private static final String TRACE_OPEN = "cameraOpen";
+    private static final String TRACE_CONFIGURE = "cameraSessionConfigure";
+    private static final int TRACE_COOKIE = 0;
+    private final Tracer.RateCounter mCameraFps = new Tracer.RateCounter("cameraFps");
 
     /**
      * Tag for the {@link Log}.
@@ -77,6 +136,16 @@ public class CameraStreamManager {
      */
     private Size mPreviewSize;
 
+    /**
+     * Intrinsics of the preview stream, replaced whenever its size changes.
+     */
+    private volatile Intrinsics mIntrinsics = new Intrinsics();
+
+    // Calibration at the active array's size, by camera id. Null where there is none.
+    private static final Map<String, Intrinsics> sCalibrations = new HashMap<>();
+    // Camera2's LENS_DISTORTION, only public from API 28.
+    private static final String LENS_DISTORTION = "android.lens.distortion";
+
     /**
      * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
      */
@@ -84,25 +153,45 @@ public class CameraStreamManager {
 
         @Override
         public void onOpened(CameraDevice cameraDevice) {
-            // This method is called when the camera is opened.  We start camera preview here.
+            // This method is called when the camera is opened. We start camera preview here if
+            // there is somewhere to stream to yet.
+            Tracer.endAsyncSection(TRACE_OPEN, TRACE_COOKIE);
             mCameraOpenCloseLock.release();
-            mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
+            synchronized (CameraStreamManager.this) {
+                mCameraDevice = cameraDevice;
+                if (mSurfaceTextureToStreamTo != null) {
+                    createCameraPreviewSession();
+                }
+            }
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onCameraOpened();
+            }
         }
 
         @Override
         public void onDisconnected(CameraDevice cameraDevice) {
+            Tracer.endAsyncSection(TRACE_OPEN, TRACE_COOKIE);
             mCameraOpenCloseLock.release();
             cameraDevice.close();
-            mCameraDevice = null;
+            synchronized (CameraStreamManager.this) {
+                mCameraDevice = null;
+            }
         }
 
         @Override
         public void onError(CameraDevice cameraDevice, int error) {
+            Tracer.endAsyncSection(TRACE_OPEN, TRACE_COOKIE);
             mCameraOpenCloseLock.release();
             cameraDevice.close();
-            mCameraDevice = null;
+            synchronized (CameraStreamManager.this) {
+                mCameraDevice = null;
+            }
             Log.e(TAG, "onError " + error);
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onCameraError(error);
+            }
         }
 
     };
@@ -127,6 +216,92 @@ public class CameraStreamManager {
      */
     private CaptureRequest mPreviewRequest;
 
+    // The preview's output, and its configuration when the surface can be swapped. The
+    // configuration keeps the surface it was created with until the session closes.
+    private Surface mPreviewSurface;
+    private Surface mFirstPreviewSurface;
+    private OutputConfiguration mPreviewOutput;
+
+    // The luminance stream, only set up while there is a listener.
+    private volatile LuminanceListener mLuminanceListener;
+    private int mLuminanceWidth;
+    private int mLuminanceHeight;
+    private ImageReader mLuminanceReader;
+
+    private final ImageReader.OnImageAvailableListener mLuminanceAvailableListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireLatestImage();
+                    if (image == null) {
+                        return;
+                    }
+                    try {
+                        LuminanceListener listener = mLuminanceListener;
+                        if (listener != null) {
+                            // The Y plane of YUV_420_888 always has a pixel stride of 1.
+                            Image.Plane plane = image.getPlanes()[0];
+                            listener.onLuminanceFrame(plane.getBuffer(), image.getWidth(),
+                                    image.getHeight(), plane.getRowStride(),
+                                    image.getTimestamp());
+                        }
+                    } finally {
+                        image.close();
+                    }
+                }
+            };
+
+    // OutputConfiguration.enableSurfaceSharing(), addSurface() and removeSurface() and
+    // CameraCaptureSession.updateOutputConfiguration(), past the SDK this app compiles against.
+    // All null unless every one is there.
+    private static final Method sEnableSurfaceSharing;
+    private static final Method sAddSurface;
+    private static final Method sRemoveSurface;
+    private static final Method sUpdateOutputConfiguration;
+
+    static {
+        Method enableSurfaceSharing = null;
+        Method addSurface = null;
+        Method removeSurface = null;
+        Method updateOutputConfiguration = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            try {
+                enableSurfaceSharing = OutputConfiguration.class.getMethod("enableSurfaceSharing");
+                addSurface = OutputConfiguration.class.getMethod("addSurface", Surface.class);
+                removeSurface = OutputConfiguration.class.getMethod("removeSurface", Surface.class);
+                updateOutputConfiguration = CameraCaptureSession.class.getMethod(
+                        "updateOutputConfiguration", OutputConfiguration.class);
+            } catch (NoSuchMethodException e) {
+                enableSurfaceSharing = null;
+                addSurface = null;
+                removeSurface = null;
+                updateOutputConfiguration = null;
+            }
+        }
+        sEnableSurfaceSharing = enableSurfaceSharing;
+        sAddSurface = addSurface;
+        sRemoveSurface = removeSurface;
+        sUpdateOutputConfiguration = updateOutputConfiguration;
+    }
+
+    private final SharedOutputSwap.Output<Surface> mSharedPreviewOutput =
+            new SharedOutputSwap.Output<Surface>() {
+                @Override
+                public void addSurface(Surface surface) throws Exception {
+                    sAddSurface.invoke(mPreviewOutput, surface);
+                }
+
+                @Override
+                public void removeSurface(Surface surface) throws Exception {
+                    sRemoveSurface.invoke(mPreviewOutput, surface);
+                }
+
+                @Override
+                public void update() throws Exception {
+                    sUpdateOutputConfiguration.invoke(mCaptureSession, mPreviewOutput);
+                }
+            };
+
     /**
      * A {@link Semaphore} to prevent the app from exiting before closing the camera.
      */
@@ -152,26 +327,264 @@ public class CameraStreamManager {
         public void onCaptureCompleted(CameraCaptureSession session,
                                        CaptureRequest request,
                                        TotalCaptureResult result) {
-            // Don't need to do anything here.
+            Tracer.beginSection("onCaptureCompleted");
+            long now = System.nanoTime();
+            mCameraFps.tick(now);
+            mSessionKeeper.onFrame(now);
+            Tracer.endSection();
         }
 
     };
 
+    public CameraStreamManager(Context context) {
+        this(context, null);
+    }
+
     public CameraStreamManager(Context context, SurfaceTexture textureToStreamTo) {
         mContext = context;
         mSurfaceTextureToStreamTo = textureToStreamTo;
         mWidth = 1920;
         mHeight = 1080;
+        mSessionKeeper = new CameraSessionKeeper(mKeptCamera, new CameraSessionKeeper.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayNanos) {
+                mMainHandler.postDelayed(task, delayNanos / 1000000);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                mMainHandler.removeCallbacks(task);
+            }
+        });
+    }
+
+    /**
+     * Opens, pauses and closes the camera for the session keeper.
+     */
+    private final CameraSessionKeeper.Camera mKeptCamera = new CameraSessionKeeper.Camera() {
+        @Override
+        public void open() {
+            synchronized (CameraStreamManager.this) {
+                mStreaming = true;
+            }
+            startBackgroundThread();
+            openCamera(mWidth, mHeight);
+        }
+
+        @Override
+        public void pause() {
+            synchronized (CameraStreamManager.this) {
+                mStreaming = false;
+                if (mCaptureSession != null) {
+                    try {
+                        mCaptureSession.stopRepeating();
+                    } catch (CameraAccessException | IllegalStateException e) {
+                        Log.e(TAG, "Could not pause the preview", e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean resume() {
+            boolean kept = false;
+            synchronized (CameraStreamManager.this) {
+                mStreaming = true;
+                if (mCameraDevice != null) {
+                    kept = true;
+                    // Otherwise the preview starts once the session is configured.
+                    if (mCaptureSession != null && mPreviewRequest != null) {
+                        try {
+                            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                                    mBackgroundHandler);
+                        } catch (CameraAccessException | IllegalStateException e) {
+                            Log.e(TAG, "Could not resume the preview", e);
+                        }
+                    }
+                }
+            }
+            if (!kept) {
+                // Taken by another app while we were away.
+                openCamera(mWidth, mHeight);
+                return false;
+            }
+            // The camera is as good as opened again, and onOpened() won't be called for it.
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onCameraOpened();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            synchronized (CameraStreamManager.this) {
+                mStreaming = false;
+            }
+            closeCamera();
+            stopBackgroundThread();
+        }
+    };
+
+    public void setListener(Listener listener) {
+        mListener = listener;
     }
 
+    /**
+     * Streams a {@code width} by {@code height} luminance copy of each frame to {@code listener}.
+     * Takes effect from the next capture session, so set it before starting the camera.
+     *
+     * @param listener the listener, or null to stop streaming luminance.
+     */
+    public synchronized void setLuminanceListener(LuminanceListener listener, int width,
+                                                  int height) {
+        mLuminanceListener = listener;
+        mLuminanceWidth = width;
+        mLuminanceHeight = height;
+    }
+
+    /**
+     * Sets the texture to stream to, starting the preview if the camera is already open. A
+     * preview already streaming to another texture is moved over to this one.
+     */
+    public synchronized void setSurfaceTexture(SurfaceTexture textureToStreamTo) {
+        if (textureToStreamTo == mSurfaceTextureToStreamTo) {
+            return;
+        }
+        mSurfaceTextureToStreamTo = textureToStreamTo;
+        if (mCameraDevice != null) {
+            if (mCaptureSession != null) {
+                if (swapPreviewSurface()) {
+                    return;
+                }
+                mCaptureSession.close();
+                mCaptureSession = null;
+            }
+            createCameraPreviewSession();
+        }
+    }
+
+    /**
+     * Moves the running session's output onto the current texture by updating its output
+     * configuration, which takes a few milliseconds against hundreds to configure a new session.
+     *
+     * @return false if the session's output can't be changed, and a new session is needed.
+     */
+    private boolean swapPreviewSurface() {
+        if (mPreviewOutput == null) {
+            return false;
+        }
+        mSurfaceTextureToStreamTo.setDefaultBufferSize(mPreviewSize.getWidth(),
+                mPreviewSize.getHeight());
+        Surface surface = new Surface(mSurfaceTextureToStreamTo);
+        Tracer.beginSection("swapPreviewSurface");
+        try {
+            // The old surface can't be removed while requests still target it.
+            mCaptureSession.stopRepeating();
+            SharedOutputSwap.swap(mSharedPreviewOutput, mFirstPreviewSurface, mPreviewSurface,
+                    surface);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not move the preview to the new texture", e);
+            surface.release();
+            return false;
+        } finally {
+            Tracer.endSection();
+        }
+        mPreviewRequestBuilder.removeTarget(mPreviewSurface);
+        mPreviewRequestBuilder.addTarget(surface);
+        mPreviewRequest = mPreviewRequestBuilder.build();
+        if (mPreviewSurface != mFirstPreviewSurface) {
+            mPreviewSurface.release();
+        }
+        mPreviewSurface = surface;
+        if (mStreaming) {
+            try {
+                mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                        mBackgroundHandler);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Could not restart the preview", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the preview's surfaces, once its session is closed or being replaced.
+     */
+    private void releasePreviewSurfaces() {
+        if (mFirstPreviewSurface != null && mFirstPreviewSurface != mPreviewSurface) {
+            mFirstPreviewSurface.release();
+        }
+        if (mPreviewSurface != null) {
+            mPreviewSurface.release();
+        }
+        mPreviewSurface = null;
+        mFirstPreviewSurface = null;
+        mPreviewOutput = null;
+    }
+
+    /**
+     * Changes the preview size, e.g. to save power, reconfiguring the session if the camera is
+     * streaming. Sizes past {@link #MAX_WIDTH} by {@link #MAX_HEIGHT} are clamped.
+     */
+    public synchronized void setPreviewSize(int width, int height) {
+        width = Math.min(width, MAX_WIDTH);
+        height = Math.min(height, MAX_HEIGHT);
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        setUpCameraOutputs(width, height);
+        if (mCameraDevice != null && mSurfaceTextureToStreamTo != null) {
+            if (mCaptureSession != null) {
+                mCaptureSession.close();
+                mCaptureSession = null;
+            }
+            createCameraPreviewSession();
+        }
+    }
+
+    /**
+     * Opens the camera, or resumes it if it was kept open after
+     * {@link #onPauseCameraStream()}. Does nothing if it has already been started.
+     */
     public void onStartCameraStream() {
-        startBackgroundThread();
-        openCamera(mWidth, mHeight);
+        mSessionKeeper.start(System.nanoTime());
     }
 
+    /**
+     * Stops the preview, keeping the camera open for the grace period in case it is started
+     * again soon, e.g. after a permission dialog.
+     */
+    public void onPauseCameraStream() {
+        mSessionKeeper.stop();
+    }
+
+    /**
+     * Closes the camera now.
+     */
     public void onStopCameraStream() {
-        closeCamera();
-        stopBackgroundThread();
+        mSessionKeeper.close();
+    }
+
+    public boolean isStarted() {
+        return mSessionKeeper.isStreaming();
+    }
+
+    /**
+     * @param gracePeriodMillis how long to keep the camera open after
+     *                          {@link #onPauseCameraStream()}, 0 to close it straight away.
+     */
+    public void setGracePeriodMillis(long gracePeriodMillis) {
+        mSessionKeeper.setGracePeriodNanos(gracePeriodMillis * 1000000);
+    }
+
+    /**
+     * @return the keeper, for its start to first frame latencies.
+     */
+    public CameraSessionKeeper getSessionKeeper() {
+        return mSessionKeeper;
     }
 
     /**
@@ -185,6 +598,105 @@ public class CameraStreamManager {
         // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
         // garbage capture data.
         mPreviewSize = new Size(width, height);
+        Intrinsics calibration = getCalibration(mContext);
+        if (calibration != null) {
+            mIntrinsics = calibration.scaledTo(width, height);
+        }
+    }
+
+    /**
+     * @return the preview stream's intrinsics from the camera's calibration, or placeholder
+     * values if the camera doesn't report enough to work them out.
+     */
+    public Intrinsics getIntrinsics() {
+        return mIntrinsics;
+    }
+
+    /**
+     * Reads the color camera's intrinsics at its active array size, once per camera.
+     * <p/>
+     * Uses {@code LENS_INTRINSIC_CALIBRATION} where the camera has been calibrated, otherwise the
+     * focal length over the physical sensor size. Distortion comes from {@code LENS_DISTORTION}
+     * where there is one, otherwise the older {@code LENS_RADIAL_DISTORTION}.
+     *
+     * @return the calibration, or null if the camera can't say.
+     */
+    public static Intrinsics getCalibration(Context context) {
+        synchronized (sCalibrations) {
+            if (!sCalibrations.containsKey(CAMERA_ID)) {
+                sCalibrations.put(CAMERA_ID, readCalibration(context));
+            }
+            return sCalibrations.get(CAMERA_ID);
+        }
+    }
+
+    private static Intrinsics readCalibration(Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        CameraCharacteristics characteristics;
+        try {
+            characteristics = manager.getCameraCharacteristics(CAMERA_ID);
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            Log.e(TAG, "Failed to access camera!", e);
+            return null;
+        }
+        Rect activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (activeArray == null) {
+            return null;
+        }
+        int width = activeArray.width();
+        int height = activeArray.height();
+        double[] distortion = readDistortion(characteristics);
+
+        // fx, fy, cx, cy, skew.
+        float[] calibration = characteristics.get(CameraCharacteristics.LENS_INTRINSIC_CALIBRATION);
+        if (calibration != null && calibration[0] > 0 && calibration[1] > 0) {
+            return new Intrinsics(width, height, calibration[0], calibration[1], calibration[2],
+                    calibration[3], distortion);
+        }
+
+        float[] focalLengths =
+                characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        SizeF physicalSize = characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+        Size pixelArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_PIXEL_ARRAY_SIZE);
+        if (focalLengths == null || focalLengths.length == 0 || physicalSize == null
+                || pixelArray == null) {
+            Log.w(TAG, "No focal length or sensor size, using placeholder intrinsics");
+            return null;
+        }
+        // The active array has the same pixel pitch as the whole pixel array.
+        double fx = focalLengths[0] * pixelArray.getWidth() / physicalSize.getWidth();
+        double fy = focalLengths[0] * pixelArray.getHeight() / physicalSize.getHeight();
+        return new Intrinsics(width, height, fx, fy, width / 2.0, height / 2.0, distortion);
+    }
+
+    /**
+     * @return k1, k2, k3, p1, p2, or null if the camera doesn't report its distortion.
+     */
+    private static double[] readDistortion(CameraCharacteristics characteristics) {
+        float[] coefficients = null;
+        for (CameraCharacteristics.Key<?> key : characteristics.getKeys()) {
+            if (LENS_DISTORTION.equals(key.getName())) {
+                Object value = characteristics.get(key);
+                if (value instanceof float[]) {
+                    coefficients = (float[]) value;
+                }
+            }
+        }
+        int offset = 0;
+        if (coefficients == null) {
+            // kappa_0, which is always 1, then the same five.
+            coefficients = characteristics.get(CameraCharacteristics.LENS_RADIAL_DISTORTION);
+            offset = 1;
+        }
+        if (coefficients == null
+                || coefficients.length < offset + Intrinsics.DISTORTION_COEFFICIENTS) {
+            return null;
+        }
+        double[] distortion = new double[Intrinsics.DISTORTION_COEFFICIENTS];
+        for (int i = 0; i < distortion.length; i++) {
+            distortion[i] = coefficients[offset + i];
+        }
+        return distortion;
     }
 
     /**
@@ -197,6 +709,7 @@ public class CameraStreamManager {
             if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
                 throw new RuntimeException("Time out waiting to lock camera opening.");
             }
+            Tracer.beginAsyncSection(TRACE_OPEN, TRACE_COOKIE);
             manager.openCamera(CAMERA_ID, mStateCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
@@ -211,13 +724,20 @@ public class CameraStreamManager {
     private void closeCamera() {
         try {
             mCameraOpenCloseLock.acquire();
-            if (null != mCaptureSession) {
-                mCaptureSession.close();
-                mCaptureSession = null;
-            }
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
+            synchronized (this) {
+                if (null != mCaptureSession) {
+                    mCaptureSession.close();
+                    mCaptureSession = null;
+                }
+                releasePreviewSurfaces();
+                if (null != mLuminanceReader) {
+                    mLuminanceReader.close();
+                    mLuminanceReader = null;
+                }
+                if (null != mCameraDevice) {
+                    mCameraDevice.close();
+                    mCameraDevice = null;
+                }
             }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
@@ -263,35 +783,51 @@ public class CameraStreamManager {
                     mPreviewSize.getHeight());
 
             // This is the output Surface we need to start preview.
+            releasePreviewSurfaces();
             Surface surface = new Surface(mSurfaceTextureToStreamTo);
+            mPreviewSurface = surface;
+            mFirstPreviewSurface = surface;
 
             // We set up a CaptureRequest.Builder with the output Surface.
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
+            Surface luminance = getLuminanceSurface();
+            if (luminance != null) {
+                mPreviewRequestBuilder.addTarget(luminance);
+            }
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface),
+            Tracer.beginAsyncSection(TRACE_CONFIGURE, TRACE_COOKIE);
+            CameraCaptureSession.StateCallback sessionCallback =
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
                         public void onConfigured(CameraCaptureSession cameraCaptureSession) {
-                            // The camera is already closed
-                            if (null == mCameraDevice) {
-                                return;
-                            }
+                            Tracer.endAsyncSection(TRACE_CONFIGURE, TRACE_COOKIE);
+                            synchronized (CameraStreamManager.this) {
+                                // The camera is already closed
+                                if (null == mCameraDevice) {
+                                    return;
+                                }
 
-                            // When the session is ready, we start displaying the preview.
-                            mCaptureSession = cameraCaptureSession;
+                                // When the session is ready, we start displaying the preview.
+                                mCaptureSession = cameraCaptureSession;
+                            }
                             try {
                                 // Auto focus should be continuous for camera preview.
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
                                         CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
 
-                                // Finally, we start displaying the camera preview.
-                                mPreviewRequest = mPreviewRequestBuilder.build();
-                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
-                                        mCaptureCallback, mBackgroundHandler);
+                                // Finally, we start displaying the camera preview, unless it
+                                // was paused while the session was being configured.
+                                synchronized (CameraStreamManager.this) {
+                                    mPreviewRequest = mPreviewRequestBuilder.build();
+                                    if (mStreaming) {
+                                        mCaptureSession.setRepeatingRequest(mPreviewRequest,
+                                                mCaptureCallback, mBackgroundHandler);
+                                    }
+                                }
                             } catch (CameraAccessException e) {
                                 e.printStackTrace();
                             }
@@ -300,28 +836,99 @@ public class CameraStreamManager {
                         @Override
                         public void onConfigureFailed(
                                 CameraCaptureSession cameraCaptureSession) {
+                            Tracer.endAsyncSection(TRACE_CONFIGURE, TRACE_COOKIE);
                             Log.e(TAG, "Camera configuration failed.");
                         }
-                    }, null
-            );
+                    };
+            OutputConfiguration output = createSharedOutput(surface);
+            if (output != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                mPreviewOutput = output;
+                List<OutputConfiguration> outputs = new ArrayList<>();
+                outputs.add(output);
+                if (luminance != null) {
+                    outputs.add(new OutputConfiguration(luminance));
+                }
+                mCameraDevice.createCaptureSessionByOutputConfigurations(outputs, sessionCallback,
+                        null);
+            } else {
+                List<Surface> outputs = new ArrayList<>();
+                outputs.add(surface);
+                if (luminance != null) {
+                    outputs.add(luminance);
+                }
+                mCameraDevice.createCaptureSession(outputs, sessionCallback, null);
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * @return the luminance stream's surface, setting the stream up if needed, or null if there
+     * is no one to stream to.
+     */
+    private Surface getLuminanceSurface() {
+        if (mLuminanceListener == null) {
+            if (mLuminanceReader != null) {
+                mLuminanceReader.close();
+                mLuminanceReader = null;
+            }
+            return null;
+        }
+        if (mLuminanceReader != null && (mLuminanceReader.getWidth() != mLuminanceWidth
+                || mLuminanceReader.getHeight() != mLuminanceHeight)) {
+            mLuminanceReader.close();
+            mLuminanceReader = null;
+        }
+        if (mLuminanceReader == null) {
+            // Two images, so the camera can fill one while the other is being read.
+            mLuminanceReader = ImageReader.newInstance(mLuminanceWidth, mLuminanceHeight,
+                    ImageFormat.YUV_420_888, 2);
+            mLuminanceReader.setOnImageAvailableListener(mLuminanceAvailableListener,
+                    mBackgroundHandler);
+        }
+        return mLuminanceReader.getSurface();
+    }
+
+    /**
+     * @return an output for {@code surface} that other surfaces can be swapped into later, or
+     * null where that isn't supported.
+     */
+    private static OutputConfiguration createSharedOutput(Surface surface) {
+        if (sUpdateOutputConfiguration == null) {
+            return null;
+        }
+        try {
+            OutputConfiguration output = new OutputConfiguration(surface);
+            sEnableSurfaceSharing.invoke(output);
+            return output;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not share the preview output", e);
+            return null;
+        }
+    }
+
     public static int getRotation(Context context, int deviceRotation) {
-        // Get offset from the RGB camera.
+        // Add RGB offset to current device rotation.
+        return getSensorOrientation(context) + deviceRotation;
+    }
+
+    /**
+     * Reads the color camera's sensor orientation. This goes to the camera service, so callers
+     * should read it once and keep it; it never changes.
+     *
+     * @return the orientation in degrees, or 0 if the camera can't be queried.
+     */
+    public static int getSensorOrientation(Context context) {
         CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-        CameraCharacteristics characteristics = null;
         try {
-            characteristics = manager.getCameraCharacteristics(CAMERA_ID + "");
-        } catch (CameraAccessException e) {
+            Integer orientation = manager.getCameraCharacteristics(CAMERA_ID)
+                    .get(CameraCharacteristics.SENSOR_ORIENTATION);
+            return orientation == null ? 0 : orientation;
+        } catch (CameraAccessException | IllegalArgumentException e) {
             Log.e(TAG, "Failed to access camera!", e);
+            return 0;
         }
-        int toOrientate = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-
-        // Add RGB offset to current device rotation.
-        return toOrientate + deviceRotation;
     }
 
     public static int[] getSize(Context context, boolean invertAxis, int width, int height) {
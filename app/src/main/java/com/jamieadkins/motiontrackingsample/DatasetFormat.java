@@ -0,0 +1,35 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Layout shared by {@link DatasetRecorder} and {@link DatasetReader}.
+ * <p/>
+ * A dataset is a header, a run of chunks, an index and a footer, all big endian:
+ * <pre>
+ * header: int magic, byte version
+ * chunk:  frames, then a pose log (see {@link PoseLogFormat}) of the poses that arrived
+ *         while the chunk was open
+ * frame:  long arrivalNanos, long timestamp, int width, int height, width * height luminance
+ *         bytes, row after row with no padding
+ * index:  int chunkCount, then per chunk: long firstArrivalNanos, long offset, int frameCount,
+ *         long poseLogOffset, int poseLogBytes
+ *         int frameCount, then per frame: long arrivalNanos, long offset
+ * footer: long indexOffset, int magic
+ * </pre>
+ * Frames and poses are both keyed by the time they reached the recorder, on the same clock, so
+ * they line up however the camera and the pose provider stamp their own samples. A frame keeps
+ * the camera's timestamp alongside. Pose logs are stored under the same arrival time, so the
+ * {@link PoseLogReader} of a chunk seeks on the same timeline as the frames.
+ */
+final class DatasetFormat {
+    static final int MAGIC = 0x44534554; // "DSET"
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 4 + 1;
+    static final int FOOTER_BYTES = 8 + 4;
+    static final int FRAME_HEADER_BYTES = 8 + 8 + 4 + 4;
+    static final int CHUNK_ENTRY_BYTES = 8 + 8 + 4 + 8 + 4;
+    static final int FRAME_ENTRY_BYTES = 8 + 8;
+
+    private DatasetFormat() {
+    }
+}
@@ -0,0 +1,153 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a dataset written by {@link DatasetRecorder}, described in {@link DatasetFormat}. Only
+ * the index is read up front; frames are copied out on demand, and each chunk's poses are read
+ * through a {@link PoseLogReader}.
+ */
+public class DatasetReader {
+    private final ByteBuffer mBuffer;
+
+    private final long[] mChunkArrivals;
+    private final int[] mChunkFrameCounts;
+    private final int[] mPoseLogOffsets;
+    private final int[] mPoseLogSizes;
+    private final long[] mFrameArrivals;
+    private final int[] mFrameOffsets;
+
+    /**
+     * @param buffer the whole dataset, from position zero, for example a mapped file.
+     */
+    public DatasetReader(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        int limit = buffer.limit();
+        if (limit < DatasetFormat.HEADER_BYTES + DatasetFormat.FOOTER_BYTES
+                || buffer.getInt(0) != DatasetFormat.MAGIC
+                || buffer.getInt(limit - 4) != DatasetFormat.MAGIC) {
+            throw new IOException("Not a dataset");
+        }
+        if (buffer.get(4) != DatasetFormat.VERSION) {
+            throw new IOException("Unsupported dataset version " + buffer.get(4));
+        }
+
+        int position = (int) buffer.getLong(limit - DatasetFormat.FOOTER_BYTES);
+        int chunkCount = buffer.getInt(position);
+        position += 4;
+        mChunkArrivals = new long[chunkCount];
+        mChunkFrameCounts = new int[chunkCount];
+        mPoseLogOffsets = new int[chunkCount];
+        mPoseLogSizes = new int[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            mChunkArrivals[i] = buffer.getLong(position);
+            mChunkFrameCounts[i] = buffer.getInt(position + 16);
+            mPoseLogOffsets[i] = (int) buffer.getLong(position + 20);
+            mPoseLogSizes[i] = buffer.getInt(position + 28);
+            position += DatasetFormat.CHUNK_ENTRY_BYTES;
+        }
+        int frameCount = buffer.getInt(position);
+        position += 4;
+        mFrameArrivals = new long[frameCount];
+        mFrameOffsets = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            mFrameArrivals[i] = buffer.getLong(position);
+            mFrameOffsets[i] = (int) buffer.getLong(position + 8);
+            position += DatasetFormat.FRAME_ENTRY_BYTES;
+        }
+    }
+
+    public int getFrameCount() {
+        return mFrameArrivals.length;
+    }
+
+    public int getChunkCount() {
+        return mChunkArrivals.length;
+    }
+
+    public long getFrameArrivalNanos(int frame) {
+        return mFrameArrivals[frame];
+    }
+
+    /**
+     * @return the camera's timestamp for the frame.
+     */
+    public long getFrameTimestamp(int frame) {
+        return mBuffer.getLong(mFrameOffsets[frame] + 8);
+    }
+
+    public int getFrameWidth(int frame) {
+        return mBuffer.getInt(mFrameOffsets[frame] + 16);
+    }
+
+    public int getFrameHeight(int frame) {
+        return mBuffer.getInt(mFrameOffsets[frame] + 20);
+    }
+
+    /**
+     * Copies a frame's luminance, {@code width * height} bytes, into {@code out}.
+     */
+    public void readFrame(int frame, byte[] out) {
+        ByteBuffer source = mBuffer.duplicate();
+        source.position(mFrameOffsets[frame] + DatasetFormat.FRAME_HEADER_BYTES);
+        source.get(out, 0, getFrameWidth(frame) * getFrameHeight(frame));
+    }
+
+    /**
+     * @return the first frame that arrived at or after {@code arrivalNanos}, or -1 if there is
+     * none.
+     */
+    public int findFrame(long arrivalNanos) {
+        int low = 0;
+        int high = mFrameArrivals.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mFrameArrivals[mid] < arrivalNanos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < mFrameArrivals.length ? low : -1;
+    }
+
+    /**
+     * @return the chunk that was open when {@code arrivalNanos} came, or -1 if it came before the
+     * first.
+     */
+    public int findChunk(long arrivalNanos) {
+        int chunk = -1;
+        int low = 0;
+        int high = mChunkArrivals.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mChunkArrivals[mid] <= arrivalNanos) {
+                chunk = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return chunk;
+    }
+
+    public long getChunkArrivalNanos(int chunk) {
+        return mChunkArrivals[chunk];
+    }
+
+    public int getChunkFrameCount(int chunk) {
+        return mChunkFrameCounts[chunk];
+    }
+
+    /**
+     * @return a reader for the poses that arrived while {@code chunk} was open, timestamped with
+     * their arrival time.
+     */
+    public PoseLogReader readPoses(int chunk) throws IOException {
+        ByteBuffer log = mBuffer.duplicate();
+        log.limit(mPoseLogOffsets[chunk] + mPoseLogSizes[chunk]);
+        log.position(mPoseLogOffsets[chunk]);
+        return new PoseLogReader(log.slice());
+    }
+}
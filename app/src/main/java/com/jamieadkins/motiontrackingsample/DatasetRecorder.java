@@ -0,0 +1,471 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records camera frames and poses side by side into the chunked container described in
+ * {@link DatasetFormat}, for tuning the tracking offline.
+ * <p/>
+ * Frames are box filtered down to fit the recording size on the thread that offers them, into
+ * one of a fixed number of preallocated records, and handed to a writer thread along with the
+ * poses. When every record is waiting to be written the sample is dropped and counted rather
+ * than waited for, so a slow disk never holds up the camera or the sensor thread. Frames and
+ * poses share one queue, so they reach the file in the order they arrived.
+ * <p/>
+ * A recorder writes one dataset: {@link #start()} it once and {@link #stop()} it to write the
+ * index. The output stream is flushed but left open.
+ */
+public class DatasetRecorder {
+    /** Default number of frames that can wait to be written, about a quarter second at 30Hz. */
+    public static final int DEFAULT_QUEUED_FRAMES = 8;
+    /** Default number of poses that can wait to be written, about five seconds at 200Hz. */
+    public static final int DEFAULT_QUEUED_POSES = 1024;
+    /** Default amount of frame data per chunk. */
+    public static final int DEFAULT_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private static final int OUTPUT_BUFFER_BYTES = 64 * 1024;
+
+    private final DataOutputStream mOut;
+    private final FramePacer.Clock mClock;
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+    private final int mChunkBytes;
+
+    // Free records, and records waiting for the writer. The queue has room for every record
+    // plus the one that tells the writer to finish, so handing one over never waits.
+    private final BlockingQueue<Record> mFreeFrames;
+    private final BlockingQueue<Record> mFreePoses;
+    private final BlockingQueue<Record> mQueue;
+    private final Record mStop = new Record(0);
+
+    // Scratch for offerFrame(): a source row and the box sums of an output row.
+    private byte[] mRow = new byte[0];
+    private int[] mSums = new int[0];
+
+    private Thread mWriterThread;
+    private volatile boolean mRunning;
+    private boolean mStarted;
+    private long mStartNanos;
+    private volatile long mStopNanos;
+
+    // Writer thread state.
+    private long mOffset;
+    private boolean mChunkOpen;
+    private long mChunkFirstArrival;
+    private long mChunkOffset;
+    private int mChunkFrames;
+    private int mChunkFrameBytes;
+    private final ByteArrayOutputStream mPoseBuffer = new ByteArrayOutputStream();
+    private PoseLogWriter mPoseLog;
+
+    // Index, grown as frames and chunks are written.
+    private long[] mChunkEntries = new long[16 * 5];
+    private int mChunkCount;
+    private long[] mFrameEntries = new long[1024 * 2];
+    private int mFrameCount;
+
+    private volatile long mOfferedFrames;
+    private volatile long mDroppedFrames;
+    private volatile long mFramesWritten;
+    private volatile long mOfferedPoses;
+    private volatile long mDroppedPoses;
+    private volatile long mPosesWritten;
+    private volatile long mBytesWritten;
+    private volatile long mErrors;
+    private volatile IOException mLastError;
+
+    public DatasetRecorder(OutputStream out, int maxWidth, int maxHeight) {
+        this(out, maxWidth, maxHeight, DEFAULT_QUEUED_FRAMES, DEFAULT_QUEUED_POSES,
+                DEFAULT_CHUNK_BYTES, FramePacer.SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param maxWidth     frames wider than this are scaled down by a whole factor to fit.
+     * @param maxHeight    frames taller than this are scaled down by a whole factor to fit.
+     * @param queuedFrames frames that can wait to be written before new ones are dropped.
+     * @param queuedPoses  poses that can wait to be written before new ones are dropped.
+     * @param chunkBytes   frame data after which a chunk is closed and its poses written.
+     * @param clock        clock frames are stamped with on arrival. Poses must be offered with
+     *                     arrival times from the same clock.
+     */
+    public DatasetRecorder(OutputStream out, int maxWidth, int maxHeight, int queuedFrames,
+                           int queuedPoses, int chunkBytes, FramePacer.Clock clock) {
+        mOut = new DataOutputStream(new BufferedOutputStream(out, OUTPUT_BUFFER_BYTES));
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+        mChunkBytes = chunkBytes;
+        mClock = clock;
+        mFreeFrames = new ArrayBlockingQueue<>(queuedFrames);
+        for (int i = 0; i < queuedFrames; i++) {
+            mFreeFrames.add(new Record(maxWidth * maxHeight));
+        }
+        mFreePoses = new ArrayBlockingQueue<>(queuedPoses);
+        for (int i = 0; i < queuedPoses; i++) {
+            mFreePoses.add(new Record(0));
+        }
+        mQueue = new ArrayBlockingQueue<>(queuedFrames + queuedPoses + 1);
+    }
+
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStartNanos = mClock.nanoTime();
+        mRunning = true;
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "DatasetWriter");
+        mWriterThread.start();
+    }
+
+    /**
+     * Stops taking samples, waits for the queued ones to be written and finishes the file.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mQueue.add(mStop);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mStopNanos = mClock.nanoTime();
+        mWriterThread = null;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Queues a frame for writing, scaled down to fit the recording size. Never blocks; call it
+     * from one thread at a time. The buffer is read from its position without moving it.
+     *
+     * @param luminance one byte per pixel, {@code rowStride} bytes apart from row to row.
+     * @param timestamp the camera's timestamp for the frame, kept alongside the arrival time.
+     * @return false if the frame was dropped.
+     */
+    public boolean offerFrame(ByteBuffer luminance, int width, int height, int rowStride,
+                              long timestamp) {
+        if (!mRunning) {
+            return false;
+        }
+        long arrivalNanos = mClock.nanoTime();
+        mOfferedFrames++;
+        Record record = mFreeFrames.poll();
+        if (record == null) {
+            mDroppedFrames++;
+            return false;
+        }
+        int factor = Math.max(1, Math.max((width + mMaxWidth - 1) / mMaxWidth,
+                (height + mMaxHeight - 1) / mMaxHeight));
+        record.mArrivalNanos = arrivalNanos;
+        record.mTimestamp = timestamp;
+        record.mWidth = width / factor;
+        record.mHeight = height / factor;
+        downscale(luminance, rowStride, factor, record.mWidth, record.mHeight, record.mPixels);
+        mQueue.add(record);
+        return true;
+    }
+
+    /**
+     * Queues a pose for writing. Never blocks; call it from one thread at a time.
+     *
+     * @param arrivalNanos when the pose arrived, on the recorder's clock.
+     * @return false if the pose was dropped.
+     */
+    public boolean offerPose(long arrivalNanos, float[] translation, float[] rotation) {
+        if (!mRunning) {
+            return false;
+        }
+        mOfferedPoses++;
+        Record record = mFreePoses.poll();
+        if (record == null) {
+            mDroppedPoses++;
+            return false;
+        }
+        record.mArrivalNanos = arrivalNanos;
+        System.arraycopy(translation, 0, record.mTranslation, 0, 3);
+        System.arraycopy(rotation, 0, record.mRotation, 0, 4);
+        mQueue.add(record);
+        return true;
+    }
+
+    /**
+     * Averages each {@code factor} square of the source into one output pixel.
+     */
+    private void downscale(ByteBuffer luminance, int rowStride, int factor, int width,
+                           int height, byte[] out) {
+        ByteBuffer source = luminance.duplicate();
+        int base = luminance.position();
+        if (factor == 1) {
+            for (int y = 0; y < height; y++) {
+                source.position(base + y * rowStride);
+                source.get(out, y * width, width);
+            }
+            return;
+        }
+
+        int rowBytes = width * factor;
+        if (mRow.length < rowBytes) {
+            mRow = new byte[rowBytes];
+            mSums = new int[width];
+        }
+        int area = factor * factor;
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(mSums, 0, width, 0);
+            for (int j = 0; j < factor; j++) {
+                source.position(base + (y * factor + j) * rowStride);
+                source.get(mRow, 0, rowBytes);
+                for (int x = 0, p = 0; x < width; x++) {
+                    int sum = 0;
+                    for (int i = 0; i < factor; i++, p++) {
+                        sum += mRow[p] & 0xff;
+                    }
+                    mSums[x] += sum;
+                }
+            }
+            int o = y * width;
+            for (int x = 0; x < width; x++) {
+                out[o + x] = (byte) ((mSums[x] + area / 2) / area);
+            }
+        }
+    }
+
+    /**
+     * @return frames handed to {@link #offerFrame} while recording.
+     */
+    public long getOfferedFrameCount() {
+        return mOfferedFrames;
+    }
+
+    /**
+     * @return frames dropped because every frame record was waiting to be written.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    /**
+     * @return poses handed to {@link #offerPose} while recording.
+     */
+    public long getOfferedPoseCount() {
+        return mOfferedPoses;
+    }
+
+    /**
+     * @return poses dropped because every pose record was waiting to be written.
+     */
+    public long getDroppedPoseCount() {
+        return mDroppedPoses;
+    }
+
+    public long getPosesWritten() {
+        return mPosesWritten;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return bytes written per second since {@link #start()}, up to {@link #stop()} once
+     * stopped, in megabytes.
+     */
+    public double getMegabytesPerSecond() {
+        long end = mRunning || mStopNanos == 0 ? mClock.nanoTime() : mStopNanos;
+        long elapsed = end - mStartNanos;
+        return elapsed > 0 ? mBytesWritten / (elapsed / 1e9) / (1024 * 1024) : 0;
+    }
+
+    /**
+     * @return write failures. After the first, samples are still taken off the queue but no
+     * longer written.
+     */
+    public long getErrorCount() {
+        return mErrors;
+    }
+
+    public IOException getLastError() {
+        return mLastError;
+    }
+
+    private void writeLoop() {
+        boolean failed = false;
+        try {
+            mOut.writeInt(DatasetFormat.MAGIC);
+            mOut.writeByte(DatasetFormat.VERSION);
+            mOffset = DatasetFormat.HEADER_BYTES;
+            mBytesWritten = mOffset;
+        } catch (IOException e) {
+            failed = fail(e);
+        }
+
+        while (true) {
+            Record record;
+            try {
+                record = mQueue.take();
+            } catch (InterruptedException e) {
+                // Only stop() ends the loop, so nothing queued is lost.
+                continue;
+            }
+            if (record == mStop) {
+                break;
+            }
+            if (!failed) {
+                try {
+                    write(record);
+                } catch (IOException e) {
+                    failed = fail(e);
+                }
+            }
+            if (record.mPixels.length > 0) {
+                mFreeFrames.add(record);
+            } else {
+                mFreePoses.add(record);
+            }
+        }
+
+        if (!failed) {
+            try {
+                closeChunk();
+                writeIndex();
+                mOut.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private boolean fail(IOException e) {
+        mLastError = e;
+        mErrors++;
+        return true;
+    }
+
+    private void write(Record record) throws IOException {
+        if (!mChunkOpen) {
+            mChunkOpen = true;
+            mChunkFirstArrival = record.mArrivalNanos;
+            mChunkOffset = mOffset;
+            mChunkFrames = 0;
+            mChunkFrameBytes = 0;
+            mPoseBuffer.reset();
+            mPoseLog = new PoseLogWriter(mPoseBuffer);
+        }
+
+        if (record.mPixels.length == 0) {
+            mPoseLog.write(record.mArrivalNanos, record.mTranslation, record.mRotation);
+            mPosesWritten++;
+            return;
+        }
+
+        if (mFrameCount * 2 == mFrameEntries.length) {
+            mFrameEntries = Arrays.copyOf(mFrameEntries, mFrameEntries.length * 2);
+        }
+        mFrameEntries[mFrameCount * 2] = record.mArrivalNanos;
+        mFrameEntries[mFrameCount * 2 + 1] = mOffset;
+        mFrameCount++;
+
+        int pixels = record.mWidth * record.mHeight;
+        mOut.writeLong(record.mArrivalNanos);
+        mOut.writeLong(record.mTimestamp);
+        mOut.writeInt(record.mWidth);
+        mOut.writeInt(record.mHeight);
+        mOut.write(record.mPixels, 0, pixels);
+        advance(DatasetFormat.FRAME_HEADER_BYTES + pixels);
+        mChunkFrames++;
+        mChunkFrameBytes += DatasetFormat.FRAME_HEADER_BYTES + pixels;
+        mFramesWritten++;
+        if (mChunkFrameBytes >= mChunkBytes) {
+            closeChunk();
+        }
+    }
+
+    /**
+     * Writes the open chunk's poses after its frames and adds it to the index.
+     */
+    private void closeChunk() throws IOException {
+        if (!mChunkOpen) {
+            return;
+        }
+        mChunkOpen = false;
+        mPoseLog.close();
+        long poseLogOffset = mOffset;
+        mPoseBuffer.writeTo(mOut);
+        advance(mPoseBuffer.size());
+
+        if ((mChunkCount + 1) * 5 > mChunkEntries.length) {
+            mChunkEntries = Arrays.copyOf(mChunkEntries, mChunkEntries.length * 2);
+        }
+        int entry = mChunkCount * 5;
+        mChunkEntries[entry] = mChunkFirstArrival;
+        mChunkEntries[entry + 1] = mChunkOffset;
+        mChunkEntries[entry + 2] = mChunkFrames;
+        mChunkEntries[entry + 3] = poseLogOffset;
+        mChunkEntries[entry + 4] = mPoseBuffer.size();
+        mChunkCount++;
+    }
+
+    private void writeIndex() throws IOException {
+        long indexOffset = mOffset;
+        mOut.writeInt(mChunkCount);
+        for (int i = 0; i < mChunkCount; i++) {
+            int entry = i * 5;
+            mOut.writeLong(mChunkEntries[entry]);
+            mOut.writeLong(mChunkEntries[entry + 1]);
+            mOut.writeInt((int) mChunkEntries[entry + 2]);
+            mOut.writeLong(mChunkEntries[entry + 3]);
+            mOut.writeInt((int) mChunkEntries[entry + 4]);
+        }
+        mOut.writeInt(mFrameCount);
+        for (int i = 0; i < mFrameCount * 2; i++) {
+            mOut.writeLong(mFrameEntries[i]);
+        }
+        mOut.writeLong(indexOffset);
+        mOut.writeInt(DatasetFormat.MAGIC);
+        advance(4 + mChunkCount * DatasetFormat.CHUNK_ENTRY_BYTES
+                + 4 + mFrameCount * DatasetFormat.FRAME_ENTRY_BYTES + DatasetFormat.FOOTER_BYTES);
+    }
+
+    private void advance(int bytes) {
+        mOffset += bytes;
+        mBytesWritten = mOffset;
+    }
+
+    /**
+     * A frame, when it has pixels, or a pose.
+     */
+    private static class Record {
+        final byte[] mPixels;
+        final float[] mTranslation = new float[3];
+        final float[] mRotation = new float[4];
+        long mArrivalNanos;
+        long mTimestamp;
+        int mWidth;
+        int mHeight;
+
+        Record(int pixels) {
+            mPixels = new byte[pixels];
+        }
+    }
+}
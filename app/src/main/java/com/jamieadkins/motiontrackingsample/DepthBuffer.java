@@ -0,0 +1,594 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A low resolution depth image of the real world, rasterised on the CPU from each depth cloud, so
+ * virtual content hidden behind real surfaces can be skipped.
+ * <p/>
+ * Every cloud is projected through the latest camera pose and {@link Intrinsics} into an image a
+ * fraction of the camera's size, keeping the nearest point per pixel. Points are binned into
+ * square tiles which are rasterised in parallel, each tile writing only its own pixels. Depth
+ * sensors leave gaps, so a few passes then fill unknown pixels that are mostly surrounded by
+ * known ones. The build stops taking on tiles once the per-cloud budget is spent; the tiles left
+ * out are unknown, which only makes the result less eager to hide things.
+ * <p/>
+ * Queries test boxes against a pyramid of the image where each level holds the farthest depth of
+ * the four pixels below it, so any box costs a handful of reads. A box is only reported hidden
+ * if every pixel it covers is known and nearer than the box. Queries use the pose the image was
+ * built from, and can run on any thread while the next image is being built.
+ * <p/>
+ * Lens distortion is ignored; at this resolution it moves points by less than a pixel over most
+ * of the image.
+ */
+public class DepthBuffer implements PoseProvider.PointCloudListener {
+    /** Default per-cloud budget. Clouds arrive at a few Hz, well apart. */
+    public static final long DEFAULT_BUDGET_NANOS = 8000000L;
+    /** Floats per box passed to {@link #queryVisible}. */
+    public static final int FLOATS_PER_BOX = 6;
+
+    /** Side of a rasterisation tile, in pixels. */
+    private static final int TILE_SIZE = 16;
+    /** Below this many points or pixels a parallel task does its work inline. */
+    private static final int SEQUENTIAL_THRESHOLD = 4096;
+    /** Points nearer than this to the camera, in meters, are dropped. */
+    private static final float NEAR = 0.1f;
+    /** How far in front of real surfaces, in meters, content is still drawn. */
+    private static final float DEPTH_MARGIN = 0.05f;
+    private static final int HOLE_FILL_PASSES = 2;
+    /** Known neighbours, of eight, an unknown pixel needs to be filled. */
+    private static final int HOLE_FILL_NEIGHBOURS = 4;
+    private static final float UNKNOWN = Float.POSITIVE_INFINITY;
+
+    private final ForkJoinPool mPool;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTilesX;
+    private final int mTilesY;
+    private final long mBudgetNanos;
+
+    // The view the next image is built from: world to camera rotation, row major, the camera's
+    // position and the intrinsics scaled to this image.
+    private final float[] mViewRotation = new float[9];
+    private final float[] mViewPosition = new float[3];
+    private boolean mHasView;
+    private Intrinsics mIntrinsics;
+    private float mFx;
+    private float mFy;
+    private float mCx;
+    private float mCy;
+
+    // Build side, only touched under mBuildLock.
+    private final Object mBuildLock = new Object();
+    private int[] mPointPixels = new int[0];
+    private float[] mPointDepths = new float[0];
+    private int[] mBinnedPoints = new int[0];
+    private final int[] mTileStarts;
+    private final int[] mTileFill;
+    private float[] mFillScratch;
+    private View mBack;
+
+    // Published image, swapped with mBack under this object's lock.
+    private View mFront;
+    private long mVersion;
+    private long mLastBuildNanos;
+    private int mLastSkippedTiles;
+    private int mLastFilledPixels;
+
+    /**
+     * An image and the view it was rasterised from.
+     */
+    private static class View {
+        // Level 0 is the depth image, each level above holds the farthest of four below.
+        final float[][] mLevels;
+        final int[] mLevelWidths;
+        final int[] mLevelHeights;
+        final float[] mRotation = new float[9];
+        final float[] mPosition = new float[3];
+        float mFx;
+        float mFy;
+        float mCx;
+        float mCy;
+        boolean mValid;
+
+        View(int width, int height) {
+            int levels = 1;
+            while ((width >> levels) > 0 && (height >> levels) > 0) {
+                levels++;
+            }
+            mLevels = new float[levels][];
+            mLevelWidths = new int[levels];
+            mLevelHeights = new int[levels];
+            for (int level = 0; level < levels; level++) {
+                mLevelWidths[level] = Math.max(1, (width + (1 << level) - 1) >> level);
+                mLevelHeights[level] = Math.max(1, (height + (1 << level) - 1) >> level);
+                mLevels[level] = new float[mLevelWidths[level] * mLevelHeights[level]];
+            }
+        }
+    }
+
+    public DepthBuffer(int width, int height) {
+        this(width, height, WorkerPool.get(), DEFAULT_BUDGET_NANOS);
+    }
+
+    /**
+     * @param pool pool to split the work across, or null to build on the calling thread.
+     */
+    public DepthBuffer(int width, int height, ForkJoinPool pool, long budgetNanos) {
+        mWidth = width;
+        mHeight = height;
+        mPool = pool;
+        mBudgetNanos = budgetNanos;
+        mTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        mTileStarts = new int[mTilesX * mTilesY + 1];
+        mTileFill = new int[mTilesX * mTilesY];
+        mFillScratch = new float[width * height];
+        mBack = new View(width, height);
+        mFront = new View(width, height);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Sets the view the next cloud is rasterised from, e.g. the pose the scene is being drawn
+     * with. Does nothing if there's no pose or intrinsics yet.
+     *
+     * @param cameraPose the color camera's pose, looking down -z with y up.
+     * @param intrinsics the color camera's intrinsics, at any resolution.
+     */
+    public void setView(PoseData cameraPose, Intrinsics intrinsics) {
+        if (cameraPose == null || intrinsics == null) {
+            return;
+        }
+        synchronized (mViewRotation) {
+            float[] q = cameraPose.mRotation;
+            float x = q[PoseData.INDEX_ROTATION_X];
+            float y = q[PoseData.INDEX_ROTATION_Y];
+            float z = q[PoseData.INDEX_ROTATION_Z];
+            float w = q[PoseData.INDEX_ROTATION_W];
+            // The transpose of the camera to world rotation.
+            mViewRotation[0] = 1 - 2 * (y * y + z * z);
+            mViewRotation[1] = 2 * (x * y + w * z);
+            mViewRotation[2] = 2 * (x * z - w * y);
+            mViewRotation[3] = 2 * (x * y - w * z);
+            mViewRotation[4] = 1 - 2 * (x * x + z * z);
+            mViewRotation[5] = 2 * (y * z + w * x);
+            mViewRotation[6] = 2 * (x * z + w * y);
+            mViewRotation[7] = 2 * (y * z - w * x);
+            mViewRotation[8] = 1 - 2 * (x * x + y * y);
+            System.arraycopy(cameraPose.mTranslation, 0, mViewPosition, 0, 3);
+            if (intrinsics != mIntrinsics) {
+                mIntrinsics = intrinsics;
+                float scaleX = (float) mWidth / intrinsics.getWidth();
+                float scaleY = (float) mHeight / intrinsics.getHeight();
+                mFx = (float) intrinsics.getFocalLengthInPixelsX() * scaleX;
+                mFy = (float) intrinsics.getFocalLengthInPixelsY() * scaleY;
+                mCx = (float) intrinsics.getPrincipalPointX() * scaleX;
+                mCy = (float) intrinsics.getPrincipalPointY() * scaleY;
+            }
+            mHasView = true;
+        }
+    }
+
+    @Override
+    public void onNewPointCloud(PointCloud pointCloud) {
+        update(pointCloud.getPoints(), pointCloud.getNumPoints());
+    }
+
+    /**
+     * Rasterises a cloud from the last view set, replacing the published image.
+     *
+     * @param points    points in the start of service frame, packed as x, y, z.
+     * @param numPoints number of valid points.
+     * @return false if there is no view to rasterise from yet.
+     */
+    public boolean update(float[] points, int numPoints) {
+        synchronized (mBuildLock) {
+            long start = System.nanoTime();
+            // Clamped, so a budget of Long.MAX_VALUE means no limit.
+            long deadline = mBudgetNanos > Long.MAX_VALUE - start
+                    ? Long.MAX_VALUE : start + mBudgetNanos;
+            View view = mBack;
+            synchronized (mViewRotation) {
+                if (!mHasView) {
+                    return false;
+                }
+                System.arraycopy(mViewRotation, 0, view.mRotation, 0, 9);
+                System.arraycopy(mViewPosition, 0, view.mPosition, 0, 3);
+                view.mFx = mFx;
+                view.mFy = mFy;
+                view.mCx = mCx;
+                view.mCy = mCy;
+            }
+            if (mPointPixels.length < numPoints) {
+                mPointPixels = new int[numPoints];
+                mPointDepths = new float[numPoints];
+                mBinnedPoints = new int[numPoints];
+            }
+
+            if (mPool == null) {
+                project(view, points, 0, numPoints);
+            } else {
+                mPool.invoke(new ProjectTask(view, points, 0, numPoints));
+            }
+            binByTile(numPoints);
+            AtomicInteger skipped = new AtomicInteger();
+            if (mPool == null) {
+                rasterise(view.mLevels[0], deadline, skipped, 0, mTilesX * mTilesY);
+            } else {
+                mPool.invoke(new RasteriseTask(view.mLevels[0], deadline, skipped, 0,
+                        mTilesX * mTilesY));
+            }
+            int filled = 0;
+            for (int pass = 0; pass < HOLE_FILL_PASSES && System.nanoTime() < deadline; pass++) {
+                filled += fillHoles(view);
+            }
+            buildLevels(view);
+            view.mValid = true;
+
+            synchronized (this) {
+                mBack = mFront;
+                mFront = view;
+                mVersion++;
+                mLastBuildNanos = System.nanoTime() - start;
+                mLastSkippedTiles = skipped.get();
+                mLastFilledPixels = filled;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Projects points {@code [from, to)} into pixels, or -1 where they miss the image.
+     */
+    private void project(View view, float[] points, int from, int to) {
+        float[] r = view.mRotation;
+        float px = view.mPosition[0];
+        float py = view.mPosition[1];
+        float pz = view.mPosition[2];
+        for (int i = from; i < to; i++) {
+            int o = i * 3;
+            float dx = points[o] - px;
+            float dy = points[o + 1] - py;
+            float dz = points[o + 2] - pz;
+            float depth = -(r[6] * dx + r[7] * dy + r[8] * dz);
+            mPointPixels[i] = -1;
+            if (depth < NEAR) {
+                continue;
+            }
+            float u = view.mCx + view.mFx * (r[0] * dx + r[1] * dy + r[2] * dz) / depth;
+            float v = view.mCy - view.mFy * (r[3] * dx + r[4] * dy + r[5] * dz) / depth;
+            // Written as a negation so NaN misses too.
+            if (!(u >= 0 && v >= 0 && u < mWidth && v < mHeight)) {
+                continue;
+            }
+            mPointPixels[i] = (int) v * mWidth + (int) u;
+            mPointDepths[i] = depth;
+        }
+    }
+
+    /**
+     * Rasterises tiles {@code [from, to)}, each from its own bin of points. Tiles started after
+     * the deadline are left unknown.
+     */
+    private void rasterise(float[] depth, long deadline, AtomicInteger skipped, int from, int to) {
+        for (int tile = from; tile < to; tile++) {
+            int left = (tile % mTilesX) * TILE_SIZE;
+            int top = (tile / mTilesX) * TILE_SIZE;
+            int right = Math.min(left + TILE_SIZE, mWidth);
+            int bottom = Math.min(top + TILE_SIZE, mHeight);
+            for (int y = top; y < bottom; y++) {
+                Arrays.fill(depth, y * mWidth + left, y * mWidth + right, UNKNOWN);
+            }
+            if (System.nanoTime() > deadline) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            for (int b = mTileStarts[tile]; b < mTileStarts[tile + 1]; b++) {
+                int point = mBinnedPoints[b];
+                int pixel = mPointPixels[point];
+                if (mPointDepths[point] < depth[pixel]) {
+                    depth[pixel] = mPointDepths[point];
+                }
+            }
+        }
+    }
+
+    /**
+     * Counting sort of the projected points by tile, into {@link #mBinnedPoints}.
+     */
+    private void binByTile(int numPoints) {
+        int tiles = mTilesX * mTilesY;
+        Arrays.fill(mTileStarts, 0);
+        for (int i = 0; i < numPoints; i++) {
+            int pixel = mPointPixels[i];
+            if (pixel >= 0) {
+                mTileStarts[tileOf(pixel) + 1]++;
+            }
+        }
+        for (int tile = 0; tile < tiles; tile++) {
+            mTileStarts[tile + 1] += mTileStarts[tile];
+        }
+        System.arraycopy(mTileStarts, 0, mTileFill, 0, tiles);
+        for (int i = 0; i < numPoints; i++) {
+            int pixel = mPointPixels[i];
+            if (pixel >= 0) {
+                mBinnedPoints[mTileFill[tileOf(pixel)]++] = i;
+            }
+        }
+    }
+
+    private int tileOf(int pixel) {
+        return (pixel / mWidth / TILE_SIZE) * mTilesX + (pixel % mWidth) / TILE_SIZE;
+    }
+
+    /**
+     * Fills unknown pixels that have enough known neighbours with the farthest of them, which
+     * never hides more than the neighbours do.
+     *
+     * @return the number of pixels filled.
+     */
+    private int fillHoles(View view) {
+        float[] depth = view.mLevels[0];
+        System.arraycopy(depth, 0, mFillScratch, 0, depth.length);
+        if (mPool == null) {
+            return fill(mFillScratch, depth, 1, mHeight - 1);
+        }
+        AtomicInteger filled = new AtomicInteger();
+        mPool.invoke(new FillTask(mFillScratch, depth, filled, 1, mHeight - 1));
+        return filled.get();
+    }
+
+    /**
+     * Fills holes in rows {@code [from, to)} of {@code depth}, reading {@code source}, the image
+     * before the pass.
+     *
+     * @return the number of pixels filled.
+     */
+    private int fill(float[] source, float[] depth, int from, int to) {
+        int filled = 0;
+        for (int y = from; y < to; y++) {
+            for (int x = 1; x < mWidth - 1; x++) {
+                int p = y * mWidth + x;
+                if (source[p] != UNKNOWN) {
+                    continue;
+                }
+                int known = 0;
+                float farthest = 0;
+                for (int j = -1; j <= 1; j++) {
+                    for (int i = -1; i <= 1; i++) {
+                        float d = source[p + j * mWidth + i];
+                        if (d != UNKNOWN) {
+                            known++;
+                            farthest = Math.max(farthest, d);
+                        }
+                    }
+                }
+                if (known >= HOLE_FILL_NEIGHBOURS) {
+                    depth[p] = farthest;
+                    filled++;
+                }
+            }
+        }
+        return filled;
+    }
+
+    private static void buildLevels(View view) {
+        for (int level = 1; level < view.mLevels.length; level++) {
+            float[] below = view.mLevels[level - 1];
+            int belowWidth = view.mLevelWidths[level - 1];
+            int belowHeight = view.mLevelHeights[level - 1];
+            float[] out = view.mLevels[level];
+            int width = view.mLevelWidths[level];
+            int height = view.mLevelHeights[level];
+            for (int y = 0; y < height; y++) {
+                int y0 = 2 * y;
+                int y1 = Math.min(y0 + 1, belowHeight - 1);
+                for (int x = 0; x < width; x++) {
+                    int x0 = 2 * x;
+                    int x1 = Math.min(x0 + 1, belowWidth - 1);
+                    out[y * width + x] = Math.max(
+                            Math.max(below[y0 * belowWidth + x0], below[y0 * belowWidth + x1]),
+                            Math.max(below[y1 * belowWidth + x0], below[y1 * belowWidth + x1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests axis aligned boxes against the published image.
+     *
+     * @param boxes   per box its minimum then maximum corner, in the start of service frame.
+     * @param visible receives false for boxes entirely behind real surfaces, true otherwise,
+     *                including boxes the image doesn't cover.
+     * @return the number of boxes hidden.
+     */
+    public synchronized int queryVisible(float[] boxes, int count, boolean[] visible) {
+        View view = mFront;
+        int hidden = 0;
+        for (int i = 0; i < count; i++) {
+            visible[i] = !view.mValid || isVisible(view, boxes, i * FLOATS_PER_BOX);
+            if (!visible[i]) {
+                hidden++;
+            }
+        }
+        return hidden;
+    }
+
+    private boolean isVisible(View view, float[] boxes, int o) {
+        float[] r = view.mRotation;
+        float nearest = Float.MAX_VALUE;
+        float minU = Float.MAX_VALUE;
+        float maxU = -Float.MAX_VALUE;
+        float minV = Float.MAX_VALUE;
+        float maxV = -Float.MAX_VALUE;
+        for (int corner = 0; corner < 8; corner++) {
+            float dx = boxes[o + ((corner & 1) == 0 ? 0 : 3)] - view.mPosition[0];
+            float dy = boxes[o + 1 + ((corner & 2) == 0 ? 0 : 3)] - view.mPosition[1];
+            float dz = boxes[o + 2 + ((corner & 4) == 0 ? 0 : 3)] - view.mPosition[2];
+            float cx = r[0] * dx + r[1] * dy + r[2] * dz;
+            float cy = r[3] * dx + r[4] * dy + r[5] * dz;
+            float depth = -(r[6] * dx + r[7] * dy + r[8] * dz);
+            if (depth < NEAR) {
+                // Reaches behind the camera, so can't be bounded on screen.
+                return true;
+            }
+            float u = view.mCx + view.mFx * cx / depth;
+            float v = view.mCy - view.mFy * cy / depth;
+            nearest = Math.min(nearest, depth);
+            minU = Math.min(minU, u);
+            maxU = Math.max(maxU, u);
+            minV = Math.min(minV, v);
+            maxV = Math.max(maxV, v);
+        }
+        // Anything off the image isn't known to be hidden.
+        if (minU < 0 || minV < 0 || maxU >= mWidth || maxV >= mHeight) {
+            return true;
+        }
+        int left = (int) minU;
+        int right = (int) maxU;
+        int top = (int) minV;
+        int bottom = (int) maxV;
+        // The level where the box covers at most two by two pixels.
+        int level = 0;
+        while (level < view.mLevels.length - 1 && ((right >> level) - (left >> level) > 1
+                || (bottom >> level) - (top >> level) > 1)) {
+            level++;
+        }
+        float[] depths = view.mLevels[level];
+        int width = view.mLevelWidths[level];
+        float limit = nearest - DEPTH_MARGIN;
+        for (int y = top >> level; y <= bottom >> level; y++) {
+            for (int x = left >> level; x <= right >> level; x++) {
+                if (depths[y * width + x] >= limit) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies out the published depth image, {@link Float#POSITIVE_INFINITY} where unknown.
+     *
+     * @return false if nothing has been rasterised yet.
+     */
+    public synchronized boolean getDepth(float[] out) {
+        if (!mFront.mValid) {
+            return false;
+        }
+        System.arraycopy(mFront.mLevels[0], 0, out, 0, mWidth * mHeight);
+        return true;
+    }
+
+    /**
+     * @return how many images have been published, to tell when queries need running again.
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    public synchronized long getLastBuildNanos() {
+        return mLastBuildNanos;
+    }
+
+    /**
+     * @return tiles left unknown in the last image because the budget ran out.
+     */
+    public synchronized int getLastSkippedTiles() {
+        return mLastSkippedTiles;
+    }
+
+    public synchronized int getLastFilledPixels() {
+        return mLastFilledPixels;
+    }
+
+    private class ProjectTask extends RecursiveAction {
+        private final View mView;
+        private final float[] mPoints;
+        private final int mFrom;
+        private final int mTo;
+
+        ProjectTask(View view, float[] points, int from, int to) {
+            mView = view;
+            mPoints = points;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= SEQUENTIAL_THRESHOLD) {
+                project(mView, mPoints, mFrom, mTo);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new ProjectTask(mView, mPoints, mFrom, middle),
+                    new ProjectTask(mView, mPoints, middle, mTo));
+        }
+    }
+
+    private class RasteriseTask extends RecursiveAction {
+        private final float[] mDepth;
+        private final long mDeadline;
+        private final AtomicInteger mSkipped;
+        private final int mFrom;
+        private final int mTo;
+
+        RasteriseTask(float[] depth, long deadline, AtomicInteger skipped, int from, int to) {
+            mDepth = depth;
+            mDeadline = deadline;
+            mSkipped = skipped;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ((mTo - mFrom) * TILE_SIZE * TILE_SIZE <= SEQUENTIAL_THRESHOLD || mTo - mFrom < 2) {
+                rasterise(mDepth, mDeadline, mSkipped, mFrom, mTo);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new RasteriseTask(mDepth, mDeadline, mSkipped, mFrom, middle),
+                    new RasteriseTask(mDepth, mDeadline, mSkipped, middle, mTo));
+        }
+    }
+
+    private class FillTask extends RecursiveAction {
+        private final float[] mSource;
+        private final float[] mDepth;
+        private final AtomicInteger mFilled;
+        private final int mFrom;
+        private final int mTo;
+
+        FillTask(float[] source, float[] depth, AtomicInteger filled, int from, int to) {
+            mSource = source;
+            mDepth = depth;
+            mFilled = filled;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ((mTo - mFrom) * mWidth <= SEQUENTIAL_THRESHOLD || mTo - mFrom < 2) {
+                mFilled.addAndGet(fill(mSource, mDepth, mFrom, mTo));
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new FillTask(mSource, mDepth, mFilled, mFrom, middle),
+                    new FillTask(mSource, mDepth, mFilled, middle, mTo));
+        }
+    }
+}
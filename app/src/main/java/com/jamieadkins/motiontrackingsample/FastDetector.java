@@ -0,0 +1,238 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * FAST-9 corner detection with grid bucketing.
+ * <p/>
+ * A pixel is a corner when 9 contiguous pixels of the 16 on the circle of radius 3 around it are
+ * all brighter, or all darker, than it by more than the threshold. Four pixels of the circle are
+ * tested first, which turns away nearly every pixel of a real image after two or three reads.
+ * <p/>
+ * The image is split into a grid of square cells and only the strongest corner of each cell is
+ * kept, which spreads features evenly over the image and stands in for non-maximum suppression.
+ * Cells that already hold a feature can be skipped altogether. Rows of cells are split across
+ * cores; each cell is only ever written by one task.
+ */
+public class FastDetector {
+    /** Default intensity difference for a circle pixel to count as brighter or darker. */
+    public static final int DEFAULT_THRESHOLD = 20;
+
+    /** Below this many pixels a parallel task does its work inline. */
+    private static final int SEQUENTIAL_THRESHOLD = 32768;
+    /** The circle's radius; corners closer than this to the edge aren't looked for. */
+    private static final int BORDER = 3;
+    private static final int ARC_LENGTH = 9;
+
+    // The circle, clockwise from the top.
+    private static final int[] CIRCLE_X = {0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1};
+    private static final int[] CIRCLE_Y = {-3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3};
+
+    private final ForkJoinPool mPool;
+    private final int mThreshold;
+    private final int mCellSize;
+
+    // Per cell best score and pixel index, reused between frames. Score 0 means no corner.
+    private int[] mCellScores = new int[0];
+    private int[] mCellPixels = new int[0];
+    // Offsets of the circle's pixels from its centre, for images of mOffsetsWidth.
+    private final int[] mOffsets = new int[16];
+    private int mOffsetsWidth = -1;
+
+    /**
+     * @param cellSize side of a grid cell, in pixels.
+     * @param pool     pool to split the image across, or null to run on the calling thread.
+     */
+    public FastDetector(int threshold, int cellSize, ForkJoinPool pool) {
+        mThreshold = threshold;
+        mCellSize = cellSize;
+        mPool = pool;
+    }
+
+    public int getCellSize() {
+        return mCellSize;
+    }
+
+    public int getGridColumns(int width) {
+        return (width + mCellSize - 1) / mCellSize;
+    }
+
+    public int getGridRows(int height) {
+        return (height + mCellSize - 1) / mCellSize;
+    }
+
+    /**
+     * Finds the strongest corner in every cell of the grid.
+     *
+     * @param occupied cells to skip, by {@code row * columns + column}, or null to search them all.
+     * @param outX     receives corner x coordinates, room for a corner per cell.
+     * @param outY     receives corner y coordinates.
+     * @param outScore receives corner strengths, higher is stronger.
+     * @return the number of corners found, in cell order.
+     */
+    public int detect(byte[] image, int width, int height, boolean[] occupied, float[] outX,
+                      float[] outY, int[] outScore) {
+        int columns = getGridColumns(width);
+        int rows = getGridRows(height);
+        int cells = columns * rows;
+        if (mCellScores.length < cells) {
+            mCellScores = new int[cells];
+            mCellPixels = new int[cells];
+        }
+        Arrays.fill(mCellScores, 0, cells, 0);
+        if (mOffsetsWidth != width) {
+            for (int i = 0; i < 16; i++) {
+                mOffsets[i] = CIRCLE_Y[i] * width + CIRCLE_X[i];
+            }
+            mOffsetsWidth = width;
+        }
+
+        DetectTask task = new DetectTask(image, width, height, columns, occupied, 0, rows);
+        if (mPool == null) {
+            task.search();
+        } else {
+            mPool.invoke(task);
+        }
+
+        int count = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            if (mCellScores[cell] > 0) {
+                outX[count] = mCellPixels[cell] % width;
+                outY[count] = mCellPixels[cell] / width;
+                outScore[count] = mCellScores[cell];
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return how strongly the pixel at {@code index} is a corner, or 0 if it isn't one.
+     */
+    static int score(byte[] image, int index, int[] offsets, int threshold) {
+        int center = image[index] & 0xff;
+        int high = center + threshold;
+        int low = center - threshold;
+
+        // At least two neighbouring compass points are in any arc of 9.
+        int north = image[index + offsets[0]] & 0xff;
+        int east = image[index + offsets[4]] & 0xff;
+        int south = image[index + offsets[8]] & 0xff;
+        int west = image[index + offsets[12]] & 0xff;
+        int brighter = (north > high ? 1 : 0) | (east > high ? 2 : 0) | (south > high ? 4 : 0)
+                | (west > high ? 8 : 0);
+        int darker = (north < low ? 1 : 0) | (east < low ? 2 : 0) | (south < low ? 4 : 0)
+                | (west < low ? 8 : 0);
+        if ((brighter & rotate(brighter)) == 0 && (darker & rotate(darker)) == 0) {
+            return 0;
+        }
+
+        int brighterMask = 0;
+        int darkerMask = 0;
+        int brighterSum = 0;
+        int darkerSum = 0;
+        for (int i = 0; i < 16; i++) {
+            int value = image[index + offsets[i]] & 0xff;
+            if (value > high) {
+                brighterMask |= 1 << i;
+                brighterSum += value - high;
+            } else if (value < low) {
+                darkerMask |= 1 << i;
+                darkerSum += low - value;
+            }
+        }
+        // Plus one so a corner only just past the threshold still scores.
+        int score = 0;
+        if (hasArc(brighterMask)) {
+            score = brighterSum + 1;
+        }
+        if (hasArc(darkerMask)) {
+            score = Math.max(score, darkerSum + 1);
+        }
+        return score;
+    }
+
+    private static int rotate(int compass) {
+        return ((compass >> 1) | (compass << 3)) & 0xf;
+    }
+
+    /**
+     * @return true if the circular 16 bit {@code mask} has a run of {@link #ARC_LENGTH} set bits.
+     */
+    static boolean hasArc(int mask) {
+        long doubled = mask | ((long) mask << 16);
+        // Bit i of runs ends up set where bits i to i + 8 all are.
+        long runs = doubled & (doubled >> 1);
+        runs &= runs >> 2;
+        runs &= runs >> 4;
+        runs &= doubled >> (ARC_LENGTH - 1);
+        return (runs & 0xffff) != 0;
+    }
+
+    /**
+     * Searches the cells in rows {@code [from, to)} of the grid.
+     */
+    private class DetectTask extends RecursiveAction {
+        private final byte[] mImage;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mColumns;
+        private final boolean[] mOccupied;
+        private final int mFrom;
+        private final int mTo;
+
+        DetectTask(byte[] image, int width, int height, int columns, boolean[] occupied, int from,
+                   int to) {
+            mImage = image;
+            mWidth = width;
+            mHeight = height;
+            mColumns = columns;
+            mOccupied = occupied;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ((mTo - mFrom) * mCellSize * mWidth <= SEQUENTIAL_THRESHOLD || mTo - mFrom < 2) {
+                search();
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new DetectTask(mImage, mWidth, mHeight, mColumns, mOccupied, mFrom, middle),
+                    new DetectTask(mImage, mWidth, mHeight, mColumns, mOccupied, middle, mTo));
+        }
+
+        private void search() {
+            int[] offsets = mOffsets;
+            for (int row = mFrom; row < mTo; row++) {
+                int top = Math.max(BORDER, row * mCellSize);
+                int bottom = Math.min(mHeight - BORDER, (row + 1) * mCellSize);
+                for (int column = 0; column < mColumns; column++) {
+                    int cell = row * mColumns + column;
+                    if (mOccupied != null && mOccupied[cell]) {
+                        continue;
+                    }
+                    int left = Math.max(BORDER, column * mCellSize);
+                    int right = Math.min(mWidth - BORDER, (column + 1) * mCellSize);
+                    int best = 0;
+                    int bestPixel = 0;
+                    for (int y = top; y < bottom; y++) {
+                        int index = y * mWidth + left;
+                        for (int x = left; x < right; x++, index++) {
+                            int score = score(mImage, index, offsets, mThreshold);
+                            if (score > best) {
+                                best = score;
+                                bestPixel = index;
+                            }
+                        }
+                    }
+                    mCellScores[cell] = best;
+                    mCellPixels[cell] = bestPixel;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tracks corner features from one low resolution luminance frame to the next.
+ * <p/>
+ * Every frame is built into an {@link ImagePyramid}. The features of the last frame are followed
+ * into it with {@link OpticalFlow}, those that were lost are dropped, and if there is room the
+ * empty cells of the {@link FastDetector} grid are searched for new corners. Each feature keeps
+ * its id for as long as it is tracked, so the result is a set of tracks over time.
+ * <p/>
+ * Features are held in parallel primitive arrays, the two pyramids are swapped between frames
+ * and the detector and optical flow reuse their scratch, so tracking a frame only allocates the
+ * few small fork/join tasks that split the work.
+ */
+public class FeatureTracker {
+    /** Default upper bound on the features tracked at once. */
+    public static final int DEFAULT_MAX_FEATURES = 200;
+
+    /** Smallest side of the coarsest pyramid level. */
+    private static final int MIN_LEVEL_SIZE = 32;
+    private static final int MAX_LEVELS = 4;
+    private static final int MIN_CELL_SIZE = 16;
+    /** Features closer than this, in pixels, are following the same corner. */
+    private static final float MIN_DISTANCE = 2f;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMaxFeatures;
+    private final FastDetector mDetector;
+    private final OpticalFlow mFlow;
+    private ImagePyramid mPrevious;
+    private ImagePyramid mCurrent;
+    private boolean mHasPrevious;
+
+    // The features, densely packed.
+    private final int[] mIds;
+    private final float[] mX;
+    private final float[] mY;
+    private final int[] mAges;
+    private int mCount;
+    private int mNextId = 1;
+
+    // Scratch, reused between frames.
+    private final boolean[] mStatus;
+    private final boolean[] mOccupied;
+    // Index of the last feature kept in each occupied cell.
+    private final int[] mOccupant;
+    private final float[] mCandidateX;
+    private final float[] mCandidateY;
+    private final int[] mCandidateScores;
+    private final long[] mCandidateOrder;
+
+    private long mTimestamp;
+    private long mFrameCount;
+    private int mLastTrackedCount;
+    private int mLastLostCount;
+    private int mLastDetectedCount;
+
+    public FeatureTracker(int width, int height) {
+        this(width, height, DEFAULT_MAX_FEATURES, WorkerPool.get());
+    }
+
+    /**
+     * @param pool pool to split the work across, or null to track on the calling thread.
+     */
+    public FeatureTracker(int width, int height, int maxFeatures, ForkJoinPool pool) {
+        mWidth = width;
+        mHeight = height;
+        mMaxFeatures = maxFeatures;
+        int levels = ImagePyramid.getLevelCount(width, height, MIN_LEVEL_SIZE, MAX_LEVELS);
+        mPrevious = new ImagePyramid(width, height, levels, pool);
+        mCurrent = new ImagePyramid(width, height, levels, pool);
+        // About one cell per feature.
+        int cellSize = Math.max(MIN_CELL_SIZE, (int) Math.sqrt((double) width * height
+                / maxFeatures));
+        mDetector = new FastDetector(FastDetector.DEFAULT_THRESHOLD, cellSize, pool);
+        mFlow = new OpticalFlow(pool);
+
+        mIds = new int[maxFeatures];
+        mX = new float[maxFeatures];
+        mY = new float[maxFeatures];
+        mAges = new int[maxFeatures];
+        mStatus = new boolean[maxFeatures];
+        int cells = mDetector.getGridColumns(width) * mDetector.getGridRows(height);
+        mOccupied = new boolean[cells];
+        mOccupant = new int[cells];
+        mCandidateX = new float[cells];
+        mCandidateY = new float[cells];
+        mCandidateScores = new int[cells];
+        mCandidateOrder = new long[cells];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Tracks the features into a new frame and tops them up with new corners.
+     *
+     * @param luminance the frame's luminance plane, {@link #getWidth()} by {@link #getHeight()}.
+     * @param offset    index of the first pixel in {@code luminance}.
+     * @param rowStride distance between rows in {@code luminance}.
+     * @return the number of features in the frame.
+     */
+    public synchronized int track(byte[] luminance, int offset, int rowStride, long timestamp) {
+        ImagePyramid swap = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = swap;
+        mCurrent.build(luminance, offset, rowStride);
+
+        int columns = mDetector.getGridColumns(mWidth);
+        int cellSize = mDetector.getCellSize();
+        Arrays.fill(mOccupied, false);
+
+        int previousCount = mCount;
+        if (mHasPrevious && mCount > 0) {
+            mFlow.track(mPrevious, mCurrent, mX, mY, mCount, mX, mY, mStatus);
+        } else {
+            Arrays.fill(mStatus, 0, mCount, false);
+        }
+        // Keep the tracked features, oldest first. Where two have run onto the same corner only
+        // the older is kept.
+        int kept = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (!mStatus[i]) {
+                continue;
+            }
+            int cell = ((int) mY[i] / cellSize) * columns + (int) mX[i] / cellSize;
+            if (mOccupied[cell]) {
+                int other = mOccupant[cell];
+                float dx = mX[i] - mX[other];
+                float dy = mY[i] - mY[other];
+                if (dx * dx + dy * dy < MIN_DISTANCE * MIN_DISTANCE) {
+                    continue;
+                }
+            }
+            mOccupied[cell] = true;
+            mOccupant[cell] = kept;
+            mIds[kept] = mIds[i];
+            mX[kept] = mX[i];
+            mY[kept] = mY[i];
+            mAges[kept] = mAges[i] + 1;
+            kept++;
+        }
+        mCount = kept;
+        mLastTrackedCount = kept;
+        mLastLostCount = previousCount - kept;
+
+        // Fill the free slots with the strongest corners from the empty cells.
+        int detected = 0;
+        if (mCount < mMaxFeatures) {
+            int candidates = mDetector.detect(mCurrent.getLevel(0), mWidth, mHeight, mOccupied,
+                    mCandidateX, mCandidateY, mCandidateScores);
+            for (int i = 0; i < candidates; i++) {
+                // Sorted ascending, so the strongest comes last.
+                mCandidateOrder[i] = ((long) mCandidateScores[i] << 32) | i;
+            }
+            Arrays.sort(mCandidateOrder, 0, candidates);
+            for (int i = candidates - 1; i >= 0 && mCount < mMaxFeatures; i--) {
+                int candidate = (int) mCandidateOrder[i];
+                mIds[mCount] = mNextId++;
+                mX[mCount] = mCandidateX[candidate];
+                mY[mCount] = mCandidateY[candidate];
+                mAges[mCount] = 0;
+                mCount++;
+                detected++;
+            }
+        }
+        mLastDetectedCount = detected;
+
+        mHasPrevious = true;
+        mTimestamp = timestamp;
+        mFrameCount++;
+        return mCount;
+    }
+
+    /**
+     * Forgets every feature, e.g. after the stream was interrupted. The next frame starts afresh.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mHasPrevious = false;
+    }
+
+    /**
+     * Copies the current features out.
+     *
+     * @param outIds receives each feature's id, the same for as long as it is tracked.
+     * @param outX   receives x coordinates, in pixels of the frame.
+     * @param outY   receives y coordinates.
+     * @param outAge receives how many frames each feature has been tracked for, or null.
+     * @return the number of features copied.
+     */
+    public synchronized int getFeatures(int[] outIds, float[] outX, float[] outY, int[] outAge) {
+        int count = Math.min(mCount, outIds.length);
+        System.arraycopy(mIds, 0, outIds, 0, count);
+        System.arraycopy(mX, 0, outX, 0, count);
+        System.arraycopy(mY, 0, outY, 0, count);
+        if (outAge != null) {
+            System.arraycopy(mAges, 0, outAge, 0, count);
+        }
+        return count;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public int getMaxFeatures() {
+        return mMaxFeatures;
+    }
+
+    /**
+     * @return timestamp of the last frame tracked.
+     */
+    public synchronized long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return features followed from the frame before into the last frame.
+     */
+    public synchronized int getLastTrackedCount() {
+        return mLastTrackedCount;
+    }
+
+    /**
+     * @return features of the frame before that were lost in the last frame.
+     */
+    public synchronized int getLastLostCount() {
+        return mLastLostCount;
+    }
+
+    /**
+     * @return new features found in the last frame.
+     */
+    public synchronized int getLastDetectedCount() {
+        return mLastDetectedCount;
+    }
+}
@@ -0,0 +1,290 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.Arrays;
+
+/**
+ * Paces rendering against display vsync so the pose and camera texture are sampled as late as
+ * possible before the frame has to be ready.
+ * <p/>
+ * Vsync timestamps come in through {@link #onVsync(long)}, normally from a
+ * {@code Choreographer.FrameCallback}. At the start of a frame the render thread calls
+ * {@link #awaitLatchPoint()}, which picks the next vsync the frame can still make given recent
+ * render times and sleeps until the latest point that leaves enough time to render for it. The
+ * render thread then samples the pose, latches the texture, renders and finally calls
+ * {@link #onFrameRendered()}.
+ * <p/>
+ * Render times are measured on the CPU up to the end of the scene render, which doesn't include
+ * GPU work still in flight or the buffer swap; {@code safetyMarginNanos} covers those.
+ */
+public class FramePacer {
+    /** Default allowance for GPU work and composition after the CPU side of a frame is done. */
+    public static final long DEFAULT_SAFETY_MARGIN_NANOS = 2000000L;
+
+    /** Assumed vsync period until two vsyncs have been seen. */
+    private static final long DEFAULT_VSYNC_PERIOD_NANOS = 16666667L;
+
+    /** Number of recent frames the render time estimate is taken from. */
+    private static final int RENDER_TIME_WINDOW = 30;
+
+    /** The render time estimate is this percentile of the recent window. */
+    private static final int RENDER_TIME_PERCENTILE = 90;
+
+    private static final long HISTOGRAM_BUCKET_NANOS = 500000L;
+    private static final int HISTOGRAM_BUCKETS = 100;
+
+    /**
+     * Source of time, so the scheduling can be driven by a simulated clock.
+     */
+    public interface Clock {
+        long nanoTime();
+
+        void sleepUntil(long nanos) throws InterruptedException;
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepUntil(long nanos) throws InterruptedException {
+            long remaining = nanos - System.nanoTime();
+            if (remaining > 0) {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            }
+        }
+    };
+
+    private final Clock mClock;
+    private final long mSafetyMarginNanos;
+
+    // Written by the vsync thread, read by the render thread.
+    private long mLastVsyncNanos = -1;
+    private long mVsyncPeriodNanos = DEFAULT_VSYNC_PERIOD_NANOS;
+    private int mVsyncCount;
+
+    // Render thread state.
+    private final long[] mRenderTimes = new long[RENDER_TIME_WINDOW];
+    private final long[] mSortedRenderTimes = new long[RENDER_TIME_WINDOW];
+    private int mRenderTimeCount;
+    private int mRenderTimeNext;
+    private long mRenderTimeEstimateNanos;
+    private long mLatchNanos = -1;
+    private long mDeadlineNanos = -1;
+    private long mLastDeadlineNanos = -1;
+    private volatile int mFrameInterval = 1;
+    private long mLastFrameEndNanos = -1;
+    private long mSleptNanos;
+    private long mLastFrameBusyNanos;
+    private volatile boolean mRenderStateResetPending;
+
+    private volatile long mFrameCount;
+    private volatile long mMissedDeadlineCount;
+
+    private final LatencyHistogram mFrameIntervalHistogram =
+            new LatencyHistogram(HISTOGRAM_BUCKET_NANOS, HISTOGRAM_BUCKETS);
+    private final LatencyHistogram mRenderTimeHistogram =
+            new LatencyHistogram(HISTOGRAM_BUCKET_NANOS, HISTOGRAM_BUCKETS);
+    private final LatencyHistogram mPoseToDeadlineHistogram =
+            new LatencyHistogram(HISTOGRAM_BUCKET_NANOS, HISTOGRAM_BUCKETS);
+
+    public FramePacer() {
+        this(SYSTEM_CLOCK, DEFAULT_SAFETY_MARGIN_NANOS);
+    }
+
+    public FramePacer(Clock clock, long safetyMarginNanos) {
+        mClock = clock;
+        mSafetyMarginNanos = safetyMarginNanos;
+    }
+
+    /**
+     * Records a vsync. Skipped vsyncs are fine, the period estimate rounds over them.
+     */
+    public synchronized void onVsync(long frameTimeNanos) {
+        if (mLastVsyncNanos >= 0 && frameTimeNanos > mLastVsyncNanos) {
+            long delta = frameTimeNanos - mLastVsyncNanos;
+            long periods = Math.max(1, Math.round((double) delta / mVsyncPeriodNanos));
+            long measured = delta / periods;
+            // Ignore wild measurements, e.g. after the app was paused.
+            if (periods <= 4) {
+                mVsyncPeriodNanos = mVsyncCount < 2
+                        ? measured : mVsyncPeriodNanos + (measured - mVsyncPeriodNanos) / 8;
+            }
+        }
+        mLastVsyncNanos = frameTimeNanos;
+        mVsyncCount++;
+    }
+
+    /**
+     * Blocks the render thread until the latest safe point to sample input for the next frame.
+     * Returns straight away if no vsync has been seen yet.
+     *
+     * @return the vsync the frame is aimed at, or -1 if unknown.
+     */
+    public long awaitLatchPoint() throws InterruptedException {
+        if (mRenderStateResetPending) {
+            mRenderStateResetPending = false;
+            mRenderTimeCount = 0;
+            mRenderTimeNext = 0;
+            mRenderTimeEstimateNanos = 0;
+            mLastFrameEndNanos = -1;
+            mLastDeadlineNanos = -1;
+        }
+        long lastVsync;
+        long period;
+        synchronized (this) {
+            lastVsync = mLastVsyncNanos;
+            period = mVsyncPeriodNanos;
+        }
+        long now = mClock.nanoTime();
+        if (lastVsync < 0) {
+            mDeadlineNanos = -1;
+            mLatchNanos = now;
+            return -1;
+        }
+
+        long leadTime = mRenderTimeEstimateNanos + mSafetyMarginNanos;
+        // First vsync we can still render for if we started right now.
+        long earliest = now + leadTime;
+        long periods = earliest <= lastVsync ? 1
+                : (earliest - lastVsync + period - 1) / period;
+        long deadline = lastVsync + Math.max(1, periods) * period;
+        int interval = mFrameInterval;
+        if (interval > 1 && mLastDeadlineNanos >= 0) {
+            // Skip vsyncs until the interval since the last frame's has passed.
+            while (deadline < mLastDeadlineNanos + interval * period - period / 2) {
+                deadline += period;
+            }
+        }
+        long latch = deadline - leadTime;
+        // Never sleep more than the interval in case vsync has stopped arriving, and don't delay
+        // at all until a frame has been timed since there is nothing to base the delay on.
+        latch = mRenderTimeCount == 0 ? now : Math.min(latch, now + interval * period);
+        if (latch > now) {
+            mClock.sleepUntil(latch);
+        }
+        mDeadlineNanos = deadline;
+        mLastDeadlineNanos = deadline;
+        mLatchNanos = mClock.nanoTime();
+        mSleptNanos = mLatchNanos - now;
+        return deadline;
+    }
+
+    /**
+     * Records how old the pose sampled at the latch point will be when the frame is displayed.
+     *
+     * @param poseArrivalNanos when the pose arrived, on the pacer's clock.
+     */
+    public void onPoseSampled(long poseArrivalNanos) {
+        if (mDeadlineNanos >= 0 && poseArrivalNanos > 0) {
+            mPoseToDeadlineHistogram.record(mDeadlineNanos - poseArrivalNanos);
+        }
+    }
+
+    /**
+     * Called by the render thread once the frame has been rendered.
+     */
+    public void onFrameRendered() {
+        long now = mClock.nanoTime();
+        if (mLatchNanos >= 0) {
+            long renderTime = now - mLatchNanos;
+            mRenderTimeHistogram.record(renderTime);
+            addRenderTime(renderTime);
+        }
+        if (mDeadlineNanos >= 0 && now + mSafetyMarginNanos > mDeadlineNanos) {
+            mMissedDeadlineCount++;
+        }
+        if (mLastFrameEndNanos >= 0) {
+            mFrameIntervalHistogram.record(now - mLastFrameEndNanos);
+            mLastFrameBusyNanos = now - mLastFrameEndNanos - mSleptNanos;
+        }
+        mLastFrameEndNanos = now;
+        mSleptNanos = 0;
+        mLatchNanos = -1;
+        mFrameCount++;
+    }
+
+    /**
+     * Forgets frame timings, e.g. when rendering resumes after a pause. Can be called from any
+     * thread; the render thread picks it up at its next latch point.
+     */
+    public synchronized void reset() {
+        mLastVsyncNanos = -1;
+        mVsyncCount = 0;
+        mVsyncPeriodNanos = DEFAULT_VSYNC_PERIOD_NANOS;
+        mRenderStateResetPending = true;
+    }
+
+    /**
+     * Renders only every {@code vsyncs} vsyncs, e.g. 2 for 30fps on a 60Hz display, to save
+     * power. Can be called from any thread.
+     */
+    public void setFrameInterval(int vsyncs) {
+        mFrameInterval = Math.max(1, vsyncs);
+    }
+
+    public int getFrameInterval() {
+        return mFrameInterval;
+    }
+
+    public synchronized long getVsyncPeriodNanos() {
+        return mVsyncPeriodNanos;
+    }
+
+    public long getRenderTimeEstimateNanos() {
+        return mRenderTimeEstimateNanos;
+    }
+
+    /**
+     * @return the time between the end of the previous frame and the end of the last one, less
+     * the time spent waiting for the latch point. Unlike the render time this includes waiting
+     * for the buffer swap, so it also goes up when the GPU is the bottleneck.
+     */
+    public long getLastFrameBusyNanos() {
+        return mLastFrameBusyNanos;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return frames that finished too late for the vsync they were aimed at.
+     */
+    public long getMissedDeadlineCount() {
+        return mMissedDeadlineCount;
+    }
+
+    /**
+     * @return the time between the ends of consecutive frames.
+     */
+    public LatencyHistogram getFrameIntervalHistogram() {
+        return mFrameIntervalHistogram;
+    }
+
+    /**
+     * @return the time from latch to the end of the frame.
+     */
+    public LatencyHistogram getRenderTimeHistogram() {
+        return mRenderTimeHistogram;
+    }
+
+    /**
+     * @return the age of the sampled pose at the vsync the frame was aimed at.
+     */
+    public LatencyHistogram getPoseToDeadlineHistogram() {
+        return mPoseToDeadlineHistogram;
+    }
+
+    private void addRenderTime(long renderTime) {
+        mRenderTimes[mRenderTimeNext] = renderTime;
+        mRenderTimeNext = (mRenderTimeNext + 1) % RENDER_TIME_WINDOW;
+        mRenderTimeCount = Math.min(RENDER_TIME_WINDOW, mRenderTimeCount + 1);
+        System.arraycopy(mRenderTimes, 0, mSortedRenderTimes, 0, mRenderTimeCount);
+        Arrays.sort(mSortedRenderTimes, 0, mRenderTimeCount);
+        int index = (mRenderTimeCount - 1) * RENDER_TIME_PERCENTILE / 100;
+        // React to a slow frame straight away rather than waiting for it to reach the percentile.
+        mRenderTimeEstimateNanos = Math.max(mSortedRenderTimes[index], renderTime);
+    }
+}
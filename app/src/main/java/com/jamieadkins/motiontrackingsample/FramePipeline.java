@@ -0,0 +1,241 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * The per frame work that ties poses, camera frames and the renderer together: wait for the
+ * latch point, latch the camera frame, apply the newest pose, and once rendered feed the frame
+ * time back to the pacer and the resolution scale.
+ * <p/>
+ * Kept free of Android so the same sequence runs in the activity and, with a simulated clock
+ * and fake camera and renderer, in the headless pipeline benchmark.
+ * <p/>
+ * {@link #onNewPoseData(PoseData)} may be called from any thread; the rest from the render
+ * thread.
+ */
+public class FramePipeline {
+    private static final long HISTOGRAM_BUCKET_NANOS = 100000L;
+    private static final int HISTOGRAM_BUCKETS = 200;
+
+    /**
+     * Latches the newest camera image for the frame.
+     */
+    public interface CameraFrameSource {
+        /**
+         * @return the latched image's timestamp in nanoseconds, or a negative value if there
+         * wasn't one.
+         */
+        long latchCameraFrame();
+    }
+
+    /**
+     * What the pipeline drives on the renderer.
+     */
+    public interface Renderer {
+        void updateRenderCameraPose(PoseData pose);
+
+        void setVirtualLayerScale(float scale);
+    }
+
+    private final FramePacer.Clock mClock;
+    private final FramePacer mFramePacer;
+    private final ResolutionScaleController mResolutionScaleController;
+    private final Renderer mRenderer;
+    private final CameraFrameSource mCameraFrameSource;
+
+    // Newest pose, handed over from the pose thread.
+    private volatile PoseData mLatestPose;
+    private volatile long mLatestPoseArrivalNanos;
+
+    // Where the scene camera sits relative to the poses, if known.
+    private volatile TransformTree mTransformTree;
+    private int mBaseFrame;
+    private int mCameraFrame;
+    private PoseData mComposedSource;
+    private PoseData mComposedPose;
+    private final float[] mCameraTranslation = new float[3];
+    private final float[] mCameraRotation = new float[4];
+
+    // Render thread state for the current frame.
+    private long mCameraTimestampNanos = -1;
+    private PoseData mAppliedPose;
+
+    private final LatencyHistogram mPoseAgeHistogram =
+            new LatencyHistogram(HISTOGRAM_BUCKET_NANOS, HISTOGRAM_BUCKETS);
+    private final LatencyHistogram mCameraLatchHistogram =
+            new LatencyHistogram(HISTOGRAM_BUCKET_NANOS, HISTOGRAM_BUCKETS);
+    private final LatencyHistogram mPoseApplyHistogram =
+            new LatencyHistogram(HISTOGRAM_BUCKET_NANOS, HISTOGRAM_BUCKETS);
+    private final LatencyHistogram mAlignmentHistogram =
+            new LatencyHistogram(HISTOGRAM_BUCKET_NANOS, HISTOGRAM_BUCKETS);
+    private volatile long mPoseCount;
+    private long mCameraFrameCount;
+
+    public FramePipeline(FramePacer.Clock clock, FramePacer framePacer,
+                         ResolutionScaleController resolutionScaleController, Renderer renderer,
+                         CameraFrameSource cameraFrameSource) {
+        mClock = clock;
+        mFramePacer = framePacer;
+        mResolutionScaleController = resolutionScaleController;
+        mRenderer = renderer;
+        mCameraFrameSource = cameraFrameSource;
+    }
+
+    /**
+     * Renders from {@code cameraFrame} rather than straight from the poses, looked up in
+     * {@code baseFrame} at each pose's arrival time. Call before rendering starts, or with null
+     * to go back to the raw poses.
+     */
+    public void setTransformTree(TransformTree tree, int baseFrame, int cameraFrame) {
+        mBaseFrame = baseFrame;
+        mCameraFrame = cameraFrame;
+        mComposedSource = null;
+        mTransformTree = tree;
+    }
+
+    /**
+     * Takes a pose from the provider, to be applied at the next latch point.
+     */
+    public void onNewPoseData(PoseData pose) {
+        mLatestPoseArrivalNanos = mClock.nanoTime();
+        mLatestPose = pose;
+        mPoseCount++;
+    }
+
+    /**
+     * @return when the newest pose arrived, on the pipeline's clock.
+     */
+    public long getLatestPoseArrivalNanos() {
+        return mLatestPoseArrivalNanos;
+    }
+
+    /**
+     * Starts a frame, blocking until the latest safe point to sample input for it.
+     *
+     * @return the vsync the frame is aimed at, or -1 if unknown.
+     */
+    public long awaitLatchPoint() throws InterruptedException {
+        mCameraTimestampNanos = -1;
+        mAppliedPose = null;
+        return mFramePacer.awaitLatchPoint();
+    }
+
+    /**
+     * Latches the newest camera image into the frame.
+     *
+     * @return its timestamp, or a negative value if there was none.
+     */
+    public long latchCameraFrame() {
+        long start = mClock.nanoTime();
+        long timestamp = mCameraFrameSource.latchCameraFrame();
+        mCameraLatchHistogram.record(mClock.nanoTime() - start);
+        if (timestamp > 0) {
+            mCameraTimestampNanos = timestamp;
+            mCameraFrameCount++;
+        }
+        return timestamp;
+    }
+
+    /**
+     * Applies the newest pose to the scene camera.
+     *
+     * @return the pose applied, or null if there hasn't been one yet.
+     */
+    public PoseData applyLatestPose() {
+        PoseData pose = mLatestPose;
+        if (pose == null) {
+            return null;
+        }
+        long start = mClock.nanoTime();
+        long arrival = mLatestPoseArrivalNanos;
+        mFramePacer.onPoseSampled(arrival);
+        mPoseAgeHistogram.record(start - arrival);
+        Tracer.setCounter("poseAgeUs", (start - arrival) / 1000);
+        mRenderer.updateRenderCameraPose(toCameraPose(pose, arrival));
+        mPoseApplyHistogram.record(mClock.nanoTime() - start);
+        long poseTimestamp = (long) pose.getTimestamp();
+        if (mCameraTimestampNanos > 0 && poseTimestamp > 0) {
+            // Only meaningful when the camera and the pose share a clock.
+            mAlignmentHistogram.record(Math.abs(mCameraTimestampNanos - poseTimestamp));
+        }
+        mAppliedPose = pose;
+        return pose;
+    }
+
+    /**
+     * @return the scene camera's pose for a device pose, composed once per new pose since the
+     * renderer and anchors hold on to it.
+     */
+    private PoseData toCameraPose(PoseData pose, long arrivalNanos) {
+        TransformTree tree = mTransformTree;
+        if (tree == null) {
+            return pose;
+        }
+        if (pose != mComposedSource) {
+            mComposedSource = pose;
+            mComposedPose = pose;
+            if (tree.lookupTransform(mBaseFrame, mCameraFrame, arrivalNanos, mCameraTranslation,
+                    mCameraRotation)) {
+                mComposedPose = new PoseData(mCameraTranslation, mCameraRotation,
+                        (long) pose.getTimestamp());
+            }
+        }
+        return mComposedPose;
+    }
+
+    /**
+     * Finishes the frame once the scene has been rendered.
+     */
+    public void onFrameRendered() {
+        mFramePacer.onFrameRendered();
+        long busyNanos = mFramePacer.getLastFrameBusyNanos();
+        if (busyNanos > 0) {
+            mResolutionScaleController.setFrameBudgetNanos(
+                    mFramePacer.getVsyncPeriodNanos() * mFramePacer.getFrameInterval());
+            if (mResolutionScaleController.onFrameTime(busyNanos)) {
+                mRenderer.setVirtualLayerScale(mResolutionScaleController.getScale());
+            }
+        }
+    }
+
+    /**
+     * @return the pose applied to the current frame, or null.
+     */
+    public PoseData getAppliedPose() {
+        return mAppliedPose;
+    }
+
+    public long getPoseCount() {
+        return mPoseCount;
+    }
+
+    public long getCameraFrameCount() {
+        return mCameraFrameCount;
+    }
+
+    /**
+     * @return how old the newest pose was when it was applied.
+     */
+    public LatencyHistogram getPoseAgeHistogram() {
+        return mPoseAgeHistogram;
+    }
+
+    /**
+     * @return time spent latching the camera frame.
+     */
+    public LatencyHistogram getCameraLatchHistogram() {
+        return mCameraLatchHistogram;
+    }
+
+    /**
+     * @return time spent applying the pose to the scene camera.
+     */
+    public LatencyHistogram getPoseApplyHistogram() {
+        return mPoseApplyHistogram;
+    }
+
+    /**
+     * @return the gap between the timestamps of the camera image and the pose drawn over it.
+     */
+    public LatencyHistogram getAlignmentHistogram() {
+        return mAlignmentHistogram;
+    }
+}
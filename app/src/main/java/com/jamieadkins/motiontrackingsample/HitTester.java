@@ -0,0 +1,681 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds what is under a point on the screen: scene objects, detected planes or the depth points
+ * seen so far.
+ * <p/>
+ * A screen point is turned into a world ray with the scene camera's pose and projection. Scene
+ * objects are few and move every frame, so they are passed in as bounding spheres with each
+ * query and tested one by one, as are the planes. Depth points are kept from the last few clouds
+ * and each is treated as a small sphere. They are far too many to test one by one, so every
+ * cloud rebuilds a bounding volume hierarchy over them: a binary tree of boxes, split at the
+ * median along the longest side, with the points stored in leaf order. A query only descends
+ * into boxes the ray enters nearer than the best hit so far, nearest box first, so it reads a
+ * few dozen boxes and points whatever the number of points.
+ * <p/>
+ * The tree is rebuilt off the render thread, with the halves of large nodes split across cores,
+ * and published whole, so queries never wait on a rebuild.
+ */
+public class HitTester implements PoseProvider.PointCloudListener {
+    /** Nothing was hit. */
+    public static final int TYPE_NONE = 0;
+    /** A scene object's bounding sphere was hit. */
+    public static final int TYPE_OBJECT = 1;
+    /** A detected plane was hit, within its bounds. */
+    public static final int TYPE_PLANE = 2;
+    /** A depth point was hit. */
+    public static final int TYPE_POINT = 3;
+
+    /** Floats per bounding sphere passed to {@link #hitTest}: centre then radius. */
+    public static final int FLOATS_PER_SPHERE = 4;
+    /** Default number of depth points kept. */
+    public static final int DEFAULT_MAX_POINTS = 100000;
+    /** Default radius of a depth point, in meters, about the spacing of a cloud's points. */
+    public static final float DEFAULT_POINT_RADIUS = 0.02f;
+
+    /** Depth points are kept from at least this many of the latest clouds. */
+    private static final int CLOUDS_KEPT = 8;
+    /** Largest number of points in a leaf of the tree. */
+    private static final int LEAF_SIZE = 4;
+    /** Below this many points a parallel task builds its subtree inline. */
+    private static final int SEQUENTIAL_THRESHOLD = 8192;
+    /** How far past its bounds, in meters, a hit on a plane still counts. */
+    private static final float PLANE_MARGIN = 0.05f;
+    /** Deeper than any tree over an int's worth of points. */
+    private static final int MAX_DEPTH = 64;
+
+    private final ForkJoinPool mPool;
+    private final int mMaxPoints;
+    private final float mPointRadius;
+    private volatile PlaneDetector mPlaneDetector;
+
+    // The latest points, oldest overwritten first. Only touched under mBuildLock.
+    private final Object mBuildLock = new Object();
+    private final float[] mRing;
+    private int mRingNext;
+    private int mRingCount;
+
+    // The tree over the ring's points. Two are kept, sized for every point up front: each
+    // rebuild fills the one queries aren't using and swaps it in, so nothing is allocated per
+    // cloud. A tree is locked while it's rebuilt or queried.
+    private final PointTree[] mTrees = new PointTree[2];
+    private int mSpareTree;
+    private volatile PointTree mTree;
+    private volatile long mLastBuildNanos;
+
+    // Traversal stack, only used by queries on the calling thread.
+    private final int[] mStack = new int[MAX_DEPTH];
+
+    /**
+     * The result of a query.
+     */
+    public static class Hit {
+        int mType = TYPE_NONE;
+        int mIndex;
+        float mDistance;
+        final float[] mPosition = new float[3];
+        final float[] mNormal = new float[3];
+
+        /**
+         * @return one of the {@code TYPE_} constants.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return for objects the index of the sphere hit, for planes the plane's id and for
+         * points the slot the point is kept in.
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return how far along the ray the hit is, in meters.
+         */
+        public float getDistance() {
+            return mDistance;
+        }
+
+        public float[] getPosition() {
+            return mPosition;
+        }
+
+        /**
+         * @return the unit normal of the surface hit, facing back along the ray.
+         */
+        public float[] getNormal() {
+            return mNormal;
+        }
+    }
+
+    public HitTester() {
+        this(DEFAULT_MAX_POINTS, DEFAULT_POINT_RADIUS, WorkerPool.get());
+    }
+
+    /**
+     * @param pool pool to split rebuilds across, or null to rebuild on the calling thread.
+     */
+    public HitTester(int maxPoints, float pointRadius, ForkJoinPool pool) {
+        mMaxPoints = maxPoints;
+        mPointRadius = pointRadius;
+        mPool = pool;
+        mRing = new float[maxPoints * 3];
+        mTrees[0] = new PointTree(maxPoints, pointRadius);
+        mTrees[1] = new PointTree(maxPoints, pointRadius);
+    }
+
+    /**
+     * @param detector detector whose planes are hit tested, or null to leave planes out.
+     */
+    public void setPlaneDetector(PlaneDetector detector) {
+        mPlaneDetector = detector;
+    }
+
+    @Override
+    public void onNewPointCloud(PointCloud pointCloud) {
+        addPoints(pointCloud.getPoints(), pointCloud.getNumPoints());
+    }
+
+    /**
+     * Keeps a cloud's points, thinned so several clouds fit, and rebuilds the tree.
+     *
+     * @param points    points in the start of service frame, packed as x, y, z.
+     * @param numPoints number of valid points.
+     */
+    public void addPoints(float[] points, int numPoints) {
+        synchronized (mBuildLock) {
+            long start = System.nanoTime();
+            int perCloud = Math.max(1, mMaxPoints / CLOUDS_KEPT);
+            int stride = (numPoints + perCloud - 1) / perCloud;
+            for (int i = 0; i < numPoints; i += Math.max(1, stride)) {
+                System.arraycopy(points, i * 3, mRing, mRingNext * 3, 3);
+                mRingNext = (mRingNext + 1) % mMaxPoints;
+                mRingCount = Math.min(mRingCount + 1, mMaxPoints);
+            }
+            PointTree tree = mTrees[mSpareTree];
+            tree.mLock.lock();
+            try {
+                build(tree, mRing, mRingCount);
+            } finally {
+                tree.mLock.unlock();
+            }
+            mTree = tree;
+            mSpareTree ^= 1;
+            mLastBuildNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Forgets every depth point.
+     */
+    public void clear() {
+        synchronized (mBuildLock) {
+            mRingNext = 0;
+            mRingCount = 0;
+            mTree = null;
+        }
+    }
+
+    public int getPointCount() {
+        PointTree tree = mTree;
+        return tree == null ? 0 : tree.mCount;
+    }
+
+    /**
+     * @return how long the last {@link #addPoints} took, in nanoseconds.
+     */
+    public long getLastBuildNanos() {
+        return mLastBuildNanos;
+    }
+
+    /**
+     * Turns a point on the screen into a world ray through it.
+     *
+     * @param x          x coordinate on the view, in pixels from its left.
+     * @param y          y coordinate on the view, in pixels from its top.
+     * @param projection the scene camera's projection matrix, column major, e.g. from
+     *                   {@link CameraDisplayRotation#getProjectionMatrix}.
+     * @param cameraPose the scene camera's pose, looking down -z with y up.
+     * @param origin     receives the ray's origin, the camera's position.
+     * @param direction  receives the ray's unit direction.
+     */
+    public static void screenToRay(float x, float y, int viewWidth, int viewHeight,
+                                   float[] projection, PoseData cameraPose, float[] origin,
+                                   float[] direction) {
+        float ndcX = 2 * x / viewWidth - 1;
+        float ndcY = 1 - 2 * y / viewHeight;
+        // Undoes the frustum's scale and offset on the plane one meter in front of the camera.
+        direction[0] = (ndcX + projection[8]) / projection[0];
+        direction[1] = (ndcY + projection[9]) / projection[5];
+        direction[2] = -1;
+        PoseMath.rotateVector(cameraPose.mRotation, 0, direction, 0, direction, 0);
+        normalize(direction);
+        System.arraycopy(cameraPose.mTranslation, 0, origin, 0, 3);
+    }
+
+    /**
+     * Finds the nearest thing along a ray.
+     * <p/>
+     * NOTE: Queries share scratch space, so only call this from one thread at a time, e.g. the
+     * OpenGL render thread.
+     *
+     * @param direction the ray's unit direction.
+     * @param spheres   scene objects' bounding spheres, see {@link #FLOATS_PER_SPHERE}, may be
+     *                  null if {@code sphereCount} is 0.
+     * @param hit       receives the nearest hit.
+     * @return false if nothing was hit.
+     */
+    public boolean hitTest(float[] origin, float[] direction, float[] spheres, int sphereCount,
+                           Hit hit) {
+        hit.mType = TYPE_NONE;
+        hit.mDistance = Float.MAX_VALUE;
+        float ox = origin[0];
+        float oy = origin[1];
+        float oz = origin[2];
+        float dx = direction[0];
+        float dy = direction[1];
+        float dz = direction[2];
+
+        for (int i = 0; i < sphereCount; i++) {
+            int o = i * FLOATS_PER_SPHERE;
+            float t = intersectSphere(ox, oy, oz, dx, dy, dz, spheres[o], spheres[o + 1],
+                    spheres[o + 2], spheres[o + 3]);
+            if (t < hit.mDistance) {
+                setSphereHit(hit, TYPE_OBJECT, i, t, origin, direction, spheres, o,
+                        spheres[o + 3]);
+            }
+        }
+
+        PlaneDetector detector = mPlaneDetector;
+        if (detector != null) {
+            List<Plane> planes = detector.getPlanes();
+            for (int i = 0; i < planes.size(); i++) {
+                Plane plane = planes.get(i);
+                float[] n = plane.getNormal();
+                float facing = n[0] * dx + n[1] * dy + n[2] * dz;
+                if (facing == 0) {
+                    continue;
+                }
+                float t = -plane.distanceTo(ox, oy, oz) / facing;
+                if (!(t > 0 && t < hit.mDistance)) {
+                    continue;
+                }
+                float x = ox + t * dx;
+                float y = oy + t * dy;
+                float z = oz + t * dz;
+                if (!plane.isWithinBounds(x, y, z, PLANE_MARGIN)) {
+                    continue;
+                }
+                float sign = facing < 0 ? 1 : -1;
+                hit.mType = TYPE_PLANE;
+                hit.mIndex = plane.getId();
+                hit.mDistance = t;
+                hit.mPosition[0] = x;
+                hit.mPosition[1] = y;
+                hit.mPosition[2] = z;
+                hit.mNormal[0] = sign * n[0];
+                hit.mNormal[1] = sign * n[1];
+                hit.mNormal[2] = sign * n[2];
+            }
+        }
+
+        PointTree tree = lockTree();
+        if (tree != null) {
+            try {
+                if (tree.mCount > 0) {
+                    intersectTree(tree, origin, direction, hit);
+                }
+            } finally {
+                tree.mLock.unlock();
+            }
+        }
+        return hit.mType != TYPE_NONE;
+    }
+
+    /**
+     * @return the latest tree, locked, or null if there are no points.
+     */
+    private PointTree lockTree() {
+        while (true) {
+            PointTree tree = mTree;
+            if (tree == null) {
+                return null;
+            }
+            // Only fails if the tree was swapped out and is being rebuilt since we read it, in
+            // which case the newer one is published.
+            if (tree.mLock.tryLock()) {
+                return tree;
+            }
+        }
+    }
+
+    private void intersectTree(PointTree tree, float[] origin, float[] direction, Hit hit) {
+        float ox = origin[0];
+        float oy = origin[1];
+        float oz = origin[2];
+        float dx = direction[0];
+        float dy = direction[1];
+        float dz = direction[2];
+        float inverseX = 1 / dx;
+        float inverseY = 1 / dy;
+        float inverseZ = 1 / dz;
+        float radius = mPointRadius;
+        float[] bounds = tree.mBounds;
+        float[] points = tree.mPoints;
+        int best = -1;
+        float bestDistance = hit.mDistance;
+
+        int[] stack = mStack;
+        int size = 0;
+        if (enter(bounds, 0, ox, oy, oz, inverseX, inverseY, inverseZ) < bestDistance) {
+            stack[size++] = 0;
+        }
+        while (size > 0) {
+            int node = stack[--size];
+            int count = tree.mLeafCounts[node];
+            if (count > 0) {
+                int first = tree.mFirst[node];
+                for (int p = first; p < first + count; p++) {
+                    float t = intersectSphere(ox, oy, oz, dx, dy, dz, points[p * 3],
+                            points[p * 3 + 1], points[p * 3 + 2], radius);
+                    if (t < bestDistance) {
+                        bestDistance = t;
+                        best = p;
+                    }
+                }
+                continue;
+            }
+            int left = node + 1;
+            int right = tree.mFirst[node];
+            float leftEntry = enter(bounds, left, ox, oy, oz, inverseX, inverseY, inverseZ);
+            float rightEntry = enter(bounds, right, ox, oy, oz, inverseX, inverseY, inverseZ);
+            // Pushes the nearer child last, so it is searched first.
+            if (leftEntry <= rightEntry) {
+                if (rightEntry < bestDistance) {
+                    stack[size++] = right;
+                }
+                if (leftEntry < bestDistance) {
+                    stack[size++] = left;
+                }
+            } else {
+                if (leftEntry < bestDistance) {
+                    stack[size++] = left;
+                }
+                if (rightEntry < bestDistance) {
+                    stack[size++] = right;
+                }
+            }
+        }
+        if (best >= 0) {
+            setSphereHit(hit, TYPE_POINT, tree.mIndices[best], bestDistance, origin, direction,
+                    points, best * 3, radius);
+        }
+    }
+
+    /**
+     * @return how far along the ray it enters the node's box, or {@link Float#MAX_VALUE} if it
+     * misses.
+     */
+    private static float enter(float[] bounds, int node, float ox, float oy, float oz,
+                               float inverseX, float inverseY, float inverseZ) {
+        int b = node * 6;
+        float tx0 = (bounds[b] - ox) * inverseX;
+        float tx1 = (bounds[b + 3] - ox) * inverseX;
+        float ty0 = (bounds[b + 1] - oy) * inverseY;
+        float ty1 = (bounds[b + 4] - oy) * inverseY;
+        float tz0 = (bounds[b + 2] - oz) * inverseZ;
+        float tz1 = (bounds[b + 5] - oz) * inverseZ;
+        float near = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)),
+                Math.max(Math.min(tz0, tz1), 0));
+        float far = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)),
+                Math.max(tz0, tz1));
+        // Written as a negation so the NaN of a ray along a box face misses.
+        return !(near <= far) ? Float.MAX_VALUE : near;
+    }
+
+    /**
+     * @return the distance along the unit ray to the sphere, or {@link Float#MAX_VALUE} if it
+     * misses. A ray starting inside hits where it leaves.
+     */
+    private static float intersectSphere(float ox, float oy, float oz, float dx, float dy,
+                                         float dz, float cx, float cy, float cz, float radius) {
+        float lx = cx - ox;
+        float ly = cy - oy;
+        float lz = cz - oz;
+        float along = lx * dx + ly * dy + lz * dz;
+        float squared = lx * lx + ly * ly + lz * lz - along * along;
+        float r2 = radius * radius;
+        if (squared > r2) {
+            return Float.MAX_VALUE;
+        }
+        float half = (float) Math.sqrt(r2 - squared);
+        float t = along - half;
+        if (t < 0) {
+            t = along + half;
+        }
+        return t < 0 ? Float.MAX_VALUE : t;
+    }
+
+    private static void setSphereHit(Hit hit, int type, int index, float t, float[] origin,
+                                     float[] direction, float[] centres, int offset,
+                                     float radius) {
+        hit.mType = type;
+        hit.mIndex = index;
+        hit.mDistance = t;
+        for (int i = 0; i < 3; i++) {
+            hit.mPosition[i] = origin[i] + t * direction[i];
+            hit.mNormal[i] = (hit.mPosition[i] - centres[offset + i]) / radius;
+        }
+        // A ray from inside leaves through the far side, facing away.
+        if (hit.mNormal[0] * direction[0] + hit.mNormal[1] * direction[1]
+                + hit.mNormal[2] * direction[2] > 0) {
+            for (int i = 0; i < 3; i++) {
+                hit.mNormal[i] = -hit.mNormal[i];
+            }
+        }
+        normalize(hit.mNormal);
+    }
+
+    private static void normalize(float[] v) {
+        float length = (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        if (length > 0) {
+            v[0] /= length;
+            v[1] /= length;
+            v[2] /= length;
+        }
+    }
+
+    /**
+     * Rebuilds {@code tree} over the first {@code count} points.
+     */
+    private void build(PointTree tree, float[] source, int count) {
+        tree.mCount = count;
+        if (count == 0) {
+            return;
+        }
+        // Sorted into leaf order in place, so every pass reads the points in order.
+        System.arraycopy(source, 0, tree.mPoints, 0, count * 3);
+        for (int i = 0; i < count; i++) {
+            tree.mIndices[i] = i;
+        }
+        if (mPool == null) {
+            tree.build(0, 0, count);
+        } else {
+            mPool.invoke(new BuildTask(tree, 0, 0, count));
+        }
+    }
+
+    /**
+     * @return the number of nodes in a tree over {@code count} points.
+     */
+    static int nodeCount(int count) {
+        return (int) (nodeCounts(count) >>> 32);
+    }
+
+    /**
+     * Halving {@code m} and {@code m + 1} only ever gives {@code m / 2} and {@code m / 2 + 1}, so
+     * both counts come from the pair for {@code m / 2}, in a handful of steps.
+     *
+     * @return the number of nodes over {@code m} points in the high half and over {@code m + 1}
+     * in the low half.
+     */
+    private static long nodeCounts(int m) {
+        if (m < LEAF_SIZE) {
+            return (1L << 32) | 1;
+        }
+        if (m == LEAF_SIZE) {
+            // A root over two leaves.
+            return (1L << 32) | 3;
+        }
+        long half = nodeCounts(m >>> 1);
+        long low = half >>> 32;
+        long high = half & 0xffffffffL;
+        if ((m & 1) == 0) {
+            return ((1 + 2 * low) << 32) | (1 + low + high);
+        }
+        return ((1 + low + high) << 32) | (1 + 2 * high);
+    }
+
+    /**
+     * The tree, in depth first order: a node's left child follows it, and an inner node's
+     * {@link #mFirst} holds its right child.
+     */
+    private static class PointTree {
+        final ReentrantLock mLock = new ReentrantLock();
+        int mCount;
+        final float mRadius;
+        final float[] mPoints;
+        // The point each position in leaf order came from, its index in the ring.
+        final int[] mIndices;
+        // Per node its box, min then max corner, its first point, or right child for inner
+        // nodes, and its number of points, 0 for inner nodes.
+        final float[] mBounds;
+        final int[] mFirst;
+        final int[] mLeafCounts;
+
+        /**
+         * @param capacity the most points the tree will be built over.
+         */
+        PointTree(int capacity, float radius) {
+            mRadius = radius;
+            mPoints = new float[capacity * 3];
+            mIndices = new int[capacity];
+            int nodes = capacity == 0 ? 0 : nodeCount(capacity);
+            mBounds = new float[nodes * 6];
+            mFirst = new int[nodes];
+            mLeafCounts = new int[nodes];
+        }
+
+        /**
+         * Builds the subtree at {@code node} over points {@code [from, to)}.
+         */
+        void build(int node, int from, int to) {
+            int middle = split(node, from, to);
+            if (middle < 0) {
+                return;
+            }
+            build(node + 1, from, middle);
+            build(mFirst[node], middle, to);
+        }
+
+        /**
+         * Sets the node's box, grown to hold the points' spheres, and, for an inner node, orders
+         * its points so the left half is below the median along the box's longest side.
+         *
+         * @return where the right half starts, or -1 for a leaf.
+         */
+        int split(int node, int from, int to) {
+            float[] points = mPoints;
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float minZ = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            float maxZ = -Float.MAX_VALUE;
+            for (int p = from * 3; p < to * 3; p += 3) {
+                minX = Math.min(minX, points[p]);
+                minY = Math.min(minY, points[p + 1]);
+                minZ = Math.min(minZ, points[p + 2]);
+                maxX = Math.max(maxX, points[p]);
+                maxY = Math.max(maxY, points[p + 1]);
+                maxZ = Math.max(maxZ, points[p + 2]);
+            }
+            int b = node * 6;
+            mBounds[b] = minX - mRadius;
+            mBounds[b + 1] = minY - mRadius;
+            mBounds[b + 2] = minZ - mRadius;
+            mBounds[b + 3] = maxX + mRadius;
+            mBounds[b + 4] = maxY + mRadius;
+            mBounds[b + 5] = maxZ + mRadius;
+
+            int count = to - from;
+            if (count <= LEAF_SIZE) {
+                mFirst[node] = from;
+                mLeafCounts[node] = count;
+                return -1;
+            }
+            int axis = 0;
+            if (maxY - minY > maxX - minX) {
+                axis = 1;
+            }
+            if (maxZ - minZ > Math.max(maxX - minX, maxY - minY)) {
+                axis = 2;
+            }
+            int middle = from + (count >>> 1);
+            select(axis, from, to - 1, middle);
+            mFirst[node] = node + 1 + nodeCount(middle - from);
+            mLeafCounts[node] = 0;
+            return middle;
+        }
+
+        /**
+         * Reorders points {@code [left, right]} so the one at {@code k} is where it would be if
+         * they were sorted along {@code axis}, with none greater before it or less after it.
+         */
+        private void select(int axis, int left, int right, int k) {
+            float[] points = mPoints;
+            while (right > left) {
+                // Median of three, since the ring is often already in scan order.
+                int middle = (left + right) >>> 1;
+                if (points[3 * middle + axis] < points[3 * left + axis]) {
+                    swap(middle, left);
+                }
+                if (points[3 * right + axis] < points[3 * left + axis]) {
+                    swap(right, left);
+                }
+                if (points[3 * right + axis] < points[3 * middle + axis]) {
+                    swap(right, middle);
+                }
+                float pivot = points[3 * middle + axis];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (points[3 * i + axis] < pivot) {
+                        i++;
+                    }
+                    while (points[3 * j + axis] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i, j);
+                        i++;
+                        j--;
+                    }
+                }
+                if (k <= j) {
+                    right = j;
+                } else if (k >= i) {
+                    left = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void swap(int a, int b) {
+            int index = mIndices[a];
+            mIndices[a] = mIndices[b];
+            mIndices[b] = index;
+            for (int i = 0; i < 3; i++) {
+                float value = mPoints[a * 3 + i];
+                mPoints[a * 3 + i] = mPoints[b * 3 + i];
+                mPoints[b * 3 + i] = value;
+            }
+        }
+    }
+
+    /**
+     * Builds the subtree at a node, handing the halves of large nodes to other cores.
+     */
+    private static class BuildTask extends RecursiveAction {
+        private final PointTree mTree;
+        private final int mNode;
+        private final int mFrom;
+        private final int mTo;
+
+        BuildTask(PointTree tree, int node, int from, int to) {
+            mTree = tree;
+            mNode = node;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= SEQUENTIAL_THRESHOLD) {
+                mTree.build(mNode, mFrom, mTo);
+                return;
+            }
+            int middle = mTree.split(mNode, mFrom, mTo);
+            invokeAll(new BuildTask(mTree, mNode + 1, mFrom, middle),
+                    new BuildTask(mTree, mTree.mFirst[mNode], middle, mTo));
+        }
+    }
+}
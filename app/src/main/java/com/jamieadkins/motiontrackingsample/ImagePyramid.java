@@ -0,0 +1,148 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A luminance image and successively halved copies of it, for coarse to fine tracking.
+ * <p/>
+ * Levels are tightly packed 8 bit images, allocated once and rebuilt in place for every frame.
+ * Each level is a 2x2 box average of the one below. A level depends on the one below it, so the
+ * levels are built one after another, with the rows of each split into bands across cores.
+ */
+public class ImagePyramid {
+    /** Below this many pixels a parallel task does its work inline. */
+    private static final int SEQUENTIAL_THRESHOLD = 32768;
+
+    private final ForkJoinPool mPool;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final byte[][] mLevels;
+
+    /**
+     * @param levels number of levels including the full size image.
+     * @param pool   pool to build levels on, or null to build them on the calling thread.
+     */
+    public ImagePyramid(int width, int height, int levels, ForkJoinPool pool) {
+        if (levels < 1 || (width >> (levels - 1)) < 1 || (height >> (levels - 1)) < 1) {
+            throw new IllegalArgumentException("Too many levels for " + width + "x" + height);
+        }
+        mPool = pool;
+        mWidths = new int[levels];
+        mHeights = new int[levels];
+        mLevels = new byte[levels][];
+        for (int level = 0; level < levels; level++) {
+            mWidths[level] = width >> level;
+            mHeights[level] = height >> level;
+            mLevels[level] = new byte[mWidths[level] * mHeights[level]];
+        }
+    }
+
+    /**
+     * @return the most levels, up to {@code maxLevels}, whose smallest is still at least
+     * {@code minSize} pixels on each side.
+     */
+    public static int getLevelCount(int width, int height, int minSize, int maxLevels) {
+        int levels = 1;
+        while (levels < maxLevels && (width >> levels) >= minSize
+                && (height >> levels) >= minSize) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Rebuilds every level from a luminance plane, e.g. the Y plane of a YUV_420_888 image.
+     *
+     * @param offset    index of the first pixel in {@code luminance}.
+     * @param rowStride distance between rows in {@code luminance}, at least the width.
+     */
+    public void build(byte[] luminance, int offset, int rowStride) {
+        int width = mWidths[0];
+        byte[] base = mLevels[0];
+        if (rowStride == width) {
+            System.arraycopy(luminance, offset, base, 0, width * mHeights[0]);
+        } else {
+            for (int y = 0; y < mHeights[0]; y++) {
+                System.arraycopy(luminance, offset + y * rowStride, base, y * width, width);
+            }
+        }
+        for (int level = 1; level < mLevels.length; level++) {
+            if (mPool == null) {
+                downsample(mLevels[level - 1], mWidths[level - 1], mLevels[level], mWidths[level],
+                        0, mHeights[level]);
+            } else {
+                mPool.invoke(new DownsampleTask(mLevels[level - 1], mWidths[level - 1],
+                        mLevels[level], mWidths[level], 0, mHeights[level]));
+            }
+        }
+    }
+
+    public int getLevelCount() {
+        return mLevels.length;
+    }
+
+    public int getWidth(int level) {
+        return mWidths[level];
+    }
+
+    public int getHeight(int level) {
+        return mHeights[level];
+    }
+
+    /**
+     * @return the level's pixels, row after row. Only valid until the next {@link #build}.
+     */
+    public byte[] getLevel(int level) {
+        return mLevels[level];
+    }
+
+    /**
+     * Fills rows {@code [from, to)} of a level from the level below.
+     */
+    private static void downsample(byte[] source, int sourceWidth, byte[] destination, int width,
+                                   int from, int to) {
+        for (int y = from; y < to; y++) {
+            int top = 2 * y * sourceWidth;
+            int bottom = top + sourceWidth;
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                int s = 2 * x;
+                int sum = (source[top + s] & 0xff) + (source[top + s + 1] & 0xff)
+                        + (source[bottom + s] & 0xff) + (source[bottom + s + 1] & 0xff);
+                destination[out + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+
+    private static class DownsampleTask extends RecursiveAction {
+        private final byte[] mSource;
+        private final int mSourceWidth;
+        private final byte[] mDestination;
+        private final int mWidth;
+        private final int mFrom;
+        private final int mTo;
+
+        DownsampleTask(byte[] source, int sourceWidth, byte[] destination, int width, int from,
+                       int to) {
+            mSource = source;
+            mSourceWidth = sourceWidth;
+            mDestination = destination;
+            mWidth = width;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ((mTo - mFrom) * mWidth <= SEQUENTIAL_THRESHOLD || mTo - mFrom < 2) {
+                downsample(mSource, mSourceWidth, mDestination, mWidth, mFrom, mTo);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new DownsampleTask(mSource, mSourceWidth, mDestination, mWidth, mFrom,
+                            middle),
+                    new DownsampleTask(mSource, mSourceWidth, mDestination, mWidth, middle, mTo));
+        }
+    }
+}
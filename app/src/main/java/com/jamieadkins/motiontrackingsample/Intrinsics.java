@@ -1,9 +1,19 @@
 package com.jamieadkins.motiontrackingsample;
 
+import java.util.Arrays;
+
 /**
  * Contains camera intrinsic information. Can be set manually or use some dummy values.
+ * <p/>
+ * Besides the focal lengths this holds the principal point and the lens distortion, as radial
+ * coefficients k1, k2, k3 then tangential p1, p2 in the Brown-Conrady model, the layout Camera2's
+ * {@code LENS_DISTORTION} uses. Distortion applies to normalized image coordinates, i.e.
+ * {@code x = (u - cx) / fx}.
  */
 public class Intrinsics {
+    /** Number of distortion coefficients, see {@link #getDistortion()}. */
+    public static final int DISTORTION_COEFFICIENTS = 5;
+
     private static final double DEFAULT_FOCAL_LENGTH = 3.5;
     private static final double DEFAULT_SENSOR_WIDTH = 5.376;
     private static final double DEFAULT_SENSOR_HEIGHT = 3.04;
@@ -18,22 +28,96 @@ public class Intrinsics {
      */
     private static final int DEFAULT_HEIGHT = 1;
 
-    private int mWidth;
-    private int mHeight;
-    private double mFocalLengthInPixelsX;
-    private double mFocalLengthInPixelsY;
+    private final int mWidth;
+    private final int mHeight;
+    private final double mFocalLengthInPixelsX;
+    private final double mFocalLengthInPixelsY;
+    private final double mPrincipalPointX;
+    private final double mPrincipalPointY;
+    private final double[] mDistortion;
 
     public Intrinsics() {
-        double focalLengthX = DEFAULT_FOCAL_LENGTH * DEFAULT_WIDTH / DEFAULT_SENSOR_WIDTH;
-        double focalLengthY = DEFAULT_FOCAL_LENGTH * DEFAULT_SENSOR_HEIGHT / DEFAULT_SENSOR_HEIGHT;
-        new Intrinsics(DEFAULT_WIDTH, DEFAULT_HEIGHT, focalLengthX, focalLengthY);
+        this(DEFAULT_WIDTH, DEFAULT_HEIGHT,
+                DEFAULT_FOCAL_LENGTH * DEFAULT_WIDTH / DEFAULT_SENSOR_WIDTH,
+                DEFAULT_FOCAL_LENGTH * DEFAULT_HEIGHT / DEFAULT_SENSOR_HEIGHT);
     }
 
+    /**
+     * A camera without distortion whose principal point is the image centre.
+     */
     public Intrinsics(int width, int height, double focalLengthInPixelsX, double focalLengthInPixelsY) {
+        this(width, height, focalLengthInPixelsX, focalLengthInPixelsY, width / 2.0, height / 2.0,
+                null);
+    }
+
+    /**
+     * @param distortion k1, k2, k3, p1, p2, or null for none.
+     */
+    public Intrinsics(int width, int height, double focalLengthInPixelsX,
+                      double focalLengthInPixelsY, double principalPointX, double principalPointY,
+                      double[] distortion) {
+        if (distortion != null && distortion.length != DISTORTION_COEFFICIENTS) {
+            throw new IllegalArgumentException("Expected " + DISTORTION_COEFFICIENTS
+                    + " distortion coefficients, got " + distortion.length);
+        }
         mWidth = width;
         mHeight = height;
         mFocalLengthInPixelsX = focalLengthInPixelsX;
         mFocalLengthInPixelsY = focalLengthInPixelsY;
+        mPrincipalPointX = principalPointX;
+        mPrincipalPointY = principalPointY;
+        mDistortion = distortion == null
+                ? new double[DISTORTION_COEFFICIENTS] : distortion.clone();
+    }
+
+    /**
+     * The same camera as seen through a stream of another size. Camera streams are the largest
+     * centred crop of the sensor with the stream's aspect ratio, scaled to fit, so that is what
+     * this does to the focal lengths and principal point.
+     */
+    public Intrinsics scaledTo(int width, int height) {
+        double scale;
+        double cropX = 0;
+        double cropY = 0;
+        if (width * (double) mHeight > height * (double) mWidth) {
+            // Wider than the sensor, the top and bottom are cut off.
+            scale = width / (double) mWidth;
+            cropY = (mHeight - height / scale) / 2;
+        } else {
+            scale = height / (double) mHeight;
+            cropX = (mWidth - width / scale) / 2;
+        }
+        return new Intrinsics(width, height, mFocalLengthInPixelsX * scale,
+                mFocalLengthInPixelsY * scale, (mPrincipalPointX - cropX) * scale,
+                (mPrincipalPointY - cropY) * scale, mDistortion);
+    }
+
+    /**
+     * Applies the lens distortion to a point in normalized image coordinates.
+     *
+     * @param out receives the distorted x and y.
+     */
+    public void distort(double x, double y, double[] out) {
+        double k1 = mDistortion[0], k2 = mDistortion[1], k3 = mDistortion[2];
+        double p1 = mDistortion[3], p2 = mDistortion[4];
+        double r2 = x * x + y * y;
+        double radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+        out[0] = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+        out[1] = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+    }
+
+    /**
+     * @return whether the camera is an ideal pinhole centred on the image, in which case the
+     * image needs no correcting before being drawn behind a centred projection.
+     */
+    public boolean isCentredPinhole() {
+        for (double coefficient : mDistortion) {
+            if (coefficient != 0) {
+                return false;
+            }
+        }
+        return Math.abs(mPrincipalPointX - mWidth / 2.0) < 0.5
+                && Math.abs(mPrincipalPointY - mHeight / 2.0) < 0.5;
     }
 
     public int getWidth() {
@@ -51,4 +135,26 @@ public class Intrinsics {
     public double getFocalLengthInPixelsY() {
         return mFocalLengthInPixelsY;
     }
+
+    public double getPrincipalPointX() {
+        return mPrincipalPointX;
+    }
+
+    public double getPrincipalPointY() {
+        return mPrincipalPointY;
+    }
+
+    /**
+     * @return a copy of k1, k2, k3, p1, p2.
+     */
+    public double[] getDistortion() {
+        return mDistortion.clone();
+    }
+
+    @Override
+    public String toString() {
+        return mWidth + "x" + mHeight + " f " + mFocalLengthInPixelsX + ", "
+                + mFocalLengthInPixelsY + " c " + mPrincipalPointX + ", " + mPrincipalPointY
+                + " distortion " + Arrays.toString(mDistortion);
+    }
 }
@@ -0,0 +1,88 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.Arrays;
+
+/**
+ * Fixed width histogram of durations in nanoseconds. Values past the last bucket are counted in
+ * an overflow bucket. Recording doesn't allocate, so it is safe to use on the render thread.
+ */
+public class LatencyHistogram {
+    private final long mBucketWidthNanos;
+    private final long[] mBuckets;
+    private long mCount;
+    private long mSumNanos;
+    private long mMaxNanos;
+
+    /**
+     * @param bucketCount number of regular buckets; one more is added for overflow.
+     */
+    public LatencyHistogram(long bucketWidthNanos, int bucketCount) {
+        mBucketWidthNanos = bucketWidthNanos;
+        mBuckets = new long[bucketCount + 1];
+    }
+
+    public synchronized void record(long nanos) {
+        int bucket = (int) Math.min(mBuckets.length - 1, Math.max(0, nanos) / mBucketWidthNanos);
+        mBuckets[bucket]++;
+        mCount++;
+        mSumNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mBuckets, 0);
+        mCount = 0;
+        mSumNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    public long getBucketWidthNanos() {
+        return mBucketWidthNanos;
+    }
+
+    /**
+     * @return a copy of the bucket counts, the last one being the overflow bucket.
+     */
+    public synchronized long[] getBuckets() {
+        return mBuckets.clone();
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMeanNanos() {
+        return mCount == 0 ? 0 : mSumNanos / mCount;
+    }
+
+    public synchronized long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper edge of the bucket holding the given percentile, or the maximum if it
+     * falls in the overflow bucket.
+     */
+    public synchronized long getPercentileNanos(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length - 1; i++) {
+            seen += mBuckets[i];
+            if (seen >= target && seen > 0) {
+                return Math.min(mMaxNanos, (i + 1) * mBucketWidthNanos);
+            }
+        }
+        return mMaxNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                mCount, getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+                getPercentileNanos(95) / 1e6, getPercentileNanos(99) / 1e6, mMaxNanos / 1e6);
+    }
+}
@@ -0,0 +1,304 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pyramidal Lucas-Kanade optical flow: follows points from one {@link ImagePyramid} to the next.
+ * <p/>
+ * Each point is first tracked on the coarsest level, where a large motion is only a few pixels,
+ * and the result is doubled as the starting guess for the level below, down to the full size
+ * image. On each level the window around the point in the previous image is matched against the
+ * next image with Gauss-Newton steps until a step is smaller than the convergence threshold.
+ * <p/>
+ * Points are independent of each other, so they are split across cores. Every worker thread has
+ * its own scratch patches, made the first time it tracks; nothing is allocated per point.
+ */
+public class OpticalFlow {
+    /** Default half size of the matching window, 9x9 pixels. */
+    public static final int DEFAULT_WINDOW_RADIUS = 4;
+    /** Default Gauss-Newton steps per level. */
+    public static final int DEFAULT_MAX_ITERATIONS = 10;
+    /** Default step, in pixels, below which a level has converged. */
+    public static final float DEFAULT_EPSILON = 0.01f;
+
+    /**
+     * Smallest mean squared gradient, over the window, along the window's weakest direction. Below
+     * this the window is too flat, or only an edge, to say where it moved.
+     */
+    private static final float MIN_EIGENVALUE = 4f;
+    /** Largest mean intensity difference between the windows for a point to count as tracked. */
+    private static final float MAX_RESIDUAL = 20f;
+    /** Below this many points a parallel task does its work inline. */
+    private static final int SEQUENTIAL_THRESHOLD = 32;
+
+    private final ForkJoinPool mPool;
+    private final int mRadius;
+    private final int mMaxIterations;
+    private final float mEpsilon;
+
+    // Each worker's scratch patches, made once per thread and reused for every point after.
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(2 * mRadius + 1);
+        }
+    };
+
+    public OpticalFlow(ForkJoinPool pool) {
+        this(DEFAULT_WINDOW_RADIUS, DEFAULT_MAX_ITERATIONS, DEFAULT_EPSILON, pool);
+    }
+
+    /**
+     * @param pool pool to split the points across, or null to track them on the calling thread.
+     */
+    public OpticalFlow(int windowRadius, int maxIterations, float epsilon, ForkJoinPool pool) {
+        mRadius = windowRadius;
+        mMaxIterations = maxIterations;
+        mEpsilon = epsilon;
+        mPool = pool;
+    }
+
+    /**
+     * Finds where points of the previous image moved to in the next one. The pyramids must have
+     * the same size and number of levels.
+     *
+     * @param x      x coordinates in the previous image's full size level.
+     * @param y      y coordinates in the previous image's full size level.
+     * @param outX   receives x coordinates in the next image, may be {@code x}.
+     * @param outY   receives y coordinates in the next image, may be {@code y}.
+     * @param status receives whether each point was tracked. Points that weren't are left where
+     *               they were.
+     */
+    public void track(ImagePyramid previous, ImagePyramid next, float[] x, float[] y, int count,
+                      float[] outX, float[] outY, boolean[] status) {
+        TrackTask task = new TrackTask(previous, next, x, y, outX, outY, status, 0, count);
+        if (mPool == null) {
+            task.trackAll();
+        } else {
+            mPool.invoke(task);
+        }
+    }
+
+    /**
+     * Samples the {@code (2 * radius + 1)} square window centred on {@code (x, y)} with bilinear
+     * filtering, repeating the edge of the image where the window runs off it.
+     */
+    static void samplePatch(byte[] image, int width, int height, float x, float y, int radius,
+                            float[] out) {
+        int size = 2 * radius + 1;
+        int left = (int) Math.floor(x);
+        int top = (int) Math.floor(y);
+        float fx = x - left;
+        float fy = y - top;
+        float w00 = (1 - fx) * (1 - fy);
+        float w01 = fx * (1 - fy);
+        float w10 = (1 - fx) * fy;
+        float w11 = fx * fy;
+        left -= radius;
+        top -= radius;
+
+        if (left >= 0 && top >= 0 && left + size < width && top + size < height) {
+            for (int j = 0; j < size; j++) {
+                int row = (top + j) * width + left;
+                int o = j * size;
+                for (int i = 0; i < size; i++) {
+                    int p = row + i;
+                    out[o + i] = w00 * (image[p] & 0xff) + w01 * (image[p + 1] & 0xff)
+                            + w10 * (image[p + width] & 0xff) + w11 * (image[p + width + 1] & 0xff);
+                }
+            }
+            return;
+        }
+
+        for (int j = 0; j < size; j++) {
+            int row0 = clamp(top + j, height) * width;
+            int row1 = clamp(top + j + 1, height) * width;
+            int o = j * size;
+            for (int i = 0; i < size; i++) {
+                int c0 = clamp(left + i, width);
+                int c1 = clamp(left + i + 1, width);
+                out[o + i] = w00 * (image[row0 + c0] & 0xff) + w01 * (image[row0 + c1] & 0xff)
+                        + w10 * (image[row1 + c0] & 0xff) + w11 * (image[row1 + c1] & 0xff);
+            }
+        }
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : (value >= size ? size - 1 : value);
+    }
+
+    /**
+     * Tracks points {@code [from, to)}.
+     */
+    private class TrackTask extends RecursiveAction {
+        private final ImagePyramid mPrevious;
+        private final ImagePyramid mNext;
+        private final float[] mX;
+        private final float[] mY;
+        private final float[] mOutX;
+        private final float[] mOutY;
+        private final boolean[] mStatus;
+        private final int mFrom;
+        private final int mTo;
+
+        // The worker's scratch, see Scratch.
+        private float[] mBordered;
+        private float[] mTemplate;
+        private float[] mGradientX;
+        private float[] mGradientY;
+        private float[] mWarped;
+
+        TrackTask(ImagePyramid previous, ImagePyramid next, float[] x, float[] y, float[] outX,
+                  float[] outY, boolean[] status, int from, int to) {
+            mPrevious = previous;
+            mNext = next;
+            mX = x;
+            mY = y;
+            mOutX = outX;
+            mOutY = outY;
+            mStatus = status;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= SEQUENTIAL_THRESHOLD) {
+                trackAll();
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new TrackTask(mPrevious, mNext, mX, mY, mOutX, mOutY, mStatus, mFrom,
+                            middle),
+                    new TrackTask(mPrevious, mNext, mX, mY, mOutX, mOutY, mStatus, middle, mTo));
+        }
+
+        private void trackAll() {
+            Scratch scratch = mScratch.get();
+            mBordered = scratch.mBordered;
+            mTemplate = scratch.mTemplate;
+            mGradientX = scratch.mGradientX;
+            mGradientY = scratch.mGradientY;
+            mWarped = scratch.mWarped;
+            for (int i = mFrom; i < mTo; i++) {
+                mStatus[i] = trackPoint(i);
+            }
+        }
+
+        private boolean trackPoint(int point) {
+            float x = mX[point];
+            float y = mY[point];
+            mOutX[point] = x;
+            mOutY[point] = y;
+            int size = 2 * mRadius + 1;
+            int area = size * size;
+            int bordered = size + 2;
+
+            // Motion so far, in the current level's pixels.
+            float guessX = 0;
+            float guessY = 0;
+            float residual = 0;
+            for (int level = mPrevious.getLevelCount() - 1; level >= 0; level--) {
+                int width = mPrevious.getWidth(level);
+                int height = mPrevious.getHeight(level);
+                // Pixel centres of a box filtered level sit between those of the level below.
+                float scale = 1f / (1 << level);
+                float levelX = (x + 0.5f) * scale - 0.5f;
+                float levelY = (y + 0.5f) * scale - 0.5f;
+
+                samplePatch(mPrevious.getLevel(level), width, height, levelX, levelY, mRadius + 1,
+                        mBordered);
+                float gxx = 0;
+                float gxy = 0;
+                float gyy = 0;
+                for (int j = 0; j < size; j++) {
+                    for (int i = 0; i < size; i++) {
+                        int b = (j + 1) * bordered + i + 1;
+                        int o = j * size + i;
+                        float dx = (mBordered[b + 1] - mBordered[b - 1]) * 0.5f;
+                        float dy = (mBordered[b + bordered] - mBordered[b - bordered]) * 0.5f;
+                        mTemplate[o] = mBordered[b];
+                        mGradientX[o] = dx;
+                        mGradientY[o] = dy;
+                        gxx += dx * dx;
+                        gxy += dx * dy;
+                        gyy += dy * dy;
+                    }
+                }
+                float det = gxx * gyy - gxy * gxy;
+                float minEigenvalue = (gxx + gyy
+                        - (float) Math.sqrt((gxx - gyy) * (gxx - gyy) + 4 * gxy * gxy)) / 2;
+                if (level == 0 ? minEigenvalue < MIN_EIGENVALUE * area : det < 1e-6f) {
+                    return false;
+                }
+
+                float stepX = 0;
+                float stepY = 0;
+                for (int iteration = 0; iteration < mMaxIterations; iteration++) {
+                    samplePatch(mNext.getLevel(level), width, height, levelX + guessX + stepX,
+                            levelY + guessY + stepY, mRadius, mWarped);
+                    float bx = 0;
+                    float by = 0;
+                    for (int o = 0; o < area; o++) {
+                        float difference = mTemplate[o] - mWarped[o];
+                        bx += difference * mGradientX[o];
+                        by += difference * mGradientY[o];
+                    }
+                    float etaX = (gyy * bx - gxy * by) / det;
+                    float etaY = (gxx * by - gxy * bx) / det;
+                    stepX += etaX;
+                    stepY += etaY;
+                    if (etaX * etaX + etaY * etaY < mEpsilon * mEpsilon) {
+                        break;
+                    }
+                }
+
+                if (level > 0) {
+                    guessX = 2 * (guessX + stepX);
+                    guessY = 2 * (guessY + stepY);
+                } else {
+                    guessX += stepX;
+                    guessY += stepY;
+                    samplePatch(mNext.getLevel(0), width, height, x + guessX, y + guessY, mRadius,
+                            mWarped);
+                    for (int o = 0; o < area; o++) {
+                        residual += Math.abs(mTemplate[o] - mWarped[o]);
+                    }
+                    residual /= area;
+                }
+            }
+
+            float newX = x + guessX;
+            float newY = y + guessY;
+            // NaN fails these too.
+            if (!(newX >= 0 && newY >= 0 && newX <= mNext.getWidth(0) - 1
+                    && newY <= mNext.getHeight(0) - 1 && residual <= MAX_RESIDUAL)) {
+                return false;
+            }
+            mOutX[point] = newX;
+            mOutY[point] = newY;
+            return true;
+        }
+    }
+
+    /**
+     * The previous window with a one pixel border for its gradients, then the window, its
+     * gradients and the next image's window.
+     */
+    private static class Scratch {
+        final float[] mBordered;
+        final float[] mTemplate;
+        final float[] mGradientX;
+        final float[] mGradientY;
+        final float[] mWarped;
+
+        Scratch(int size) {
+            mBordered = new float[(size + 2) * (size + 2)];
+            mTemplate = new float[size * size];
+            mGradientX = new float[size * size];
+            mGradientY = new float[size * size];
+            mWarped = new float[size * size];
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Complementary filter giving device orientation at the gyroscope's rate, for devices without a
+ * 6DoF pose sensor.
+ * <p/>
+ * Gyroscope samples are integrated for the short term response. Drift is pulled out slowly
+ * towards the game rotation vector when there is one, or otherwise towards the tilt given by the
+ * accelerometer, in which case heading drifts with the gyroscope bias. Orientations are
+ * (x, y, z, w) quaternions taking device coordinates to a world frame with z up, the same as the
+ * rotation vector sensors. Without any visual tracking there is no reliable translation: by
+ * default it is held at the origin, or with {@link #setTranslationDamping(float)} it follows
+ * the accelerometer but is pulled back to the origin within that time.
+ * <p/>
+ * Allocation free. Not thread safe; feed it from the sensor thread.
+ */
+public class OrientationFilter {
+    public static final float GRAVITY = 9.80665f;
+
+    /** Rate, per second, at which the estimate converges on the game rotation vector. */
+    private static final float ROTATION_VECTOR_GAIN = 2.0f;
+    /** Rate, per second, at which the estimate converges on the accelerometer's tilt. */
+    private static final float ACCELEROMETER_GAIN = 0.5f;
+    /** Accelerometer readings further than this fraction from 1g aren't trusted for tilt. */
+    private static final float ACCELEROMETER_TOLERANCE = 0.1f;
+    /** Gyroscope gaps longer than this are treated as a restart rather than integrated. */
+    private static final long MAX_GYRO_GAP_NANOS = 100000000L;
+
+    private static final float[] UP = {0, 0, 1};
+
+    private final float[] mRotation = {0, 0, 0, 1};
+    private final float[] mTranslation = new float[3];
+    private final float[] mVelocity = new float[3];
+    private boolean mInitialized;
+    private boolean mHasRotationVector;
+    private long mLastGyroTimestamp = -1;
+    private long mLastRotationVectorTimestamp = -1;
+    private long mLastAccelerometerTimestamp = -1;
+    private float mTranslationDampingSeconds;
+
+    // Scratch space.
+    private final float[] mDelta = new float[4];
+    private final float[] mTarget = new float[4];
+    private final float[] mVector = new float[3];
+
+    /**
+     * @param seconds time constant pulling the translation back to the origin, or 0 to hold it
+     *                there.
+     */
+    public void setTranslationDamping(float seconds) {
+        mTranslationDampingSeconds = seconds;
+        if (seconds <= 0) {
+            mTranslation[0] = mTranslation[1] = mTranslation[2] = 0;
+            mVelocity[0] = mVelocity[1] = mVelocity[2] = 0;
+        }
+    }
+
+    /**
+     * @return true once the orientation has been set from an absolute reading.
+     */
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    public void reset() {
+        mRotation[0] = mRotation[1] = mRotation[2] = 0;
+        mRotation[3] = 1;
+        mTranslation[0] = mTranslation[1] = mTranslation[2] = 0;
+        mVelocity[0] = mVelocity[1] = mVelocity[2] = 0;
+        mInitialized = false;
+        mHasRotationVector = false;
+        mLastGyroTimestamp = -1;
+        mLastRotationVectorTimestamp = -1;
+        mLastAccelerometerTimestamp = -1;
+    }
+
+    /**
+     * Starts from a known orientation, e.g. the last one from visual tracking, rather than
+     * waiting for an absolute reading.
+     */
+    public void setInitialRotation(float[] rotation, int offset) {
+        System.arraycopy(rotation, offset, mRotation, 0, 4);
+        PoseMath.normalizeQuaternion(mRotation, 0);
+        mInitialized = true;
+    }
+
+    /**
+     * Integrates an angular velocity in radians a second about the device axes.
+     */
+    public void onGyroscope(long timestamp, float wx, float wy, float wz) {
+        long last = mLastGyroTimestamp;
+        mLastGyroTimestamp = timestamp;
+        if (last < 0 || timestamp <= last || timestamp - last > MAX_GYRO_GAP_NANOS) {
+            return;
+        }
+        float dt = (timestamp - last) / 1e9f;
+        float rate = (float) Math.sqrt(wx * wx + wy * wy + wz * wz);
+        float angle = rate * dt;
+        if (angle < 1e-9f) {
+            return;
+        }
+        float s = (float) Math.sin(angle / 2) / rate;
+        mDelta[0] = wx * s;
+        mDelta[1] = wy * s;
+        mDelta[2] = wz * s;
+        mDelta[3] = (float) Math.cos(angle / 2);
+        // Body rates apply on the right.
+        PoseMath.multiplyQuaternions(mRotation, 0, mDelta, 0, mRotation, 0);
+        PoseMath.normalizeQuaternion(mRotation, 0);
+    }
+
+    /**
+     * Corrects towards a game rotation vector reading, as given in the sensor event's values.
+     * The w component is worked out if the event doesn't include it.
+     */
+    public void onRotationVector(long timestamp, float[] values, int length) {
+        float x = values[0], y = values[1], z = values[2];
+        float w = length >= 4
+                ? values[3] : (float) Math.sqrt(Math.max(0, 1 - x * x - y * y - z * z));
+        mTarget[0] = x;
+        mTarget[1] = y;
+        mTarget[2] = z;
+        mTarget[3] = w;
+        PoseMath.normalizeQuaternion(mTarget, 0);
+
+        long last = mLastRotationVectorTimestamp;
+        mLastRotationVectorTimestamp = timestamp;
+        mHasRotationVector = true;
+        if (!mInitialized) {
+            System.arraycopy(mTarget, 0, mRotation, 0, 4);
+            mInitialized = true;
+            return;
+        }
+        if (last < 0 || timestamp <= last) {
+            return;
+        }
+        float gain = gain(ROTATION_VECTOR_GAIN, timestamp - last);
+        PoseMath.slerp(mRotation, 0, mTarget, 0, gain, mRotation, 0);
+    }
+
+    /**
+     * Takes an accelerometer reading in m/s^2. Corrects tilt when there is no rotation vector and
+     * the device isn't accelerating much, and moves the damped translation.
+     */
+    public void onAccelerometer(long timestamp, float ax, float ay, float az) {
+        long last = mLastAccelerometerTimestamp;
+        mLastAccelerometerTimestamp = timestamp;
+        float magnitude = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        if (magnitude < 1e-3f) {
+            return;
+        }
+        mVector[0] = ax;
+        mVector[1] = ay;
+        mVector[2] = az;
+        // At rest the accelerometer reads 1g upwards; this is that direction in the world frame.
+        PoseMath.rotateVector(mRotation, 0, mVector, 0, mVector, 0);
+
+        if (!mHasRotationVector
+                && Math.abs(magnitude - GRAVITY) < GRAVITY * ACCELEROMETER_TOLERANCE) {
+            if (!mInitialized) {
+                initializeTilt(ax / magnitude, ay / magnitude, az / magnitude);
+                mInitialized = true;
+            } else if (last >= 0 && timestamp > last) {
+                correctTilt(mVector[0] / magnitude, mVector[1] / magnitude,
+                        mVector[2] / magnitude, gain(ACCELEROMETER_GAIN, timestamp - last));
+            }
+        }
+
+        if (mTranslationDampingSeconds > 0 && mInitialized && last >= 0 && timestamp > last
+                && timestamp - last < MAX_GYRO_GAP_NANOS) {
+            float dt = (timestamp - last) / 1e9f;
+            float keep = 1 - gain(1 / mTranslationDampingSeconds, timestamp - last);
+            mVector[2] -= GRAVITY;
+            for (int axis = 0; axis < 3; axis++) {
+                mVelocity[axis] = (mVelocity[axis] + mVector[axis] * dt) * keep;
+                mTranslation[axis] = (mTranslation[axis] + mVelocity[axis] * dt) * keep;
+            }
+        }
+    }
+
+    /**
+     * Rotates the estimate by a fraction of the rotation taking the measured up direction,
+     * in world coordinates, to the world's up.
+     */
+    private void correctTilt(float ux, float uy, float uz, float gain) {
+        // Axis and sine of the angle from the measured up to the real up.
+        float cx = uy * UP[2] - uz * UP[1];
+        float cy = uz * UP[0] - ux * UP[2];
+        float sin = (float) Math.sqrt(cx * cx + cy * cy);
+        if (sin < 1e-6f) {
+            return;
+        }
+        float angle = (float) Math.atan2(sin, uz) * gain;
+        float s = (float) Math.sin(angle / 2) / sin;
+        mDelta[0] = cx * s;
+        mDelta[1] = cy * s;
+        mDelta[2] = 0;
+        mDelta[3] = (float) Math.cos(angle / 2);
+        // A world frame correction applies on the left.
+        PoseMath.multiplyQuaternions(mDelta, 0, mRotation, 0, mRotation, 0);
+        PoseMath.normalizeQuaternion(mRotation, 0);
+    }
+
+    /**
+     * Sets the orientation that takes the measured up direction, in device coordinates, to the
+     * world's up, with no rotation about it.
+     */
+    private void initializeTilt(float ux, float uy, float uz) {
+        mRotation[0] = mRotation[1] = mRotation[2] = 0;
+        mRotation[3] = 1;
+        correctTilt(ux, uy, uz, 1);
+    }
+
+    /**
+     * @return the fraction of the way to a correction to move for a time step, for a rate.
+     */
+    private static float gain(float ratePerSecond, long deltaNanos) {
+        return 1 - (float) Math.exp(-ratePerSecond * deltaNanos / 1e9);
+    }
+
+    /**
+     * Copies the current orientation into {@code out}.
+     */
+    public void getRotation(float[] out) {
+        System.arraycopy(mRotation, 0, out, 0, 4);
+    }
+
+    public void getTranslation(float[] out) {
+        System.arraycopy(mTranslation, 0, out, 0, 3);
+    }
+}
@@ -0,0 +1,259 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * A planar surface tracked by the {@link PlaneDetector}. The plane is described by the equation
+ * {@code n . p + d = 0} and is refit from running sums of all the points assigned to it, so new
+ * clouds refine it without keeping the points themselves around.
+ */
+public class Plane {
+    private final int mId;
+
+    private final float[] mNormal = {0.0f, 0.0f, 1.0f};
+    private float mOffset;
+    private final float[] mCentroid = new float[3];
+
+    /** Axis aligned bounds of all the inliers seen so far. */
+    private final float[] mMin = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+    private final float[] mMax = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+
+    private double mLastUpdateTimestamp;
+
+    // Running sums used to refit the plane.
+    private long mCount;
+    private double mSumX, mSumY, mSumZ;
+    private double mSumXX, mSumXY, mSumXZ, mSumYY, mSumYZ, mSumZZ;
+
+    Plane(int id) {
+        mId = id;
+    }
+
+    Plane(Plane other) {
+        mId = other.mId;
+        mOffset = other.mOffset;
+        mLastUpdateTimestamp = other.mLastUpdateTimestamp;
+        System.arraycopy(other.mNormal, 0, mNormal, 0, 3);
+        System.arraycopy(other.mCentroid, 0, mCentroid, 0, 3);
+        System.arraycopy(other.mMin, 0, mMin, 0, 3);
+        System.arraycopy(other.mMax, 0, mMax, 0, 3);
+        mCount = other.mCount;
+        mSumX = other.mSumX;
+        mSumY = other.mSumY;
+        mSumZ = other.mSumZ;
+        mSumXX = other.mSumXX;
+        mSumXY = other.mSumXY;
+        mSumXZ = other.mSumXZ;
+        mSumYY = other.mSumYY;
+        mSumYZ = other.mSumYZ;
+        mSumZZ = other.mSumZZ;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return the unit normal of the plane, facing the sensor that first observed it.
+     */
+    public float[] getNormal() {
+        return mNormal;
+    }
+
+    /**
+     * @return the d term of the plane equation {@code n . p + d = 0}.
+     */
+    public float getOffset() {
+        return mOffset;
+    }
+
+    public float[] getCentroid() {
+        return mCentroid;
+    }
+
+    public float[] getMin() {
+        return mMin;
+    }
+
+    public float[] getMax() {
+        return mMax;
+    }
+
+    /**
+     * @return the number of points that have been accumulated into this plane.
+     */
+    public long getPointCount() {
+        return mCount;
+    }
+
+    public double getLastUpdateTimestamp() {
+        return mLastUpdateTimestamp;
+    }
+
+    /**
+     * @return the signed distance from the given point to the plane.
+     */
+    public float distanceTo(float x, float y, float z) {
+        return mNormal[0] * x + mNormal[1] * y + mNormal[2] * z + mOffset;
+    }
+
+    /**
+     * @return true if the point lies within the bounds of the plane grown by {@code margin}.
+     */
+    public boolean isWithinBounds(float x, float y, float z, float margin) {
+        return x >= mMin[0] - margin && x <= mMax[0] + margin
+                && y >= mMin[1] - margin && y <= mMax[1] + margin
+                && z >= mMin[2] - margin && z <= mMax[2] + margin;
+    }
+
+    boolean boundsOverlap(Plane other, float margin) {
+        for (int i = 0; i < 3; i++) {
+            if (mMin[i] - margin > other.mMax[i] || other.mMin[i] - margin > mMax[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void addPoint(float x, float y, float z) {
+        mCount++;
+        mSumX += x;
+        mSumY += y;
+        mSumZ += z;
+        mSumXX += (double) x * x;
+        mSumXY += (double) x * y;
+        mSumXZ += (double) x * z;
+        mSumYY += (double) y * y;
+        mSumYZ += (double) y * z;
+        mSumZZ += (double) z * z;
+        if (x < mMin[0]) mMin[0] = x;
+        if (y < mMin[1]) mMin[1] = y;
+        if (z < mMin[2]) mMin[2] = z;
+        if (x > mMax[0]) mMax[0] = x;
+        if (y > mMax[1]) mMax[1] = y;
+        if (z > mMax[2]) mMax[2] = z;
+    }
+
+    void merge(Plane other) {
+        mCount += other.mCount;
+        mSumX += other.mSumX;
+        mSumY += other.mSumY;
+        mSumZ += other.mSumZ;
+        mSumXX += other.mSumXX;
+        mSumXY += other.mSumXY;
+        mSumXZ += other.mSumXZ;
+        mSumYY += other.mSumYY;
+        mSumYZ += other.mSumYZ;
+        mSumZZ += other.mSumZZ;
+        for (int i = 0; i < 3; i++) {
+            mMin[i] = Math.min(mMin[i], other.mMin[i]);
+            mMax[i] = Math.max(mMax[i], other.mMax[i]);
+        }
+        mLastUpdateTimestamp = Math.max(mLastUpdateTimestamp, other.mLastUpdateTimestamp);
+    }
+
+    /**
+     * Least squares refit from the accumulated sums: the normal is the eigenvector of the point
+     * covariance with the smallest eigenvalue.
+     *
+     * @param viewX x position the normal should face if the plane has no previous orientation.
+     * @param viewY y position the normal should face if the plane has no previous orientation.
+     * @param viewZ z position the normal should face if the plane has no previous orientation.
+     */
+    void refit(boolean hasOrientation, float viewX, float viewY, float viewZ, double timestamp) {
+        if (mCount < 3) {
+            return;
+        }
+        double n = mCount;
+        double cx = mSumX / n;
+        double cy = mSumY / n;
+        double cz = mSumZ / n;
+        double[] cov = new double[]{
+                mSumXX / n - cx * cx, mSumXY / n - cx * cy, mSumXZ / n - cx * cz,
+                mSumXY / n - cx * cy, mSumYY / n - cy * cy, mSumYZ / n - cy * cz,
+                mSumXZ / n - cx * cz, mSumYZ / n - cy * cz, mSumZZ / n - cz * cz};
+        double[] normal = new double[3];
+        smallestEigenvector(cov, normal);
+
+        double previousX = mNormal[0];
+        double previousY = mNormal[1];
+        double previousZ = mNormal[2];
+        boolean flip;
+        if (hasOrientation) {
+            flip = normal[0] * previousX + normal[1] * previousY + normal[2] * previousZ < 0;
+        } else {
+            flip = normal[0] * (viewX - cx) + normal[1] * (viewY - cy)
+                    + normal[2] * (viewZ - cz) < 0;
+        }
+        double sign = flip ? -1 : 1;
+        mNormal[0] = (float) (sign * normal[0]);
+        mNormal[1] = (float) (sign * normal[1]);
+        mNormal[2] = (float) (sign * normal[2]);
+        mCentroid[0] = (float) cx;
+        mCentroid[1] = (float) cy;
+        mCentroid[2] = (float) cz;
+        mOffset = -(mNormal[0] * mCentroid[0] + mNormal[1] * mCentroid[1]
+                + mNormal[2] * mCentroid[2]);
+        mLastUpdateTimestamp = timestamp;
+    }
+
+    /**
+     * Cyclic Jacobi eigen decomposition of a symmetric 3x3 matrix, returning the eigenvector of the
+     * smallest eigenvalue.
+     */
+    private static void smallestEigenvector(double[] a, double[] out) {
+        double[] v = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        for (int sweep = 0; sweep < 16; sweep++) {
+            double off = a[1] * a[1] + a[2] * a[2] + a[5] * a[5];
+            if (off < 1e-22) {
+                break;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    double apq = a[p * 3 + q];
+                    if (Math.abs(apq) < 1e-30) {
+                        continue;
+                    }
+                    double app = a[p * 3 + p];
+                    double aqq = a[q * 3 + q];
+                    double theta = (aqq - app) / (2 * apq);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        double akp = a[k * 3 + p];
+                        double akq = a[k * 3 + q];
+                        a[k * 3 + p] = c * akp - s * akq;
+                        a[k * 3 + q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double apk = a[p * 3 + k];
+                        double aqk = a[q * 3 + k];
+                        a[p * 3 + k] = c * apk - s * aqk;
+                        a[q * 3 + k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double vkp = v[k * 3 + p];
+                        double vkq = v[k * 3 + q];
+                        v[k * 3 + p] = c * vkp - s * vkq;
+                        v[k * 3 + q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        int smallest = 0;
+        for (int i = 1; i < 3; i++) {
+            if (a[i * 3 + i] < a[smallest * 3 + smallest]) {
+                smallest = i;
+            }
+        }
+        double x = v[smallest];
+        double y = v[3 + smallest];
+        double z = v[6 + smallest];
+        double length = Math.sqrt(x * x + y * y + z * z);
+        out[0] = x / length;
+        out[1] = y / length;
+        out[2] = z / length;
+    }
+}
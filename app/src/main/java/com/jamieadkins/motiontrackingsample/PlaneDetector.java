@@ -0,0 +1,386 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Incremental plane detection over the depth clouds delivered by a {@link PoseProvider}.
+ * <p/>
+ * Each new cloud is first matched against the planes that are already being tracked; matching
+ * points refine those planes. Whatever is left over is searched for new planes with RANSAC, and
+ * finally planes that have grown into each other are merged. Point assignment and hypothesis
+ * scoring are split across cores on the {@link WorkerPool}. Every pass stops once the per-cloud
+ * time budget is spent so an update always fits into a frame; points left unassigned are dropped
+ * and merges left undone wait for the next cloud.
+ */
+public class PlaneDetector implements PoseProvider.PointCloudListener {
+    /** Default per-cloud budget, just under a 60Hz frame. */
+    public static final long DEFAULT_BUDGET_NANOS = 12000000L;
+
+    /** Maximum distance, in meters, for a point to count as lying on a plane. */
+    private static final float INLIER_DISTANCE = 0.03f;
+    /** How far past its current bounds a plane may grab new points, in meters. */
+    private static final float BOUNDS_MARGIN = 0.25f;
+    /** Smallest number of points that make a new plane. */
+    private static final int MIN_PLANE_POINTS = 200;
+    /** Number of RANSAC hypotheses scored per search round. */
+    private static final int HYPOTHESES_PER_ROUND = 64;
+    /** Upper bound on the planes discovered from a single cloud. */
+    private static final int MAX_NEW_PLANES_PER_CLOUD = 6;
+    /** Planes whose normals are closer than this (cosine of ~10 degrees) may be merged. */
+    private static final float MERGE_NORMAL_COS = 0.985f;
+    /** Planes whose centroids are closer than this to each other's plane may be merged. */
+    private static final float MERGE_DISTANCE = 0.05f;
+    /** Below this many points a parallel task does its work inline. */
+    private static final int SEQUENTIAL_THRESHOLD = 4096;
+    /** Number of points assigned to tracked planes between checks of the budget. */
+    private static final int ASSIGN_SLICE_POINTS = SEQUENTIAL_THRESHOLD * 2;
+
+    private final ForkJoinPool mPool;
+    private final long mBudgetNanos;
+    private final FramePacer.Clock mClock;
+    private final List<Plane> mPlanes = new ArrayList<>();
+    private int mNextPlaneId = 1;
+    private long mRandomSeed = 0x5DEECE66DL;
+
+    // Scratch buffers reused between clouds.
+    private float[] mRemaining = new float[0];
+    private int[] mAssignments = new int[0];
+    private boolean[] mTouched = new boolean[0];
+
+    private long mLastUpdateNanos;
+
+    public PlaneDetector() {
+        this(WorkerPool.get(), DEFAULT_BUDGET_NANOS);
+    }
+
+    public PlaneDetector(ForkJoinPool pool, long budgetNanos) {
+        this(pool, budgetNanos, FramePacer.SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param clock measures the budget, so tests can make the search deterministic.
+     */
+    public PlaneDetector(ForkJoinPool pool, long budgetNanos, FramePacer.Clock clock) {
+        mPool = pool;
+        mBudgetNanos = budgetNanos;
+        mClock = clock;
+    }
+
+    @Override
+    public void onNewPointCloud(PointCloud pointCloud) {
+        float[] sensor = pointCloud.getSensorPosition();
+        update(pointCloud.getPoints(), pointCloud.getNumPoints(), sensor[0], sensor[1], sensor[2],
+                pointCloud.getTimestamp());
+    }
+
+    /**
+     * Folds a new cloud into the tracked planes.
+     *
+     * @param points    points in the start of service frame, packed as x, y, z.
+     * @param numPoints number of valid points.
+     */
+    public synchronized void update(float[] points, int numPoints, float sensorX, float sensorY,
+                                    float sensorZ, double timestamp) {
+        long start = mClock.nanoTime();
+
+        if (mAssignments.length < numPoints) {
+            mAssignments = new int[numPoints];
+            mRemaining = new float[numPoints * 3];
+        }
+
+        // Refine the planes we already know about with the points that land on them.
+        Plane[] planes = mPlanes.toArray(new Plane[mPlanes.size()]);
+        int assigned;
+        if (planes.length > 0) {
+            assigned = 0;
+            while (assigned < numPoints && hasBudget(start)) {
+                int to = Math.min(numPoints, assigned + ASSIGN_SLICE_POINTS);
+                mPool.invoke(new AssignTask(points, planes, mAssignments, assigned, to));
+                assigned = to;
+            }
+        } else {
+            assigned = numPoints;
+            Arrays.fill(mAssignments, 0, numPoints, -1);
+        }
+
+        int remaining = 0;
+        if (mTouched.length < planes.length) {
+            mTouched = new boolean[planes.length];
+        }
+        boolean[] touched = mTouched;
+        Arrays.fill(touched, 0, planes.length, false);
+        for (int i = 0; i < assigned; i++) {
+            int o = i * 3;
+            int plane = mAssignments[i];
+            if (plane >= 0) {
+                planes[plane].addPoint(points[o], points[o + 1], points[o + 2]);
+                touched[plane] = true;
+            } else {
+                mRemaining[remaining * 3] = points[o];
+                mRemaining[remaining * 3 + 1] = points[o + 1];
+                mRemaining[remaining * 3 + 2] = points[o + 2];
+                remaining++;
+            }
+        }
+        for (int i = 0; i < planes.length; i++) {
+            if (touched[i]) {
+                planes[i].refit(true, sensorX, sensorY, sensorZ, timestamp);
+            }
+        }
+
+        // Search the leftovers for new planes until we run out of points or time.
+        int found = 0;
+        while (remaining >= MIN_PLANE_POINTS && found < MAX_NEW_PLANES_PER_CLOUD
+                && hasBudget(start)) {
+            long seed = mRandomSeed;
+            mRandomSeed = mRandomSeed * 6364136223846793005L + 1442695040888963407L;
+            Hypothesis best = mPool.invoke(
+                    new HypothesisTask(mRemaining, remaining, seed, 0, HYPOTHESES_PER_ROUND));
+            if (best == null || best.mInliers < MIN_PLANE_POINTS) {
+                break;
+            }
+
+            Plane plane = new Plane(mNextPlaneId++);
+            int kept = 0;
+            for (int i = 0; i < remaining; i++) {
+                int o = i * 3;
+                float x = mRemaining[o];
+                float y = mRemaining[o + 1];
+                float z = mRemaining[o + 2];
+                if (Math.abs(best.distanceTo(x, y, z)) <= INLIER_DISTANCE) {
+                    plane.addPoint(x, y, z);
+                } else {
+                    mRemaining[kept * 3] = x;
+                    mRemaining[kept * 3 + 1] = y;
+                    mRemaining[kept * 3 + 2] = z;
+                    kept++;
+                }
+            }
+            remaining = kept;
+            plane.refit(false, sensorX, sensorY, sensorZ, timestamp);
+            mPlanes.add(plane);
+            found++;
+        }
+
+        mergePlanes(start);
+        mLastUpdateNanos = mClock.nanoTime() - start;
+    }
+
+    private boolean hasBudget(long start) {
+        return mClock.nanoTime() - start < mBudgetNanos;
+    }
+
+    /**
+     * @return copies of the currently tracked planes.
+     */
+    public synchronized List<Plane> getPlanes() {
+        List<Plane> planes = new ArrayList<>(mPlanes.size());
+        for (Plane plane : mPlanes) {
+            planes.add(new Plane(plane));
+        }
+        return planes;
+    }
+
+    public synchronized void clear() {
+        mPlanes.clear();
+    }
+
+    /**
+     * @return how long the most recent {@link #update} took, in nanoseconds.
+     */
+    public synchronized long getLastUpdateNanos() {
+        return mLastUpdateNanos;
+    }
+
+    public long getBudgetNanos() {
+        return mBudgetNanos;
+    }
+
+    private void mergePlanes(long start) {
+        for (int i = 0; i < mPlanes.size() && hasBudget(start); i++) {
+            Plane a = mPlanes.get(i);
+            Iterator<Plane> iterator = mPlanes.listIterator(i + 1);
+            boolean merged = false;
+            while (iterator.hasNext()) {
+                Plane b = iterator.next();
+                float[] na = a.getNormal();
+                float[] nb = b.getNormal();
+                float dot = na[0] * nb[0] + na[1] * nb[1] + na[2] * nb[2];
+                if (Math.abs(dot) < MERGE_NORMAL_COS) {
+                    continue;
+                }
+                float[] cb = b.getCentroid();
+                float[] ca = a.getCentroid();
+                if (Math.abs(a.distanceTo(cb[0], cb[1], cb[2])) > MERGE_DISTANCE
+                        || Math.abs(b.distanceTo(ca[0], ca[1], ca[2])) > MERGE_DISTANCE
+                        || !a.boundsOverlap(b, BOUNDS_MARGIN)) {
+                    continue;
+                }
+                a.merge(b);
+                iterator.remove();
+                merged = true;
+            }
+            if (merged) {
+                a.refit(true, 0, 0, 0, a.getLastUpdateTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Labels each point with the index of the closest tracked plane it lies on, or -1.
+     */
+    private static class AssignTask extends RecursiveAction {
+        private final float[] mPoints;
+        private final Plane[] mPlanes;
+        private final int[] mOut;
+        private final int mFrom;
+        private final int mTo;
+
+        AssignTask(float[] points, Plane[] planes, int[] out, int from, int to) {
+            mPoints = points;
+            mPlanes = planes;
+            mOut = out;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > SEQUENTIAL_THRESHOLD) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new AssignTask(mPoints, mPlanes, mOut, mFrom, mid),
+                        new AssignTask(mPoints, mPlanes, mOut, mid, mTo));
+                return;
+            }
+            for (int i = mFrom; i < mTo; i++) {
+                int o = i * 3;
+                float x = mPoints[o];
+                float y = mPoints[o + 1];
+                float z = mPoints[o + 2];
+                int best = -1;
+                float bestDistance = INLIER_DISTANCE;
+                for (int p = 0; p < mPlanes.length; p++) {
+                    float distance = Math.abs(mPlanes[p].distanceTo(x, y, z));
+                    if (distance <= bestDistance
+                            && mPlanes[p].isWithinBounds(x, y, z, BOUNDS_MARGIN)) {
+                        best = p;
+                        bestDistance = distance;
+                    }
+                }
+                mOut[i] = best;
+            }
+        }
+    }
+
+    /**
+     * A candidate plane through three sampled points.
+     */
+    private static class Hypothesis {
+        float mNx, mNy, mNz, mD;
+        int mInliers;
+
+        float distanceTo(float x, float y, float z) {
+            return mNx * x + mNy * y + mNz * z + mD;
+        }
+    }
+
+    /**
+     * Scores a range of RANSAC hypotheses and returns the one with the most inliers.
+     */
+    private static class HypothesisTask extends RecursiveTask<Hypothesis> {
+        private final float[] mPoints;
+        private final int mNumPoints;
+        private final long mSeed;
+        private final int mFrom;
+        private final int mTo;
+
+        HypothesisTask(float[] points, int numPoints, long seed, int from, int to) {
+            mPoints = points;
+            mNumPoints = numPoints;
+            mSeed = seed;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected Hypothesis compute() {
+            // Split while there is enough scoring work to go round.
+            if (mTo - mFrom > 1 && (long) (mTo - mFrom) * mNumPoints > SEQUENTIAL_THRESHOLD * 4) {
+                int mid = (mFrom + mTo) >>> 1;
+                HypothesisTask left = new HypothesisTask(mPoints, mNumPoints, mSeed, mFrom, mid);
+                left.fork();
+                Hypothesis right =
+                        new HypothesisTask(mPoints, mNumPoints, mSeed, mid, mTo).compute();
+                Hypothesis other = left.join();
+                if (other == null) {
+                    return right;
+                }
+                return right == null || other.mInliers >= right.mInliers ? other : right;
+            }
+            Hypothesis best = null;
+            for (int h = mFrom; h < mTo; h++) {
+                Hypothesis candidate = sample(h);
+                if (candidate == null) {
+                    continue;
+                }
+                int inliers = 0;
+                for (int i = 0; i < mNumPoints; i++) {
+                    int o = i * 3;
+                    if (Math.abs(candidate.distanceTo(mPoints[o], mPoints[o + 1], mPoints[o + 2]))
+                            <= INLIER_DISTANCE) {
+                        inliers++;
+                    }
+                }
+                candidate.mInliers = inliers;
+                if (best == null || inliers > best.mInliers) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+
+        private Hypothesis sample(int index) {
+            // Each hypothesis derives its own stream from the round seed so the result does not
+            // depend on how the work was split.
+            long state = mSeed ^ (index * 0x9E3779B97F4A7C15L);
+            state = next(state);
+            int a = (int) ((state >>> 33) % mNumPoints);
+            state = next(state);
+            int b = (int) ((state >>> 33) % mNumPoints);
+            state = next(state);
+            int c = (int) ((state >>> 33) % mNumPoints);
+            if (a == b || b == c || a == c) {
+                return null;
+            }
+            float ax = mPoints[a * 3], ay = mPoints[a * 3 + 1], az = mPoints[a * 3 + 2];
+            float ux = mPoints[b * 3] - ax, uy = mPoints[b * 3 + 1] - ay, uz = mPoints[b * 3 + 2] - az;
+            float vx = mPoints[c * 3] - ax, vy = mPoints[c * 3 + 1] - ay, vz = mPoints[c * 3 + 2] - az;
+            float nx = uy * vz - uz * vy;
+            float ny = uz * vx - ux * vz;
+            float nz = ux * vy - uy * vx;
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length < 1e-6f) {
+                return null;
+            }
+            Hypothesis hypothesis = new Hypothesis();
+            hypothesis.mNx = nx / length;
+            hypothesis.mNy = ny / length;
+            hypothesis.mNz = nz / length;
+            hypothesis.mD = -(hypothesis.mNx * ax + hypothesis.mNy * ay + hypothesis.mNz * az);
+            return hypothesis;
+        }
+
+        private static long next(long state) {
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            return state;
+        }
+    }
+}
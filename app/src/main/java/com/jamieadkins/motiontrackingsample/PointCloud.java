@@ -0,0 +1,43 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * A set of depth points, packed as x, y, z triples, together with the position of the sensor that
+ * observed them. Providers deliver clouds already transformed into the start of service frame.
+ */
+public class PointCloud {
+    /** Number of floats used by each point in {@link #mPoints}. */
+    public static final int FLOATS_PER_POINT = 3;
+
+    public double mTimestamp;
+
+    /** Points packed as x, y, z. Only the first {@link #mNumPoints} points are valid. */
+    public float[] mPoints;
+
+    public int mNumPoints;
+
+    /** Position of the depth sensor, in the same frame as the points, when they were captured. */
+    public float[] mSensorPosition = {
+            0.0f, 0.0f, 0.0f };
+
+    public PointCloud(float[] points, int numPoints, long timestamp) {
+        mPoints = points;
+        mNumPoints = numPoints;
+        mTimestamp = timestamp;
+    }
+
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    public float[] getPoints() {
+        return mPoints;
+    }
+
+    public int getNumPoints() {
+        return mNumPoints;
+    }
+
+    public float[] getSensorPosition() {
+        return mSensorPosition;
+    }
+}
@@ -0,0 +1,100 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Watches the pose stream for discontinuities, such as a re-localisation, that no real motion
+ * could explain. Each new pose is compared against a constant velocity prediction from the two
+ * before it; when the difference is too large the jump is reported as the rigid transform that
+ * takes the predicted pose onto the new one, ready for {@link AnchorStore#applyCorrection}.
+ */
+public class PoseCorrectionDetector {
+    /** Default translation error, in meters, beyond which a pose counts as corrected. */
+    public static final float DEFAULT_TRANSLATION_THRESHOLD = 0.1f;
+    /** Default rotation error, in radians, beyond which a pose counts as corrected. */
+    public static final float DEFAULT_ROTATION_THRESHOLD = (float) Math.toRadians(15);
+
+    private final float mTranslationThreshold;
+    private final float mRotationThreshold;
+
+    private int mSamples;
+    private final float[] mPreviousTranslation = new float[3];
+    private final float[] mPreviousRotation = new float[4];
+    private final float[] mLastTranslation = new float[3];
+    private final float[] mLastRotation = new float[4];
+
+    private final float[] mCorrectionRotation = {0, 0, 0, 1};
+    private final float[] mCorrectionTranslation = new float[3];
+    private final float[] mPredicted = new float[3];
+    private final float[] mInverse = new float[4];
+
+    public PoseCorrectionDetector() {
+        this(DEFAULT_TRANSLATION_THRESHOLD, DEFAULT_ROTATION_THRESHOLD);
+    }
+
+    public PoseCorrectionDetector(float translationThreshold, float rotationThreshold) {
+        mTranslationThreshold = translationThreshold;
+        mRotationThreshold = rotationThreshold;
+    }
+
+    /**
+     * Feeds the next pose.
+     *
+     * @return true if this pose is a correction; the transform is then available from
+     * {@link #getCorrectionRotation()} and {@link #getCorrectionTranslation()}.
+     */
+    public boolean onNewPoseData(PoseData pose) {
+        float[] translation = pose.mTranslation;
+        float[] rotation = pose.mRotation;
+        boolean corrected = false;
+
+        if (mSamples >= 2) {
+            // Constant velocity prediction assumes an evenly sampled stream, which both providers
+            // deliver, and keeps this independent of the provider's timestamp units.
+            for (int i = 0; i < 3; i++) {
+                mPredicted[i] = 2 * mLastTranslation[i] - mPreviousTranslation[i];
+            }
+            float dx = translation[0] - mPredicted[0];
+            float dy = translation[1] - mPredicted[1];
+            float dz = translation[2] - mPredicted[2];
+            float translationError = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            float rotationError = PoseMath.angleBetween(mLastRotation, 0, rotation, 0);
+
+            if (translationError > mTranslationThreshold || rotationError > mRotationThreshold) {
+                // C = T_new * T_predicted^-1, with the last orientation standing in for the
+                // predicted one.
+                PoseMath.conjugateQuaternion(mLastRotation, 0, mInverse, 0);
+                PoseMath.multiplyQuaternions(rotation, 0, mInverse, 0, mCorrectionRotation, 0);
+                PoseMath.normalizeQuaternion(mCorrectionRotation, 0);
+                PoseMath.rotateVector(mCorrectionRotation, 0, mPredicted, 0,
+                        mCorrectionTranslation, 0);
+                for (int i = 0; i < 3; i++) {
+                    mCorrectionTranslation[i] = translation[i] - mCorrectionTranslation[i];
+                }
+                corrected = true;
+            }
+        }
+
+        if (corrected) {
+            // Restart the prediction from the corrected pose rather than across the jump.
+            mSamples = 1;
+        } else {
+            System.arraycopy(mLastTranslation, 0, mPreviousTranslation, 0, 3);
+            System.arraycopy(mLastRotation, 0, mPreviousRotation, 0, 4);
+            mSamples++;
+        }
+        System.arraycopy(translation, 0, mLastTranslation, 0, 3);
+        System.arraycopy(rotation, 0, mLastRotation, 0, 4);
+        return corrected;
+    }
+
+    public void reset() {
+        mSamples = 0;
+    }
+
+    public float[] getCorrectionRotation() {
+        return mCorrectionRotation;
+    }
+
+    public float[] getCorrectionTranslation() {
+        return mCorrectionTranslation;
+    }
+}
@@ -92,4 +92,34 @@ public class PoseData {
         }
         return out;
     }
+
+    /**
+     * Transforms packed x, y, z points from the target frame of this pose into its base frame, in
+     * place.
+     *
+     * @param points    points packed as x, y, z.
+     * @param numPoints number of points to transform.
+     */
+    public void transformPoints(float[] points, int numPoints) {
+        float qx = mRotation[INDEX_ROTATION_X];
+        float qy = mRotation[INDEX_ROTATION_Y];
+        float qz = mRotation[INDEX_ROTATION_Z];
+        float qw = mRotation[INDEX_ROTATION_W];
+        float tx = mTranslation[INDEX_TRANSLATION_X];
+        float ty = mTranslation[INDEX_TRANSLATION_Y];
+        float tz = mTranslation[INDEX_TRANSLATION_Z];
+        for (int i = 0; i < numPoints; i++) {
+            int o = i * 3;
+            float vx = points[o];
+            float vy = points[o + 1];
+            float vz = points[o + 2];
+            // v' = v + 2w(q x v) + 2q x (q x v)
+            float cx = 2 * (qy * vz - qz * vy);
+            float cy = 2 * (qz * vx - qx * vz);
+            float cz = 2 * (qx * vy - qy * vx);
+            points[o] = vx + qw * cx + (qy * cz - qz * cy) + tx;
+            points[o + 1] = vy + qw * cy + (qz * cx - qx * cz) + ty;
+            points[o + 2] = vz + qw * cz + (qx * cy - qy * cx) + tz;
+        }
+    }
 }
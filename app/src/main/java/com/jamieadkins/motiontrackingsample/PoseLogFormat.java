@@ -0,0 +1,112 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Layout shared by {@link PoseLogWriter} and {@link PoseLogReader}.
+ * <p/>
+ * A log is a header, a run of independently decodable blocks, a block index and a footer:
+ * <pre>
+ * header: int magic, byte version, float translationStep, byte quaternionBits, int blockSize
+ * block:  bit packed samples, padded to a whole byte
+ * index:  int blockCount, then per block: long firstTimestamp, long offset, int sampleCount
+ * footer: long indexOffset, int magic
+ * </pre>
+ * Inside a block every value is predicted from the samples before it and only the residual is
+ * stored, zigzag mapped and Exp-Golomb coded so small residuals take few bits. Timestamps use
+ * delta of delta, translations are quantised to {@code translationStep} and predicted linearly,
+ * and rotations are packed smallest-three: the index of the largest component in two bits and
+ * the other three quantised to {@code quaternionBits}, predicted linearly while the largest
+ * component stays the same.
+ */
+final class PoseLogFormat {
+    static final int MAGIC = 0x504c4f47; // "PLOG"
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 4 + 1 + 4 + 1 + 4;
+    static final int FOOTER_BYTES = 8 + 4;
+    static final int INDEX_ENTRY_BYTES = 8 + 8 + 4;
+
+    static final int TIMESTAMP_BITS = 64;
+    static final int SAMPLE_COUNT_BITS = 16;
+    static final int LARGEST_INDEX_BITS = 2;
+
+    /** Exp-Golomb order used for every residual. */
+    static final int GOLOMB_ORDER = 0;
+
+    /** Smallest-three components lie within +-1/sqrt(2). */
+    static final float COMPONENT_RANGE = (float) Math.sqrt(0.5);
+
+    private PoseLogFormat() {
+    }
+
+    /**
+     * @return the quantisation step that keeps translations within {@code errorBound} meters.
+     */
+    static float translationStepFor(float errorBound) {
+        return 2 * errorBound;
+    }
+
+    /**
+     * @return the number of bits per smallest-three component needed to keep the rotation error
+     * within {@code errorBoundRadians}.
+     */
+    static int quaternionBitsFor(float errorBoundRadians) {
+        // Each of the three components is off by at most half a step and the fourth is rebuilt
+        // from them, so the quaternion is off by about sqrt(3) half steps in each of two places;
+        // the rotation angle is roughly twice the quaternion error.
+        double step = errorBoundRadians / (2 * Math.sqrt(3));
+        int bits = (int) Math.ceil(Math.log(2 * COMPONENT_RANGE / step + 1) / Math.log(2));
+        return Math.max(6, Math.min(24, bits));
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int largestComponent(float[] q, int offset) {
+        int largest = 0;
+        for (int i = 1; i < 4; i++) {
+            if (Math.abs(q[offset + i]) > Math.abs(q[offset + largest])) {
+                largest = i;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Quantises the three smallest components of {@code q} into {@code out}, flipping the sign
+     * of the whole quaternion so the dropped component is positive.
+     */
+    static void quantizeSmallestThree(float[] q, int largest, int bits, int[] out) {
+        float sign = q[largest] < 0 ? -1 : 1;
+        int max = (1 << bits) - 1;
+        int j = 0;
+        for (int i = 0; i < 4; i++) {
+            if (i == largest) {
+                continue;
+            }
+            float normalized = (sign * q[i] + COMPONENT_RANGE) / (2 * COMPONENT_RANGE);
+            int quantized = Math.round(normalized * max);
+            out[j++] = Math.max(0, Math.min(max, quantized));
+        }
+    }
+
+    static void dequantizeSmallestThree(int[] quantized, int largest, int bits, float[] out) {
+        int max = (1 << bits) - 1;
+        float sumOfSquares = 0;
+        int j = 0;
+        for (int i = 0; i < 4; i++) {
+            if (i == largest) {
+                continue;
+            }
+            float value = quantized[j++] / (float) max * 2 * COMPONENT_RANGE - COMPONENT_RANGE;
+            out[i] = value;
+            sumOfSquares += value * value;
+        }
+        out[largest] = (float) Math.sqrt(Math.max(0, 1 - sumOfSquares));
+        PoseMath.normalizeQuaternion(out, 0);
+    }
+}
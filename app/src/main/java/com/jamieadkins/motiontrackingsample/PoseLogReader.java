@@ -0,0 +1,259 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes logs written by {@link PoseLogWriter}. The log is read from a {@link ByteBuffer}, which
+ * can be a memory mapped file, and the block index lets {@link #seek(long)} jump straight to the
+ * block holding a timestamp instead of decoding from the start.
+ * <p/>
+ * Usage: call {@link #next()} until it returns false, reading each sample through
+ * {@link #getTimestamp()}, {@link #getTranslation()} and {@link #getRotation()}.
+ */
+public class PoseLogReader {
+    private final ByteBuffer mBuffer;
+    private final float mTranslationStep;
+    private final int mQuaternionBits;
+    private final int mBlockSize;
+
+    private final long[] mBlockTimestamps;
+    private final long[] mBlockOffsets;
+    private final int[] mBlockSampleCounts;
+    private final long mSampleCount;
+
+    // Position within the log.
+    private int mBlock = -1;
+    private int mBlockSamples;
+    private int mSampleInBlock;
+    private int mBytePosition;
+    private long mBitBuffer;
+    private int mBitCount;
+
+    // Prediction state, mirroring the writer.
+    private long mTimestamp;
+    private long mPreviousDelta;
+    private final long[] mQuantizedTranslation = new long[3];
+    private final long[] mOlderTranslation = new long[3];
+    private int mPreviousLargest;
+    private int mRotationHistory;
+    private final int[] mRotation = new int[3];
+    private final int[] mOlderRotation = new int[3];
+
+    private final float[] mTranslationOut = new float[3];
+    private final float[] mRotationOut = new float[4];
+
+    public PoseLogReader(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        int limit = buffer.limit();
+        if (limit < PoseLogFormat.HEADER_BYTES + PoseLogFormat.FOOTER_BYTES
+                || buffer.getInt(0) != PoseLogFormat.MAGIC
+                || buffer.getInt(limit - 4) != PoseLogFormat.MAGIC) {
+            throw new IOException("Not a pose log");
+        }
+        if (buffer.get(4) != PoseLogFormat.VERSION) {
+            throw new IOException("Unsupported pose log version " + buffer.get(4));
+        }
+        mTranslationStep = buffer.getFloat(5);
+        mQuaternionBits = buffer.get(9);
+        mBlockSize = buffer.getInt(10);
+
+        int indexOffset = (int) buffer.getLong(limit - PoseLogFormat.FOOTER_BYTES);
+        int blockCount = buffer.getInt(indexOffset);
+        mBlockTimestamps = new long[blockCount];
+        mBlockOffsets = new long[blockCount];
+        mBlockSampleCounts = new int[blockCount];
+        long sampleCount = 0;
+        int position = indexOffset + 4;
+        for (int i = 0; i < blockCount; i++) {
+            mBlockTimestamps[i] = buffer.getLong(position);
+            mBlockOffsets[i] = buffer.getLong(position + 8);
+            mBlockSampleCounts[i] = buffer.getInt(position + 16);
+            sampleCount += mBlockSampleCounts[i];
+            position += PoseLogFormat.INDEX_ENTRY_BYTES;
+        }
+        mSampleCount = sampleCount;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getBlockCount() {
+        return mBlockTimestamps.length;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * Decodes the next sample.
+     *
+     * @return false once the end of the log is reached.
+     */
+    public boolean next() {
+        while (mBlock < 0 || mSampleInBlock == mBlockSamples) {
+            if (mBlock + 1 >= mBlockTimestamps.length) {
+                return false;
+            }
+            startBlock(mBlock + 1);
+        }
+        decodeSample();
+        return true;
+    }
+
+    /**
+     * Positions the reader so that the next call to {@link #next()} returns the first sample at
+     * or after {@code timestamp}.
+     *
+     * @return false if there is no such sample.
+     */
+    public boolean seek(long timestamp) {
+        int low = 0;
+        int high = mBlockTimestamps.length - 1;
+        int block = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mBlockTimestamps[mid] <= timestamp) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (mBlockTimestamps.length == 0) {
+            return false;
+        }
+
+        // Decode forward through the block until we pass the timestamp, then restart the block
+        // and stop one short so next() hands back the matching sample.
+        startBlock(block);
+        int target = -1;
+        while (mSampleInBlock < mBlockSamples) {
+            decodeSample();
+            if (mTimestamp >= timestamp) {
+                target = mSampleInBlock - 1;
+                break;
+            }
+        }
+        if (target < 0) {
+            // Everything in this block is earlier; the answer is the start of the next block.
+            if (block + 1 >= mBlockTimestamps.length) {
+                return false;
+            }
+            startBlock(block + 1);
+            return true;
+        }
+        startBlock(block);
+        for (int i = 0; i < target; i++) {
+            decodeSample();
+        }
+        return true;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return the translation of the current sample. The array is reused by the next call to
+     * {@link #next()}.
+     */
+    public float[] getTranslation() {
+        return mTranslationOut;
+    }
+
+    /**
+     * @return the rotation of the current sample as an x, y, z, w quaternion. The array is reused
+     * by the next call to {@link #next()}.
+     */
+    public float[] getRotation() {
+        return mRotationOut;
+    }
+
+    public PoseData toPoseData() {
+        return new PoseData(mTranslationOut, mRotationOut, mTimestamp);
+    }
+
+    private void startBlock(int block) {
+        mBlock = block;
+        mBytePosition = (int) mBlockOffsets[block];
+        mBitBuffer = 0;
+        mBitCount = 0;
+        mBlockSamples = (int) readBits(PoseLogFormat.SAMPLE_COUNT_BITS);
+        mSampleInBlock = 0;
+    }
+
+    private void decodeSample() {
+        if (mSampleInBlock == 0) {
+            mTimestamp = readBits(PoseLogFormat.TIMESTAMP_BITS);
+        } else if (mSampleInBlock == 1) {
+            mPreviousDelta = readSigned();
+            mTimestamp += mPreviousDelta;
+        } else {
+            mPreviousDelta += readSigned();
+            mTimestamp += mPreviousDelta;
+        }
+
+        for (int i = 0; i < 3; i++) {
+            long predicted;
+            if (mSampleInBlock == 0) {
+                predicted = 0;
+            } else if (mSampleInBlock == 1) {
+                predicted = mQuantizedTranslation[i];
+            } else {
+                predicted = 2 * mQuantizedTranslation[i] - mOlderTranslation[i];
+            }
+            long value = predicted + readSigned();
+            mOlderTranslation[i] = mQuantizedTranslation[i];
+            mQuantizedTranslation[i] = value;
+            mTranslationOut[i] = value * mTranslationStep;
+        }
+
+        int largest = (int) readBits(PoseLogFormat.LARGEST_INDEX_BITS);
+        if (mSampleInBlock == 0 || largest != mPreviousLargest) {
+            mRotationHistory = 0;
+        }
+        for (int i = 0; i < 3; i++) {
+            int value;
+            if (mRotationHistory == 0) {
+                value = (int) readBits(mQuaternionBits);
+            } else if (mRotationHistory == 1) {
+                value = mRotation[i] + (int) readSigned();
+            } else {
+                value = 2 * mRotation[i] - mOlderRotation[i] + (int) readSigned();
+            }
+            mOlderRotation[i] = mRotation[i];
+            mRotation[i] = value;
+        }
+        mRotationHistory = Math.min(2, mRotationHistory + 1);
+        mPreviousLargest = largest;
+        PoseLogFormat.dequantizeSmallestThree(mRotation, largest, mQuaternionBits, mRotationOut);
+
+        mSampleInBlock++;
+    }
+
+    private long readSigned() {
+        int zeros = 0;
+        while (readBits(1) == 0) {
+            zeros++;
+        }
+        int length = zeros + 1 + PoseLogFormat.GOLOMB_ORDER;
+        long v = (1L << (length - 1)) | readBits(length - 1);
+        return PoseLogFormat.unzigzag(v - (1L << PoseLogFormat.GOLOMB_ORDER));
+    }
+
+    private long readBits(int count) {
+        if (count > 32) {
+            long high = readBits(count - 32);
+            return (high << 32) | readBits(32);
+        }
+        while (mBitCount < count) {
+            mBitBuffer = (mBitBuffer << 8) | (mBuffer.get(mBytePosition++) & 0xff);
+            mBitCount += 8;
+        }
+        mBitCount -= count;
+        return (mBitBuffer >>> mBitCount) & ((1L << count) - 1);
+    }
+}
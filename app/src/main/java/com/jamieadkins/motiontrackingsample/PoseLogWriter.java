@@ -0,0 +1,255 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Streams poses into the compact format described in {@link PoseLogFormat}. Samples are bit
+ * packed into an in-memory block which is written out whenever it fills up, so memory use stays
+ * bounded however long the log runs. The block index is written by {@link #close()}.
+ * <p/>
+ * Not thread safe; feed it from a single thread.
+ */
+public class PoseLogWriter {
+    /** Default number of samples per block, about five seconds at 200Hz. */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+    /** Default translation error bound, in meters. */
+    public static final float DEFAULT_TRANSLATION_ERROR = 0.0005f;
+    /** Default rotation error bound, in radians. */
+    public static final float DEFAULT_ROTATION_ERROR = (float) Math.toRadians(0.05);
+
+    private final DataOutputStream mOut;
+    private final int mBlockSize;
+    private final float mTranslationStep;
+    private final int mQuaternionBits;
+
+    private long mBytesWritten;
+    private boolean mClosed;
+
+    // Block index, grown as blocks are flushed.
+    private long[] mBlockTimestamps = new long[16];
+    private long[] mBlockOffsets = new long[16];
+    private int[] mBlockSampleCounts = new int[16];
+    private int mBlockCount;
+    private long mSampleCount;
+
+    // Current block.
+    private byte[] mBlock = new byte[4096];
+    private int mBlockBytes;
+    private long mBitBuffer;
+    private int mBitCount;
+    private int mBlockSamples;
+    private long mBlockFirstTimestamp;
+
+    // Prediction state, reset at the start of every block.
+    private long mPreviousTimestamp;
+    private long mPreviousDelta;
+    private final long[] mTranslation = new long[3];
+    private final long[] mPreviousTranslation = new long[3];
+    private final long[] mOlderTranslation = new long[3];
+    private int mPreviousLargest;
+    private int mRotationHistory;
+    private final int[] mRotation = new int[3];
+    private final int[] mPreviousRotation = new int[3];
+    private final int[] mOlderRotation = new int[3];
+    private final float[] mNormalized = new float[4];
+
+    public PoseLogWriter(OutputStream out) throws IOException {
+        this(out, DEFAULT_BLOCK_SIZE, DEFAULT_TRANSLATION_ERROR, DEFAULT_ROTATION_ERROR);
+    }
+
+    /**
+     * @param translationError largest allowed translation error, in meters.
+     * @param rotationError    largest allowed rotation error, in radians.
+     */
+    public PoseLogWriter(OutputStream out, int blockSize, float translationError,
+                         float rotationError) throws IOException {
+        if (blockSize <= 0 || blockSize >= 1 << PoseLogFormat.SAMPLE_COUNT_BITS) {
+            throw new IllegalArgumentException("Block size out of range: " + blockSize);
+        }
+        mOut = new DataOutputStream(out);
+        mBlockSize = blockSize;
+        mTranslationStep = PoseLogFormat.translationStepFor(translationError);
+        mQuaternionBits = PoseLogFormat.quaternionBitsFor(rotationError);
+
+        mOut.writeInt(PoseLogFormat.MAGIC);
+        mOut.writeByte(PoseLogFormat.VERSION);
+        mOut.writeFloat(mTranslationStep);
+        mOut.writeByte(mQuaternionBits);
+        mOut.writeInt(mBlockSize);
+        mBytesWritten = PoseLogFormat.HEADER_BYTES;
+    }
+
+    public void write(PoseData pose) throws IOException {
+        write((long) pose.getTimestamp(), pose.mTranslation, pose.mRotation);
+    }
+
+    /**
+     * Appends a sample. Timestamps must not go backwards.
+     *
+     * @param translation x, y, z in meters.
+     * @param rotation    x, y, z, w quaternion.
+     */
+    public void write(long timestamp, float[] translation, float[] rotation) throws IOException {
+        if (mClosed) {
+            throw new IOException("Log already closed");
+        }
+
+        if (mBlockSamples == 0) {
+            mBlockFirstTimestamp = timestamp;
+            writeBits(mBlockSize, PoseLogFormat.SAMPLE_COUNT_BITS);
+            writeBits(timestamp, PoseLogFormat.TIMESTAMP_BITS);
+        } else if (mBlockSamples == 1) {
+            mPreviousDelta = timestamp - mPreviousTimestamp;
+            writeSigned(mPreviousDelta);
+        } else {
+            long delta = timestamp - mPreviousTimestamp;
+            writeSigned(delta - mPreviousDelta);
+            mPreviousDelta = delta;
+        }
+        mPreviousTimestamp = timestamp;
+
+        for (int i = 0; i < 3; i++) {
+            mTranslation[i] = Math.round(translation[i] / mTranslationStep);
+            long predicted;
+            if (mBlockSamples == 0) {
+                predicted = 0;
+            } else if (mBlockSamples == 1) {
+                predicted = mPreviousTranslation[i];
+            } else {
+                predicted = 2 * mPreviousTranslation[i] - mOlderTranslation[i];
+            }
+            writeSigned(mTranslation[i] - predicted);
+            mOlderTranslation[i] = mPreviousTranslation[i];
+            mPreviousTranslation[i] = mTranslation[i];
+        }
+
+        System.arraycopy(rotation, 0, mNormalized, 0, 4);
+        PoseMath.normalizeQuaternion(mNormalized, 0);
+        int largest = PoseLogFormat.largestComponent(mNormalized, 0);
+        PoseLogFormat.quantizeSmallestThree(mNormalized, largest, mQuaternionBits, mRotation);
+        writeBits(largest, PoseLogFormat.LARGEST_INDEX_BITS);
+        if (mBlockSamples == 0 || largest != mPreviousLargest) {
+            mRotationHistory = 0;
+        }
+        for (int i = 0; i < 3; i++) {
+            if (mRotationHistory == 0) {
+                writeBits(mRotation[i], mQuaternionBits);
+            } else if (mRotationHistory == 1) {
+                writeSigned(mRotation[i] - mPreviousRotation[i]);
+            } else {
+                writeSigned(mRotation[i] - (2 * mPreviousRotation[i] - mOlderRotation[i]));
+            }
+            mOlderRotation[i] = mPreviousRotation[i];
+            mPreviousRotation[i] = mRotation[i];
+        }
+        mRotationHistory = Math.min(2, mRotationHistory + 1);
+        mPreviousLargest = largest;
+
+        mBlockSamples++;
+        mSampleCount++;
+        if (mBlockSamples == mBlockSize) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Flushes the final block and writes the index and footer. Does not close the underlying
+     * stream.
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        if (mBlockSamples > 0) {
+            flushBlock();
+        }
+        long indexOffset = mBytesWritten;
+        mOut.writeInt(mBlockCount);
+        for (int i = 0; i < mBlockCount; i++) {
+            mOut.writeLong(mBlockTimestamps[i]);
+            mOut.writeLong(mBlockOffsets[i]);
+            mOut.writeInt(mBlockSampleCounts[i]);
+        }
+        mOut.writeLong(indexOffset);
+        mOut.writeInt(PoseLogFormat.MAGIC);
+        mOut.flush();
+        mBytesWritten += 4 + (long) mBlockCount * PoseLogFormat.INDEX_ENTRY_BYTES
+                + PoseLogFormat.FOOTER_BYTES;
+        mClosed = true;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return bytes written so far, including everything once the log is closed.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public float getTranslationStep() {
+        return mTranslationStep;
+    }
+
+    public int getQuaternionBits() {
+        return mQuaternionBits;
+    }
+
+    private void flushBlock() throws IOException {
+        int sampleCount = mBlockSamples;
+        // Pad to a whole byte so blocks can be decoded on their own.
+        if (mBitCount > 0) {
+            writeBits(0, 8 - mBitCount);
+        }
+        // The block header promised a full block; patch in the real count.
+        mBlock[0] = (byte) (sampleCount >>> 8);
+        mBlock[1] = (byte) sampleCount;
+
+        if (mBlockCount == mBlockOffsets.length) {
+            int capacity = mBlockCount * 2;
+            mBlockTimestamps = Arrays.copyOf(mBlockTimestamps, capacity);
+            mBlockOffsets = Arrays.copyOf(mBlockOffsets, capacity);
+            mBlockSampleCounts = Arrays.copyOf(mBlockSampleCounts, capacity);
+        }
+        mBlockTimestamps[mBlockCount] = mBlockFirstTimestamp;
+        mBlockOffsets[mBlockCount] = mBytesWritten;
+        mBlockSampleCounts[mBlockCount] = sampleCount;
+        mBlockCount++;
+
+        mOut.write(mBlock, 0, mBlockBytes);
+        mBytesWritten += mBlockBytes;
+        mBlockBytes = 0;
+        mBlockSamples = 0;
+    }
+
+    /**
+     * Zigzag maps a signed residual and writes it as an Exp-Golomb code.
+     */
+    private void writeSigned(long value) {
+        long v = PoseLogFormat.zigzag(value) + (1L << PoseLogFormat.GOLOMB_ORDER);
+        int length = 64 - Long.numberOfLeadingZeros(v);
+        writeBits(0, length - 1 - PoseLogFormat.GOLOMB_ORDER);
+        writeBits(v, length);
+    }
+
+    private void writeBits(long value, int count) {
+        while (count > 32) {
+            count -= 32;
+            writeBits(value >>> count, 32);
+        }
+        mBitBuffer = (mBitBuffer << count) | (value & ((1L << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            if (mBlockBytes == mBlock.length) {
+                mBlock = Arrays.copyOf(mBlock, mBlock.length * 2);
+            }
+            mBlock[mBlockBytes++] = (byte) (mBitBuffer >>> mBitCount);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Allocation free helpers for the rigid transforms used throughout the app. Quaternions are
+ * stored (x, y, z, w) like {@link PoseData#mRotation} and translations as (x, y, z).
+ */
+public final class PoseMath {
+    private PoseMath() {
+    }
+
+    /**
+     * out = a * b. {@code out} may alias either input.
+     */
+    public static void multiplyQuaternions(float[] a, int aOffset, float[] b, int bOffset,
+                                           float[] out, int outOffset) {
+        float ax = a[aOffset], ay = a[aOffset + 1], az = a[aOffset + 2], aw = a[aOffset + 3];
+        float bx = b[bOffset], by = b[bOffset + 1], bz = b[bOffset + 2], bw = b[bOffset + 3];
+        out[outOffset] = aw * bx + ax * bw + ay * bz - az * by;
+        out[outOffset + 1] = aw * by - ax * bz + ay * bw + az * bx;
+        out[outOffset + 2] = aw * bz + ax * by - ay * bx + az * bw;
+        out[outOffset + 3] = aw * bw - ax * bx - ay * by - az * bz;
+    }
+
+    /**
+     * Writes the conjugate, which is also the inverse of a unit quaternion.
+     */
+    public static void conjugateQuaternion(float[] q, int qOffset, float[] out, int outOffset) {
+        out[outOffset] = -q[qOffset];
+        out[outOffset + 1] = -q[qOffset + 1];
+        out[outOffset + 2] = -q[qOffset + 2];
+        out[outOffset + 3] = q[qOffset + 3];
+    }
+
+    /**
+     * Rotates the vector {@code v} by the unit quaternion {@code q}. {@code out} may alias
+     * {@code v}.
+     */
+    public static void rotateVector(float[] q, int qOffset, float[] v, int vOffset,
+                                    float[] out, int outOffset) {
+        float qx = q[qOffset], qy = q[qOffset + 1], qz = q[qOffset + 2], qw = q[qOffset + 3];
+        float vx = v[vOffset], vy = v[vOffset + 1], vz = v[vOffset + 2];
+        // v' = v + 2w(q x v) + 2q x (q x v)
+        float cx = 2 * (qy * vz - qz * vy);
+        float cy = 2 * (qz * vx - qx * vz);
+        float cz = 2 * (qx * vy - qy * vx);
+        out[outOffset] = vx + qw * cx + (qy * cz - qz * cy);
+        out[outOffset + 1] = vy + qw * cy + (qz * cx - qx * cz);
+        out[outOffset + 2] = vz + qw * cz + (qx * cy - qy * cx);
+    }
+
+    public static void normalizeQuaternion(float[] q, int offset) {
+        float x = q[offset], y = q[offset + 1], z = q[offset + 2], w = q[offset + 3];
+        float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+        if (length < 1e-12f) {
+            q[offset] = 0;
+            q[offset + 1] = 0;
+            q[offset + 2] = 0;
+            q[offset + 3] = 1;
+            return;
+        }
+        float inverse = 1 / length;
+        q[offset] = x * inverse;
+        q[offset + 1] = y * inverse;
+        q[offset + 2] = z * inverse;
+        q[offset + 3] = w * inverse;
+    }
+
+    /**
+     * @return the angle, in radians, of the rotation taking {@code a} to {@code b}.
+     */
+    public static float angleBetween(float[] a, int aOffset, float[] b, int bOffset) {
+        float dot = a[aOffset] * b[bOffset] + a[aOffset + 1] * b[bOffset + 1]
+                + a[aOffset + 2] * b[bOffset + 2] + a[aOffset + 3] * b[bOffset + 3];
+        dot = Math.min(1.0f, Math.abs(dot));
+        return (float) (2 * Math.acos(dot));
+    }
+
+    /**
+     * Spherical linear interpolation between two unit quaternions, taking the short way round.
+     * {@code out} may alias either input.
+     */
+    public static void slerp(float[] a, int aOffset, float[] b, int bOffset, float t,
+                             float[] out, int outOffset) {
+        float ax = a[aOffset], ay = a[aOffset + 1], az = a[aOffset + 2], aw = a[aOffset + 3];
+        float bx = b[bOffset], by = b[bOffset + 1], bz = b[bOffset + 2], bw = b[bOffset + 3];
+        float dot = ax * bx + ay * by + az * bz + aw * bw;
+        if (dot < 0) {
+            dot = -dot;
+            bx = -bx;
+            by = -by;
+            bz = -bz;
+            bw = -bw;
+        }
+        float wa;
+        float wb;
+        if (dot > 0.9995f) {
+            // Nearly parallel, a normalised lerp is accurate and avoids dividing by ~0.
+            wa = 1 - t;
+            wb = t;
+        } else {
+            double theta = Math.acos(dot);
+            double sinTheta = Math.sin(theta);
+            wa = (float) (Math.sin((1 - t) * theta) / sinTheta);
+            wb = (float) (Math.sin(t * theta) / sinTheta);
+        }
+        out[outOffset] = wa * ax + wb * bx;
+        out[outOffset + 1] = wa * ay + wb * by;
+        out[outOffset + 2] = wa * az + wb * bz;
+        out[outOffset + 3] = wa * aw + wb * bw;
+        normalizeQuaternion(out, outOffset);
+    }
+}
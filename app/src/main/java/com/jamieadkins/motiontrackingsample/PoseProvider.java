@@ -6,12 +6,35 @@ import android.content.Context;
  * Class that provides pose information (translations and rotation).
  */
 public abstract class PoseProvider {
+    // Frames in the transform tree. The camera frame is the usual vision one, x right, y down and
+    // z forward; the render camera is the OpenGL one, y up and z backward.
+    public static final String FRAME_WORLD = "world";
+    public static final String FRAME_DEVICE = "device";
+    public static final String FRAME_CAMERA = "camera";
+    public static final String FRAME_RENDER_CAMERA = "renderCamera";
+    // The render camera turned to match the screen's rotation, kept up to date by the activity.
+    public static final String FRAME_DISPLAY = "display";
+
+    // A half turn about x, between the device or render camera and the camera frame.
+    protected static final float[] FLIP_Y_Z = {1, 0, 0, 0};
+    protected static final float[] NO_TRANSLATION = {0, 0, 0};
+
     protected Context mContext;
     protected PoseProviderListener mPoseProviderListener;
+    protected PointCloudListener mPointCloudListener;
 
     protected PoseData mLatestPoseData;
     protected Intrinsics mIntrinsics;
 
+    protected final TrackingStateMachine mTrackingStateMachine = new TrackingStateMachine();
+    protected final TransformTree mTransformTree = new TransformTree();
+    protected final int mWorldFrame = mTransformTree.addFrame(FRAME_WORLD);
+    protected final int mDeviceFrame = mTransformTree.addFrame(FRAME_DEVICE);
+    protected final int mCameraFrame = mTransformTree.addFrame(FRAME_CAMERA);
+    protected final int mRenderCameraFrame = mTransformTree.addFrame(FRAME_RENDER_CAMERA);
+    protected final int mDisplayFrame = mTransformTree.addFrame(FRAME_DISPLAY);
+    private final Tracer.RateCounter mPoseRate = new Tracer.RateCounter("poseRate");
+
     public static final Object POSE_LOCK = new Object();
 
     public interface PoseProviderListener {
@@ -20,12 +43,25 @@ public abstract class PoseProvider {
         void onNewPoseData(PoseData newPoseData);
     }
 
+    /**
+     * Receives depth data from providers that have a depth sensor.
+     */
+    public interface PointCloudListener {
+        void onNewPointCloud(PointCloud pointCloud);
+    }
+
     public PoseProvider(Context context, PoseProviderListener listener) {
         mContext = context;
         mPoseProviderListener = listener;
 
-        // Android APIs don't provide a way to obtain camera intrinsics so we spoof them instead.
-        mIntrinsics = new Intrinsics();
+        // Without extrinsics, the camera is taken to sit at the device's origin looking out of
+        // the back, which leaves the render camera on the device. Providers that know better
+        // replace the device to camera edge.
+        mTransformTree.setStaticTransform(mDeviceFrame, mCameraFrame, NO_TRANSLATION, FLIP_Y_Z);
+        mTransformTree.setStaticTransform(mCameraFrame, mRenderCameraFrame, NO_TRANSLATION,
+                FLIP_Y_Z);
+        mTransformTree.setStaticTransform(mRenderCameraFrame, mDisplayFrame, NO_TRANSLATION,
+                new float[]{0, 0, 0, 1});
     }
 
     public abstract void onStartPoseProviding();
@@ -34,18 +70,98 @@ public abstract class PoseProvider {
 
     public abstract void setup();
 
-    protected void onNewPoseData(PoseData newPoseData){
+    /**
+     * Passes a new pose on to the listener, unless the tracking state says it can't be trusted, in
+     * which case the last good pose is held.
+     *
+     * @param status what the underlying sensor or service reported for this pose.
+     */
+    protected void onNewPoseData(PoseData newPoseData, TrackingStateMachine.PoseStatus status) {
+        long now = System.nanoTime();
+        mPoseRate.tick(now);
+        if (!mTrackingStateMachine.update(status, now)) {
+            return;
+        }
+
+        synchronized (POSE_LOCK) {
+            mLatestPoseData = newPoseData;
+        }
+        // Against arrival time, like the trajectory, since the providers' own timestamps are on
+        // different clocks and units.
+        mTransformTree.addTransform(mWorldFrame, mDeviceFrame, now, newPoseData.mTranslation,
+                newPoseData.mRotation);
+
         if (mPoseProviderListener != null) {
             mPoseProviderListener.onNewPoseData(newPoseData);
         }
     }
 
+    /**
+     * For status changes reported without a pose, e.g. a sensor accuracy change.
+     */
+    protected void onPoseStatusChanged(TrackingStateMachine.PoseStatus status) {
+        mTrackingStateMachine.update(status, System.nanoTime());
+    }
+
+    protected void onNewPointCloud(PointCloud pointCloud) {
+        if (mPointCloudListener != null) {
+            mPointCloudListener.onNewPointCloud(pointCloud);
+        }
+    }
+
+    /**
+     * Sets the listener for depth data. Providers without a depth sensor never call it.
+     */
+    public void setPointCloudListener(PointCloudListener listener) {
+        mPointCloudListener = listener;
+    }
+
+    /**
+     * @return the latest pose that was good enough to render.
+     */
     public PoseData getLatestPoseData() {
         synchronized (POSE_LOCK) {
             return mLatestPoseData;
         }
     }
 
+    /**
+     * Asks for sensor samples at most this often, to save power. Providers that can't change
+     * their rate ignore it.
+     *
+     * @param periodMicros the sampling period, or 0 for as fast as the sensors go.
+     */
+    public void setSensorPeriodMicros(int periodMicros) {
+    }
+
+    public TrackingState getTrackingState() {
+        return mTrackingStateMachine.getState();
+    }
+
+    /**
+     * @return the state machine, for its time in state and recovery counters.
+     */
+    public TrackingStateMachine getTrackingStateMachine() {
+        return mTrackingStateMachine;
+    }
+
+    public void setTrackingStateListener(TrackingStateMachine.Listener listener) {
+        mTrackingStateMachine.setListener(listener);
+    }
+
+    /**
+     * @return the device's frames: the world, the device itself, its color camera, the render
+     * camera and the display, with the device's pose in the world against arrival time on
+     * {@link System#nanoTime()}.
+     */
+    public TransformTree getTransformTree() {
+        return mTransformTree;
+    }
+
+    /**
+     * @return the color camera's intrinsics if the provider gets them from its service, otherwise
+     * null and the camera stream's own should be used.
+     */
     public Intrinsics getIntrinsics() {
         return mIntrinsics;
     }
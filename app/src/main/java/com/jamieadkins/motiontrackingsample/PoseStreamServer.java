@@ -0,0 +1,230 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Optional endpoint that streams every pose to an external consumer as a UDP datagram with a
+ * fixed binary layout (big endian):
+ * <pre>
+ *  0 int   magic
+ *  4 int   sequence number
+ *  8 long  pose timestamp, in the provider's units
+ * 16 long  System.nanoTime() when the pose was published
+ * 24 float translation x, y, z
+ * 36 float rotation x, y, z, w
+ * </pre>
+ * Publishing only copies the pose into a slot and wakes the sender thread; a pose that hasn't
+ * been sent by the time the next one arrives is replaced. The sender writes from a
+ * preallocated direct buffer through a non-blocking channel and drops the packet if the socket
+ * buffer is full, so a slow or absent consumer never holds up the sensor thread. Sending happens
+ * off the publishing thread because Android delivers sensor callbacks on the main thread, where
+ * network I/O isn't allowed.
+ */
+public class PoseStreamServer {
+    public static final int MAGIC = 0x504f5345; // "POSE"
+    public static final int PACKET_BYTES = 52;
+
+    public static final int OFFSET_SEQUENCE = 4;
+    public static final int OFFSET_TIMESTAMP = 8;
+    public static final int OFFSET_PUBLISH_NANOS = 16;
+    public static final int OFFSET_TRANSLATION = 24;
+    public static final int OFFSET_ROTATION = 36;
+
+    /** How long the sender sleeps between checks for shutdown when there is nothing to send. */
+    private static final long IDLE_PARK_NANOS = 100000000L;
+
+    private final InetSocketAddress mDestination;
+
+    private DatagramChannel mChannel;
+    private final ByteBuffer mPacket = ByteBuffer.allocateDirect(PACKET_BYTES);
+    private Thread mSenderThread;
+    private volatile boolean mRunning;
+
+    // Triple buffer between the publishing thread and the sender. The publisher fills its own
+    // slot and swaps it with the ready slot; the sender swaps the ready slot with its own. Neither
+    // side ever waits for the other.
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+    private static final int FLOATS_PER_SLOT = 7;
+    private final long[] mSlotTimestamps = new long[3];
+    private final long[] mSlotPublishNanos = new long[3];
+    private final float[] mSlotValues = new float[3 * FLOATS_PER_SLOT];
+    private final AtomicInteger mReadySlot = new AtomicInteger(1);
+    private int mPublishSlot = 0;
+    private int mSendSlot = 2;
+    private int mSequence;
+
+    private volatile long mPublished;
+    private volatile long mSent;
+    private volatile long mReplaced;
+    private volatile long mDropped;
+    private volatile long mErrors;
+
+    public PoseStreamServer(String host, int port) {
+        this(new InetSocketAddress(host, port));
+    }
+
+    public PoseStreamServer(InetSocketAddress destination) {
+        mDestination = destination;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mChannel = DatagramChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.connect(mDestination);
+        mRunning = true;
+        mSenderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "PoseStreamSender");
+        mSenderThread.setPriority(Thread.MAX_PRIORITY);
+        mSenderThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mSenderThread);
+        try {
+            mSenderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // A pose published after the sender's last pass is never sent; count it, and don't send
+        // it stale if the server is started again.
+        int ready = mReadySlot.get();
+        if ((ready & FRESH) != 0) {
+            mReadySlot.set(ready & INDEX_MASK);
+            mDropped++;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            mErrors++;
+        }
+        mSenderThread = null;
+        mChannel = null;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Queues a pose for sending. Never blocks; call it from one thread at a time.
+     */
+    public void publish(PoseData pose) {
+        if (!mRunning) {
+            return;
+        }
+        int slot = mPublishSlot;
+        mSlotTimestamps[slot] = (long) pose.getTimestamp();
+        mSlotPublishNanos[slot] = System.nanoTime();
+        System.arraycopy(pose.mTranslation, 0, mSlotValues, slot * FLOATS_PER_SLOT, 3);
+        System.arraycopy(pose.mRotation, 0, mSlotValues, slot * FLOATS_PER_SLOT + 3, 4);
+        int previous = mReadySlot.getAndSet(slot | FRESH);
+        if ((previous & FRESH) != 0) {
+            mReplaced++;
+        }
+        mPublishSlot = previous & INDEX_MASK;
+        mPublished++;
+        LockSupport.unpark(mSenderThread);
+    }
+
+    /**
+     * @return poses handed to {@link #publish}.
+     */
+    public long getPublishedCount() {
+        return mPublished;
+    }
+
+    /**
+     * @return packets the socket accepted.
+     */
+    public long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * @return poses overwritten by a newer one before the sender got to them.
+     */
+    public long getReplacedCount() {
+        return mReplaced;
+    }
+
+    /**
+     * @return packets dropped because the socket buffer was full, and poses still waiting to be
+     * sent when the server was stopped.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    public long getErrorCount() {
+        return mErrors;
+    }
+
+    private void sendLoop() {
+        while (mRunning) {
+            if ((mReadySlot.get() & FRESH) == 0) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            int slot = mReadySlot.getAndSet(mSendSlot) & INDEX_MASK;
+            mSendSlot = slot;
+
+            mPacket.clear();
+            mPacket.putInt(MAGIC);
+            mPacket.putInt(mSequence++);
+            mPacket.putLong(mSlotTimestamps[slot]);
+            mPacket.putLong(mSlotPublishNanos[slot]);
+            for (int i = 0; i < FLOATS_PER_SLOT; i++) {
+                mPacket.putFloat(mSlotValues[slot * FLOATS_PER_SLOT + i]);
+            }
+            mPacket.flip();
+            try {
+                if (mChannel.write(mPacket) == 0) {
+                    mDropped++;
+                } else {
+                    mSent++;
+                }
+            } catch (IOException e) {
+                // Typically nobody listening yet; keep going, a consumer may turn up later.
+                mErrors++;
+            }
+        }
+    }
+
+    /**
+     * Decodes a packet, for consumers written in Java.
+     *
+     * @return the pose, or null if the packet isn't a pose packet.
+     */
+    public static PoseData decodePacket(ByteBuffer packet) {
+        if (packet.remaining() < PACKET_BYTES || packet.getInt(packet.position()) != MAGIC) {
+            return null;
+        }
+        int base = packet.position();
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        for (int i = 0; i < 3; i++) {
+            translation[i] = packet.getFloat(base + OFFSET_TRANSLATION + i * 4);
+        }
+        for (int i = 0; i < 4; i++) {
+            rotation[i] = packet.getFloat(base + OFFSET_ROTATION + i * 4);
+        }
+        return new PoseData(translation, rotation, packet.getLong(base + OFFSET_TIMESTAMP));
+    }
+}
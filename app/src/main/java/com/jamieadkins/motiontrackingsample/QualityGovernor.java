@@ -0,0 +1,273 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Steps the app's quality down a fixed ladder as the device heats up or frames overrun, and back
+ * up once there is headroom again, so long sessions degrade gradually instead of being throttled
+ * into a collapse.
+ * <p/>
+ * Each {@link Level} sets the sensor rate, camera preview size, render rate and model detail.
+ * The thermal status, on {@code PowerManager}'s scale, sets the lowest quality the current level
+ * may be, and the governor drops straight to it. Frame times overrunning the budget for a while
+ * step one level down at a time. Stepping back up only happens a level at a time, once the device
+ * is cool and frames have had spare time for {@link #STEP_UP_AFTER_NANOS}; after any change the
+ * frame times are given {@link #SETTLE_NANOS} to reflect it.
+ * <p/>
+ * Not thread safe; feed it from one thread. Times are on any monotonic nanosecond clock.
+ */
+public class QualityGovernor {
+    // PowerManager.THERMAL_STATUS_*.
+    public static final int THERMAL_STATUS_NONE = 0;
+    public static final int THERMAL_STATUS_LIGHT = 1;
+    public static final int THERMAL_STATUS_MODERATE = 2;
+    public static final int THERMAL_STATUS_SEVERE = 3;
+    public static final int THERMAL_STATUS_CRITICAL = 4;
+    public static final int THERMAL_STATUS_EMERGENCY = 5;
+    public static final int THERMAL_STATUS_SHUTDOWN = 6;
+
+    /** Sensor period meaning as fast as the sensor goes. */
+    public static final int SENSOR_PERIOD_FASTEST = 0;
+
+    public static final int DETAIL_FULL = 0;
+    public static final int DETAIL_REDUCED = 1;
+
+    /** Fraction of the frame budget the average frame must stay over to step down. */
+    public static final float OVERLOAD_THRESHOLD = 0.95f;
+    /** Fraction of the frame budget the average frame must stay under to step up. */
+    public static final float HEADROOM_THRESHOLD = 0.6f;
+
+    public static final long OVERLOAD_AFTER_NANOS = 2000000000L;
+    public static final long STEP_UP_AFTER_NANOS = 30000000000L;
+    public static final long SETTLE_NANOS = 2000000000L;
+
+    /** Weight of the newest frame in the moving average. */
+    private static final float SMOOTHING = 0.05f;
+
+    /**
+     * One rung of the ladder.
+     */
+    public static class Level {
+        public final int mIndex;
+        /** Sensor sampling period in microseconds, or {@link #SENSOR_PERIOD_FASTEST}. */
+        public final int mSensorPeriodMicros;
+        public final int mPreviewWidth;
+        public final int mPreviewHeight;
+        /** Vsyncs per rendered frame. */
+        public final int mFrameInterval;
+        public final int mDetail;
+
+        public Level(int index, int sensorPeriodMicros, int previewWidth, int previewHeight,
+                     int frameInterval, int detail) {
+            mIndex = index;
+            mSensorPeriodMicros = sensorPeriodMicros;
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
+            mFrameInterval = frameInterval;
+            mDetail = detail;
+        }
+
+        @Override
+        public String toString() {
+            return "level " + mIndex + " (sensors "
+                    + (mSensorPeriodMicros == SENSOR_PERIOD_FASTEST
+                    ? "fastest" : mSensorPeriodMicros + "us")
+                    + ", preview " + mPreviewWidth + "x" + mPreviewHeight + ", every "
+                    + mFrameInterval + " vsync, " + (mDetail == DETAIL_FULL ? "full" : "reduced")
+                    + " detail)";
+        }
+    }
+
+    /**
+     * Cheapest savings first: model detail, then sensor rate and preview size, and only then the
+     * render rate, which users notice most.
+     */
+    public static final Level[] DEFAULT_LADDER = {
+            new Level(0, SENSOR_PERIOD_FASTEST, 1920, 1080, 1, DETAIL_FULL),
+            new Level(1, SENSOR_PERIOD_FASTEST, 1920, 1080, 1, DETAIL_REDUCED),
+            new Level(2, 5000, 1280, 720, 1, DETAIL_REDUCED),
+            new Level(3, 10000, 1280, 720, 2, DETAIL_REDUCED),
+            new Level(4, 20000, 640, 480, 2, DETAIL_REDUCED),
+    };
+
+    public interface Listener {
+        void onQualityLevelChanged(Level previous, Level current);
+    }
+
+    private final Level[] mLadder;
+    private final Listener mListener;
+
+    private int mLevel;
+    private int mThermalStatus = THERMAL_STATUS_NONE;
+    private double mAverageLoad = -1;
+    private long mLastChangeNanos = -1;
+    private long mOverloadSinceNanos = -1;
+    private long mHeadroomSinceNanos = -1;
+
+    private int mStepDownCount;
+    private int mStepUpCount;
+    private int mLowestLevel;
+    private final long[] mNanosAtLevel;
+    private long mLastUpdateNanos = -1;
+
+    public QualityGovernor(Listener listener) {
+        this(DEFAULT_LADDER, listener);
+    }
+
+    public QualityGovernor(Level[] ladder, Listener listener) {
+        if (ladder.length == 0) {
+            throw new IllegalArgumentException("Ladder must have at least one level");
+        }
+        mLadder = ladder;
+        mListener = listener;
+        mNanosAtLevel = new long[ladder.length];
+    }
+
+    /**
+     * Takes a new thermal status, stepping straight down to the level it calls for if needed.
+     */
+    public void onThermalStatus(int status, long nowNanos) {
+        accountTime(nowNanos);
+        mThermalStatus = status;
+        int floor = floorForThermalStatus(status);
+        if (mLevel < floor) {
+            setLevel(floor, nowNanos);
+        }
+        if (status > THERMAL_STATUS_LIGHT) {
+            mHeadroomSinceNanos = -1;
+        }
+    }
+
+    /**
+     * Takes the time a rendered frame kept the device busy.
+     *
+     * @param budgetNanos the time available for it, i.e. the vsync period times the frame
+     *                    interval.
+     */
+    public void onFrameTime(long busyNanos, long budgetNanos, long nowNanos) {
+        accountTime(nowNanos);
+        if (budgetNanos <= 0) {
+            return;
+        }
+        double load = busyNanos / (double) budgetNanos;
+        mAverageLoad = mAverageLoad < 0 ? load : mAverageLoad + (load - mAverageLoad) * SMOOTHING;
+        if (mLastChangeNanos >= 0 && nowNanos - mLastChangeNanos < SETTLE_NANOS) {
+            return;
+        }
+
+        if (mAverageLoad > OVERLOAD_THRESHOLD) {
+            mHeadroomSinceNanos = -1;
+            if (mOverloadSinceNanos < 0) {
+                mOverloadSinceNanos = nowNanos;
+            } else if (nowNanos - mOverloadSinceNanos >= OVERLOAD_AFTER_NANOS
+                    && mLevel < mLadder.length - 1) {
+                setLevel(mLevel + 1, nowNanos);
+            }
+            return;
+        }
+        mOverloadSinceNanos = -1;
+
+        if (mAverageLoad < HEADROOM_THRESHOLD && mThermalStatus <= THERMAL_STATUS_LIGHT
+                && mLevel > floorForThermalStatus(mThermalStatus)) {
+            if (mHeadroomSinceNanos < 0) {
+                mHeadroomSinceNanos = nowNanos;
+            } else if (nowNanos - mHeadroomSinceNanos >= STEP_UP_AFTER_NANOS) {
+                setLevel(mLevel - 1, nowNanos);
+            }
+        } else {
+            mHeadroomSinceNanos = -1;
+        }
+    }
+
+    /**
+     * Rough thermal status from the battery temperature, for releases without
+     * {@code PowerManager.getCurrentThermalStatus()}. The battery lags the SoC, so these are
+     * set a little lower than the skin temperatures the statuses usually map to.
+     */
+    public static int thermalStatusFromBatteryTemperature(float celsius) {
+        if (celsius < 38) {
+            return THERMAL_STATUS_NONE;
+        } else if (celsius < 41) {
+            return THERMAL_STATUS_LIGHT;
+        } else if (celsius < 44) {
+            return THERMAL_STATUS_MODERATE;
+        } else if (celsius < 47) {
+            return THERMAL_STATUS_SEVERE;
+        } else if (celsius < 52) {
+            return THERMAL_STATUS_CRITICAL;
+        }
+        return THERMAL_STATUS_EMERGENCY;
+    }
+
+    /**
+     * @return the lowest level allowed at a thermal status.
+     */
+    private int floorForThermalStatus(int status) {
+        int last = mLadder.length - 1;
+        switch (status) {
+            case THERMAL_STATUS_NONE:
+            case THERMAL_STATUS_LIGHT:
+                return 0;
+            case THERMAL_STATUS_MODERATE:
+                return Math.min(last, 2);
+            case THERMAL_STATUS_SEVERE:
+                return Math.min(last, 3);
+            default:
+                return last;
+        }
+    }
+
+    private void setLevel(int level, long nowNanos) {
+        Level previous = mLadder[mLevel];
+        if (level > mLevel) {
+            mStepDownCount++;
+        } else {
+            mStepUpCount++;
+        }
+        mLevel = level;
+        mLowestLevel = Math.max(mLowestLevel, level);
+        mLastChangeNanos = nowNanos;
+        mOverloadSinceNanos = -1;
+        mHeadroomSinceNanos = -1;
+        // Frame times from the old level say little about the new one.
+        mAverageLoad = -1;
+        if (mListener != null) {
+            mListener.onQualityLevelChanged(previous, mLadder[level]);
+        }
+    }
+
+    private void accountTime(long nowNanos) {
+        if (mLastUpdateNanos >= 0 && nowNanos > mLastUpdateNanos) {
+            mNanosAtLevel[mLevel] += nowNanos - mLastUpdateNanos;
+        }
+        mLastUpdateNanos = nowNanos;
+    }
+
+    public Level getLevel() {
+        return mLadder[mLevel];
+    }
+
+    public int getThermalStatus() {
+        return mThermalStatus;
+    }
+
+    public int getStepDownCount() {
+        return mStepDownCount;
+    }
+
+    public int getStepUpCount() {
+        return mStepUpCount;
+    }
+
+    /**
+     * @return the index of the lowest quality level reached.
+     */
+    public int getLowestLevel() {
+        return mLowestLevel;
+    }
+
+    /**
+     * @return time spent at each level, by index.
+     */
+    public long[] getNanosAtLevel() {
+        return mNanosAtLevel.clone();
+    }
+}
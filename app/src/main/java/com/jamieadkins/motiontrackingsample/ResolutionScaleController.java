@@ -0,0 +1,175 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Picks the resolution scale the virtual layer is rendered at, from a moving average of frame
+ * times.
+ * <p/>
+ * The scale drops once the average has stayed above {@link #DECREASE_THRESHOLD} of the frame
+ * budget for a while, and rises again one step at a time once it has stayed below
+ * {@link #INCREASE_THRESHOLD} for longer. Render cost is assumed to follow the pixel count, i.e.
+ * the square of the scale, and a step up is only taken if the predicted cost at the higher scale
+ * would stay under the decrease threshold. Together with the gap between the thresholds this
+ * keeps the scale from oscillating.
+ * <p/>
+ * Not thread safe; feed it from the render thread.
+ */
+public class ResolutionScaleController {
+    public static final float DEFAULT_MIN_SCALE = 0.5f;
+    public static final float DEFAULT_MAX_SCALE = 1.0f;
+
+    /** Scales are rounded to multiples of this to avoid constant tiny changes. */
+    public static final float SCALE_STEP = 0.05f;
+
+    /** Fraction of the frame budget above which the scale is reduced. */
+    public static final float DECREASE_THRESHOLD = 0.9f;
+    /** Fraction of the frame budget below which the scale is increased. */
+    public static final float INCREASE_THRESHOLD = 0.7f;
+    /** Fraction of the frame budget a reduction aims for. */
+    private static final float DECREASE_GOAL = 0.75f;
+
+    /** Weight of the newest sample in the moving average. */
+    private static final float SMOOTHING = 0.1f;
+
+    /** Consecutive frames the average must be over the decrease threshold to reduce the scale. */
+    private static final int DECREASE_AFTER_FRAMES = 30;
+    /** Consecutive frames the average must be under the increase threshold to raise the scale. */
+    private static final int INCREASE_AFTER_FRAMES = 120;
+
+    private final float mMinScale;
+    private final float mMaxScale;
+    private long mFrameBudgetNanos;
+
+    private float mScale;
+    private double mAverageFrameNanos = -1;
+    private int mFramesOverThreshold;
+    private int mFramesUnderThreshold;
+
+    private long mFrameCount;
+    private long mFramesBelowMaxScale;
+    private int mDecreaseCount;
+    private int mIncreaseCount;
+    private float mLowestScale;
+
+    public ResolutionScaleController(long frameBudgetNanos) {
+        this(frameBudgetNanos, DEFAULT_MIN_SCALE, DEFAULT_MAX_SCALE);
+    }
+
+    public ResolutionScaleController(long frameBudgetNanos, float minScale, float maxScale) {
+        if (minScale <= 0 || minScale > maxScale) {
+            throw new IllegalArgumentException("Bad scale bounds " + minScale + ".." + maxScale);
+        }
+        mFrameBudgetNanos = frameBudgetNanos;
+        mMinScale = minScale;
+        mMaxScale = maxScale;
+        mScale = maxScale;
+        mLowestScale = maxScale;
+    }
+
+    /**
+     * Updates the frame budget, e.g. when the measured vsync period changes.
+     */
+    public void setFrameBudgetNanos(long frameBudgetNanos) {
+        mFrameBudgetNanos = frameBudgetNanos;
+    }
+
+    /**
+     * Adds the time taken by the last frame.
+     *
+     * @return true if the scale changed.
+     */
+    public boolean onFrameTime(long frameNanos) {
+        mFrameCount++;
+        if (mScale < mMaxScale) {
+            mFramesBelowMaxScale++;
+        }
+        mAverageFrameNanos = mAverageFrameNanos < 0
+                ? frameNanos : mAverageFrameNanos + SMOOTHING * (frameNanos - mAverageFrameNanos);
+        mFramesOverThreshold = mAverageFrameNanos > mFrameBudgetNanos * DECREASE_THRESHOLD
+                ? mFramesOverThreshold + 1 : 0;
+        mFramesUnderThreshold = mAverageFrameNanos < mFrameBudgetNanos * INCREASE_THRESHOLD
+                ? mFramesUnderThreshold + 1 : 0;
+
+        float newScale = mScale;
+        if (mFramesOverThreshold >= DECREASE_AFTER_FRAMES && mScale > mMinScale) {
+            float ideal = mScale
+                    * (float) Math.sqrt(mFrameBudgetNanos * DECREASE_GOAL / mAverageFrameNanos);
+            newScale = Math.min(mScale - SCALE_STEP, roundDown(ideal));
+        } else if (mFramesUnderThreshold >= INCREASE_AFTER_FRAMES && mScale < mMaxScale) {
+            float up = Math.min(mMaxScale, roundDown(mScale + SCALE_STEP));
+            double predicted = mAverageFrameNanos * (up * up) / (mScale * mScale);
+            if (predicted < mFrameBudgetNanos * DECREASE_THRESHOLD) {
+                newScale = up;
+            }
+        }
+        newScale = Math.max(mMinScale, Math.min(mMaxScale, newScale));
+        if (newScale == mScale) {
+            return false;
+        }
+
+        if (newScale < mScale) {
+            mDecreaseCount++;
+        } else {
+            mIncreaseCount++;
+        }
+        mScale = newScale;
+        mLowestScale = Math.min(mLowestScale, newScale);
+        // The average still reflects the old scale; give it time to catch up.
+        mFramesOverThreshold = 0;
+        mFramesUnderThreshold = 0;
+        return true;
+    }
+
+    public float getScale() {
+        return mScale;
+    }
+
+    public float getMinScale() {
+        return mMinScale;
+    }
+
+    public float getMaxScale() {
+        return mMaxScale;
+    }
+
+    /**
+     * @return the moving average frame time, or -1 before the first frame.
+     */
+    public long getAverageFrameNanos() {
+        return (long) mAverageFrameNanos;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return frames rendered at less than the maximum scale.
+     */
+    public long getFramesBelowMaxScale() {
+        return mFramesBelowMaxScale;
+    }
+
+    public int getDecreaseCount() {
+        return mDecreaseCount;
+    }
+
+    public int getIncreaseCount() {
+        return mIncreaseCount;
+    }
+
+    public float getLowestScale() {
+        return mLowestScale;
+    }
+
+    public void reset() {
+        mScale = mMaxScale;
+        mAverageFrameNanos = -1;
+        mFramesOverThreshold = 0;
+        mFramesUnderThreshold = 0;
+    }
+
+    private static float roundDown(float scale) {
+        // The small bias stops values like 0.95 / 0.05 = 18.999 losing a whole step.
+        return (float) (Math.floor(scale / SCALE_STEP + 1e-3) * SCALE_STEP);
+    }
+}
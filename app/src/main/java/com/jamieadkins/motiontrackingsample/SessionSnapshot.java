@@ -0,0 +1,235 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A session's anchors, markers, recent poses and last tracking state, saved to a memory mapped
+ * file so it can be put back after the activity is recreated.
+ * <p/>
+ * Saving sizes the file up front and copies each store's columns straight into the mapping, so
+ * it costs about as much as a memcpy of the data. The pages aren't forced to disk: the kernel
+ * owns them once they are written, so they survive the process being killed, just not the
+ * device losing power. The file is written alongside and renamed over the old one, so a
+ * snapshot that is still being restored from keeps its contents.
+ * <p/>
+ * Opening a snapshot only maps it and checks the header; each section is decoded when it is
+ * restored, on whichever thread needs it.
+ */
+public class SessionSnapshot {
+    public static final String FILE_NAME = "session.snapshot";
+
+    // "SNAP". Written in native byte order, so a file from a device of the other order doesn't
+    // match and is ignored.
+    static final int MAGIC = 0x534e4150;
+    static final int VERSION = 1;
+
+    // Header: magic, version, saved at (wall clock ms), tracking state, anchor, marker and pose
+    // counts, animation time.
+    static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4 + 4 + 8;
+    private static final int NO_TRACKING_STATE = -1;
+
+    private final ByteBuffer mBuffer;
+    private final long mSavedAtMillis;
+    private final TrackingState mTrackingState;
+    private final int mAnchorCount;
+    private final int mMarkerCount;
+    private final int mPoseCount;
+    private final double mAnimationTime;
+
+    private SessionSnapshot(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mSavedAtMillis = buffer.getLong(8);
+        int trackingState = buffer.getInt(16);
+        mTrackingState = trackingState >= 0 && trackingState < TrackingState.values().length
+                ? TrackingState.values()[trackingState] : null;
+        mAnchorCount = buffer.getInt(20);
+        mMarkerCount = buffer.getInt(24);
+        mPoseCount = buffer.getInt(28);
+        mAnimationTime = buffer.getDouble(32);
+    }
+
+    /**
+     * @return the size of a snapshot with the given contents, in bytes.
+     */
+    public static long getSize(int anchorCount, int markerCount, int poseCount) {
+        return HEADER_BYTES + getAnchorsSize(anchorCount) + getMarkersSize(markerCount)
+                + (long) poseCount * TrajectoryStore.BYTES_PER_SAMPLE;
+    }
+
+    // Sections are padded to 8 bytes so the timestamps that start the next one stay aligned.
+    private static int getAnchorsSize(int anchorCount) {
+        return align(AnchorStore.getSerializedSize(anchorCount));
+    }
+
+    private static int getMarkersSize(int markerCount) {
+        return align(markerCount * 4);
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    /**
+     * Saves a snapshot to {@code file}, replacing any already there. Nothing else may change the
+     * stores while this runs, e.g. call it once the render thread and pose provider are paused.
+     *
+     * @param markerAnchorIds ids of the anchors that carry a marker.
+     * @param animationTime   the scene's animation clock, in seconds.
+     * @param maxPoses        the most recent poses to keep.
+     * @param trackingState   the last tracking state, or null if there wasn't one.
+     * @return the size of the snapshot, in bytes.
+     */
+    public static long save(File file, AnchorStore anchors, int[] markerAnchorIds,
+                            double animationTime, TrajectoryStore trajectory, int maxPoses,
+                            TrackingState trackingState) throws IOException {
+        synchronized (anchors) {
+            synchronized (trajectory) {
+                int anchorCount = anchors.size();
+                int poseCount = Math.min(maxPoses, trajectory.size());
+                long size = getSize(anchorCount, markerAnchorIds.length, poseCount);
+
+                File temporary = new File(file.getPath() + ".tmp");
+                RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+                try {
+                    out.setLength(size);
+                    MappedByteBuffer buffer =
+                            out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    buffer.order(ByteOrder.nativeOrder());
+
+                    buffer.position(HEADER_BYTES);
+                    anchors.writeTo(buffer);
+                    buffer.position(HEADER_BYTES + getAnchorsSize(anchorCount));
+                    buffer.asIntBuffer().put(markerAnchorIds);
+                    buffer.position(HEADER_BYTES + getAnchorsSize(anchorCount)
+                            + getMarkersSize(markerAnchorIds.length));
+                    trajectory.writeTo(buffer, trajectory.size() - poseCount, poseCount);
+
+                    // The header goes in last, so a snapshot that failed part way isn't valid.
+                    buffer.putInt(4, VERSION);
+                    buffer.putLong(8, System.currentTimeMillis());
+                    buffer.putInt(16, trackingState == null
+                            ? NO_TRACKING_STATE : trackingState.ordinal());
+                    buffer.putInt(20, anchorCount);
+                    buffer.putInt(24, markerAnchorIds.length);
+                    buffer.putInt(28, poseCount);
+                    buffer.putDouble(32, animationTime);
+                    buffer.putInt(0, MAGIC);
+                } finally {
+                    out.close();
+                }
+                if (!temporary.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Maps a snapshot and reads its header.
+     *
+     * @return the snapshot, or null if there isn't a usable one in {@code file}.
+     */
+    public static SessionSnapshot open(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_BYTES) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = in.length();
+            MappedByteBuffer buffer =
+                    in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return null;
+            }
+            SessionSnapshot snapshot = new SessionSnapshot(buffer);
+            if (snapshot.mAnchorCount < 0 || snapshot.mMarkerCount < 0 || snapshot.mPoseCount < 0
+                    || getSize(snapshot.mAnchorCount, snapshot.mMarkerCount, snapshot.mPoseCount)
+                    != length) {
+                return null;
+            }
+            return snapshot;
+        } finally {
+            in.close();
+        }
+    }
+
+    public long getSavedAtMillis() {
+        return mSavedAtMillis;
+    }
+
+    /**
+     * @return the tracking state when the snapshot was saved, or null if there wasn't one.
+     */
+    public TrackingState getTrackingState() {
+        return mTrackingState;
+    }
+
+    public double getAnimationTime() {
+        return mAnimationTime;
+    }
+
+    public int getAnchorCount() {
+        return mAnchorCount;
+    }
+
+    public int getMarkerCount() {
+        return mMarkerCount;
+    }
+
+    public int getPoseCount() {
+        return mPoseCount;
+    }
+
+    public long getSizeBytes() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Replaces every anchor in {@code store} with the saved ones, keeping their ids.
+     */
+    public void restoreAnchors(AnchorStore store) {
+        ByteBuffer buffer = section(HEADER_BYTES);
+        store.readFrom(buffer, mAnchorCount);
+    }
+
+    /**
+     * @return ids of the saved anchors that carry a marker.
+     */
+    public int[] getMarkerAnchorIds() {
+        int[] ids = new int[mMarkerCount];
+        section(HEADER_BYTES + getAnchorsSize(mAnchorCount)).asIntBuffer().get(ids);
+        return ids;
+    }
+
+    /**
+     * Appends the saved poses to {@code store}, leaving out any that aren't before
+     * {@code beforeTimestamp}, e.g. the first pose of the new session. Poses from before a
+     * reboot, when the clock started again, are all left out this way.
+     *
+     * @return the number of poses restored.
+     */
+    public int restorePoses(TrajectoryStore store, long beforeTimestamp) {
+        ByteBuffer buffer = section(HEADER_BYTES + getAnchorsSize(mAnchorCount)
+                + getMarkersSize(mMarkerCount));
+        return store.appendFrom(buffer, mPoseCount, beforeTimestamp);
+    }
+
+    /**
+     * @return a view of the mapping starting at {@code offset}, so sections can be restored on
+     * different threads.
+     */
+    private ByteBuffer section(int offset) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.position(offset);
+        return buffer;
+    }
+}
@@ -0,0 +1,41 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Moves a shared camera output from one surface to another without configuring a new session.
+ * <p/>
+ * The surface an output was created with can't be removed from it, so that one stays for the
+ * life of the session, no longer targeted by any request once the stream has moved. Only
+ * surfaces added since are swapped out.
+ */
+final class SharedOutputSwap {
+    /**
+     * A shared output of a running session.
+     *
+     * @param <S> the surface type.
+     */
+    interface Output<S> {
+        void addSurface(S surface) throws Exception;
+
+        void removeSurface(S surface) throws Exception;
+
+        /** Applies the surfaces added and removed since the last update to the session. */
+        void update() throws Exception;
+    }
+
+    private SharedOutputSwap() {
+    }
+
+    /**
+     * Adds {@code next} and drops {@code current} unless it is the output's first surface, in a
+     * single update. Requests must have stopped targeting {@code current} beforehand.
+     *
+     * @param first the surface the output was created with.
+     */
+    static <S> void swap(Output<S> output, S first, S current, S next) throws Exception {
+        output.addSurface(next);
+        if (current != first) {
+            output.removeSurface(current);
+        }
+        output.update();
+    }
+}
@@ -0,0 +1,368 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the steps of start up as a small dependency graph. Each phase is started on its executor
+ * as soon as the phases it depends on have finished, so independent phases overlap, and every
+ * phase is timed for the startup trace.
+ * <p/>
+ * A phase finishes when its task returns true, or, for work that finishes in a callback (the
+ * camera opening, the first pose arriving), when {@link #complete(String)} is called for it.
+ * Milestones have no task and are only ever completed from outside; completing one before its
+ * dependencies have finished holds it until they have.
+ * <p/>
+ * If a phase fails, the phases depending on it are skipped. Listener callbacks are made on the
+ * thread that finished the phase.
+ */
+public class StartupOrchestrator {
+    /** Runs the task on the calling thread. */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    public interface Task {
+        /**
+         * @return true if the phase is done, false if it will be finished later with
+         * {@link #complete(String)}.
+         */
+        boolean run() throws Exception;
+    }
+
+    public interface Listener {
+        void onPhaseFailed(String name, Throwable error);
+
+        void onStartupFinished(StartupOrchestrator orchestrator);
+    }
+
+    private enum State {
+        WAITING, RUNNING, DONE, FAILED, SKIPPED
+    }
+
+    private static class Phase {
+        final String name;
+        final Executor executor;
+        final Task task;
+        final List<Phase> dependents = new ArrayList<>();
+        int remainingDependencies;
+        State state = State.WAITING;
+        boolean completedEarly;
+        long readyNanos;
+        long startNanos;
+        long endNanos;
+        Throwable error;
+
+        Phase(String name, Executor executor, Task task) {
+            this.name = name;
+            this.executor = executor;
+            this.task = task;
+        }
+
+        boolean isFinished() {
+            return state == State.DONE || state == State.FAILED || state == State.SKIPPED;
+        }
+    }
+
+    private final Map<String, Phase> mPhases = new LinkedHashMap<>();
+    private final Listener mListener;
+    private boolean mStarted;
+    private long mStartNanos;
+    private long mEndNanos;
+    private int mUnfinished;
+    private volatile boolean mFinished;
+
+    public StartupOrchestrator(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds a phase that runs {@code task} on {@code executor} once all of {@code dependencies},
+     * which must already have been added, have finished.
+     */
+    public synchronized void addPhase(String name, Executor executor, Task task,
+                                      String... dependencies) {
+        if (task == null || executor == null) {
+            throw new IllegalArgumentException("Phase " + name + " needs a task and executor");
+        }
+        add(new Phase(name, executor, task), dependencies);
+    }
+
+    /**
+     * Adds a phase with no task, finished by calling {@link #complete(String)}.
+     */
+    public synchronized void addMilestone(String name, String... dependencies) {
+        add(new Phase(name, null, null), dependencies);
+    }
+
+    private void add(Phase phase, String... dependencies) {
+        if (mStarted) {
+            throw new IllegalStateException("Already started");
+        }
+        if (mPhases.containsKey(phase.name)) {
+            throw new IllegalArgumentException("Duplicate phase " + phase.name);
+        }
+        for (String dependency : dependencies) {
+            Phase parent = mPhases.get(dependency);
+            if (parent == null) {
+                throw new IllegalArgumentException(
+                        "Phase " + phase.name + " depends on unknown phase " + dependency);
+            }
+            parent.dependents.add(phase);
+            phase.remainingDependencies++;
+        }
+        mPhases.put(phase.name, phase);
+    }
+
+    /**
+     * Starts every phase without dependencies, in the order they were added. Phases on
+     * {@link #DIRECT} run before this returns, so add the ones on background executors first.
+     */
+    public void start() {
+        List<Phase> ready = new ArrayList<>();
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("Already started");
+            }
+            mStarted = true;
+            mStartNanos = System.nanoTime();
+            mUnfinished = mPhases.size();
+            for (Phase phase : mPhases.values()) {
+                if (phase.remainingDependencies == 0) {
+                    ready.add(phase);
+                }
+            }
+        }
+        dispatch(ready);
+    }
+
+    /**
+     * Finishes a phase that completes in a callback, or a milestone. Does nothing if the phase
+     * has already finished or doesn't exist.
+     */
+    public void complete(String name) {
+        Phase phase;
+        synchronized (this) {
+            phase = mPhases.get(name);
+            if (phase == null || phase.isFinished()) {
+                return;
+            }
+            if (phase.state == State.WAITING) {
+                // Dependencies still running; finish as soon as they are done.
+                phase.completedEarly = true;
+                return;
+            }
+        }
+        finish(phase, null);
+    }
+
+    /**
+     * Marks a phase as failed, skipping everything that depends on it.
+     */
+    public void fail(String name, Throwable error) {
+        Phase phase;
+        synchronized (this) {
+            phase = mPhases.get(name);
+            if (phase == null || phase.isFinished()) {
+                return;
+            }
+        }
+        finish(phase, error);
+    }
+
+    private void dispatch(List<Phase> ready) {
+        for (final Phase phase : ready) {
+            boolean finishNow;
+            synchronized (this) {
+                phase.readyNanos = System.nanoTime();
+                if (phase.task != null) {
+                    finishNow = false;
+                } else {
+                    phase.state = State.RUNNING;
+                    phase.startNanos = phase.readyNanos;
+                    finishNow = phase.completedEarly;
+                }
+            }
+            if (phase.task == null) {
+                if (finishNow) {
+                    finish(phase, null);
+                }
+                continue;
+            }
+            phase.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (StartupOrchestrator.this) {
+                        phase.state = State.RUNNING;
+                        phase.startNanos = System.nanoTime();
+                    }
+                    boolean done;
+                    try {
+                        done = phase.task.run();
+                    } catch (Exception e) {
+                        finish(phase, e);
+                        return;
+                    }
+                    boolean completedEarly;
+                    synchronized (StartupOrchestrator.this) {
+                        completedEarly = phase.completedEarly;
+                    }
+                    if (done || completedEarly) {
+                        finish(phase, null);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish(Phase phase, Throwable error) {
+        List<Phase> ready = new ArrayList<>();
+        boolean finished;
+        synchronized (this) {
+            if (phase.isFinished()) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (phase.state == State.WAITING) {
+                phase.readyNanos = now;
+                phase.startNanos = now;
+            }
+            phase.endNanos = now;
+            phase.error = error;
+            phase.state = error == null ? State.DONE : State.FAILED;
+            mUnfinished--;
+            if (error == null) {
+                for (Phase dependent : phase.dependents) {
+                    if (--dependent.remainingDependencies == 0
+                            && dependent.state == State.WAITING) {
+                        ready.add(dependent);
+                    }
+                }
+            } else {
+                skipDependents(phase, now);
+            }
+            finished = mUnfinished == 0;
+            if (finished) {
+                mEndNanos = now;
+                mFinished = true;
+                notifyAll();
+            }
+        }
+        if (mListener != null && error != null) {
+            mListener.onPhaseFailed(phase.name, error);
+        }
+        dispatch(ready);
+        if (finished && mListener != null) {
+            mListener.onStartupFinished(this);
+        }
+    }
+
+    private void skipDependents(Phase phase, long now) {
+        for (Phase dependent : phase.dependents) {
+            if (dependent.state == State.WAITING) {
+                dependent.state = State.SKIPPED;
+                dependent.readyNanos = now;
+                dependent.startNanos = now;
+                dependent.endNanos = now;
+                mUnfinished--;
+                skipDependents(dependent, now);
+            }
+        }
+    }
+
+    /**
+     * @return true once every phase has finished, failed or been skipped.
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Waits for every phase to finish.
+     *
+     * @return false if it timed out.
+     */
+    public synchronized boolean awaitFinished(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!mFinished) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return time from {@link #start()} until the last phase finished, or so far if it hasn't.
+     */
+    public synchronized long getTotalNanos() {
+        return (mFinished ? mEndNanos : System.nanoTime()) - mStartNanos;
+    }
+
+    /**
+     * @return how long the phase ran for, or -1 if it hasn't finished.
+     */
+    public synchronized long getPhaseNanos(String name) {
+        Phase phase = mPhases.get(name);
+        return phase == null || !phase.isFinished() ? -1 : phase.endNanos - phase.startNanos;
+    }
+
+    /**
+     * @return when the phase finished, relative to {@link #start()}, or -1 if it hasn't.
+     */
+    public synchronized long getPhaseEndNanos(String name) {
+        Phase phase = mPhases.get(name);
+        return phase == null || !phase.isFinished() ? -1 : phase.endNanos - mStartNanos;
+    }
+
+    public synchronized boolean isPhaseDone(String name) {
+        Phase phase = mPhases.get(name);
+        return phase != null && phase.state == State.DONE;
+    }
+
+    /**
+     * @return one line per phase with its start offset, queueing delay and duration, followed by
+     * the total and the sum of the phase durations, which shows how much overlapped.
+     */
+    public synchronized String getTrace() {
+        StringBuilder trace = new StringBuilder("Startup trace:");
+        long sum = 0;
+        for (Phase phase : mPhases.values()) {
+            trace.append(String.format("\n  %-18s", phase.name));
+            if (phase.state == State.WAITING) {
+                trace.append(" waiting");
+                continue;
+            }
+            long start = phase.startNanos - mStartNanos;
+            long queued = phase.startNanos - phase.readyNanos;
+            trace.append(String.format(" at %7.1fms", start / 1e6));
+            if (phase.state == State.RUNNING) {
+                trace.append(" running");
+                continue;
+            }
+            long duration = phase.endNanos - phase.startNanos;
+            trace.append(String.format(", took %7.1fms", duration / 1e6));
+            if (queued > 0) {
+                trace.append(String.format(" (queued %.1fms)", queued / 1e6));
+            }
+            if (phase.state != State.DONE) {
+                trace.append(' ').append(phase.state.name().toLowerCase());
+                if (phase.error != null) {
+                    trace.append(": ").append(phase.error);
+                }
+            }
+            sum += duration;
+        }
+        trace.append(String.format("\n  total %.1fms, phases sum to %.1fms",
+                getTotalNanos() / 1e6, sum / 1e6));
+        return trace.toString();
+    }
+}
@@ -0,0 +1,579 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges static scene objects into a few large vertex buffers, so that hundreds of markers cost a
+ * handful of draw calls rather than one each.
+ * <p/>
+ * Objects are batched by material. {@link #add} merges any mesh into its material's batch, and
+ * {@link #addInstance} gathers copies of one mesh into an instanced batch, which also keeps the
+ * per instance transforms packed in a {@link FloatBuffer} as column major 4x4 matrices, ready to
+ * be bound as an instanced attribute. Rajawali's GLES 2 materials can't draw instanced, so every
+ * batch also has its objects' vertices transformed into one buffer and is drawn with a single
+ * ordinary draw call.
+ * <p/>
+ * Changes are incremental: adding or moving an object writes only its own vertices, removing an
+ * instance moves the last instance into its place, and removing a merged object compacts just
+ * that batch on the next {@link #update}. A batch holds at most {@link #MAX_BATCH_VERTICES} so
+ * it can be indexed with shorts; a material gets more batches beyond that. Batches are drawn
+ * whole, without per object culling.
+ * <p/>
+ * Transforms are a translation, an (x, y, z, w) quaternion and a uniform scale.
+ * <p/>
+ * NOTE: This is not thread safe, use it from the render thread.
+ */
+public class StaticBatcher {
+    public static final int MAX_BATCH_VERTICES = 65536;
+    public static final int FLOATS_PER_INSTANCE = 16;
+
+    private static final int INITIAL_VERTICES = 256;
+
+    public interface Listener {
+        /**
+         * Called from {@link #update} for each batch that changed since the last update.
+         *
+         * @param layoutChanged whether the vertex or index count changed or the arrays were
+         *                      reallocated, so the whole batch needs uploading. Otherwise only the
+         *                      vertices from {@link Batch#getDirtyStart()} up to
+         *                      {@link Batch#getDirtyEnd()} changed.
+         */
+        void onBatchChanged(Batch batch, boolean layoutChanged);
+    }
+
+    /**
+     * Geometry in the object's own frame: positions and normals x, y, z, texture coordinates u,
+     * v, and triangle indices.
+     */
+    public static class Mesh {
+        final float[] mVertices;
+        final float[] mNormals;
+        final float[] mTextureCoords;
+        final int[] mIndices;
+        final int mVertexCount;
+
+        public Mesh(float[] vertices, float[] normals, float[] textureCoords, int[] indices) {
+            mVertexCount = vertices.length / 3;
+            if (normals.length != mVertexCount * 3 || textureCoords.length != mVertexCount * 2) {
+                throw new IllegalArgumentException("Normals and texture coordinates must match "
+                        + mVertexCount + " vertices");
+            }
+            mVertices = vertices;
+            mNormals = normals;
+            mTextureCoords = textureCoords;
+            mIndices = indices;
+        }
+
+        public int getVertexCount() {
+            return mVertexCount;
+        }
+
+        public int getIndexCount() {
+            return mIndices.length;
+        }
+    }
+
+    /**
+     * Objects drawn together in one call. The arrays may be longer than the counts.
+     */
+    public static class Batch {
+        private final Object mMaterial;
+        // The mesh every object shares, or null if this batch merges different ones.
+        private final Mesh mInstancedMesh;
+        private final List<Entry> mEntries = new ArrayList<>();
+
+        private float[] mVertices = new float[INITIAL_VERTICES * 3];
+        private float[] mNormals = new float[INITIAL_VERTICES * 3];
+        private float[] mTextureCoords = new float[INITIAL_VERTICES * 2];
+        private int[] mIndices = new int[INITIAL_VERTICES * 3];
+        private FloatBuffer mInstanceTransforms;
+        private int mVertexCount;
+        private int mIndexCount;
+
+        private int mDirtyStart = Integer.MAX_VALUE;
+        private int mDirtyEnd;
+        private boolean mLayoutChanged = true;
+        private boolean mNeedsCompaction;
+
+        private Object mTag;
+
+        Batch(Object material, Mesh instancedMesh) {
+            mMaterial = material;
+            mInstancedMesh = instancedMesh;
+            if (instancedMesh != null) {
+                mInstanceTransforms = allocateTransforms(8);
+            }
+        }
+
+        public Object getMaterial() {
+            return mMaterial;
+        }
+
+        public boolean isInstanced() {
+            return mInstancedMesh != null;
+        }
+
+        /**
+         * @return the mesh every instance shares, or null if the batch isn't instanced.
+         */
+        public Mesh getInstancedMesh() {
+            return mInstancedMesh;
+        }
+
+        /**
+         * @return a matrix per instance, {@link #FLOATS_PER_INSTANCE} floats each, or null if
+         * the batch isn't instanced.
+         */
+        public FloatBuffer getInstanceTransforms() {
+            return mInstanceTransforms;
+        }
+
+        public int getObjectCount() {
+            return mEntries.size();
+        }
+
+        public float[] getVertices() {
+            return mVertices;
+        }
+
+        public float[] getNormals() {
+            return mNormals;
+        }
+
+        public float[] getTextureCoords() {
+            return mTextureCoords;
+        }
+
+        public int[] getIndices() {
+            return mIndices;
+        }
+
+        public int getVertexCount() {
+            return mVertexCount;
+        }
+
+        public int getIndexCount() {
+            return mIndexCount;
+        }
+
+        /**
+         * @return the first vertex changed since the last update.
+         */
+        public int getDirtyStart() {
+            return mDirtyStart;
+        }
+
+        /**
+         * @return one past the last vertex changed since the last update.
+         */
+        public int getDirtyEnd() {
+            return mDirtyEnd;
+        }
+
+        /**
+         * @return whatever the renderer attached, e.g. the object drawing this batch.
+         */
+        public Object getTag() {
+            return mTag;
+        }
+
+        public void setTag(Object tag) {
+            mTag = tag;
+        }
+
+        private void markDirty(int start, int end) {
+            mDirtyStart = Math.min(mDirtyStart, start);
+            mDirtyEnd = Math.max(mDirtyEnd, end);
+        }
+
+        private boolean isChanged() {
+            return mLayoutChanged || mDirtyStart < mDirtyEnd;
+        }
+
+        private void clearChanges() {
+            mLayoutChanged = false;
+            mDirtyStart = Integer.MAX_VALUE;
+            mDirtyEnd = 0;
+        }
+
+        private void ensureCapacity(int vertices, int indices) {
+            if (vertices * 3 > mVertices.length) {
+                int capacity = Math.min(MAX_BATCH_VERTICES,
+                        Math.max(vertices, mVertices.length / 3 * 2));
+                mVertices = Arrays.copyOf(mVertices, capacity * 3);
+                mNormals = Arrays.copyOf(mNormals, capacity * 3);
+                mTextureCoords = Arrays.copyOf(mTextureCoords, capacity * 2);
+                mLayoutChanged = true;
+            }
+            if (indices > mIndices.length) {
+                mIndices = Arrays.copyOf(mIndices, Math.max(indices, mIndices.length * 2));
+                mLayoutChanged = true;
+            }
+            if (mInstanceTransforms != null
+                    && mEntries.size() * FLOATS_PER_INSTANCE >= mInstanceTransforms.capacity()) {
+                FloatBuffer transforms = allocateTransforms(mEntries.size() * 2);
+                mInstanceTransforms.position(0);
+                transforms.put(mInstanceTransforms);
+                mInstanceTransforms = transforms;
+            }
+        }
+    }
+
+    /**
+     * An object and where its data is in its batch.
+     */
+    private static class Entry {
+        final Mesh mMesh;
+        final Batch mBatch;
+        final float[] mTransform = new float[FLOATS_PER_INSTANCE];
+        float mScale;
+        int mFirstVertex;
+        int mFirstIndex;
+        // Position in the batch's entries.
+        int mSlot;
+        boolean mRemoved;
+
+        Entry(Mesh mesh, Batch batch) {
+            mMesh = mesh;
+            mBatch = batch;
+        }
+    }
+
+    /**
+     * Key of an instanced batch, a mesh drawn with a material.
+     */
+    private static class InstanceKey {
+        final Object mMaterial;
+        final Mesh mMesh;
+
+        InstanceKey(Object material, Mesh mesh) {
+            mMaterial = material;
+            mMesh = mesh;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof InstanceKey)) {
+                return false;
+            }
+            InstanceKey other = (InstanceKey) o;
+            return other.mMaterial.equals(mMaterial) && other.mMesh == mMesh;
+        }
+
+        @Override
+        public int hashCode() {
+            return mMaterial.hashCode() * 31 + System.identityHashCode(mMesh);
+        }
+    }
+
+    private final List<Batch> mBatches = new ArrayList<>();
+    private final Map<Object, List<Batch>> mBatchesByKey = new HashMap<>();
+    // Indexed by handle, null once removed.
+    private final List<Entry> mEntries = new ArrayList<>();
+    private int mObjectCount;
+    private long mVerticesWritten;
+
+    /**
+     * Merges an object into its material's batch.
+     *
+     * @return a handle for moving or removing the object.
+     */
+    public int add(Object material, Mesh mesh, float[] translation, float[] rotation,
+                   float scale) {
+        return add(material, material, null, mesh, translation, rotation, scale);
+    }
+
+    /**
+     * Adds a copy of a mesh that is drawn many times, e.g. a marker.
+     *
+     * @return a handle for moving or removing the object.
+     */
+    public int addInstance(Object material, Mesh mesh, float[] translation, float[] rotation,
+                           float scale) {
+        return add(new InstanceKey(material, mesh), material, mesh, mesh, translation, rotation,
+                scale);
+    }
+
+    private int add(Object key, Object material, Mesh instancedMesh, Mesh mesh,
+                    float[] translation, float[] rotation, float scale) {
+        if (mesh.mVertexCount > MAX_BATCH_VERTICES) {
+            throw new IllegalArgumentException("Mesh of " + mesh.mVertexCount
+                    + " vertices is too big to batch");
+        }
+        Batch batch = batchWithRoom(key, material, instancedMesh, mesh);
+        Entry entry = new Entry(mesh, batch);
+        entry.mSlot = batch.mEntries.size();
+        entry.mFirstVertex = batch.mVertexCount;
+        entry.mFirstIndex = batch.mIndexCount;
+        batch.ensureCapacity(batch.mVertexCount + mesh.mVertexCount,
+                batch.mIndexCount + mesh.mIndices.length);
+        batch.mEntries.add(entry);
+        batch.mVertexCount += mesh.mVertexCount;
+        batch.mIndexCount += mesh.mIndices.length;
+        batch.mLayoutChanged = true;
+
+        System.arraycopy(mesh.mTextureCoords, 0, batch.mTextureCoords, entry.mFirstVertex * 2,
+                mesh.mVertexCount * 2);
+        for (int i = 0; i < mesh.mIndices.length; i++) {
+            batch.mIndices[entry.mFirstIndex + i] = mesh.mIndices[i] + entry.mFirstVertex;
+        }
+        setTransform(entry, translation, rotation, scale);
+
+        mEntries.add(entry);
+        mObjectCount++;
+        return mEntries.size() - 1;
+    }
+
+    private Batch batchWithRoom(Object key, Object material, Mesh instancedMesh, Mesh mesh) {
+        List<Batch> batches = mBatchesByKey.get(key);
+        if (batches == null) {
+            batches = new ArrayList<>();
+            mBatchesByKey.put(key, batches);
+        }
+        for (Batch batch : batches) {
+            // Space left by removed objects only counts once compacted.
+            if (batch.mVertexCount + mesh.mVertexCount <= MAX_BATCH_VERTICES) {
+                return batch;
+            }
+        }
+        Batch batch = new Batch(material, instancedMesh);
+        batches.add(batch);
+        mBatches.add(batch);
+        return batch;
+    }
+
+    /**
+     * Moves an object, rewriting only its own vertices.
+     */
+    public void setTransform(int handle, float[] translation, float[] rotation, float scale) {
+        setTransform(entry(handle), translation, rotation, scale);
+    }
+
+    private void setTransform(Entry entry, float[] translation, float[] rotation, float scale) {
+        toMatrix(translation, rotation, scale, entry.mTransform);
+        entry.mScale = scale;
+        Batch batch = entry.mBatch;
+        writeVertices(entry);
+        if (batch.mInstanceTransforms != null) {
+            batch.mInstanceTransforms.position(entry.mSlot * FLOATS_PER_INSTANCE);
+            batch.mInstanceTransforms.put(entry.mTransform);
+            batch.mInstanceTransforms.position(0);
+        }
+    }
+
+    /**
+     * Removes an object. Instances are removed straight away; merged objects leave a gap that
+     * the next {@link #update} closes.
+     */
+    public void remove(int handle) {
+        Entry entry = entry(handle);
+        mEntries.set(handle, null);
+        mObjectCount--;
+        entry.mRemoved = true;
+        Batch batch = entry.mBatch;
+        if (batch.mInstancedMesh == null) {
+            batch.mNeedsCompaction = true;
+            return;
+        }
+        // Every instance is the same size, so the last one fills the gap.
+        int lastSlot = batch.mEntries.size() - 1;
+        Entry last = batch.mEntries.get(lastSlot);
+        if (last != entry) {
+            int count = entry.mMesh.mVertexCount;
+            System.arraycopy(batch.mVertices, last.mFirstVertex * 3, batch.mVertices,
+                    entry.mFirstVertex * 3, count * 3);
+            System.arraycopy(batch.mNormals, last.mFirstVertex * 3, batch.mNormals,
+                    entry.mFirstVertex * 3, count * 3);
+            last.mFirstVertex = entry.mFirstVertex;
+            last.mFirstIndex = entry.mFirstIndex;
+            last.mSlot = entry.mSlot;
+            batch.mEntries.set(entry.mSlot, last);
+            batch.mInstanceTransforms.position(last.mSlot * FLOATS_PER_INSTANCE);
+            batch.mInstanceTransforms.put(last.mTransform);
+            batch.mInstanceTransforms.position(0);
+            mVerticesWritten += count;
+        }
+        batch.mEntries.remove(lastSlot);
+        batch.mVertexCount -= entry.mMesh.mVertexCount;
+        batch.mIndexCount -= entry.mMesh.mIndices.length;
+        batch.mLayoutChanged = true;
+    }
+
+    /**
+     * Closes gaps left by removed objects and reports each changed batch, so the renderer can
+     * upload it. Call once per frame before drawing.
+     *
+     * @return the number of batches that changed.
+     */
+    public int update(Listener listener) {
+        int changed = 0;
+        for (Batch batch : mBatches) {
+            if (batch.mNeedsCompaction) {
+                compact(batch);
+            }
+            if (batch.isChanged()) {
+                listener.onBatchChanged(batch, batch.mLayoutChanged);
+                batch.clearChanges();
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private void compact(Batch batch) {
+        int vertex = 0;
+        int index = 0;
+        int slot = 0;
+        for (int i = 0; i < batch.mEntries.size(); i++) {
+            Entry entry = batch.mEntries.get(i);
+            if (entry.mRemoved) {
+                continue;
+            }
+            int vertices = entry.mMesh.mVertexCount;
+            int indices = entry.mMesh.mIndices.length;
+            if (entry.mFirstVertex != vertex) {
+                // Moving down, so copying in place is safe.
+                System.arraycopy(batch.mVertices, entry.mFirstVertex * 3, batch.mVertices,
+                        vertex * 3, vertices * 3);
+                System.arraycopy(batch.mNormals, entry.mFirstVertex * 3, batch.mNormals,
+                        vertex * 3, vertices * 3);
+                System.arraycopy(batch.mTextureCoords, entry.mFirstVertex * 2,
+                        batch.mTextureCoords, vertex * 2, vertices * 2);
+                int shift = entry.mFirstVertex - vertex;
+                for (int j = 0; j < indices; j++) {
+                    batch.mIndices[index + j] = batch.mIndices[entry.mFirstIndex + j] - shift;
+                }
+                entry.mFirstVertex = vertex;
+                entry.mFirstIndex = index;
+                mVerticesWritten += vertices;
+            }
+            entry.mSlot = slot;
+            batch.mEntries.set(slot++, entry);
+            vertex += vertices;
+            index += indices;
+        }
+        while (batch.mEntries.size() > slot) {
+            batch.mEntries.remove(batch.mEntries.size() - 1);
+        }
+        batch.mVertexCount = vertex;
+        batch.mIndexCount = index;
+        batch.mNeedsCompaction = false;
+        batch.mLayoutChanged = true;
+    }
+
+    private void writeVertices(Entry entry) {
+        Batch batch = entry.mBatch;
+        Mesh mesh = entry.mMesh;
+        float[] m = entry.mTransform;
+        float inverseScale = entry.mScale == 0 ? 0 : 1 / entry.mScale;
+        float[] vertices = batch.mVertices;
+        float[] normals = batch.mNormals;
+        int out = entry.mFirstVertex * 3;
+        for (int i = 0; i < mesh.mVertexCount * 3; i += 3, out += 3) {
+            float x = mesh.mVertices[i];
+            float y = mesh.mVertices[i + 1];
+            float z = mesh.mVertices[i + 2];
+            vertices[out] = m[0] * x + m[4] * y + m[8] * z + m[12];
+            vertices[out + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+            vertices[out + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+            // Scaling is uniform, so normals only need the rotation.
+            x = mesh.mNormals[i] * inverseScale;
+            y = mesh.mNormals[i + 1] * inverseScale;
+            z = mesh.mNormals[i + 2] * inverseScale;
+            normals[out] = m[0] * x + m[4] * y + m[8] * z;
+            normals[out + 1] = m[1] * x + m[5] * y + m[9] * z;
+            normals[out + 2] = m[2] * x + m[6] * y + m[10] * z;
+        }
+        batch.markDirty(entry.mFirstVertex, entry.mFirstVertex + mesh.mVertexCount);
+        mVerticesWritten += mesh.mVertexCount;
+    }
+
+    /**
+     * Writes a column major model matrix.
+     */
+    static void toMatrix(float[] translation, float[] rotation, float scale, float[] out) {
+        float x = rotation[PoseData.INDEX_ROTATION_X];
+        float y = rotation[PoseData.INDEX_ROTATION_Y];
+        float z = rotation[PoseData.INDEX_ROTATION_Z];
+        float w = rotation[PoseData.INDEX_ROTATION_W];
+        out[0] = (1 - 2 * (y * y + z * z)) * scale;
+        out[1] = 2 * (x * y + z * w) * scale;
+        out[2] = 2 * (x * z - y * w) * scale;
+        out[3] = 0;
+        out[4] = 2 * (x * y - z * w) * scale;
+        out[5] = (1 - 2 * (x * x + z * z)) * scale;
+        out[6] = 2 * (y * z + x * w) * scale;
+        out[7] = 0;
+        out[8] = 2 * (x * z + y * w) * scale;
+        out[9] = 2 * (y * z - x * w) * scale;
+        out[10] = (1 - 2 * (x * x + y * y)) * scale;
+        out[11] = 0;
+        out[12] = translation[PoseData.INDEX_TRANSLATION_X];
+        out[13] = translation[PoseData.INDEX_TRANSLATION_Y];
+        out[14] = translation[PoseData.INDEX_TRANSLATION_Z];
+        out[15] = 1;
+    }
+
+    private static FloatBuffer allocateTransforms(int instances) {
+        return ByteBuffer.allocateDirect(instances * FLOATS_PER_INSTANCE * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private Entry entry(int handle) {
+        Entry entry = handle >= 0 && handle < mEntries.size() ? mEntries.get(handle) : null;
+        if (entry == null) {
+            throw new IllegalArgumentException("No object " + handle);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the batch an object is drawn in.
+     */
+    Batch getBatch(int handle) {
+        return entry(handle).mBatch;
+    }
+
+    /**
+     * @return where an object's vertices start in its batch, until the batch next changes.
+     */
+    int getFirstVertex(int handle) {
+        return entry(handle).mFirstVertex;
+    }
+
+    public List<Batch> getBatches() {
+        return mBatches;
+    }
+
+    public int getObjectCount() {
+        return mObjectCount;
+    }
+
+    /**
+     * @return the draw calls needed for everything batched, one per non empty batch.
+     */
+    public int getDrawCallCount() {
+        int count = 0;
+        for (Batch batch : mBatches) {
+            if (batch.mIndexCount > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return vertices written by adding, moving and compacting so far, a measure of how much
+     * work changes have cost.
+     */
+    public long getVerticesWritten() {
+        return mVerticesWritten;
+    }
+}
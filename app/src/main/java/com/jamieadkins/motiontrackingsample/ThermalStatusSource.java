@@ -0,0 +1,90 @@
+package com.jamieadkins.motiontrackingsample;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Polls how hot the device is running, on {@link QualityGovernor}'s thermal status scale.
+ * <p/>
+ * {@code PowerManager.getCurrentThermalStatus()} only arrived in API 29, past the SDK this app
+ * compiles against, so it is looked up by reflection. Older releases fall back to the battery
+ * temperature from the sticky battery broadcast, which follows the SoC more slowly but is
+ * available everywhere.
+ */
+public class ThermalStatusSource {
+    private static final String TAG = ThermalStatusSource.class.getSimpleName();
+
+    public static final long POLL_INTERVAL_MILLIS = 5000;
+
+    public interface Listener {
+        /**
+         * Called on the main thread after every poll.
+         */
+        void onThermalStatus(int status);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PowerManager mPowerManager;
+    private final Method mGetCurrentThermalStatus;
+
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onThermalStatus(readThermalStatus());
+            mHandler.postDelayed(this, POLL_INTERVAL_MILLIS);
+        }
+    };
+
+    public ThermalStatusSource(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        Method method = null;
+        try {
+            method = PowerManager.class.getMethod("getCurrentThermalStatus");
+        } catch (NoSuchMethodException e) {
+            Log.i(TAG, "No thermal status, using the battery temperature");
+        }
+        mGetCurrentThermalStatus = method;
+    }
+
+    /**
+     * Polls now and then every {@link #POLL_INTERVAL_MILLIS} until {@link #stop()}.
+     */
+    public void start() {
+        mHandler.removeCallbacks(mPoll);
+        mHandler.post(mPoll);
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mPoll);
+    }
+
+    private int readThermalStatus() {
+        if (mGetCurrentThermalStatus != null && mPowerManager != null) {
+            try {
+                return (Integer) mGetCurrentThermalStatus.invoke(mPowerManager);
+            } catch (Exception e) {
+                Log.e(TAG, "Could not read the thermal status", e);
+            }
+        }
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return QualityGovernor.THERMAL_STATUS_NONE;
+        }
+        // In tenths of a degree.
+        int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+        return QualityGovernor.thermalStatusFromBatteryTemperature(temperature / 10f);
+    }
+}
@@ -0,0 +1,184 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trace markers for the pose, camera and render paths, so field traces show sensor callbacks,
+ * camera captures and GL frames side by side.
+ * <p/>
+ * Markers go to a {@link Backend}: {@link AndroidTraceBackend} for systrace and Perfetto on a
+ * device, {@link Recorder} in tests. Tracing is off until a backend is set, and while it is off
+ * every call returns after reading one volatile field. Callers that need to work something out
+ * for a marker should check {@link #isEnabled()} first.
+ * <p/>
+ * Sections must begin and end on the same thread and nest, like {@code android.os.Trace}. Async
+ * slices can end on any thread, and are matched by name and cookie.
+ */
+public final class Tracer {
+    public interface Backend {
+        void beginSection(String name);
+
+        void endSection();
+
+        void beginAsyncSection(String name, int cookie);
+
+        void endAsyncSection(String name, int cookie);
+
+        void setCounter(String name, long value);
+    }
+
+    private static volatile Backend sBackend;
+
+    private Tracer() {
+    }
+
+    /**
+     * @param backend where markers go, or null to turn tracing off.
+     */
+    public static void setBackend(Backend backend) {
+        sBackend = backend;
+    }
+
+    public static boolean isEnabled() {
+        return sBackend != null;
+    }
+
+    public static void beginSection(String name) {
+        Backend backend = sBackend;
+        if (backend != null) {
+            backend.beginSection(name);
+        }
+    }
+
+    public static void endSection() {
+        Backend backend = sBackend;
+        if (backend != null) {
+            backend.endSection();
+        }
+    }
+
+    public static void beginAsyncSection(String name, int cookie) {
+        Backend backend = sBackend;
+        if (backend != null) {
+            backend.beginAsyncSection(name, cookie);
+        }
+    }
+
+    public static void endAsyncSection(String name, int cookie) {
+        Backend backend = sBackend;
+        if (backend != null) {
+            backend.endAsyncSection(name, cookie);
+        }
+    }
+
+    public static void setCounter(String name, long value) {
+        Backend backend = sBackend;
+        if (backend != null) {
+            backend.setCounter(name, value);
+        }
+    }
+
+    /**
+     * Counter track of how often something happens, e.g. poses or camera frames a second.
+     * Updated about once a second. Call {@link #tick(long)} from a single thread.
+     */
+    public static class RateCounter {
+        private static final long INTERVAL_NANOS = 1000000000L;
+
+        private final String mName;
+        private long mWindowStartNanos = -1;
+        private int mCount;
+
+        public RateCounter(String name) {
+            mName = name;
+        }
+
+        public void tick(long nowNanos) {
+            if (sBackend == null) {
+                mWindowStartNanos = -1;
+                return;
+            }
+            if (mWindowStartNanos < 0) {
+                mWindowStartNanos = nowNanos;
+                mCount = 0;
+                return;
+            }
+            mCount++;
+            long elapsed = nowNanos - mWindowStartNanos;
+            if (elapsed >= INTERVAL_NANOS) {
+                setCounter(mName, Math.round(mCount * 1e9 / elapsed));
+                mWindowStartNanos = nowNanos;
+                mCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Keeps every marker in memory, for tests.
+     */
+    public static class Recorder implements Backend {
+        public static final String BEGIN = "B";
+        public static final String END = "E";
+        public static final String ASYNC_BEGIN = "S";
+        public static final String ASYNC_END = "F";
+        public static final String COUNTER = "C";
+
+        /**
+         * One marker, with the thread it came from.
+         */
+        public static class Event {
+            public final String mType;
+            public final String mName;
+            public final long mValue;
+            public final String mThread;
+
+            Event(String type, String name, long value) {
+                mType = type;
+                mName = name;
+                mValue = value;
+                mThread = Thread.currentThread().getName();
+            }
+
+            @Override
+            public String toString() {
+                return mType + " " + mName + " " + mValue + " on " + mThread;
+            }
+        }
+
+        private final List<Event> mEvents = new ArrayList<>();
+
+        @Override
+        public synchronized void beginSection(String name) {
+            mEvents.add(new Event(BEGIN, name, 0));
+        }
+
+        @Override
+        public synchronized void endSection() {
+            mEvents.add(new Event(END, null, 0));
+        }
+
+        @Override
+        public synchronized void beginAsyncSection(String name, int cookie) {
+            mEvents.add(new Event(ASYNC_BEGIN, name, cookie));
+        }
+
+        @Override
+        public synchronized void endAsyncSection(String name, int cookie) {
+            mEvents.add(new Event(ASYNC_END, name, cookie));
+        }
+
+        @Override
+        public synchronized void setCounter(String name, long value) {
+            mEvents.add(new Event(COUNTER, name, value));
+        }
+
+        public synchronized List<Event> getEvents() {
+            return new ArrayList<>(mEvents);
+        }
+
+        public synchronized void clear() {
+            mEvents.clear();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * How much the current pose can be trusted, as decided by the {@link TrackingStateMachine}.
+ */
+public enum TrackingState {
+    /** The provider has started but hasn't produced a usable pose yet. */
+    INITIALIZING,
+    /** Poses are valid. */
+    TRACKING,
+    /** Poses are valid but the provider reports reduced accuracy. */
+    LIMITED,
+    /** Poses are invalid; the last good pose is held. */
+    LOST,
+    /** Poses look valid again after being lost but haven't been confirmed yet. */
+    RECOVERING
+}
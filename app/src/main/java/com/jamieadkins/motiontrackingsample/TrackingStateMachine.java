@@ -0,0 +1,213 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Turns the per-sample status reported by a pose provider into a {@link TrackingState}, decides
+ * which poses may reach the renderer and keeps counters of time spent in each state and of how
+ * long recoveries take.
+ * <p/>
+ * Times are passed in explicitly, in nanoseconds from any monotonic clock, so the machine can be
+ * driven by tests as well as by live sensor callbacks.
+ */
+public class TrackingStateMachine {
+    /** Default number of consecutive valid or limited samples needed to confirm a recovery. */
+    public static final int DEFAULT_RECOVERY_SAMPLES = 10;
+    /** Default time a recovery must hold for before it is confirmed. */
+    public static final long DEFAULT_RECOVERY_NANOS = 50000000L;
+
+    /**
+     * Status of a single sample, as reported by the provider.
+     */
+    public enum PoseStatus {
+        INITIALIZING,
+        VALID,
+        /** Valid, but reported with low accuracy. */
+        LIMITED,
+        INVALID
+    }
+
+    public interface Listener {
+        /**
+         * Called on the provider's thread whenever the state changes.
+         *
+         * @param timeInPreviousNanos how long the machine was in {@code previous}.
+         */
+        void onTrackingStateChanged(TrackingState previous, TrackingState current,
+                                    long timeInPreviousNanos);
+    }
+
+    private final int mRecoverySamples;
+    private final long mRecoveryNanos;
+
+    private Listener mListener;
+
+    private TrackingState mState = TrackingState.INITIALIZING;
+    private long mStateEnteredNanos = -1;
+    private long mLostEnteredNanos;
+    private int mRecoverySampleCount;
+    private boolean mRecoveryAllValid;
+
+    private final long[] mTimeInStateNanos = new long[TrackingState.values().length];
+    private final int[] mEntryCounts = new int[TrackingState.values().length];
+    private int mRecoveries;
+    private long mLastRecoveryNanos;
+    private long mMaxRecoveryNanos;
+    private long mTotalRecoveryNanos;
+
+    public TrackingStateMachine() {
+        this(DEFAULT_RECOVERY_SAMPLES, DEFAULT_RECOVERY_NANOS);
+    }
+
+    public TrackingStateMachine(int recoverySamples, long recoveryNanos) {
+        mRecoverySamples = recoverySamples;
+        mRecoveryNanos = recoveryNanos;
+        mEntryCounts[TrackingState.INITIALIZING.ordinal()] = 1;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Feeds the status of the latest sample, or a status change reported without a sample.
+     *
+     * @return true if a pose with this status may be rendered.
+     */
+    public boolean update(PoseStatus status, long nowNanos) {
+        TrackingState previous;
+        TrackingState next;
+        long timeInPrevious;
+        synchronized (this) {
+            if (mStateEnteredNanos < 0) {
+                mStateEnteredNanos = nowNanos;
+            }
+            previous = mState;
+            next = nextState(status, nowNanos);
+            if (next == previous) {
+                return isRenderable(status);
+            }
+            timeInPrevious = nowNanos - mStateEnteredNanos;
+            enter(next, nowNanos);
+        }
+
+        if (mListener != null) {
+            mListener.onTrackingStateChanged(previous, next, timeInPrevious);
+        }
+        return isRenderable(status);
+    }
+
+    private TrackingState nextState(PoseStatus status, long nowNanos) {
+        switch (mState) {
+            case INITIALIZING:
+                if (status == PoseStatus.VALID) {
+                    return TrackingState.TRACKING;
+                } else if (status == PoseStatus.LIMITED) {
+                    return TrackingState.LIMITED;
+                } else if (status == PoseStatus.INVALID) {
+                    return TrackingState.LOST;
+                }
+                return TrackingState.INITIALIZING;
+            case TRACKING:
+            case LIMITED:
+                if (status == PoseStatus.VALID) {
+                    return TrackingState.TRACKING;
+                } else if (status == PoseStatus.LIMITED) {
+                    return TrackingState.LIMITED;
+                }
+                // Invalid, or the provider has restarted its initialisation.
+                return TrackingState.LOST;
+            case LOST:
+                if (status == PoseStatus.VALID || status == PoseStatus.LIMITED) {
+                    mRecoverySampleCount = 1;
+                    mRecoveryAllValid = status == PoseStatus.VALID;
+                    return TrackingState.RECOVERING;
+                }
+                return TrackingState.LOST;
+            case RECOVERING:
+                if (status == PoseStatus.VALID || status == PoseStatus.LIMITED) {
+                    // A sensor that only ever reports low accuracy still recovers, into LIMITED.
+                    mRecoverySampleCount++;
+                    mRecoveryAllValid &= status == PoseStatus.VALID;
+                    if (mRecoverySampleCount >= mRecoverySamples
+                            && nowNanos - mStateEnteredNanos >= mRecoveryNanos) {
+                        return mRecoveryAllValid ? TrackingState.TRACKING : TrackingState.LIMITED;
+                    }
+                    return TrackingState.RECOVERING;
+                }
+                return TrackingState.LOST;
+            default:
+                return mState;
+        }
+    }
+
+    private void enter(TrackingState next, long nowNanos) {
+        mTimeInStateNanos[mState.ordinal()] += nowNanos - mStateEnteredNanos;
+        mEntryCounts[next.ordinal()]++;
+
+        if (next == TrackingState.LOST) {
+            mLostEnteredNanos = nowNanos;
+        } else if (mState == TrackingState.RECOVERING) {
+            long latency = nowNanos - mLostEnteredNanos;
+            mRecoveries++;
+            mLastRecoveryNanos = latency;
+            mMaxRecoveryNanos = Math.max(mMaxRecoveryNanos, latency);
+            mTotalRecoveryNanos += latency;
+        }
+
+        mState = next;
+        mStateEnteredNanos = nowNanos;
+    }
+
+    /**
+     * Only poses the provider itself vouches for go to the renderer; while lost or not yet
+     * recovered the last good pose is held instead.
+     */
+    private boolean isRenderable(PoseStatus status) {
+        return (mState == TrackingState.TRACKING || mState == TrackingState.LIMITED)
+                && (status == PoseStatus.VALID || status == PoseStatus.LIMITED);
+    }
+
+    public synchronized TrackingState getState() {
+        return mState;
+    }
+
+    /**
+     * @return total time spent in {@code state}, including the current stay if it is the active
+     * state.
+     */
+    public synchronized long getTimeInStateNanos(TrackingState state, long nowNanos) {
+        long time = mTimeInStateNanos[state.ordinal()];
+        if (state == mState && mStateEnteredNanos >= 0) {
+            time += nowNanos - mStateEnteredNanos;
+        }
+        return time;
+    }
+
+    /**
+     * @return how many times {@code state} has been entered.
+     */
+    public synchronized int getEntryCount(TrackingState state) {
+        return mEntryCounts[state.ordinal()];
+    }
+
+    /**
+     * @return number of completed recoveries from LOST to TRACKING or LIMITED.
+     */
+    public synchronized int getRecoveryCount() {
+        return mRecoveries;
+    }
+
+    /**
+     * @return time from losing tracking to tracking again, for the latest recovery.
+     */
+    public synchronized long getLastRecoveryNanos() {
+        return mLastRecoveryNanos;
+    }
+
+    public synchronized long getMaxRecoveryNanos() {
+        return mMaxRecoveryNanos;
+    }
+
+    public synchronized long getMeanRecoveryNanos() {
+        return mRecoveries == 0 ? 0 : mTotalRecoveryNanos / mRecoveries;
+    }
+}
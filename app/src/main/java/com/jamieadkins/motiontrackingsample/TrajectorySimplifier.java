@@ -0,0 +1,210 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Thins a pose stream down to the key poses needed to reproduce it within an error bound, as
+ * poses arrive and in fixed memory.
+ * <p/>
+ * Each new pose is tried as the end of a segment from the last key pose. The segment is kept
+ * while every pose since the key pose stays within bounds of it when interpolated at that pose's
+ * time, linearly for position and by slerp for rotation; once one doesn't, the previous pose
+ * becomes a key pose. This is the opening window form of Douglas-Peucker with the time
+ * synchronous distance, so replaying the key poses with the same interpolation reproduces every
+ * dropped pose to within {@code maxPositionError} and {@code maxRotationError}. A key pose is
+ * also forced once the window reaches its capacity, which bounds memory and the work per pose.
+ * <p/>
+ * Not thread safe; feed it from one thread.
+ */
+public class TrajectorySimplifier {
+    public static final int DEFAULT_MAX_WINDOW = 512;
+
+    public interface Output {
+        /**
+         * Called with each key pose, in order. The arrays are reused after this returns.
+         */
+        void onKeyPose(long timestamp, float[] translation, float[] rotation);
+    }
+
+    private final float mMaxPositionErrorSquared;
+    // Dot product between unit quaternions below which they differ by more than the error.
+    private final float mMinRotationDot;
+    private final int mMaxWindow;
+    private final Output mOutput;
+
+    // The last key pose.
+    private boolean mHasAnchor;
+    private long mAnchorTimestamp;
+    private final float[] mAnchorTranslation = new float[3];
+    private final float[] mAnchorRotation = new float[4];
+
+    // Poses since the key pose, the newest being the end of the current segment.
+    private final long[] mTimestamps;
+    private final float[] mTranslations;
+    private final float[] mRotations;
+    private int mWindowSize;
+
+    private long mInputCount;
+    private long mOutputCount;
+
+    /**
+     * @param maxPositionError largest distance, in the translation's units, between a dropped
+     *                         pose and the interpolated trajectory.
+     * @param maxRotationError largest rotation, in radians, between a dropped pose and the
+     *                         interpolated trajectory.
+     */
+    public TrajectorySimplifier(float maxPositionError, float maxRotationError, Output output) {
+        this(maxPositionError, maxRotationError, DEFAULT_MAX_WINDOW, output);
+    }
+
+    public TrajectorySimplifier(float maxPositionError, float maxRotationError, int maxWindow,
+                                Output output) {
+        if (maxWindow < 1) {
+            throw new IllegalArgumentException("Window must hold at least one pose");
+        }
+        mMaxPositionErrorSquared = maxPositionError * maxPositionError;
+        mMinRotationDot = (float) Math.cos(maxRotationError / 2);
+        mMaxWindow = maxWindow;
+        mOutput = output;
+        mTimestamps = new long[maxWindow];
+        mTranslations = new float[maxWindow * 3];
+        mRotations = new float[maxWindow * 4];
+    }
+
+    public void add(PoseData pose) {
+        add((long) pose.getTimestamp(), pose.mTranslation, pose.mRotation);
+    }
+
+    public void add(long timestamp, float[] translation, float[] rotation) {
+        mInputCount++;
+        if (!mHasAnchor) {
+            setAnchor(timestamp, translation, 0, rotation, 0);
+            emitAnchor();
+            return;
+        }
+        if (mWindowSize == mMaxWindow || !segmentFits(timestamp, translation, rotation)) {
+            // The previous pose is the furthest the segment could reach.
+            int last = mWindowSize - 1;
+            setAnchor(mTimestamps[last], mTranslations, last * 3, mRotations, last * 4);
+            emitAnchor();
+            mWindowSize = 0;
+        }
+        int i = mWindowSize++;
+        mTimestamps[i] = timestamp;
+        System.arraycopy(translation, 0, mTranslations, i * 3, 3);
+        System.arraycopy(rotation, 0, mRotations, i * 4, 4);
+    }
+
+    /**
+     * Emits the newest pose as a key pose, e.g. at the end of a session. Poses added afterwards
+     * continue from it.
+     */
+    public void flush() {
+        if (mWindowSize == 0) {
+            return;
+        }
+        int last = mWindowSize - 1;
+        setAnchor(mTimestamps[last], mTranslations, last * 3, mRotations, last * 4);
+        emitAnchor();
+        mWindowSize = 0;
+    }
+
+    /**
+     * Forgets everything, so the next pose starts a new trajectory.
+     */
+    public void reset() {
+        mHasAnchor = false;
+        mWindowSize = 0;
+    }
+
+    public long getInputCount() {
+        return mInputCount;
+    }
+
+    public long getOutputCount() {
+        return mOutputCount;
+    }
+
+    /**
+     * @return poses in for every key pose out.
+     */
+    public double getReductionRatio() {
+        return mOutputCount == 0 ? 0 : mInputCount / (double) mOutputCount;
+    }
+
+    /**
+     * @return true if every pose in the window is within bounds of the segment from the key pose
+     * to the given pose.
+     */
+    private boolean segmentFits(long timestamp, float[] translation, float[] rotation) {
+        long t0 = mAnchorTimestamp;
+        double duration = timestamp - t0;
+        float ax = mAnchorTranslation[0], ay = mAnchorTranslation[1], az = mAnchorTranslation[2];
+        float dx = translation[0] - ax, dy = translation[1] - ay, dz = translation[2] - az;
+        // Positions first, they are cheap and usually what breaks the segment.
+        for (int i = 0; i < mWindowSize; i++) {
+            float f = duration <= 0 ? 0 : (float) ((mTimestamps[i] - t0) / duration);
+            int p = i * 3;
+            float ex = ax + dx * f - mTranslations[p];
+            float ey = ay + dy * f - mTranslations[p + 1];
+            float ez = az + dz * f - mTranslations[p + 2];
+            if (ex * ex + ey * ey + ez * ez > mMaxPositionErrorSquared) {
+                return false;
+            }
+        }
+
+        // Same as PoseMath.slerp, with the angle between the ends worked out once.
+        float qx = mAnchorRotation[0], qy = mAnchorRotation[1];
+        float qz = mAnchorRotation[2], qw = mAnchorRotation[3];
+        float rx = rotation[0], ry = rotation[1], rz = rotation[2], rw = rotation[3];
+        float cosTheta = qx * rx + qy * ry + qz * rz + qw * rw;
+        if (cosTheta < 0) {
+            cosTheta = -cosTheta;
+            rx = -rx;
+            ry = -ry;
+            rz = -rz;
+            rw = -rw;
+        }
+        boolean linear = cosTheta > 0.9995f;
+        double theta = linear ? 0 : Math.acos(cosTheta);
+        double inverseSinTheta = linear ? 0 : 1 / Math.sin(theta);
+        for (int i = 0; i < mWindowSize; i++) {
+            float f = duration <= 0 ? 0 : (float) ((mTimestamps[i] - t0) / duration);
+            float wa;
+            float wb;
+            if (linear) {
+                wa = 1 - f;
+                wb = f;
+            } else {
+                wa = (float) (Math.sin((1 - f) * theta) * inverseSinTheta);
+                wb = (float) (Math.sin(f * theta) * inverseSinTheta);
+            }
+            float ix = wa * qx + wb * rx, iy = wa * qy + wb * ry;
+            float iz = wa * qz + wb * rz, iw = wa * qw + wb * rw;
+            int q = i * 4;
+            float dot = ix * mRotations[q] + iy * mRotations[q + 1] + iz * mRotations[q + 2]
+                    + iw * mRotations[q + 3];
+            if (linear) {
+                // Normalise the lerp, comparing squared to save the square root.
+                float lengthSquared = ix * ix + iy * iy + iz * iz + iw * iw;
+                if (dot * dot < mMinRotationDot * mMinRotationDot * lengthSquared) {
+                    return false;
+                }
+            } else if (Math.abs(dot) < mMinRotationDot) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setAnchor(long timestamp, float[] translation, int translationOffset,
+                           float[] rotation, int rotationOffset) {
+        mHasAnchor = true;
+        mAnchorTimestamp = timestamp;
+        System.arraycopy(translation, translationOffset, mAnchorTranslation, 0, 3);
+        System.arraycopy(rotation, rotationOffset, mAnchorRotation, 0, 4);
+    }
+
+    private void emitAnchor() {
+        mOutputCount++;
+        mOutput.onKeyPose(mAnchorTimestamp, mAnchorTranslation, mAnchorRotation);
+    }
+}
@@ -0,0 +1,632 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Keeps every pose of a session in memory for later analysis, as columns of primitives in fixed
+ * size chunks: one {@code long[]} of timestamps and one {@code float[]} per translation and
+ * rotation component. That is 36 bytes a pose, about 26MB an hour at 200Hz, against several
+ * times that for the equivalent {@link PoseData} objects, and the queries scan it linearly.
+ * <p/>
+ * Window queries run one fork-join task per chunk on the {@link WorkerPool}. Timestamps must not
+ * go backwards. Appending and querying may happen on different threads; a query sees the
+ * samples appended before it started.
+ */
+public class TrajectoryStore {
+    /** Samples per chunk. */
+    public static final int CHUNK_SIZE = 1 << 16;
+    /** Bytes stored per sample. */
+    public static final int BYTES_PER_SAMPLE = 8 + 7 * 4;
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private static class Chunk {
+        final long[] mTimestamps = new long[CHUNK_SIZE];
+        final float[] mX = new float[CHUNK_SIZE];
+        final float[] mY = new float[CHUNK_SIZE];
+        final float[] mZ = new float[CHUNK_SIZE];
+        final float[] mQx = new float[CHUNK_SIZE];
+        final float[] mQy = new float[CHUNK_SIZE];
+        final float[] mQz = new float[CHUNK_SIZE];
+        final float[] mQw = new float[CHUNK_SIZE];
+    }
+
+    private final ForkJoinPool mPool;
+    private final int mMaxChunks;
+    private final List<Chunk> mChunks = new ArrayList<>();
+    // Samples in the last chunk.
+    private int mLastChunkSize = CHUNK_SIZE;
+    private long mLastTimestamp = Long.MIN_VALUE;
+    private long mDroppedCount;
+
+    public TrajectoryStore() {
+        this(WorkerPool.get(), UNBOUNDED);
+    }
+
+    /**
+     * @param pool       runs the window queries, or null to run them on the calling thread.
+     * @param maxSamples once the store holds more than this, the oldest chunk is dropped. Rounded
+     *                   up to whole chunks.
+     */
+    public TrajectoryStore(ForkJoinPool pool, int maxSamples) {
+        mPool = pool;
+        mMaxChunks = maxSamples == UNBOUNDED
+                ? Integer.MAX_VALUE : Math.max(1, (maxSamples + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    public void append(PoseData pose) {
+        append((long) pose.getTimestamp(), pose.mTranslation, pose.mRotation);
+    }
+
+    public synchronized void append(long timestamp, float[] translation, float[] rotation) {
+        if (timestamp < mLastTimestamp) {
+            throw new IllegalArgumentException(
+                    "Timestamp " + timestamp + " before " + mLastTimestamp);
+        }
+        if (mLastChunkSize == CHUNK_SIZE) {
+            if (mChunks.size() == mMaxChunks) {
+                mChunks.remove(0);
+                mDroppedCount += CHUNK_SIZE;
+            }
+            mChunks.add(new Chunk());
+            mLastChunkSize = 0;
+        }
+        Chunk chunk = mChunks.get(mChunks.size() - 1);
+        int i = mLastChunkSize++;
+        chunk.mTimestamps[i] = timestamp;
+        chunk.mX[i] = translation[0];
+        chunk.mY[i] = translation[1];
+        chunk.mZ[i] = translation[2];
+        chunk.mQx[i] = rotation[PoseData.INDEX_ROTATION_X];
+        chunk.mQy[i] = rotation[PoseData.INDEX_ROTATION_Y];
+        chunk.mQz[i] = rotation[PoseData.INDEX_ROTATION_Z];
+        chunk.mQw[i] = rotation[PoseData.INDEX_ROTATION_W];
+        mLastTimestamp = timestamp;
+    }
+
+    public synchronized void clear() {
+        mChunks.clear();
+        mLastChunkSize = CHUNK_SIZE;
+        mLastTimestamp = Long.MIN_VALUE;
+        mDroppedCount = 0;
+    }
+
+    /**
+     * @return samples held. Indexes run from 0, the oldest sample still held, to size - 1.
+     */
+    public synchronized int size() {
+        return mChunks.isEmpty() ? 0 : (mChunks.size() - 1) * CHUNK_SIZE + mLastChunkSize;
+    }
+
+    /**
+     * @return samples dropped to stay within the maximum size.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return bytes allocated for samples, including the unused end of the last chunk.
+     */
+    public synchronized long getMemoryBytes() {
+        return (long) mChunks.size() * CHUNK_SIZE * BYTES_PER_SAMPLE;
+    }
+
+    public synchronized long getTimestamp(int index) {
+        checkIndex(index);
+        return mChunks.get(index / CHUNK_SIZE).mTimestamps[index % CHUNK_SIZE];
+    }
+
+    public synchronized void getTranslation(int index, float[] out) {
+        checkIndex(index);
+        Chunk chunk = mChunks.get(index / CHUNK_SIZE);
+        int i = index % CHUNK_SIZE;
+        out[0] = chunk.mX[i];
+        out[1] = chunk.mY[i];
+        out[2] = chunk.mZ[i];
+    }
+
+    public synchronized void getRotation(int index, float[] out) {
+        checkIndex(index);
+        Chunk chunk = mChunks.get(index / CHUNK_SIZE);
+        int i = index % CHUNK_SIZE;
+        out[PoseData.INDEX_ROTATION_X] = chunk.mQx[i];
+        out[PoseData.INDEX_ROTATION_Y] = chunk.mQy[i];
+        out[PoseData.INDEX_ROTATION_Z] = chunk.mQz[i];
+        out[PoseData.INDEX_ROTATION_W] = chunk.mQw[i];
+    }
+
+    /**
+     * Writes samples {@code [from, from + count)} to {@code out} at its position, timestamps
+     * first and then each component, in bulk copies straight out of the chunks. Takes
+     * {@code count * BYTES_PER_SAMPLE} bytes.
+     */
+    public synchronized void writeTo(ByteBuffer out, int from, int count) {
+        if (count > 0) {
+            checkIndex(from);
+            checkIndex(from + count - 1);
+        }
+        int position = out.position();
+        LongBuffer timestamps = out.asLongBuffer();
+        for (int i = from; i < from + count; ) {
+            int run = Math.min(from + count - i, CHUNK_SIZE - i % CHUNK_SIZE);
+            timestamps.put(mChunks.get(i / CHUNK_SIZE).mTimestamps, i % CHUNK_SIZE, run);
+            i += run;
+        }
+        position += count * 8;
+        for (int component = 0; component < 7; component++) {
+            out.position(position);
+            FloatBuffer values = out.asFloatBuffer();
+            for (int i = from; i < from + count; ) {
+                int run = Math.min(from + count - i, CHUNK_SIZE - i % CHUNK_SIZE);
+                values.put(column(mChunks.get(i / CHUNK_SIZE), component), i % CHUNK_SIZE, run);
+                i += run;
+            }
+            position += count * 4;
+        }
+        out.position(position);
+    }
+
+    /**
+     * Appends {@code count} samples read from {@code in}, as written by {@link #writeTo}, skipping
+     * any that would go backwards or are at or after {@code beforeTimestamp}.
+     *
+     * @return the number of samples appended.
+     */
+    public synchronized int appendFrom(ByteBuffer in, int count, long beforeTimestamp) {
+        long[] timestamps = new long[count];
+        float[][] components = new float[7][count];
+        int position = in.position();
+        in.asLongBuffer().get(timestamps);
+        position += count * 8;
+        for (float[] component : components) {
+            in.position(position);
+            in.asFloatBuffer().get(component);
+            position += count * 4;
+        }
+        in.position(position);
+
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        int appended = 0;
+        for (int i = 0; i < count; i++) {
+            if (timestamps[i] < mLastTimestamp || timestamps[i] >= beforeTimestamp) {
+                continue;
+            }
+            translation[0] = components[0][i];
+            translation[1] = components[1][i];
+            translation[2] = components[2][i];
+            rotation[PoseData.INDEX_ROTATION_X] = components[3][i];
+            rotation[PoseData.INDEX_ROTATION_Y] = components[4][i];
+            rotation[PoseData.INDEX_ROTATION_Z] = components[5][i];
+            rotation[PoseData.INDEX_ROTATION_W] = components[6][i];
+            append(timestamps[i], translation, rotation);
+            appended++;
+        }
+        return appended;
+    }
+
+    private static float[] column(Chunk chunk, int component) {
+        switch (component) {
+            case 0:
+                return chunk.mX;
+            case 1:
+                return chunk.mY;
+            case 2:
+                return chunk.mZ;
+            case 3:
+                return chunk.mQx;
+            case 4:
+                return chunk.mQy;
+            case 5:
+                return chunk.mQz;
+            default:
+                return chunk.mQw;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+    }
+
+    /**
+     * @return the index of the sample closest in time to {@code timestamp}, the earlier one on a
+     * tie, or -1 if the store is empty.
+     */
+    public synchronized int findNearest(long timestamp) {
+        int size = size();
+        if (size == 0) {
+            return -1;
+        }
+        int after = lowerBound(timestamp, size);
+        if (after == size) {
+            return size - 1;
+        }
+        if (after == 0) {
+            return 0;
+        }
+        long before = timestamp - getTimestampUnchecked(after - 1);
+        return before <= getTimestampUnchecked(after) - timestamp ? after - 1 : after;
+    }
+
+    /**
+     * @return the first index with a timestamp at or after {@code timestamp}, or {@code size}.
+     */
+    private int lowerBound(long timestamp, int size) {
+        if (size == 0) {
+            return 0;
+        }
+        // Find the chunk by its first timestamp, then search inside it.
+        int lo = 0;
+        int hi = mChunks.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mChunks.get(mid).mTimestamps[0] < timestamp) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        long[] timestamps = mChunks.get(lo).mTimestamps;
+        int from = 0;
+        int to = lo == mChunks.size() - 1 ? mLastChunkSize : CHUNK_SIZE;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return Math.min(size, lo * CHUNK_SIZE + from);
+    }
+
+    private long getTimestampUnchecked(int index) {
+        return mChunks.get(index / CHUNK_SIZE).mTimestamps[index % CHUNK_SIZE];
+    }
+
+    /**
+     * Works out distance, speed, angular velocity and bounds over every sample with a timestamp
+     * in {@code [fromTimestamp, toTimestamp]}.
+     */
+    public WindowStats query(long fromTimestamp, long toTimestamp) {
+        Chunk[] chunks;
+        int from;
+        int to;
+        synchronized (this) {
+            int size = size();
+            chunks = mChunks.toArray(new Chunk[mChunks.size()]);
+            from = lowerBound(fromTimestamp, size);
+            to = toTimestamp == Long.MAX_VALUE ? size : lowerBound(toTimestamp + 1, size);
+        }
+        QueryTask task = new QueryTask(chunks, from, to);
+        if (mPool == null || to - from <= CHUNK_SIZE) {
+            return task.computeSequentially();
+        }
+        return mPool.invoke(task);
+    }
+
+    /**
+     * Same as {@link #query(long, long)} over everything held.
+     */
+    public WindowStats queryAll() {
+        return query(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Results of a window query. Speeds are in units a second, angular velocities in radians a
+     * second, measured between consecutive samples.
+     */
+    public static class WindowStats {
+        int mCount;
+        long mFirstTimestamp;
+        long mLastTimestamp;
+        double mDistance;
+        double mAngle;
+        int mIntervals;
+        double mSpeedSum;
+        double mSpeedSquaredSum;
+        double mMaxSpeed;
+        double mAngularSpeedSum;
+        double mAngularSpeedSquaredSum;
+        double mMaxAngularSpeed;
+        final float[] mMin = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        final float[] mMax = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+
+        /**
+         * Combines with the stats of the samples straight after these.
+         */
+        void append(WindowStats next) {
+            if (next.mCount == 0) {
+                return;
+            }
+            if (mCount == 0) {
+                mFirstTimestamp = next.mFirstTimestamp;
+            }
+            mCount += next.mCount;
+            mLastTimestamp = next.mLastTimestamp;
+            mDistance += next.mDistance;
+            mAngle += next.mAngle;
+            mIntervals += next.mIntervals;
+            mSpeedSum += next.mSpeedSum;
+            mSpeedSquaredSum += next.mSpeedSquaredSum;
+            mMaxSpeed = Math.max(mMaxSpeed, next.mMaxSpeed);
+            mAngularSpeedSum += next.mAngularSpeedSum;
+            mAngularSpeedSquaredSum += next.mAngularSpeedSquaredSum;
+            mMaxAngularSpeed = Math.max(mMaxAngularSpeed, next.mMaxAngularSpeed);
+            for (int axis = 0; axis < 3; axis++) {
+                mMin[axis] = Math.min(mMin[axis], next.mMin[axis]);
+                mMax[axis] = Math.max(mMax[axis], next.mMax[axis]);
+            }
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getDurationNanos() {
+            return mCount == 0 ? 0 : mLastTimestamp - mFirstTimestamp;
+        }
+
+        /**
+         * @return path length in the translation's units.
+         */
+        public double getDistance() {
+            return mDistance;
+        }
+
+        /**
+         * @return total rotation in radians.
+         */
+        public double getTotalRotation() {
+            return mAngle;
+        }
+
+        /**
+         * @return distance over duration.
+         */
+        public double getMeanSpeed() {
+            long duration = getDurationNanos();
+            return duration == 0 ? 0 : mDistance / (duration / 1e9);
+        }
+
+        public double getMaxSpeed() {
+            return mMaxSpeed;
+        }
+
+        /**
+         * @return standard deviation of the speed between consecutive samples.
+         */
+        public double getSpeedStdDev() {
+            return stdDev(mSpeedSum, mSpeedSquaredSum, mIntervals);
+        }
+
+        public double getMeanAngularSpeed() {
+            long duration = getDurationNanos();
+            return duration == 0 ? 0 : mAngle / (duration / 1e9);
+        }
+
+        public double getMaxAngularSpeed() {
+            return mMaxAngularSpeed;
+        }
+
+        public double getAngularSpeedStdDev() {
+            return stdDev(mAngularSpeedSum, mAngularSpeedSquaredSum, mIntervals);
+        }
+
+        /**
+         * @return the minimum corner of the bounding box of the positions, or all
+         * {@code Float.MAX_VALUE} if the window was empty.
+         */
+        public float[] getBoundsMin() {
+            return mMin.clone();
+        }
+
+        public float[] getBoundsMax() {
+            return mMax.clone();
+        }
+
+        private static double stdDev(double sum, double squaredSum, int n) {
+            if (n < 2) {
+                return 0;
+            }
+            double mean = sum / n;
+            return Math.sqrt(Math.max(0, squaredSum / n - mean * mean));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d samples over %.1fs: %.2fm travelled, speed mean %.2f max %.2f,"
+                            + " angular speed mean %.2f max %.2f, bounds [%.2f %.2f %.2f]"
+                            + "..[%.2f %.2f %.2f]",
+                    mCount, getDurationNanos() / 1e9, mDistance, getMeanSpeed(), mMaxSpeed,
+                    getMeanAngularSpeed(), mMaxAngularSpeed, mMin[0], mMin[1], mMin[2],
+                    mMax[0], mMax[1], mMax[2]);
+        }
+    }
+
+    /**
+     * @return the angle between two unit quaternions from the absolute value of their dot
+     * product. Consecutive samples are nearly always a tiny rotation apart, where a short series
+     * is exact to float precision and several times cheaper than {@code Math.acos}.
+     */
+    static double turnAngle(double dot) {
+        double x = 1 - dot;
+        if (x <= 0) {
+            return 0;
+        }
+        if (x < 0.01) {
+            // acos(1 - x) = sqrt(2x) * (1 + x / 12 + 3x^2 / 160 + ...)
+            return 2 * Math.sqrt(2 * x) * (1 + x * (1.0 / 12 + x * (3.0 / 160)));
+        }
+        return 2 * Math.acos(dot);
+    }
+
+    /**
+     * Scans samples {@code [mFrom, mTo)}, splitting at chunk boundaries. Intervals are counted
+     * against the sample they end on, so each task looks back one sample past its start.
+     */
+    private static class QueryTask extends RecursiveTask<WindowStats> {
+        private final Chunk[] mChunks;
+        private final int mFrom;
+        private final int mTo;
+        private final boolean mFirstOfWindow;
+
+        QueryTask(Chunk[] chunks, int from, int to) {
+            this(chunks, from, to, true);
+        }
+
+        private QueryTask(Chunk[] chunks, int from, int to, boolean firstOfWindow) {
+            mChunks = chunks;
+            mFrom = from;
+            mTo = to;
+            mFirstOfWindow = firstOfWindow;
+        }
+
+        @Override
+        protected WindowStats compute() {
+            int firstChunk = mFrom / CHUNK_SIZE;
+            int lastChunk = (mTo - 1) / CHUNK_SIZE;
+            if (mTo > mFrom && lastChunk > firstChunk) {
+                int mid = ((firstChunk + lastChunk + 1) >>> 1) * CHUNK_SIZE;
+                QueryTask left = new QueryTask(mChunks, mFrom, mid, mFirstOfWindow);
+                left.fork();
+                WindowStats right = new QueryTask(mChunks, mid, mTo, false).compute();
+                WindowStats stats = left.join();
+                stats.append(right);
+                return stats;
+            }
+            return scan();
+        }
+
+        /**
+         * Same as {@link #compute()} but chunk by chunk on the calling thread.
+         */
+        WindowStats computeSequentially() {
+            WindowStats stats = new WindowStats();
+            int from = mFrom;
+            while (from < mTo) {
+                int end = Math.min(mTo, (from / CHUNK_SIZE + 1) * CHUNK_SIZE);
+                stats.append(new QueryTask(mChunks, from, end, from == mFrom && mFirstOfWindow)
+                        .scan());
+                from = end;
+            }
+            return stats;
+        }
+
+        private WindowStats scan() {
+            WindowStats stats = new WindowStats();
+            if (mTo <= mFrom) {
+                return stats;
+            }
+            Chunk chunk = mChunks[mFrom / CHUNK_SIZE];
+            int from = mFrom % CHUNK_SIZE;
+            int to = from + (mTo - mFrom);
+            long[] t = chunk.mTimestamps;
+            float[] x = chunk.mX, y = chunk.mY, z = chunk.mZ;
+            float[] qx = chunk.mQx, qy = chunk.mQy, qz = chunk.mQz, qw = chunk.mQw;
+
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+            double distance = 0, angle = 0;
+            double speedSum = 0, speedSquaredSum = 0, maxSpeed = 0;
+            double angularSum = 0, angularSquaredSum = 0, maxAngular = 0;
+            int intervals = 0;
+
+            // The previous sample, which may be the last of the previous chunk.
+            long pt;
+            float px, py, pz, pqx, pqy, pqz, pqw;
+            boolean hasPrevious = !mFirstOfWindow;
+            if (hasPrevious) {
+                Chunk previous = from == 0 ? mChunks[mFrom / CHUNK_SIZE - 1] : chunk;
+                int p = from == 0 ? CHUNK_SIZE - 1 : from - 1;
+                pt = previous.mTimestamps[p];
+                px = previous.mX[p];
+                py = previous.mY[p];
+                pz = previous.mZ[p];
+                pqx = previous.mQx[p];
+                pqy = previous.mQy[p];
+                pqz = previous.mQz[p];
+                pqw = previous.mQw[p];
+            } else {
+                pt = t[from];
+                px = x[from];
+                py = y[from];
+                pz = z[from];
+                pqx = qx[from];
+                pqy = qy[from];
+                pqz = qz[from];
+                pqw = qw[from];
+            }
+
+            for (int i = from; i < to; i++) {
+                long ct = t[i];
+                float cx = x[i], cy = y[i], cz = z[i];
+                float cqx = qx[i], cqy = qy[i], cqz = qz[i], cqw = qw[i];
+                minX = Math.min(minX, cx);
+                minY = Math.min(minY, cy);
+                minZ = Math.min(minZ, cz);
+                maxX = Math.max(maxX, cx);
+                maxY = Math.max(maxY, cy);
+                maxZ = Math.max(maxZ, cz);
+
+                if (i > from || hasPrevious) {
+                    float dx = cx - px, dy = cy - py, dz = cz - pz;
+                    double step = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                    double turn = turnAngle(
+                            Math.abs(cqx * pqx + cqy * pqy + cqz * pqz + cqw * pqw));
+                    distance += step;
+                    angle += turn;
+                    long dt = ct - pt;
+                    if (dt > 0) {
+                        double seconds = dt / 1e9;
+                        double speed = step / seconds;
+                        double angular = turn / seconds;
+                        speedSum += speed;
+                        speedSquaredSum += speed * speed;
+                        maxSpeed = Math.max(maxSpeed, speed);
+                        angularSum += angular;
+                        angularSquaredSum += angular * angular;
+                        maxAngular = Math.max(maxAngular, angular);
+                        intervals++;
+                    }
+                }
+                pt = ct;
+                px = cx;
+                py = cy;
+                pz = cz;
+                pqx = cqx;
+                pqy = cqy;
+                pqz = cqz;
+                pqw = cqw;
+            }
+
+            stats.mCount = to - from;
+            stats.mFirstTimestamp = t[from];
+            stats.mLastTimestamp = t[to - 1];
+            stats.mDistance = distance;
+            stats.mAngle = angle;
+            stats.mIntervals = intervals;
+            stats.mSpeedSum = speedSum;
+            stats.mSpeedSquaredSum = speedSquaredSum;
+            stats.mMaxSpeed = maxSpeed;
+            stats.mAngularSpeedSum = angularSum;
+            stats.mAngularSpeedSquaredSum = angularSquaredSum;
+            stats.mMaxAngularSpeed = maxAngular;
+            stats.mMin[0] = minX;
+            stats.mMin[1] = minY;
+            stats.mMin[2] = minZ;
+            stats.mMax[0] = maxX;
+            stats.mMax[1] = maxY;
+            stats.mMax[2] = maxZ;
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named coordinate frames joined into trees by rigid transforms, so consumers can ask for e.g. the
+ * color camera's pose in the world at a timestamp rather than composing extrinsics by hand.
+ * <p/>
+ * Every frame has at most one parent. The edge to it is either static, such as a camera's
+ * mounting on the device, or time varying, such as the device's pose in the world, in which case
+ * it keeps a ring of timestamped samples and is interpolated between them. A lookup walks both
+ * frames up to their root and composes the two paths.
+ * <p/>
+ * Runs of static edges are composed once and cached per frame, so a lookup costs one step per
+ * time varying edge plus one per cached run. The caches are invalidated only when a static edge
+ * or the shape of the tree changes; adding samples to a time varying edge leaves them alone.
+ * <p/>
+ * Transforms follow {@link PoseData}: the pose of the child frame in the parent frame, as a
+ * translation and an (x, y, z, w) quaternion, i.e. {@code p_parent = q * p_child + t}. Times are
+ * nanoseconds on whichever clock the samples were added with. Safe to use from any thread, and
+ * lookups don't allocate.
+ */
+public class TransformTree {
+    public static final int NO_FRAME = -1;
+    public static final int DEFAULT_HISTORY = 256;
+
+    // Packed transforms: translation x, y, z then rotation x, y, z, w.
+    private static final int FLOATS = 7;
+    private static final int ROTATION = 3;
+
+    private static final float[] IDENTITY = {0, 0, 0, 0, 0, 0, 1};
+
+    /**
+     * A frame and the edge to its parent.
+     */
+    private static class Frame {
+        final String mName;
+        int mParent = NO_FRAME;
+        boolean mTimeVarying;
+        final float[] mStatic = IDENTITY.clone();
+
+        // Ring of samples for a time varying edge, oldest at mHistoryStart.
+        final long[] mTimestamps;
+        final float[] mSamples;
+        int mHistoryStart;
+        int mHistorySize;
+
+        // The static edges from here up composed into one transform to mChainTop, which is the
+        // root or the first frame whose own edge is time varying.
+        int mChainTop;
+        final float[] mChain = new float[FLOATS];
+        int mChainVersion = -1;
+
+        Frame(String name, int history) {
+            mName = name;
+            mTimestamps = new long[history];
+            mSamples = new float[history * FLOATS];
+        }
+    }
+
+    private final int mHistory;
+    private final List<Frame> mFrames = new ArrayList<>();
+    private final Map<String, Integer> mFrameIds = new HashMap<>();
+
+    // Bumped whenever a static edge or a parent changes, invalidating every cached chain.
+    private int mStaticVersion;
+    private int mChainRebuildCount;
+
+    // Scratch for lookups.
+    private final float[] mSourceToRoot = new float[FLOATS];
+    private final float[] mTargetToRoot = new float[FLOATS];
+    private final float[] mEdge = new float[FLOATS];
+
+    public TransformTree() {
+        this(DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param history samples kept per time varying edge.
+     */
+    public TransformTree(int history) {
+        if (history < 1) {
+            throw new IllegalArgumentException("History must hold at least one sample");
+        }
+        mHistory = history;
+    }
+
+    /**
+     * @return the new frame's id.
+     */
+    public synchronized int addFrame(String name) {
+        if (mFrameIds.containsKey(name)) {
+            throw new IllegalArgumentException("Frame " + name + " already exists");
+        }
+        int id = mFrames.size();
+        mFrames.add(new Frame(name, mHistory));
+        mFrameIds.put(name, id);
+        return id;
+    }
+
+    /**
+     * @return the frame's id, or {@link #NO_FRAME} if there's no frame by that name.
+     */
+    public synchronized int getFrame(String name) {
+        Integer id = mFrameIds.get(name);
+        return id == null ? NO_FRAME : id;
+    }
+
+    public synchronized String getFrameName(int frame) {
+        return mFrames.get(frame).mName;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrames.size();
+    }
+
+    /**
+     * Attaches {@code child} to {@code parent} with a fixed transform, replacing any edge it had.
+     */
+    public synchronized void setStaticTransform(int parent, int child, float[] translation,
+                                                float[] rotation) {
+        Frame frame = reparent(parent, child);
+        frame.mTimeVarying = false;
+        frame.mHistorySize = 0;
+        pack(translation, rotation, frame.mStatic, 0);
+        mStaticVersion++;
+    }
+
+    /**
+     * Adds a sample to the time varying edge from {@code parent} to {@code child}, creating the
+     * edge, and dropping any other edge the child had, if needed. Samples must come in time
+     * order; once the history is full the oldest is dropped.
+     */
+    public synchronized void addTransform(int parent, int child, long timestampNanos,
+                                          float[] translation, float[] rotation) {
+        Frame frame = mFrames.get(child);
+        if (frame.mParent != parent || !frame.mTimeVarying) {
+            frame = reparent(parent, child);
+            frame.mTimeVarying = true;
+            frame.mHistoryStart = 0;
+            frame.mHistorySize = 0;
+            mStaticVersion++;
+        }
+        if (frame.mHistorySize > 0
+                && timestampNanos < frame.mTimestamps[index(frame, frame.mHistorySize - 1)]) {
+            throw new IllegalArgumentException("Sample at " + timestampNanos
+                    + " is older than the newest for " + frame.mName);
+        }
+        int slot;
+        if (frame.mHistorySize < mHistory) {
+            slot = index(frame, frame.mHistorySize++);
+        } else {
+            slot = frame.mHistoryStart;
+            frame.mHistoryStart = (frame.mHistoryStart + 1) % mHistory;
+        }
+        frame.mTimestamps[slot] = timestampNanos;
+        pack(translation, rotation, frame.mSamples, slot * FLOATS);
+    }
+
+    /**
+     * Detaches a frame from its parent, making it a root.
+     */
+    public synchronized void removeTransform(int child) {
+        Frame frame = mFrames.get(child);
+        frame.mParent = NO_FRAME;
+        frame.mTimeVarying = false;
+        frame.mHistorySize = 0;
+        mStaticVersion++;
+    }
+
+    /**
+     * @return the parent frame, or {@link #NO_FRAME} for a root.
+     */
+    public synchronized int getParent(int frame) {
+        return mFrames.get(frame).mParent;
+    }
+
+    /**
+     * Writes the pose of {@code source} in {@code target} at a time. Time varying edges are
+     * interpolated between the samples either side; after the newest sample the newest is used.
+     *
+     * @return false, leaving the outputs untouched, if the frames aren't in the same tree or a
+     * time varying edge on the way has no sample at or before the time.
+     */
+    public synchronized boolean lookupTransform(int target, int source, long timestampNanos,
+                                                float[] outTranslation, float[] outRotation) {
+        int sourceRoot = toRoot(source, timestampNanos, mSourceToRoot);
+        if (sourceRoot == NO_FRAME) {
+            return false;
+        }
+        int targetRoot = toRoot(target, timestampNanos, mTargetToRoot);
+        if (targetRoot != sourceRoot) {
+            return false;
+        }
+        // target <- root <- source.
+        invert(mTargetToRoot);
+        compose(mTargetToRoot, mSourceToRoot, mSourceToRoot);
+        System.arraycopy(mSourceToRoot, 0, outTranslation, 0, 3);
+        System.arraycopy(mSourceToRoot, ROTATION, outRotation, 0, 4);
+        return true;
+    }
+
+    /**
+     * Composes the transform from {@code frame} up to its root into {@code out}.
+     *
+     * @return the root, or {@link #NO_FRAME} if a time varying edge had no sample for the time.
+     */
+    private int toRoot(int frame, long timestampNanos, float[] out) {
+        System.arraycopy(IDENTITY, 0, out, 0, FLOATS);
+        int current = frame;
+        while (true) {
+            Frame chain = cachedChain(current);
+            // out = chain * out.
+            compose(chain.mChain, out, out);
+            Frame top = mFrames.get(chain.mChainTop);
+            if (top.mParent == NO_FRAME) {
+                return chain.mChainTop;
+            }
+            // The top's edge is time varying.
+            if (!sample(top, timestampNanos, mEdge)) {
+                return NO_FRAME;
+            }
+            compose(mEdge, out, out);
+            current = top.mParent;
+        }
+    }
+
+    /**
+     * @return the frame, with its static chain up to date.
+     */
+    private Frame cachedChain(int id) {
+        Frame frame = mFrames.get(id);
+        if (frame.mChainVersion == mStaticVersion) {
+            return frame;
+        }
+        System.arraycopy(IDENTITY, 0, frame.mChain, 0, FLOATS);
+        int current = id;
+        while (true) {
+            Frame edge = mFrames.get(current);
+            if (edge.mParent == NO_FRAME || edge.mTimeVarying) {
+                break;
+            }
+            compose(edge.mStatic, frame.mChain, frame.mChain);
+            current = edge.mParent;
+        }
+        frame.mChainTop = current;
+        frame.mChainVersion = mStaticVersion;
+        mChainRebuildCount++;
+        return frame;
+    }
+
+    /**
+     * Interpolates a time varying edge at a time.
+     */
+    private boolean sample(Frame frame, long timestampNanos, float[] out) {
+        int size = frame.mHistorySize;
+        if (size == 0 || timestampNanos < frame.mTimestamps[frame.mHistoryStart]) {
+            return false;
+        }
+        int newest = index(frame, size - 1);
+        if (timestampNanos >= frame.mTimestamps[newest]) {
+            System.arraycopy(frame.mSamples, newest * FLOATS, out, 0, FLOATS);
+            return true;
+        }
+        // Last sample at or before the time, by binary search over ring positions.
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (frame.mTimestamps[index(frame, mid)] <= timestampNanos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int before = index(frame, low);
+        int after = index(frame, low + 1);
+        long t0 = frame.mTimestamps[before];
+        long t1 = frame.mTimestamps[after];
+        float t = t1 == t0 ? 0 : (timestampNanos - t0) / (float) (t1 - t0);
+        int b = before * FLOATS;
+        int a = after * FLOATS;
+        for (int i = 0; i < 3; i++) {
+            out[i] = frame.mSamples[b + i] + (frame.mSamples[a + i] - frame.mSamples[b + i]) * t;
+        }
+        PoseMath.slerp(frame.mSamples, b + ROTATION, frame.mSamples, a + ROTATION, t,
+                out, ROTATION);
+        return true;
+    }
+
+    private Frame reparent(int parent, int child) {
+        if (parent == child) {
+            throw new IllegalArgumentException("A frame can't be its own parent");
+        }
+        // Walking up from the parent must not reach the child.
+        for (int current = parent; current != NO_FRAME; current = mFrames.get(current).mParent) {
+            if (current == child) {
+                throw new IllegalArgumentException(mFrames.get(parent).mName + " is below "
+                        + mFrames.get(child).mName + ", the edge would make a cycle");
+            }
+        }
+        Frame frame = mFrames.get(child);
+        if (frame.mParent != parent) {
+            frame.mParent = parent;
+            mStaticVersion++;
+        }
+        return frame;
+    }
+
+    private int index(Frame frame, int position) {
+        return (frame.mHistoryStart + position) % mHistory;
+    }
+
+    private static void pack(float[] translation, float[] rotation, float[] out, int offset) {
+        System.arraycopy(translation, 0, out, offset, 3);
+        System.arraycopy(rotation, 0, out, offset + ROTATION, 4);
+        PoseMath.normalizeQuaternion(out, offset + ROTATION);
+    }
+
+    /**
+     * out = a * b, i.e. b's child frame in a's parent frame. {@code out} may alias either input.
+     */
+    private static void compose(float[] a, float[] b, float[] out) {
+        float ax = a[0], ay = a[1], az = a[2];
+        // Rotate b's translation into a's parent, then offset by a's. Both read their inputs
+        // before writing.
+        PoseMath.rotateVector(a, ROTATION, b, 0, out, 0);
+        out[0] += ax;
+        out[1] += ay;
+        out[2] += az;
+        PoseMath.multiplyQuaternions(a, ROTATION, b, ROTATION, out, ROTATION);
+    }
+
+    private static void invert(float[] transform) {
+        PoseMath.conjugateQuaternion(transform, ROTATION, transform, ROTATION);
+        PoseMath.rotateVector(transform, ROTATION, transform, 0, transform, 0);
+        transform[0] = -transform[0];
+        transform[1] = -transform[1];
+        transform[2] = -transform[2];
+    }
+
+    /**
+     * @return how often a static chain has been recomposed, for checking the cache.
+     */
+    public synchronized int getChainRebuildCount() {
+        return mChainRebuildCount;
+    }
+}
@@ -0,0 +1,184 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * A grid over the screen whose texture coordinates undo the lens distortion, so the background
+ * shows the camera image as an ideal pinhole camera centred on the screen would have seen it,
+ * matching the projection {@link CameraDisplayRotation} builds from the same focal lengths.
+ * <p/>
+ * The distortion is worked out at the grid's vertices once per camera configuration and the GPU
+ * interpolates in between, rather than distorting every pixel every frame. The grid is sized to
+ * the image, about one cell every {@link #CELL_PIXELS} pixels, which keeps the interpolation
+ * error well under a pixel for phone lenses.
+ * <p/>
+ * Vertices are laid out like the background quad, spanning -0.5 to 0.5 with y up, as columns
+ * left to right of rows bottom to top.
+ */
+public class UndistortionMesh {
+    public static final int CELL_PIXELS = 40;
+    public static final int MIN_SEGMENTS = 4;
+    public static final int MAX_SEGMENTS = 48;
+
+    // Corners in the order of CameraDisplayRotation.TEXTURE_COORDS: top left, top right, bottom
+    // right, bottom left.
+    private static final int TOP_LEFT = 0;
+    private static final int TOP_RIGHT = 1;
+    private static final int BOTTOM_RIGHT = 2;
+    private static final int BOTTOM_LEFT = 3;
+
+    private final Intrinsics mIntrinsics;
+    private final int mSegmentsX;
+    private final int mSegmentsY;
+    private final float[] mVertices;
+    private final float[] mNormals;
+    private final int[] mIndices;
+    private final float[][] mTextureCoords =
+            new float[CameraDisplayRotation.TEXTURE_COORDS.length][];
+
+    public UndistortionMesh(Intrinsics intrinsics) {
+        this(intrinsics, segmentsFor(intrinsics.getWidth()), segmentsFor(intrinsics.getHeight()));
+    }
+
+    /**
+     * @param segmentsX cells across the screen.
+     * @param segmentsY cells up the screen.
+     */
+    public UndistortionMesh(Intrinsics intrinsics, int segmentsX, int segmentsY) {
+        if (segmentsX < 1 || segmentsY < 1) {
+            throw new IllegalArgumentException("Need at least one cell each way");
+        }
+        mIntrinsics = intrinsics;
+        mSegmentsX = segmentsX;
+        mSegmentsY = segmentsY;
+        int vertexCount = (segmentsX + 1) * (segmentsY + 1);
+        mVertices = new float[vertexCount * 3];
+        mNormals = new float[vertexCount * 3];
+        for (int i = 0; i <= segmentsX; i++) {
+            for (int j = 0; j <= segmentsY; j++) {
+                int vertex = vertexIndex(i, j);
+                mVertices[vertex * 3] = i / (float) segmentsX - 0.5f;
+                mVertices[vertex * 3 + 1] = j / (float) segmentsY - 0.5f;
+                mNormals[vertex * 3 + 2] = 1;
+            }
+        }
+        // Two counter clockwise triangles per cell.
+        mIndices = new int[segmentsX * segmentsY * 6];
+        int index = 0;
+        for (int i = 0; i < segmentsX; i++) {
+            for (int j = 0; j < segmentsY; j++) {
+                int bottomLeft = vertexIndex(i, j);
+                int bottomRight = vertexIndex(i + 1, j);
+                int topLeft = vertexIndex(i, j + 1);
+                int topRight = vertexIndex(i + 1, j + 1);
+                mIndices[index++] = bottomLeft;
+                mIndices[index++] = bottomRight;
+                mIndices[index++] = topRight;
+                mIndices[index++] = bottomLeft;
+                mIndices[index++] = topRight;
+                mIndices[index++] = topLeft;
+            }
+        }
+    }
+
+    /**
+     * @return cells for an image dimension, about one every {@link #CELL_PIXELS} pixels.
+     */
+    public static int segmentsFor(int pixels) {
+        return Math.max(MIN_SEGMENTS, Math.min(MAX_SEGMENTS, Math.round(pixels
+                / (float) CELL_PIXELS)));
+    }
+
+    private int vertexIndex(int column, int row) {
+        return column * (mSegmentsY + 1) + row;
+    }
+
+    /**
+     * @param cameraToDisplayRotation see {@link CameraDisplayRotation#getCameraToDisplayRotation}.
+     * @return the texture coordinate of every vertex, worked out on first use. Don't modify.
+     */
+    public synchronized float[] getTextureCoords(int cameraToDisplayRotation) {
+        float[] coords = mTextureCoords[cameraToDisplayRotation];
+        if (coords == null) {
+            coords = buildTextureCoords(CameraDisplayRotation.TEXTURE_COORDS[
+                    cameraToDisplayRotation]);
+            mTextureCoords[cameraToDisplayRotation] = coords;
+        }
+        return coords;
+    }
+
+    private float[] buildTextureCoords(float[] corners) {
+        int width = mIntrinsics.getWidth();
+        int height = mIntrinsics.getHeight();
+        double fx = mIntrinsics.getFocalLengthInPixelsX();
+        double fy = mIntrinsics.getFocalLengthInPixelsY();
+        double cx = mIntrinsics.getPrincipalPointX();
+        double cy = mIntrinsics.getPrincipalPointY();
+        double[] ideal = new double[2];
+        double[] distorted = new double[2];
+        float[] coords = new float[mVertices.length / 3 * 2];
+        for (int i = 0; i <= mSegmentsX; i++) {
+            for (int j = 0; j <= mSegmentsY; j++) {
+                int vertex = vertexIndex(i, j);
+                // Where the undistorted image puts this point of the screen...
+                idealTextureCoord(corners, i / (double) mSegmentsX, j / (double) mSegmentsY,
+                        ideal);
+                double x = (ideal[0] * width - width / 2.0) / fx;
+                double y = (ideal[1] * height - height / 2.0) / fy;
+                // ...and where the lens put it on the sensor.
+                mIntrinsics.distort(x, y, distorted);
+                coords[vertex * 2] = (float) ((distorted[0] * fx + cx) / width);
+                coords[vertex * 2 + 1] = (float) ((distorted[1] * fy + cy) / height);
+            }
+        }
+        return coords;
+    }
+
+    /**
+     * The texture coordinate the plain background quad would have at a point on the screen,
+     * interpolated from its corners.
+     *
+     * @param x across the screen, 0 to 1.
+     * @param y up the screen, 0 to 1.
+     */
+    static void idealTextureCoord(float[] corners, double x, double y, double[] out) {
+        for (int axis = 0; axis < 2; axis++) {
+            double top = corners[TOP_LEFT * 2 + axis] * (1 - x)
+                    + corners[TOP_RIGHT * 2 + axis] * x;
+            double bottom = corners[BOTTOM_LEFT * 2 + axis] * (1 - x)
+                    + corners[BOTTOM_RIGHT * 2 + axis] * x;
+            out[axis] = bottom * (1 - y) + top * y;
+        }
+    }
+
+    public Intrinsics getIntrinsics() {
+        return mIntrinsics;
+    }
+
+    public int getSegmentsX() {
+        return mSegmentsX;
+    }
+
+    public int getSegmentsY() {
+        return mSegmentsY;
+    }
+
+    /**
+     * @return vertex positions, x, y, z. Don't modify.
+     */
+    public float[] getVertices() {
+        return mVertices;
+    }
+
+    /**
+     * @return vertex normals, all facing the viewer. Don't modify.
+     */
+    public float[] getNormals() {
+        return mNormals;
+    }
+
+    /**
+     * @return triangle indices. Don't modify.
+     */
+    public int[] getIndices() {
+        return mIndices;
+    }
+}
@@ -0,0 +1,25 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Process-wide fork-join pool shared by the CPU-heavy engines (plane fitting and friends) so that
+ * they don't each spin up a full set of worker threads.
+ */
+public final class WorkerPool {
+    private static ForkJoinPool sPool;
+
+    private WorkerPool() {
+    }
+
+    public static synchronized ForkJoinPool get() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    public static int getParallelism() {
+        return get().getParallelism();
+    }
+}
@@ -30,12 +30,16 @@ public class SamplePoseProvider extends PoseProvider {
             // Low latency integration is necessary to achieve a precise alignment of
             // virtual objects with the RBG image and produce a good AR effect.
             mConfig.putBoolean(TangoConfig.KEY_BOOLEAN_LOWLATENCYIMUINTEGRATION, true);
+            // Depth is used to find planes in the scene.
+            mConfig.putBoolean(TangoConfig.KEY_BOOLEAN_DEPTH, true);
+            mConfig.putInt(TangoConfig.KEY_INT_DEPTH_MODE, TangoConfig.TANGO_DEPTH_MODE_POINT_CLOUD);
 
             TangoCameraIntrinsics intrinsics =
                     mTango.getCameraIntrinsics(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
 
             mIntrinsics = new Intrinsics(intrinsics.width, intrinsics.height,
-                    intrinsics.fx, intrinsics.fy);
+                    intrinsics.fx, intrinsics.fy, intrinsics.cx, intrinsics.cy,
+                    distortionFromTango(intrinsics));
 
             mPoseProviderListener.onSetupComplete();
         }
@@ -59,6 +63,12 @@ public class SamplePoseProvider extends PoseProvider {
             Log.e(TAG, "Couldn't connect to Tango", e);
         }
 
+        try {
+            setCameraExtrinsics();
+        } catch (TangoErrorException e) {
+            Log.e(TAG, "Couldn't get the color camera extrinsics", e);
+        }
+
         // Tango Listeners.
         try {
             setTangoListeners();
@@ -77,6 +87,22 @@ public class SamplePoseProvider extends PoseProvider {
         }
     }
 
+    /**
+     * Replaces the assumed device to camera edge with the color camera's calibrated mounting.
+     */
+    private void setCameraExtrinsics() {
+        // Static, so any time will do.
+        TangoPoseData extrinsics = mTango.getPoseAtTime(0.0, new TangoCoordinateFramePair(
+                TangoPoseData.COORDINATE_FRAME_DEVICE,
+                TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR));
+        if (extrinsics.statusCode != TangoPoseData.POSE_VALID) {
+            Log.w(TAG, "No color camera extrinsics, assuming the camera is at the device origin");
+            return;
+        }
+        mTransformTree.setStaticTransform(mDeviceFrame, mCameraFrame,
+                extrinsics.getTranslationAsFloats(), extrinsics.getRotationAsFloats());
+    }
+
     /**
      * Set up the TangoConfig and the listeners for the Tango service, then begin using the Motion
      * Tracking API. This is called in response to the user clicking the 'Start' Button.
@@ -91,16 +117,18 @@ public class SamplePoseProvider extends PoseProvider {
         mTango.connectListener(framePairs, new Tango.OnTangoUpdateListener() {
             @Override
             public void onPoseAvailable(final TangoPoseData pose) {
-                synchronized (POSE_LOCK) {
-                    mLatestPoseData = new PoseData(pose.getTranslationAsFloats(),
-                            pose.getRotationAsFloats(), (long) pose.timestamp);
-
+                Tracer.beginSection("onPoseAvailable");
+                try {
                     // Log whenever Motion Tracking enters an invalid state.
                     if (pose.statusCode == TangoPoseData.POSE_INVALID) {
                         Log.w(TAG, "Pose Data Invalid");
                     }
 
-                    onNewPoseData(mLatestPoseData);
+                    onNewPoseData(new PoseData(pose.getTranslationAsFloats(),
+                            pose.getRotationAsFloats(), (long) pose.timestamp),
+                            statusFromTango(pose.statusCode));
+                } finally {
+                    Tracer.endSection();
                 }
             }
 
@@ -111,7 +139,35 @@ public class SamplePoseProvider extends PoseProvider {
 
             @Override
             public void onPointCloudAvailable(TangoPointCloudData data) {
-                // Do nothing.
+                if (mPointCloudListener == null) {
+                    return;
+                }
+
+                // Move the points out of the depth camera frame so consumers don't need to know
+                // where the depth camera was.
+                TangoPoseData depthPose = mTango.getPoseAtTime(data.timestamp,
+                        new TangoCoordinateFramePair(
+                                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                                TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH));
+                if (depthPose.statusCode != TangoPoseData.POSE_VALID) {
+                    return;
+                }
+
+                float[] points = new float[data.numPoints * PointCloud.FLOATS_PER_POINT];
+                for (int i = 0; i < data.numPoints; i++) {
+                    // Tango packs points as x, y, z, confidence.
+                    points[i * 3] = data.points.get(i * 4);
+                    points[i * 3 + 1] = data.points.get(i * 4 + 1);
+                    points[i * 3 + 2] = data.points.get(i * 4 + 2);
+                }
+                PoseData sensorPose = new PoseData(depthPose.getTranslationAsFloats(),
+                        depthPose.getRotationAsFloats(), (long) depthPose.timestamp);
+                sensorPose.transformPoints(points, data.numPoints);
+
+                PointCloud pointCloud =
+                        new PointCloud(points, data.numPoints, (long) data.timestamp);
+                System.arraycopy(sensorPose.mTranslation, 0, pointCloud.mSensorPosition, 0, 3);
+                onNewPointCloud(pointCloud);
             }
 
             @Override
@@ -125,4 +181,34 @@ public class SamplePoseProvider extends PoseProvider {
             }
         });
     }
+
+    /**
+     * @return the distortion as k1, k2, k3, p1, p2, or null for calibration models that don't
+     * fit, such as the fisheye one.
+     */
+    private static double[] distortionFromTango(TangoCameraIntrinsics intrinsics) {
+        double[] d = intrinsics.distortion;
+        switch (intrinsics.calibrationType) {
+            case TangoCameraIntrinsics.TANGO_CALIBRATION_POLYNOMIAL_2_PARAMETERS:
+                return new double[]{d[0], d[1], 0, 0, 0};
+            case TangoCameraIntrinsics.TANGO_CALIBRATION_POLYNOMIAL_3_PARAMETERS:
+                return new double[]{d[0], d[1], d[2], 0, 0};
+            case TangoCameraIntrinsics.TANGO_CALIBRATION_POLYNOMIAL_5_PARAMETERS:
+                // Ordered k1, k2, p1, p2, k3.
+                return new double[]{d[0], d[1], d[4], d[2], d[3]};
+            default:
+                return null;
+        }
+    }
+
+    private static TrackingStateMachine.PoseStatus statusFromTango(int statusCode) {
+        switch (statusCode) {
+            case TangoPoseData.POSE_VALID:
+                return TrackingStateMachine.PoseStatus.VALID;
+            case TangoPoseData.POSE_INITIALIZING:
+                return TrackingStateMachine.PoseStatus.INITIALIZING;
+            default:
+                return TrackingStateMachine.PoseStatus.INVALID;
+        }
+    }
 }
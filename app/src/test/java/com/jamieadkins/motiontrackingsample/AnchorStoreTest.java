@@ -0,0 +1,150 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Radius queries against a brute force scan, bulk corrections, and query latency with 10k anchors.
+ */
+public class AnchorStoreTest {
+    private static final int ANCHORS = 10000;
+    private static final float ROOM = 20.0f;
+
+    @Test
+    public void radiusQueryMatchesBruteForce() throws Exception {
+        Random random = new Random(1);
+        AnchorStore store = new AnchorStore();
+        float[] positions = fill(store, random);
+
+        int[] out = new int[ANCHORS];
+        for (int q = 0; q < 200; q++) {
+            float x = random.nextFloat() * ROOM, y = random.nextFloat() * ROOM;
+            float z = random.nextFloat() * ROOM, radius = random.nextFloat() * 3;
+            int found = store.queryRadius(x, y, z, radius, out);
+            int[] actual = Arrays.copyOf(out, found);
+            Arrays.sort(actual);
+            assertArrayEquals(bruteForce(positions, x, y, z, radius), actual);
+        }
+    }
+
+    @Test
+    public void removeKeepsOtherAnchors() throws Exception {
+        AnchorStore store = new AnchorStore();
+        int a = store.createAnchor(0, 0, 0, null);
+        int b = store.createAnchor(1, 0, 0, null);
+        int c = store.createAnchor(0.1f, 0, 0, null);
+        assertTrue(store.removeAnchor(a));
+        assertFalse(store.removeAnchor(a));
+        assertEquals(2, store.size());
+
+        float[] position = new float[3];
+        assertFalse(store.getPosition(a, position));
+        assertTrue(store.getPosition(b, position));
+        assertEquals(1, position[0], 0);
+
+        int[] out = new int[4];
+        assertEquals(1, store.queryRadius(0, 0, 0, 0.5f, out));
+        assertEquals(c, out[0]);
+    }
+
+    @Test
+    public void correctionMovesEveryAnchor() throws Exception {
+        AnchorStore store = new AnchorStore();
+        int a = store.createAnchor(0, 0, -3, null);
+        int b = store.createAnchor(1, 2, 3, null);
+        long version = store.getVersion();
+
+        // 90 degrees about y, then one meter up.
+        float s = (float) Math.sqrt(0.5);
+        store.applyCorrection(new float[]{0, s, 0, s}, new float[]{0, 1, 0});
+        assertTrue(store.getVersion() != version);
+
+        float[] position = new float[3];
+        store.getPosition(a, position);
+        assertArrayEquals(new float[]{-3, 1, 0}, position, 1e-5f);
+        store.getPosition(b, position);
+        assertArrayEquals(new float[]{3, 3, -1}, position, 1e-5f);
+
+        int[] out = new int[4];
+        assertEquals(1, store.queryRadius(-3, 1, 0, 0.1f, out));
+        assertEquals(a, out[0]);
+        assertEquals(0, store.queryRadius(0, 0, -3, 0.1f, out));
+    }
+
+    @Test
+    public void detectorReportsJumpAsCorrection() throws Exception {
+        PoseCorrectionDetector detector = new PoseCorrectionDetector();
+        float[] identity = {0, 0, 0, 1};
+        for (int i = 0; i < 10; i++) {
+            assertFalse(detector.onNewPoseData(
+                    new PoseData(new float[]{i * 0.01f, 0, 0}, identity, i)));
+        }
+        // Next pose should be at x = 0.10, instead it lands half a meter off.
+        assertTrue(detector.onNewPoseData(new PoseData(new float[]{0.10f, 0, 0.5f}, identity, 10)));
+        assertArrayEquals(new float[]{0, 0, 0.5f}, detector.getCorrectionTranslation(), 1e-5f);
+        // Tracking carries on smoothly from the corrected pose.
+        assertFalse(detector.onNewPoseData(new PoseData(new float[]{0.11f, 0, 0.5f}, identity, 11)));
+    }
+
+    @Test
+    public void benchmarkRadiusQuery() throws Exception {
+        Random random = new Random(2);
+        AnchorStore store = new AnchorStore();
+        fill(store, random);
+
+        int[] out = new int[ANCHORS];
+        int queries = 20000;
+        long total = 0;
+        for (int q = 0; q < queries; q++) {
+            float x = random.nextFloat() * ROOM, y = random.nextFloat() * ROOM;
+            float z = random.nextFloat() * ROOM;
+            total += store.queryRadius(x, y, z, 2.0f, out);
+        }
+        long start = System.nanoTime();
+        for (int q = 0; q < queries; q++) {
+            float x = random.nextFloat() * ROOM, y = random.nextFloat() * ROOM;
+            float z = random.nextFloat() * ROOM;
+            total += store.queryRadius(x, y, z, 2.0f, out);
+        }
+        double microsPerQuery = (System.nanoTime() - start) / 1e3 / queries;
+
+        start = System.nanoTime();
+        store.applyCorrection(new float[]{0, 0, 0, 1}, new float[]{0.1f, 0, 0});
+        double correctionMillis = (System.nanoTime() - start) / 1e6;
+
+        System.out.println(String.format("AnchorStore: %d anchors, radius 2m query %.2f us, "
+                + "bulk correction %.2f ms (%d hits)", ANCHORS, microsPerQuery, correctionMillis,
+                total));
+        assertTrue(microsPerQuery < 1000);
+    }
+
+    private static float[] fill(AnchorStore store, Random random) {
+        float[] positions = new float[ANCHORS * 3];
+        for (int i = 0; i < ANCHORS; i++) {
+            positions[i * 3] = random.nextFloat() * ROOM;
+            positions[i * 3 + 1] = random.nextFloat() * ROOM;
+            positions[i * 3 + 2] = random.nextFloat() * ROOM;
+            assertEquals(i, store.createAnchor(positions[i * 3], positions[i * 3 + 1],
+                    positions[i * 3 + 2], null));
+        }
+        return positions;
+    }
+
+    private static int[] bruteForce(float[] positions, float x, float y, float z, float radius) {
+        int[] ids = new int[ANCHORS];
+        int found = 0;
+        for (int i = 0; i < ANCHORS; i++) {
+            float dx = positions[i * 3] - x;
+            float dy = positions[i * 3 + 1] - y;
+            float dz = positions[i * 3 + 2] - z;
+            if (dx * dx + dy * dy + dz * dz <= radius * radius) {
+                ids[found++] = i;
+            }
+        }
+        return Arrays.copyOf(ids, found);
+    }
+}
@@ -0,0 +1,262 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks spins and orbits against the closed form, that a parallel update matches a sequential
+ * one, and measures updates of 1k, 10k and 100k animations against an object per animation.
+ */
+public class AnimationEngineTest {
+    private static final float EPSILON = 1e-5f;
+    private static final float[] Y_AXIS = {0, 1, 0};
+
+    @Test
+    public void sinTurnsMatchesMath() {
+        double maxError = 0;
+        for (int i = -300000; i <= 300000; i++) {
+            float turns = i / 100000f;
+            maxError = Math.max(maxError,
+                    Math.abs(AnimationEngine.sinTurns(turns) - Math.sin(2 * Math.PI * turns)));
+        }
+        assertTrue("Max error " + maxError, maxError < 1e-6);
+    }
+
+    @Test
+    public void spinsAboutTheAxis() {
+        AnimationEngine engine = new AnimationEngine(null);
+        int id = engine.add(1, 2, 3);
+        engine.setSpin(id, new float[]{0, 2, 0}, 60, -1, 10);
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+
+        // A quarter of the way through, a quarter turn clockwise.
+        engine.update(25);
+        engine.getTransform(id, translation, rotation);
+        assertArrayEquals(new float[]{1, 2, 3}, translation, EPSILON);
+        float half = (float) (-Math.PI / 4);
+        assertArrayEquals(new float[]{0, (float) Math.sin(half), 0, (float) Math.cos(half)},
+                rotation, EPSILON);
+
+        // Back where it started every period.
+        engine.update(10 + 60 * 3);
+        engine.getTransform(id, translation, rotation);
+        assertEquals(1, Math.abs(rotation[3]), EPSILON);
+    }
+
+    @Test
+    public void orbitsAroundTheFocus() {
+        AnimationEngine engine = new AnimationEngine(null);
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+
+        // A circle through (0, 0, -1) around (0, 0, -5).
+        int circle = engine.add(0, 0, -1);
+        engine.setOrbit(circle, new float[]{0, 0, -5}, new float[]{0, 0, -1}, Y_AXIS, 0, 60, 1,
+                0);
+        engine.update(0);
+        engine.getTransform(circle, translation, rotation);
+        assertArrayEquals(new float[]{0, 0, -1}, translation, EPSILON);
+        // Counter clockwise about y takes +z towards +x.
+        engine.update(15);
+        engine.getTransform(circle, translation, rotation);
+        assertArrayEquals(new float[]{4, 0, -5}, translation, EPSILON);
+
+        // An ellipse: nearest the focus at the periapsis, furthest half a period later.
+        float eccentricity = 0.5f;
+        int comet = engine.add(0, 0, 0);
+        engine.setOrbit(comet, new float[]{1, 1, 1}, new float[]{2, 1, 1}, new float[]{0, 0, 1},
+                eccentricity, 10, 1, 0);
+        engine.update(0);
+        engine.getTransform(comet, translation, rotation);
+        assertArrayEquals(new float[]{2, 1, 1}, translation, EPSILON);
+        engine.update(5);
+        engine.getTransform(comet, translation, rotation);
+        assertArrayEquals(new float[]{1 - (1 + eccentricity) / (1 - eccentricity), 1, 1},
+                translation, EPSILON);
+        engine.update(2.5);
+        engine.getTransform(comet, translation, rotation);
+        // The semi-minor axis, off the ellipse's centre.
+        double semiMajor = 1 / (1 - eccentricity);
+        assertEquals(1 + 1 - semiMajor, translation[0], EPSILON);
+        assertEquals(1 + semiMajor * Math.sqrt(1 - eccentricity * eccentricity), translation[1],
+                EPSILON);
+    }
+
+    @Test
+    public void followsGivenAxes() {
+        AnimationEngine engine = new AnimationEngine(null);
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+
+        // The app's moon, against positions sampled from Rajawali's EllipticalOrbitAnimation3D
+        // with a focal point of (0, 0, -5), a periapsis of (0, 0, -1) and no eccentricity.
+        int moon = engine.add(0, 0, -1);
+        float halfWidth = (float) (4 / Math.sqrt(26));
+        engine.setOrbitAxes(moon, new float[]{0, 0, -5}, new float[]{0, 0, 4},
+                new float[]{halfWidth, 0, 0}, 60, 1, 0);
+        double[][] expected = {
+                {0, 0, 0, -1},
+                {7.5, 0.5547002, 0, -2.1715729},
+                {15, 0.7844645, 0, -5},
+                {30, 0, 0, -9},
+                {45, -0.7844645, 0, -5},
+                {52.5, -0.5547002, 0, -2.1715729}};
+        for (double[] sample : expected) {
+            engine.update(sample[0]);
+            engine.getTransform(moon, translation, rotation);
+            assertArrayEquals(new float[]{(float) sample[1], (float) sample[2], (float) sample[3]},
+                    translation, EPSILON);
+        }
+    }
+
+    @Test
+    public void removingKeepsIdsValid() {
+        AnimationEngine engine = new AnimationEngine(null);
+        int a = engine.add(1, 0, 0);
+        int b = engine.add(2, 0, 0);
+        int c = engine.add(3, 0, 0);
+        engine.setSpin(c, Y_AXIS, 4, 1, 0);
+        engine.remove(a);
+        assertEquals(2, engine.size());
+        assertEquals(-1, engine.indexOf(a));
+        assertEquals(0, engine.indexOf(c));
+        engine.update(1);
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        engine.getTransform(c, translation, rotation);
+        assertEquals(3, translation[0], 0);
+        float half = (float) (Math.PI / 4);
+        assertEquals(Math.sin(half), rotation[1], EPSILON);
+        engine.getTransform(b, translation, rotation);
+        assertEquals(2, translation[0], 0);
+        try {
+            engine.setPosition(a, 0, 0, 0);
+            fail("Expected the removed id to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void addRandom(AnimationEngine engine, int count, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            int id = engine.add(random.nextFloat() * 10, random.nextFloat(), random.nextFloat());
+            engine.setSpin(id, new float[]{random.nextFloat(), 1, random.nextFloat()},
+                    1 + random.nextFloat() * 60, random.nextBoolean() ? 1 : -1, 0);
+            if (i % 2 == 0) {
+                float[] focus = {random.nextFloat(), random.nextFloat(), -random.nextFloat()};
+                float[] periapsis = {focus[0] + 0.1f + random.nextFloat(), focus[1], focus[2]};
+                engine.setOrbit(id, focus, periapsis, Y_AXIS, random.nextFloat() * 0.8,
+                        1 + random.nextFloat() * 60, 1, 0);
+            }
+        }
+    }
+
+    @Test
+    public void parallelUpdateMatchesSequential() {
+        int count = AnimationEngine.SEQUENTIAL_THRESHOLD * 10 + 7;
+        AnimationEngine sequential = new AnimationEngine(null);
+        AnimationEngine parallel = new AnimationEngine(WorkerPool.get());
+        addRandom(sequential, count, 3);
+        addRandom(parallel, count, 3);
+        sequential.update(123.456);
+        parallel.update(123.456);
+        assertArrayEquals(sequential.getTransforms(), parallel.getTransforms(), 0);
+    }
+
+    /**
+     * An animation as an object, like Rajawali's, updated through a virtual call.
+     */
+    private abstract static class ObjectAnimation {
+        final float[] mTransform = new float[AnimationEngine.FLOATS_PER_TRANSFORM];
+
+        abstract void apply(double time);
+    }
+
+    private static class ObjectSpin extends ObjectAnimation {
+        final double mPeriod;
+        final float[] mAxis;
+
+        ObjectSpin(double period, float[] axis) {
+            mPeriod = period;
+            mAxis = axis;
+        }
+
+        @Override
+        void apply(double time) {
+            double half = (time / mPeriod) % 1 * Math.PI;
+            float sin = (float) Math.sin(half);
+            mTransform[3] = mAxis[0] * sin;
+            mTransform[4] = mAxis[1] * sin;
+            mTransform[5] = mAxis[2] * sin;
+            mTransform[6] = (float) Math.cos(half);
+        }
+    }
+
+    private static class ObjectOrbit extends ObjectAnimation {
+        final double mPeriod;
+        final float mRadius;
+
+        ObjectOrbit(double period, float radius) {
+            mPeriod = period;
+            mRadius = radius;
+        }
+
+        @Override
+        void apply(double time) {
+            double angle = (time / mPeriod) % 1 * 2 * Math.PI;
+            mTransform[0] = (float) (mRadius * Math.cos(angle));
+            mTransform[2] = (float) (mRadius * Math.sin(angle));
+        }
+    }
+
+    @Test
+    public void benchmarkUpdates() {
+        StringBuilder report = new StringBuilder("Animation updates, per frame:");
+        for (int count : new int[]{1000, 10000, 100000}) {
+            AnimationEngine sequential = new AnimationEngine(null);
+            AnimationEngine parallel = new AnimationEngine(WorkerPool.get());
+            addRandom(sequential, count, 1);
+            addRandom(parallel, count, 1);
+            // Spins and orbits as separate objects, as the scene used to animate the moon.
+            ObjectAnimation[] objects = new ObjectAnimation[count + count / 2];
+            Random random = new Random(1);
+            for (int i = 0; i < objects.length; i++) {
+                objects[i] = i % 3 == 2 ? new ObjectOrbit(1 + random.nextFloat() * 60, 1)
+                        : new ObjectSpin(1 + random.nextFloat() * 60, Y_AXIS);
+            }
+
+            long bestSequential = Long.MAX_VALUE;
+            long bestParallel = Long.MAX_VALUE;
+            long bestObjects = Long.MAX_VALUE;
+            double time = 0;
+            // Enough rounds for the JIT to have compiled all three loops.
+            int rounds = Math.max(30, 3000000 / count);
+            for (int round = 0; round < rounds; round++) {
+                time += 1 / 60.0;
+                long start = System.nanoTime();
+                sequential.update(time);
+                bestSequential = Math.min(bestSequential, System.nanoTime() - start);
+                start = System.nanoTime();
+                parallel.update(time);
+                bestParallel = Math.min(bestParallel, System.nanoTime() - start);
+                start = System.nanoTime();
+                for (ObjectAnimation animation : objects) {
+                    animation.apply(time);
+                }
+                bestObjects = Math.min(bestObjects, System.nanoTime() - start);
+            }
+            report.append(String.format(" %dk: %.3fms sequential, %.3fms on %d cores,"
+                    + " %.3fms as objects;", count / 1000, bestSequential / 1e6,
+                    bestParallel / 1e6, WorkerPool.getParallelism(), bestObjects / 1e6));
+            // Comfortably inside a 60fps frame.
+            if (count <= 10000) {
+                assertTrue(bestSequential < 16000000L);
+            }
+        }
+        System.out.println(report);
+    }
+}
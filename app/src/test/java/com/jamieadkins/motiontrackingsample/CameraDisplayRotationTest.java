@@ -0,0 +1,88 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the prebuilt rotation tables and compares a lookup against rebuilding on every
+ * rotation event.
+ */
+public class CameraDisplayRotationTest {
+    private static final Intrinsics INTRINSICS = new Intrinsics(1920, 1080, 1500, 1400);
+
+    @Test
+    public void cameraToDisplayRotationForBackCamera() {
+        // Typical back camera, mounted at 90 degrees.
+        CameraDisplayRotation rotation = new CameraDisplayRotation(90, INTRINSICS);
+        assertEquals(3, rotation.getCameraToDisplayRotation(0));
+        assertEquals(0, rotation.getCameraToDisplayRotation(1));
+        assertEquals(1, rotation.getCameraToDisplayRotation(2));
+        assertEquals(2, rotation.getCameraToDisplayRotation(3));
+        assertSame(CameraDisplayRotation.TEXTURE_COORDS[3], rotation.getTextureCoords(0));
+        assertSame(CameraDisplayRotation.TEXTURE_COORDS[0], rotation.getTextureCoords(1));
+    }
+
+    @Test
+    public void projectionSwapsAxesWhenRotatedByQuarterTurn() {
+        CameraDisplayRotation rotation = new CameraDisplayRotation(0, INTRINSICS);
+        float[] landscape = rotation.getProjectionMatrix(0);
+        assertEquals(2 * 1500f / 1920, landscape[0], 1e-5);
+        assertEquals(2 * 1400f / 1080, landscape[5], 1e-5);
+        assertEquals(-1, landscape[11], 0);
+
+        float[] portrait = rotation.getProjectionMatrix(1);
+        assertEquals(2 * 1400f / 1080, portrait[0], 1e-5);
+        assertEquals(2 * 1500f / 1920, portrait[5], 1e-5);
+
+        assertArrayEquals(landscape, rotation.getProjectionMatrix(2), 0);
+        assertArrayEquals(portrait, rotation.getProjectionMatrix(3), 0);
+    }
+
+    @Test
+    public void frustumMatchesTheGlFormula() {
+        float[] m = new float[16];
+        CameraDisplayRotation.frustum(m, -1, 1, -0.5f, 0.5f, 0.1f, 100);
+        assertEquals(0.1f, m[0], 1e-6);
+        assertEquals(0.2f, m[5], 1e-6);
+        assertEquals((100 + 0.1f) / (0.1f - 100), m[10], 1e-6);
+        assertEquals(2 * 100 * 0.1f / (0.1f - 100), m[14], 1e-6);
+        assertEquals(0, m[15], 0);
+    }
+
+    @Test
+    public void benchmarkLookupAgainstRebuild() {
+        int events = 200000;
+        CameraDisplayRotation rotation = new CameraDisplayRotation(90, INTRINSICS);
+        float sink = 0;
+
+        // Warm up both paths.
+        for (int i = 0; i < events; i++) {
+            sink += new CameraDisplayRotation(90, INTRINSICS).getProjectionMatrix(i & 3)[0];
+            sink += rotation.getProjectionMatrix(i & 3)[0] + rotation.getTextureCoords(i & 3)[0];
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            // Roughly what every display change used to do, minus the camera service call.
+            float[] matrix = new float[16];
+            CameraDisplayRotation.projectionMatrixFromCameraIntrinsics(INTRINSICS,
+                    CameraDisplayRotation.getColorCameraToDisplayAndroidRotation(i & 3, 90),
+                    matrix);
+            float[] coords = CameraDisplayRotation.TEXTURE_COORDS[i & 3].clone();
+            sink += matrix[0] + coords[0];
+        }
+        long rebuild = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            sink += rotation.getProjectionMatrix(i & 3)[0] + rotation.getTextureCoords(i & 3)[0];
+        }
+        long lookup = System.nanoTime() - start;
+
+        System.out.println(String.format(
+                "Rotation handling: rebuild %.1fns/event, lookup %.1fns/event (%.0f)",
+                rebuild / (double) events, lookup / (double) events, sink));
+        assertTrue(lookup < rebuild);
+    }
+}
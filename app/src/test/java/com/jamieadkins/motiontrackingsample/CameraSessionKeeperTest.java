@@ -0,0 +1,129 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the keeper through quick and long interruptions against a camera that records what was
+ * asked of it.
+ */
+public class CameraSessionKeeperTest {
+    private static final long MILLIS = 1000000L;
+
+    private final List<String> mCalls = new ArrayList<>();
+    private boolean mDeviceKept = true;
+    private Runnable mScheduled;
+    private long mScheduledDelay;
+    private CameraSessionKeeper mKeeper;
+
+    @Before
+    public void setUp() {
+        mKeeper = new CameraSessionKeeper(new CameraSessionKeeper.Camera() {
+            @Override
+            public void open() {
+                mCalls.add("open");
+            }
+
+            @Override
+            public void pause() {
+                mCalls.add("pause");
+            }
+
+            @Override
+            public boolean resume() {
+                mCalls.add("resume");
+                return mDeviceKept;
+            }
+
+            @Override
+            public void close() {
+                mCalls.add("close");
+            }
+        }, new CameraSessionKeeper.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayNanos) {
+                mScheduled = task;
+                mScheduledDelay = delayNanos;
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                if (mScheduled == task) {
+                    mScheduled = null;
+                }
+            }
+        });
+    }
+
+    @Test
+    public void quickReturnResumesTheKeptCamera() {
+        mKeeper.start(0);
+        mKeeper.start(1);
+        mKeeper.onFrame(400 * MILLIS);
+        mKeeper.stop();
+        assertTrue(mKeeper.isKept());
+        assertEquals(CameraSessionKeeper.DEFAULT_GRACE_PERIOD_NANOS, mScheduledDelay);
+
+        mKeeper.start(1000 * MILLIS);
+        assertNull(mScheduled);
+        assertTrue(mKeeper.isStreaming());
+        mKeeper.onFrame(1030 * MILLIS);
+        // Only the first frame after a start counts.
+        mKeeper.onFrame(1060 * MILLIS);
+        assertArrayEquals(new String[]{"open", "pause", "resume"}, mCalls.toArray());
+        assertEquals(30 * MILLIS, mKeeper.getLastStartLatencyNanos());
+        assertEquals(1, mKeeper.getWarmStartLatency().getCount());
+        assertEquals(1, mKeeper.getColdStartLatency().getCount());
+        assertEquals(400 * MILLIS, mKeeper.getColdStartLatency().getMaxNanos());
+    }
+
+    @Test
+    public void closesOnceTheGracePeriodIsUp() {
+        mKeeper.start(0);
+        mKeeper.stop();
+        mScheduled.run();
+        assertFalse(mKeeper.isKept());
+        assertEquals(1, mKeeper.getExpiredCount());
+        // Running late, after a start, does nothing.
+        mKeeper.start(MILLIS);
+        mScheduled.run();
+        assertTrue(mKeeper.isStreaming());
+        assertArrayEquals(new String[]{"open", "pause", "close", "open"}, mCalls.toArray());
+
+        mKeeper.close();
+        mKeeper.close();
+        assertNull(mScheduled);
+        assertArrayEquals(new String[]{"open", "pause", "close", "open", "close"},
+                mCalls.toArray());
+    }
+
+    @Test
+    public void noGracePeriodClosesStraightAway() {
+        mKeeper.setGracePeriodNanos(0);
+        mKeeper.start(0);
+        mKeeper.stop();
+        assertNull(mScheduled);
+        assertFalse(mKeeper.isKept());
+        assertArrayEquals(new String[]{"open", "close"}, mCalls.toArray());
+    }
+
+    @Test
+    public void lostDeviceCountsAsCold() {
+        mKeeper.start(0);
+        mKeeper.stop();
+        mDeviceKept = false;
+        mKeeper.start(0);
+        mKeeper.onFrame(300 * MILLIS);
+        assertEquals(0, mKeeper.getWarmStartLatency().getCount());
+        assertEquals(1, mKeeper.getColdStartLatency().getCount());
+        // Stopped before the first frame, nothing to record.
+        mKeeper.stop();
+        mKeeper.onFrame(400 * MILLIS);
+        assertEquals(1, mKeeper.getColdStartLatency().getCount());
+    }
+}
@@ -0,0 +1,332 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records frames from a synthetic camera together with poses, reads them back through the index
+ * and measures how fast a dataset can be written to disk.
+ */
+public class DatasetRecorderTest {
+    private static final long MS = 1000000L;
+    private static final int SOURCE_WIDTH = 640;
+    private static final int SOURCE_HEIGHT = 480;
+    private static final int ROW_STRIDE = 704;
+    private static final int POSES_PER_FRAME = 6;
+
+    private SteppedClock mClock;
+    private ByteBuffer mFrame;
+    private float[] mTranslation;
+    private float[] mRotation;
+
+    /**
+     * Only moves when told to.
+     */
+    private static class SteppedClock implements FramePacer.Clock {
+        long mNow;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+
+        @Override
+        public void sleepUntil(long nanos) {
+            mNow = Math.max(mNow, nanos);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mClock = new SteppedClock();
+        mFrame = ByteBuffer.allocateDirect(ROW_STRIDE * SOURCE_HEIGHT);
+        mTranslation = new float[3];
+        mRotation = new float[]{0, 0, 0, 1};
+    }
+
+    /**
+     * A luminance frame as the camera would hand it over, padded out to the row stride, with a
+     * pattern that moves from frame to frame.
+     */
+    private static int pixel(int x, int y, int frame) {
+        return (x * 3 + y * 5 + frame * 7 + ((x ^ y) & 16)) & 0xff;
+    }
+
+    private void fillFrame(int frame) {
+        for (int y = 0; y < SOURCE_HEIGHT; y++) {
+            for (int x = 0; x < ROW_STRIDE; x++) {
+                mFrame.put(y * ROW_STRIDE + x, (byte) (x < SOURCE_WIDTH ? pixel(x, y, frame) : 0));
+            }
+        }
+    }
+
+    private boolean offerPose(DatasetRecorder recorder, long arrivalNanos) {
+        double t = arrivalNanos / 1e9;
+        mTranslation[0] = (float) Math.sin(t);
+        mTranslation[1] = 1.5f;
+        mTranslation[2] = (float) -t;
+        mRotation[1] = (float) Math.sin(t / 4);
+        mRotation[3] = (float) Math.cos(t / 4);
+        return recorder.offerPose(arrivalNanos, mTranslation, mRotation);
+    }
+
+    /**
+     * Offers frames 33ms apart with poses arriving in between.
+     */
+    private void record(DatasetRecorder recorder, int frames) {
+        for (int i = 0; i < frames; i++) {
+            fillFrame(i);
+            mClock.mNow = (i + 1) * 33 * MS;
+            recorder.offerFrame(mFrame, SOURCE_WIDTH, SOURCE_HEIGHT, ROW_STRIDE, 1000 + i);
+            for (int j = 1; j <= POSES_PER_FRAME; j++) {
+                offerPose(recorder, mClock.mNow + j * 5 * MS);
+            }
+        }
+    }
+
+    @Test
+    public void readsBackFramesAndPosesOnOneTimeline() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int frameBytes = DatasetFormat.FRAME_HEADER_BYTES + 160 * 120;
+        DatasetRecorder recorder = new DatasetRecorder(out, 160, 120, 64, 1024, 3 * frameBytes,
+                mClock);
+        recorder.start();
+        int frames = 40;
+        record(recorder, frames);
+        recorder.stop();
+        assertEquals(0, recorder.getDroppedFrameCount());
+        assertEquals(frames, recorder.getFramesWritten());
+        assertEquals(frames * POSES_PER_FRAME, recorder.getPosesWritten());
+        assertEquals(out.size(), recorder.getBytesWritten());
+
+        DatasetReader reader = new DatasetReader(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(frames, reader.getFrameCount());
+        assertEquals(14, reader.getChunkCount());
+        byte[] pixels = new byte[160 * 120];
+        for (int i = 0; i < frames; i++) {
+            assertEquals((i + 1) * 33 * MS, reader.getFrameArrivalNanos(i));
+            assertEquals(1000 + i, reader.getFrameTimestamp(i));
+            assertEquals(160, reader.getFrameWidth(i));
+            assertEquals(120, reader.getFrameHeight(i));
+            reader.readFrame(i, pixels);
+            // Each pixel is the rounded mean of a 4x4 box of the source.
+            for (int y = 0; y < 120; y += 7) {
+                for (int x = 0; x < 160; x += 3) {
+                    int sum = 0;
+                    for (int j = 0; j < 4; j++) {
+                        for (int k = 0; k < 4; k++) {
+                            sum += pixel(x * 4 + k, y * 4 + j, i);
+                        }
+                    }
+                    assertEquals((sum + 8) / 16, pixels[y * 160 + x] & 0xff);
+                }
+            }
+        }
+
+        // Every pose comes back from the chunk that was open when it arrived, in order.
+        int poses = 0;
+        long previous = Long.MIN_VALUE;
+        for (int chunk = 0; chunk < reader.getChunkCount(); chunk++) {
+            PoseLogReader log = reader.readPoses(chunk);
+            while (log.next()) {
+                long arrival = log.getTimestamp();
+                assertTrue(arrival > previous);
+                assertEquals(chunk, reader.findChunk(arrival));
+                previous = arrival;
+                poses++;
+            }
+        }
+        assertEquals(frames * POSES_PER_FRAME, poses);
+
+        // The poses around a frame are found from its arrival time.
+        int frame = reader.findFrame(20 * 33 * MS - 1);
+        assertEquals(19, frame);
+        long arrival = reader.getFrameArrivalNanos(frame);
+        PoseLogReader log = reader.readPoses(reader.findChunk(arrival));
+        assertTrue(log.seek(arrival));
+        assertTrue(log.next());
+        assertEquals(arrival + 5 * MS, log.getTimestamp());
+        double t = log.getTimestamp() / 1e9;
+        assertEquals(Math.sin(t), log.getTranslation()[0], 1e-3);
+        assertEquals(-t, log.getTranslation()[2], 1e-3);
+        assertEquals(-1, reader.findFrame(frames * 33 * MS + 1));
+        assertEquals(-1, reader.findChunk(0));
+    }
+
+    @Test
+    public void keepsFramesThatAlreadyFit() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DatasetRecorder recorder = new DatasetRecorder(out, SOURCE_WIDTH, SOURCE_HEIGHT, 4, 16,
+                DatasetRecorder.DEFAULT_CHUNK_BYTES, mClock);
+        recorder.start();
+        fillFrame(3);
+        // Read from the buffer's position, which is left alone.
+        mFrame.position(ROW_STRIDE);
+        assertTrue(recorder.offerFrame(mFrame, SOURCE_WIDTH, SOURCE_HEIGHT - 1, ROW_STRIDE, 7));
+        assertEquals(ROW_STRIDE, mFrame.position());
+        recorder.stop();
+        assertFalse(recorder.offerFrame(mFrame, SOURCE_WIDTH, SOURCE_HEIGHT, ROW_STRIDE, 8));
+
+        DatasetReader reader = new DatasetReader(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(1, reader.getFrameCount());
+        assertEquals(SOURCE_HEIGHT - 1, reader.getFrameHeight(0));
+        byte[] pixels = new byte[SOURCE_WIDTH * SOURCE_HEIGHT];
+        reader.readFrame(0, pixels);
+        for (int y = 0; y < SOURCE_HEIGHT - 1; y++) {
+            for (int x = 0; x < SOURCE_WIDTH; x++) {
+                assertEquals(pixel(x, y + 1, 3), pixels[y * SOURCE_WIDTH + x] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Holds every write until released, like a disk that has stalled.
+     */
+    private static class StalledStream extends OutputStream {
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        private void await() throws IOException {
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            await();
+            mOut.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            await();
+            mOut.write(b, offset, length);
+        }
+    }
+
+    @Test
+    public void dropsInsteadOfWaitingForTheDisk() throws IOException {
+        StalledStream stream = new StalledStream();
+        DatasetRecorder recorder = new DatasetRecorder(stream, 160, 120, 4, 32,
+                DatasetRecorder.DEFAULT_CHUNK_BYTES, mClock);
+        recorder.start();
+        int frames = 60;
+        long worst = 0;
+        for (int i = 0; i < frames; i++) {
+            long start = System.nanoTime();
+            recorder.offerFrame(mFrame, SOURCE_WIDTH, SOURCE_HEIGHT, ROW_STRIDE, i);
+            for (int j = 0; j < POSES_PER_FRAME; j++) {
+                offerPose(recorder, i * 33 * MS + j);
+            }
+            worst = Math.max(worst, System.nanoTime() - start);
+        }
+        // The writer can only have taken what fits in its output buffer before it stalled.
+        assertEquals(frames, recorder.getOfferedFrameCount());
+        assertTrue("Dropped " + recorder.getDroppedFrameCount(),
+                recorder.getDroppedFrameCount() > frames / 2);
+        assertTrue(recorder.getDroppedPoseCount() > 0);
+        assertTrue("Worst offer " + worst / 1e6 + "ms", worst < 100 * MS);
+
+        stream.mRelease.countDown();
+        recorder.stop();
+        assertEquals(recorder.getOfferedFrameCount() - recorder.getDroppedFrameCount(),
+                recorder.getFramesWritten());
+        assertEquals(recorder.getOfferedPoseCount() - recorder.getDroppedPoseCount(),
+                recorder.getPosesWritten());
+        DatasetReader reader = new DatasetReader(ByteBuffer.wrap(stream.mOut.toByteArray()));
+        assertEquals(recorder.getFramesWritten(), reader.getFrameCount());
+    }
+
+    @Test
+    public void reportsWriteFailures() throws IOException {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        DatasetRecorder recorder = new DatasetRecorder(broken, 160, 120, 4, 32,
+                DatasetRecorder.DEFAULT_CHUNK_BYTES, mClock);
+        recorder.start();
+        record(recorder, 20);
+        recorder.stop();
+        assertEquals(1, recorder.getErrorCount());
+        assertEquals("Disk full", recorder.getLastError().getMessage());
+
+        try {
+            new DatasetReader(ByteBuffer.wrap(new byte[64]));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private void benchmark(int width, int height, int frames, long frameIntervalNanos)
+            throws IOException {
+        File file = File.createTempFile("dataset", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            DatasetRecorder recorder = new DatasetRecorder(out, width, height);
+            recorder.start();
+            long offering = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                if (frameIntervalNanos > 0) {
+                    FramePacer.SYSTEM_CLOCK.sleepUntil(start + i * frameIntervalNanos);
+                }
+                long offerStart = System.nanoTime();
+                recorder.offerFrame(mFrame, SOURCE_WIDTH, SOURCE_HEIGHT, ROW_STRIDE, i);
+                for (int j = 0; j < POSES_PER_FRAME; j++) {
+                    offerPose(recorder, System.nanoTime());
+                }
+                offering += System.nanoTime() - offerStart;
+            }
+            recorder.stop();
+            out.close();
+            assertEquals(file.length(), recorder.getBytesWritten());
+            System.out.println(String.format("Dataset at %dx%d, %s: %.1fMB/s sustained,"
+                            + " %.1fus to offer a frame and its poses, %d of %d frames and"
+                            + " %d poses dropped",
+                    width, height, frameIntervalNanos > 0 ? "30fps" : "unpaced",
+                    recorder.getMegabytesPerSecond(), offering / 1e3 / frames,
+                    recorder.getDroppedFrameCount(), frames, recorder.getDroppedPoseCount()));
+
+            RandomAccessFile mapped = new RandomAccessFile(file, "r");
+            try {
+                DatasetReader reader = new DatasetReader(mapped.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, file.length()));
+                assertEquals(recorder.getFramesWritten(), reader.getFrameCount());
+            } finally {
+                mapped.close();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void benchmarkSustainedWrite() throws IOException {
+        fillFrame(0);
+        benchmark(320, 240, 600, 0);
+        benchmark(SOURCE_WIDTH, SOURCE_HEIGHT, 600, 0);
+        benchmark(SOURCE_WIDTH, SOURCE_HEIGHT, 60, 33 * MS);
+    }
+}
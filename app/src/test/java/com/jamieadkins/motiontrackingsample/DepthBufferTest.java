@@ -0,0 +1,212 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rasterises synthetic clouds seen by a camera at head height looking down -z, and tests boxes in
+ * front of and behind the surfaces against the result.
+ */
+public class DepthBufferTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final float WALL_Z = -2.0f;
+
+    private Intrinsics mIntrinsics;
+    private PoseData mCameraPose;
+
+    @Before
+    public void setUp() {
+        mIntrinsics = new Intrinsics(640, 480, 500, 500);
+        mCameraPose = new PoseData(SyntheticScene.SENSOR_POSITION.clone(),
+                new float[]{0, 0, 0, 1}, 0);
+    }
+
+    /**
+     * A wall facing the camera, sampled on a grid with {@code keep} of its points left in.
+     */
+    private static float[] wall(float spacing, float keep, long seed) {
+        Random random = new Random(seed);
+        int side = (int) (4 / spacing);
+        float[] points = new float[side * side * 3];
+        int count = 0;
+        for (int j = 0; j < side; j++) {
+            for (int i = 0; i < side; i++) {
+                if (random.nextFloat() >= keep) {
+                    continue;
+                }
+                points[count * 3] = -2 + i * spacing;
+                points[count * 3 + 1] = SyntheticScene.SENSOR_POSITION[1] - 2 + j * spacing;
+                points[count * 3 + 2] = WALL_Z;
+                count++;
+            }
+        }
+        float[] packed = new float[count * 3];
+        System.arraycopy(points, 0, packed, 0, packed.length);
+        return packed;
+    }
+
+    /**
+     * A cube of side {@code 2 * half} centred in front of the camera at {@code z}.
+     */
+    private static float[] box(float x, float z, float half) {
+        float y = SyntheticScene.SENSOR_POSITION[1];
+        return new float[]{x - half, y - half, z - half, x + half, y + half, z + half};
+    }
+
+    private DepthBuffer build(float[] points, ForkJoinPool pool, long budgetNanos) {
+        DepthBuffer buffer = new DepthBuffer(WIDTH, HEIGHT, pool, budgetNanos);
+        buffer.setView(mCameraPose, mIntrinsics);
+        assertTrue(buffer.update(points, points.length / 3));
+        return buffer;
+    }
+
+    private static boolean isVisible(DepthBuffer buffer, float[] box) {
+        boolean[] visible = new boolean[1];
+        buffer.queryVisible(box, 1, visible);
+        return visible[0];
+    }
+
+    @Test
+    public void hidesContentBehindAWall() {
+        DepthBuffer buffer = build(wall(0.02f, 1, 1), null, Long.MAX_VALUE);
+        assertEquals(1, buffer.getVersion());
+        assertFalse(isVisible(buffer, box(0, -3, 0.2f)));
+        assertFalse(isVisible(buffer, box(0.3f, WALL_Z - 0.15f, 0.1f)));
+        assertTrue(isVisible(buffer, box(0, -1, 0.2f)));
+        // Poking through the wall.
+        assertTrue(isVisible(buffer, box(0, WALL_Z, 0.2f)));
+
+        float[] boxes = new float[3 * DepthBuffer.FLOATS_PER_BOX];
+        System.arraycopy(box(0, -3, 0.2f), 0, boxes, 0, 6);
+        System.arraycopy(box(0, -1, 0.2f), 0, boxes, 6, 6);
+        System.arraycopy(box(-0.5f, -4, 0.3f), 0, boxes, 12, 6);
+        boolean[] visible = new boolean[3];
+        assertEquals(2, buffer.queryVisible(boxes, 3, visible));
+        assertFalse(visible[0]);
+        assertTrue(visible[1]);
+        assertFalse(visible[2]);
+    }
+
+    @Test
+    public void fillsHolesBetweenSparsePoints() {
+        // Only some two thirds of the pixels get a point.
+        DepthBuffer buffer = build(wall(0.015f, 0.6f, 2), null, Long.MAX_VALUE);
+        assertTrue(buffer.getLastFilledPixels() > 0);
+        float[] depth = new float[WIDTH * HEIGHT];
+        assertTrue(buffer.getDepth(depth));
+        int unknown = 0;
+        for (int y = HEIGHT / 4; y < 3 * HEIGHT / 4; y++) {
+            for (int x = WIDTH / 4; x < 3 * WIDTH / 4; x++) {
+                float d = depth[y * WIDTH + x];
+                if (Float.isInfinite(d)) {
+                    unknown++;
+                } else {
+                    assertEquals(-WALL_Z, d, 0.01);
+                }
+            }
+        }
+        assertTrue("Unknown " + unknown, unknown < WIDTH * HEIGHT / 400);
+    }
+
+    @Test
+    public void keepsWhatItDoesNotKnowVisible() {
+        DepthBuffer buffer = new DepthBuffer(WIDTH, HEIGHT, null, Long.MAX_VALUE);
+        float[] points = wall(0.02f, 1, 3);
+        // No view to rasterise from yet.
+        assertFalse(buffer.update(points, points.length / 3));
+        assertTrue(isVisible(buffer, box(0, -3, 0.2f)));
+        assertFalse(buffer.getDepth(new float[WIDTH * HEIGHT]));
+
+        buffer.setView(mCameraPose, mIntrinsics);
+        assertTrue(buffer.update(points, points.length / 3));
+        // Off the side of the image, and behind the camera.
+        assertTrue(isVisible(buffer, box(-4, -3, 0.2f)));
+        assertTrue(isVisible(buffer, box(0, 1, 0.2f)));
+        // Past the edge of the wall, where nothing is known.
+        assertTrue(isVisible(buffer, box(-2.3f, -3, 0.1f)));
+    }
+
+    @Test
+    public void leavesTilesOverBudgetUnknown() {
+        DepthBuffer buffer = build(wall(0.02f, 1, 4), null, 0);
+        int tiles = ((WIDTH + 15) / 16) * ((HEIGHT + 15) / 16);
+        assertEquals(tiles, buffer.getLastSkippedTiles());
+        assertTrue(isVisible(buffer, box(0, -3, 0.2f)));
+    }
+
+    @Test
+    public void parallelMatchesSequential() {
+        SyntheticScene scene = new SyntheticScene(5);
+        PointCloud cloud = scene.nextCloud(40000, 0);
+        DepthBuffer one = build(cloud.getPoints(), null, Long.MAX_VALUE);
+        DepthBuffer many = build(cloud.getPoints(), WorkerPool.get(), Long.MAX_VALUE);
+        float[] depth = new float[WIDTH * HEIGHT];
+        float[] otherDepth = new float[WIDTH * HEIGHT];
+        assertTrue(one.getDepth(depth));
+        assertTrue(many.getDepth(otherDepth));
+        assertArrayEquals(depth, otherDepth, 0);
+    }
+
+    @Test
+    public void benchmarkBuildAndQuery() {
+        SyntheticScene scene = new SyntheticScene(6);
+        int[] sizes = {10000, 40000, 100000};
+        for (int size : sizes) {
+            PointCloud[] clouds = new PointCloud[10];
+            for (int i = 0; i < clouds.length; i++) {
+                clouds[i] = scene.nextCloud(size, i);
+            }
+            DepthBuffer buffer = new DepthBuffer(WIDTH, HEIGHT);
+            buffer.setView(mCameraPose, mIntrinsics);
+            for (PointCloud cloud : clouds) {
+                buffer.onNewPointCloud(cloud);
+            }
+            long total = 0;
+            long best = Long.MAX_VALUE;
+            int skipped = 0;
+            int rounds = 5;
+            for (int round = 0; round < rounds; round++) {
+                for (PointCloud cloud : clouds) {
+                    long start = System.nanoTime();
+                    buffer.onNewPointCloud(cloud);
+                    long elapsed = System.nanoTime() - start;
+                    total += elapsed;
+                    best = Math.min(best, elapsed);
+                    skipped += buffer.getLastSkippedTiles();
+                }
+            }
+            double mean = total / (double) (rounds * clouds.length);
+            System.out.println(String.format("Depth buffer from %d points on %d cores: %.2fms a"
+                            + " cloud (best %.2fms), %d tiles over budget in total",
+                    size, WorkerPool.getParallelism(), mean / 1e6, best / 1e6, skipped));
+        }
+
+        // Boxes scattered in front of and behind a wall.
+        DepthBuffer buffer = build(wall(0.015f, 1, 7), WorkerPool.get(), Long.MAX_VALUE);
+        Random random = new Random(7);
+        int count = 1000;
+        float[] boxes = new float[count * DepthBuffer.FLOATS_PER_BOX];
+        for (int i = 0; i < count; i++) {
+            float[] box = box(random.nextFloat() * 3 - 1.5f, -1 - random.nextFloat() * 3,
+                    0.05f + random.nextFloat() * 0.2f);
+            System.arraycopy(box, 0, boxes, i * DepthBuffer.FLOATS_PER_BOX, 6);
+        }
+        boolean[] visible = new boolean[count];
+        int hidden = 0;
+        int rounds = 200;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            hidden = buffer.queryVisible(boxes, count, visible);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("Depth buffer queries: %.0fns a box, %d of %d hidden",
+                elapsed / (double) (rounds * count), hidden, count));
+        assertTrue(hidden > 0);
+    }
+}
@@ -0,0 +1,281 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the pyramid, corner detector and tracker over synthetic frames: a random texture slid by
+ * a known sub-pixel motion every frame, so where each feature should end up is known exactly.
+ */
+public class FeatureTrackerTest {
+    private static final int MARGIN = 64;
+
+    /**
+     * Random overlapping rectangles, softened so they have gradients to track, with room around
+     * the frame to slide it.
+     */
+    private static float[] texture(int width, int height, long seed) {
+        int textureWidth = width + 2 * MARGIN;
+        int textureHeight = height + 2 * MARGIN;
+        float[] texture = new float[textureWidth * textureHeight];
+        Arrays.fill(texture, 128);
+        Random random = new Random(seed);
+        int rectangles = textureWidth * textureHeight / 300;
+        for (int r = 0; r < rectangles; r++) {
+            int left = random.nextInt(textureWidth);
+            int top = random.nextInt(textureHeight);
+            int right = Math.min(textureWidth, left + 4 + random.nextInt(20));
+            int bottom = Math.min(textureHeight, top + 4 + random.nextInt(20));
+            float value = 20 + random.nextInt(216);
+            for (int y = top; y < bottom; y++) {
+                Arrays.fill(texture, y * textureWidth + left, y * textureWidth + right, value);
+            }
+        }
+        float[] blurred = new float[texture.length];
+        for (int y = 1; y < textureHeight - 1; y++) {
+            for (int x = 1; x < textureWidth - 1; x++) {
+                float sum = 0;
+                for (int j = -1; j <= 1; j++) {
+                    for (int i = -1; i <= 1; i++) {
+                        sum += texture[(y + j) * textureWidth + x + i];
+                    }
+                }
+                blurred[y * textureWidth + x] = sum / 9;
+            }
+        }
+        return blurred;
+    }
+
+    /**
+     * Renders the frame showing the texture from {@code (offsetX, offsetY)}, so a point of the
+     * texture moves by minus the offset's change between frames.
+     */
+    private static void render(float[] texture, int width, int height, float offsetX,
+                               float offsetY, byte[] out, int rowStride) {
+        int textureWidth = width + 2 * MARGIN;
+        for (int y = 0; y < height; y++) {
+            float ty = y + MARGIN + offsetY;
+            int y0 = (int) Math.floor(ty);
+            float fy = ty - y0;
+            for (int x = 0; x < width; x++) {
+                float tx = x + MARGIN + offsetX;
+                int x0 = (int) Math.floor(tx);
+                float fx = tx - x0;
+                int p = y0 * textureWidth + x0;
+                float value = (1 - fx) * (1 - fy) * texture[p] + fx * (1 - fy) * texture[p + 1]
+                        + (1 - fx) * fy * texture[p + textureWidth]
+                        + fx * fy * texture[p + textureWidth + 1];
+                out[y * rowStride + x] = (byte) Math.round(value);
+            }
+        }
+    }
+
+    @Test
+    public void buildsHalvedLevels() {
+        int stride = 12;
+        byte[] image = new byte[stride * 8];
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                image[y * stride + x] = (byte) (x < 4 ? 200 : 10 * y);
+            }
+        }
+        ImagePyramid pyramid = new ImagePyramid(8, 8, 3, null);
+        pyramid.build(image, 0, stride);
+        assertEquals(4, pyramid.getWidth(1));
+        assertEquals(2, pyramid.getHeight(2));
+        assertEquals(200, pyramid.getLevel(0)[0] & 0xff);
+        assertEquals(200, pyramid.getLevel(1)[0] & 0xff);
+        // Rows 2 and 3 of the right half, 20 and 30.
+        assertEquals(25, pyramid.getLevel(1)[4 + 2] & 0xff);
+        assertEquals(3, ImagePyramid.getLevelCount(320, 240, 32, 4));
+        assertEquals(4, ImagePyramid.getLevelCount(640, 480, 32, 4));
+    }
+
+    @Test
+    public void findsTheCornersOfASquare() {
+        assertTrue(FastDetector.hasArc(0x1ff));
+        assertFalse(FastDetector.hasArc(0xff));
+        // Wrapping round from the last pixel of the circle to the first.
+        assertTrue(FastDetector.hasArc(0xf01f));
+        assertFalse(FastDetector.hasArc(0xf00f));
+
+        int size = 64;
+        byte[] image = new byte[size * size];
+        Arrays.fill(image, (byte) 20);
+        float[] x = new float[4];
+        float[] y = new float[4];
+        int[] scores = new int[4];
+        FastDetector detector = new FastDetector(FastDetector.DEFAULT_THRESHOLD, 32, null);
+        assertEquals(0, detector.detect(image, size, size, null, x, y, scores));
+
+        for (int row = 20; row < 44; row++) {
+            Arrays.fill(image, row * size + 20, row * size + 44, (byte) 200);
+        }
+        // One corner of the square in each quarter.
+        assertEquals(4, detector.detect(image, size, size, null, x, y, scores));
+        for (int i = 0; i < 4; i++) {
+            float cornerX = x[i] < 32 ? 20 : 43;
+            float cornerY = y[i] < 32 ? 20 : 43;
+            assertEquals(cornerX, x[i], 1);
+            assertEquals(cornerY, y[i], 1);
+            assertTrue(scores[i] > 0);
+        }
+        // Occupied cells aren't searched.
+        assertEquals(2, detector.detect(image, size, size,
+                new boolean[]{true, false, false, true}, x, y, scores));
+        assertTrue(x[0] >= 32 && y[0] < 32);
+    }
+
+    private static final class Sequence {
+        final float[] texture;
+        final int width;
+        final int height;
+        final byte[] frame;
+        float offsetX;
+        float offsetY;
+
+        Sequence(int width, int height) {
+            this.width = width;
+            this.height = height;
+            texture = texture(width, height, 7);
+            frame = new byte[width * height];
+        }
+
+        byte[] next(float stepX, float stepY) {
+            offsetX += stepX;
+            offsetY += stepY;
+            render(texture, width, height, offsetX, offsetY, frame, width);
+            return frame;
+        }
+    }
+
+    /**
+     * Tracks a sequence and measures how far each feature is from where the motion puts it.
+     *
+     * @return mean error, in pixels, over every tracked feature in every frame.
+     */
+    private static double trackSequence(FeatureTracker tracker, Sequence sequence, float stepX,
+                                        float stepY, int frames) {
+        int max = tracker.getMaxFeatures();
+        int[] ids = new int[max];
+        float[] x = new float[max];
+        float[] y = new float[max];
+        int[] ages = new int[max];
+        // Where each feature was found, in the texture.
+        Map<Integer, float[]> origins = new HashMap<>();
+        double error = 0;
+        int samples = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            byte[] image = sequence.next(frame == 0 ? 0 : stepX, frame == 0 ? 0 : stepY);
+            tracker.track(image, 0, sequence.width, frame);
+            int count = tracker.getFeatures(ids, x, y, ages);
+            for (int i = 0; i < count; i++) {
+                float[] origin = origins.get(ids[i]);
+                if (origin == null) {
+                    assertEquals(0, ages[i]);
+                    origins.put(ids[i], new float[]{x[i] + sequence.offsetX,
+                            y[i] + sequence.offsetY});
+                    continue;
+                }
+                float expectedX = origin[0] - sequence.offsetX;
+                float expectedY = origin[1] - sequence.offsetY;
+                error += Math.hypot(x[i] - expectedX, y[i] - expectedY);
+                samples++;
+            }
+        }
+        assertTrue(samples > 0);
+        return error / samples;
+    }
+
+    @Test
+    public void followsSubPixelMotion() {
+        Sequence sequence = new Sequence(320, 240);
+        FeatureTracker tracker = new FeatureTracker(320, 240, 150, null);
+        double error = trackSequence(tracker, sequence, 1.3f, -0.7f, 12);
+        assertTrue("Mean error " + error, error < 0.15);
+        // Sliding the texture only loses what goes off the edge.
+        assertTrue(tracker.getLastTrackedCount() > 0.8 * 150);
+        assertTrue(tracker.getLastLostCount() < 15);
+    }
+
+    @Test
+    public void followsLargeMotionThroughThePyramid() {
+        Sequence sequence = new Sequence(320, 240);
+        FeatureTracker tracker = new FeatureTracker(320, 240, 150, null);
+        double error = trackSequence(tracker, sequence, -6.2f, 4.1f, 6);
+        assertTrue("Mean error " + error, error < 0.25);
+        assertTrue(tracker.getLastTrackedCount() > 0.8 * 150);
+    }
+
+    @Test
+    public void parallelMatchesSequential() {
+        Sequence sequential = new Sequence(640, 480);
+        Sequence parallel = new Sequence(640, 480);
+        FeatureTracker one = new FeatureTracker(640, 480, 300, null);
+        FeatureTracker many = new FeatureTracker(640, 480, 300, WorkerPool.get());
+        int[] ids = new int[300];
+        int[] otherIds = new int[300];
+        float[] x = new float[300];
+        float[] otherX = new float[300];
+        float[] y = new float[300];
+        float[] otherY = new float[300];
+        for (int frame = 0; frame < 5; frame++) {
+            one.track(sequential.next(2.1f, 0.4f), 0, 640, frame);
+            many.track(parallel.next(2.1f, 0.4f), 0, 640, frame);
+            int count = one.getFeatures(ids, x, y, null);
+            assertEquals(count, many.getFeatures(otherIds, otherX, otherY, null));
+            assertArrayEquals(ids, otherIds);
+            assertArrayEquals(x, otherX, 0);
+            assertArrayEquals(y, otherY, 0);
+        }
+        one.reset();
+        assertEquals(0, one.getCount());
+    }
+
+    @Test
+    public void benchmarkFramesPerSecond() {
+        int[][] sizes = {{320, 240}, {640, 480}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            Sequence sequence = new Sequence(width, height);
+            // Render up front so only tracking is timed.
+            int frames = 60;
+            byte[][] images = new byte[frames][];
+            for (int i = 0; i < frames; i++) {
+                images[i] = sequence.next(1.5f * (float) Math.cos(i * 0.2),
+                        1.5f * (float) Math.sin(i * 0.2)).clone();
+            }
+            FeatureTracker tracker = new FeatureTracker(width, height);
+            for (int i = 0; i < frames; i++) {
+                tracker.track(images[i], 0, width, i);
+            }
+            long best = Long.MAX_VALUE;
+            long total = 0;
+            int tracked = 0;
+            for (int round = 0; round < 3; round++) {
+                tracker.reset();
+                for (int i = 0; i < frames; i++) {
+                    long start = System.nanoTime();
+                    tracker.track(images[i], 0, width, i);
+                    long elapsed = System.nanoTime() - start;
+                    best = Math.min(best, elapsed);
+                    total += elapsed;
+                    tracked += tracker.getLastTrackedCount();
+                }
+            }
+            double mean = total / (3.0 * frames);
+            System.out.println(String.format("Feature tracking at %dx%d on %d cores: %.0f fps"
+                            + " (%.2fms a frame, best %.2fms), %d features tracked a frame",
+                    width, height, WorkerPool.getParallelism(), 1e9 / mean, mean / 1e6,
+                    best / 1e6, tracked / (3 * frames)));
+            assertTrue(tracked > 0);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the frame pacer with a simulated 60Hz display.
+ */
+public class FramePacerTest {
+    private static final long VSYNC = 16666667L;
+    private static final long MS = 1000000L;
+
+    /**
+     * Simulated clock that delivers vsyncs to the pacer whenever time passes one.
+     */
+    private static class SimulatedDisplay implements FramePacer.Clock {
+        FramePacer mPacer;
+        long mNow = 5 * MS;
+        long mNextVsync = VSYNC;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+
+        @Override
+        public void sleepUntil(long nanos) {
+            advanceTo(nanos);
+        }
+
+        void advance(long nanos) {
+            advanceTo(mNow + nanos);
+        }
+
+        void advanceTo(long nanos) {
+            while (mNextVsync <= nanos) {
+                mNow = mNextVsync;
+                mPacer.onVsync(mNextVsync);
+                mNextVsync += VSYNC;
+            }
+            mNow = Math.max(mNow, nanos);
+        }
+
+        /** Models a blocking buffer swap: returns at the next vsync. */
+        void swap() {
+            advanceTo(mNextVsync);
+        }
+    }
+
+    private SimulatedDisplay mDisplay;
+    private FramePacer mPacer;
+
+    @Before
+    public void setUp() {
+        mDisplay = new SimulatedDisplay();
+        mPacer = new FramePacer(mDisplay, FramePacer.DEFAULT_SAFETY_MARGIN_NANOS);
+        mDisplay.mPacer = mPacer;
+    }
+
+    /**
+     * Renders one frame; poses arrive every millisecond so the sampled pose is at most that old.
+     */
+    private long renderFrame(long renderNanos, boolean paced) throws InterruptedException {
+        long deadline = paced ? mPacer.awaitLatchPoint() : -1;
+        mPacer.onPoseSampled(mDisplay.mNow - mDisplay.mNow % MS);
+        long latch = mDisplay.mNow;
+        mDisplay.advance(renderNanos);
+        mPacer.onFrameRendered();
+        mDisplay.swap();
+        // Time from sampling the pose to the vsync the frame was shown at.
+        return (paced ? deadline : mDisplay.mNow) - latch;
+    }
+
+    @Test
+    public void latchMovesCloseToTheDeadline() throws InterruptedException {
+        mDisplay.advance(3 * VSYNC);
+        long naive = 0;
+        for (int i = 0; i < 100; i++) {
+            naive = Math.max(naive, renderFrame(5 * MS, false));
+        }
+        long paced = 0;
+        for (int i = 0; i < 100; i++) {
+            long latency = renderFrame(5 * MS, true);
+            if (i >= 10) {
+                paced = Math.max(paced, latency);
+            }
+        }
+        System.out.println(String.format("Latch to display: naive %.2fms, paced %.2fms",
+                naive / 1e6, paced / 1e6));
+        assertTrue(naive > 15 * MS);
+        assertTrue(paced <= 5 * MS + FramePacer.DEFAULT_SAFETY_MARGIN_NANOS);
+        assertEquals(0, mPacer.getMissedDeadlineCount());
+        assertEquals(VSYNC, mPacer.getVsyncPeriodNanos(), 1000);
+        assertEquals(5 * MS, mPacer.getRenderTimeEstimateNanos());
+        // Busy time is the render plus the wait for the swap, but not the pacing delay.
+        assertEquals(5 * MS + FramePacer.DEFAULT_SAFETY_MARGIN_NANOS,
+                mPacer.getLastFrameBusyNanos(), 1000);
+    }
+
+    @Test
+    public void slowFrameIsCountedAndEstimateGrows() throws InterruptedException {
+        mDisplay.advance(3 * VSYNC);
+        for (int i = 0; i < 20; i++) {
+            renderFrame(4 * MS, true);
+        }
+        assertEquals(0, mPacer.getMissedDeadlineCount());
+
+        renderFrame(12 * MS, true);
+        assertEquals(1, mPacer.getMissedDeadlineCount());
+        assertEquals(12 * MS, mPacer.getRenderTimeEstimateNanos());
+
+        // The next frame latches earlier to leave room for another slow one.
+        long latency = renderFrame(12 * MS, true);
+        assertEquals(1, mPacer.getMissedDeadlineCount());
+        assertTrue(latency >= 12 * MS);
+    }
+
+    @Test
+    public void histogramsRecordEveryFrame() throws InterruptedException {
+        mDisplay.advance(3 * VSYNC);
+        for (int i = 0; i < 60; i++) {
+            renderFrame(3 * MS, true);
+        }
+        assertEquals(60, mPacer.getFrameCount());
+        assertEquals(60, mPacer.getRenderTimeHistogram().getCount());
+        assertEquals(59, mPacer.getFrameIntervalHistogram().getCount());
+        assertEquals(VSYNC, mPacer.getFrameIntervalHistogram().getMeanNanos(), MS);
+        assertTrue(mPacer.getPoseToDeadlineHistogram().getPercentileNanos(95) <= 6 * MS);
+    }
+
+    @Test
+    public void frameIntervalSkipsVsyncs() throws InterruptedException {
+        mDisplay.advance(3 * VSYNC);
+        mPacer.setFrameInterval(2);
+        for (int i = 0; i < 30; i++) {
+            renderFrame(4 * MS, true);
+        }
+        assertEquals(0, mPacer.getMissedDeadlineCount());
+        assertEquals(2 * VSYNC, mPacer.getFrameIntervalHistogram().getMeanNanos(), MS);
+        // The pose is still sampled just in time for the vsync the frame is shown at.
+        assertTrue(mPacer.getPoseToDeadlineHistogram().getPercentileNanos(95) <= 7 * MS);
+    }
+
+    @Test
+    public void doesNotWaitBeforeFirstVsync() throws InterruptedException {
+        long before = mDisplay.mNow;
+        assertEquals(-1, mPacer.awaitLatchPoint());
+        assertEquals(before, mDisplay.mNow);
+    }
+
+    @Test
+    public void resetForgetsRenderTimes() throws InterruptedException {
+        mDisplay.advance(3 * VSYNC);
+        renderFrame(10 * MS, true);
+        mPacer.reset();
+        mPacer.awaitLatchPoint();
+        assertEquals(0, mPacer.getRenderTimeEstimateNanos());
+    }
+}
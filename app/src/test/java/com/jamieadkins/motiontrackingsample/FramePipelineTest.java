@@ -0,0 +1,66 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the frame pipeline headless through {@link PipelineHarness} at a range of display and
+ * pose rates, and reports throughput, latency at each stage and how well the pose lines up with
+ * the camera image it is drawn over. The simulated time per run can be set with the
+ * {@code pipeline.benchmark.seconds} system property.
+ */
+public class FramePipelineTest {
+    private static final long MS = PipelineHarness.MS;
+
+    private static double seconds() {
+        return Double.parseDouble(System.getProperty("pipeline.benchmark.seconds", "5"));
+    }
+
+    @Test
+    public void everyFrameGetsTheNewestPoseAndCameraImage() throws InterruptedException {
+        PipelineHarness harness = new PipelineHarness(new PipelineHarness.Config(60, 200));
+        PipelineHarness.Result result = harness.run(2);
+
+        assertEquals(120, result.mFrames, 2);
+        assertEquals(0, result.mMissedDeadlines);
+        assertEquals(400, result.mPoses, 2);
+        // Only the frames before the first image is ready, after a period and the camera's
+        // delay, go without one.
+        assertTrue(result.mCameraFrames >= result.mFrames - 4);
+        assertTrue(harness.mRenderer.mPosesApplied >= result.mFrames - 1);
+        assertFalse(harness.mRenderer.mOutOfOrder);
+        // The newest pose is taken at the latch point, so it has arrived within a pose period.
+        assertTrue(result.mPoseAge.getMaxNanos() <= 5 * MS);
+        assertTrue(result.mPoseToDisplay.getMaxNanos()
+                <= 4 * MS + FramePacer.DEFAULT_SAFETY_MARGIN_NANOS + 5 * MS);
+    }
+
+    @Test
+    public void benchmarkRates() throws InterruptedException {
+        int[] displayRates = {30, 60, 120};
+        int[] poseRates = {100, 200, 500, 1000};
+        double seconds = seconds();
+        for (int displayFps : displayRates) {
+            long previousPoseAge = Long.MAX_VALUE;
+            for (int poseHz : poseRates) {
+                PipelineHarness.Config config = new PipelineHarness.Config(displayFps, poseHz);
+                PipelineHarness.Result result = new PipelineHarness(config).run(seconds);
+                System.out.println(String.format("Pipeline %dfps display, %dHz poses: %s",
+                        displayFps, poseHz, result));
+
+                assertEquals(displayFps, result.mFrames / result.mSimulatedSeconds,
+                        displayFps * 0.05);
+                assertEquals(0, result.mMissedDeadlines);
+                assertEquals(poseHz, result.mPoses / result.mSimulatedSeconds, poseHz * 0.05);
+                // Faster poses are fresher at the latch point.
+                long poseAge = result.mPoseAge.getMeanNanos();
+                assertTrue(poseAge <= previousPoseAge);
+                previousPoseAge = poseAge;
+                // The camera image lags the newest pose by its own delay and at most a period.
+                assertTrue(result.mAlignment.getMaxNanos()
+                        <= config.mCameraDelayNanos + 1000 * MS / config.mCameraFps + 5 * MS);
+            }
+        }
+    }
+}
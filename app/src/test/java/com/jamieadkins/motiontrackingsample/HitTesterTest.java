@@ -0,0 +1,262 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Casts rays from the screen into synthetic rooms and checks the hits against testing every
+ * point one by one.
+ */
+public class HitTesterTest {
+    private static final int CLOUDS = 8;
+    private static final int POINTS_PER_CLOUD = HitTester.DEFAULT_MAX_POINTS / CLOUDS;
+    private static final float RADIUS = HitTester.DEFAULT_POINT_RADIUS;
+
+    private float[] mOrigin;
+    private float[] mDirection;
+    private HitTester.Hit mHit;
+
+    @Before
+    public void setUp() {
+        mOrigin = new float[3];
+        mDirection = new float[3];
+        mHit = new HitTester.Hit();
+    }
+
+    private static PoseData pose(float[] position, float yawDegrees) {
+        double half = Math.toRadians(yawDegrees) / 2;
+        return new PoseData(position.clone(),
+                new float[]{0, (float) Math.sin(half), 0, (float) Math.cos(half)}, 0);
+    }
+
+    @Test
+    public void castsRaysThroughTheProjection() {
+        Intrinsics intrinsics = new Intrinsics(640, 480, 500, 500);
+        float[] projection = new float[16];
+        CameraDisplayRotation.projectionMatrixFromCameraIntrinsics(intrinsics, 0, projection);
+        float[] position = {1, 2, 3};
+
+        // The pixel the point (0.5, 0.2, -2) in front of the camera projects to.
+        HitTester.screenToRay(445, 190, 640, 480, projection, pose(position, 0), mOrigin,
+                mDirection);
+        assertArrayEquals(position, mOrigin, 0);
+        float length = (float) Math.sqrt(0.25 * 0.25 + 0.1 * 0.1 + 1);
+        assertArrayEquals(new float[]{0.25f / length, 0.1f / length, -1 / length}, mDirection,
+                1e-5f);
+
+        // Turned to the left, the middle of the screen looks down -x.
+        HitTester.screenToRay(320, 240, 640, 480, projection, pose(position, 90), mOrigin,
+                mDirection);
+        assertArrayEquals(new float[]{-1, 0, 0}, mDirection, 1e-5f);
+    }
+
+    @Test
+    public void hitsTheNearestObject() {
+        HitTester tester = new HitTester(100, RADIUS, null);
+        float[] spheres = {0, 0, -5, 1, 0, 0, -3, 0.5f, 3, 0, -2, 0.5f};
+        float[] forward = {0, 0, -1};
+        assertTrue(tester.hitTest(mOrigin, forward, spheres, 3, mHit));
+        assertEquals(HitTester.TYPE_OBJECT, mHit.getType());
+        assertEquals(1, mHit.getIndex());
+        assertEquals(2.5f, mHit.getDistance(), 1e-5f);
+        assertArrayEquals(new float[]{0, 0, -2.5f}, mHit.getPosition(), 1e-5f);
+        assertArrayEquals(new float[]{0, 0, 1}, mHit.getNormal(), 1e-5f);
+
+        // Behind the ray, or beside it.
+        assertFalse(tester.hitTest(mOrigin, new float[]{0, 0, 1}, spheres, 3, mHit));
+        assertFalse(tester.hitTest(mOrigin, new float[]{0, 1, 0}, spheres, 3, mHit));
+        assertEquals(HitTester.TYPE_NONE, mHit.getType());
+    }
+
+    @Test
+    public void hitsPlanesWithinTheirBounds() {
+        // A floor, two meters on a side.
+        Random random = new Random(1);
+        float[] floor = new float[3000 * 3];
+        for (int i = 0; i < 3000; i++) {
+            floor[i * 3] = random.nextFloat() * 2 - 1;
+            floor[i * 3 + 2] = -random.nextFloat() * 2;
+        }
+        PlaneDetector detector = new PlaneDetector(WorkerPool.get(), Long.MAX_VALUE);
+        detector.update(floor, 3000, 0, 1.5f, 0, 0);
+        assertEquals(1, detector.getPlanes().size());
+        HitTester tester = new HitTester(100, RADIUS, null);
+        tester.setPlaneDetector(detector);
+
+        float[] origin = {0, 1.5f, 0};
+        float down = (float) Math.sqrt(0.5);
+        assertTrue(tester.hitTest(origin, new float[]{0, -down, -down}, null, 0, mHit));
+        assertEquals(HitTester.TYPE_PLANE, mHit.getType());
+        assertEquals(detector.getPlanes().get(0).getId(), mHit.getIndex());
+        assertEquals(1.5f * Math.sqrt(2), mHit.getDistance(), 1e-3);
+        assertArrayEquals(new float[]{0, 0, -1.5f}, mHit.getPosition(), 1e-3f);
+        assertArrayEquals(new float[]{0, 1, 0}, mHit.getNormal(), 1e-3f);
+        // Past the edge of the floor, and up into the air.
+        assertFalse(tester.hitTest(origin, new float[]{down, -down, 0}, null, 0, mHit));
+        assertFalse(tester.hitTest(origin, new float[]{0, down, -down}, null, 0, mHit));
+
+        // Something on the floor is in the way.
+        float[] sphere = {0, 0.5f, -1, 0.3f};
+        assertTrue(tester.hitTest(origin, new float[]{0, -down, -down}, sphere, 1, mHit));
+        assertEquals(HitTester.TYPE_OBJECT, mHit.getType());
+    }
+
+    /**
+     * A room's worth of depth points, as they'd be kept from the last few clouds.
+     */
+    private static float[][] room(long seed) {
+        SyntheticScene scene = new SyntheticScene(seed);
+        float[][] clouds = new float[CLOUDS][];
+        for (int i = 0; i < CLOUDS; i++) {
+            clouds[i] = scene.nextCloud(POINTS_PER_CLOUD, i).getPoints();
+        }
+        return clouds;
+    }
+
+    /**
+     * A random direction into the room from the sensor.
+     */
+    private static void randomRay(Random random, float[] origin, float[] direction) {
+        System.arraycopy(SyntheticScene.SENSOR_POSITION, 0, origin, 0, 3);
+        direction[0] = random.nextFloat() * 2 - 1;
+        direction[1] = random.nextFloat() * 2 - 1.5f;
+        direction[2] = -random.nextFloat();
+        float length = (float) Math.sqrt(direction[0] * direction[0]
+                + direction[1] * direction[1] + direction[2] * direction[2]);
+        for (int i = 0; i < 3; i++) {
+            direction[i] /= length;
+        }
+    }
+
+    /**
+     * @return the distance to the nearest point along the ray, tested one by one.
+     */
+    private static float bruteForce(float[][] clouds, float[] origin, float[] direction) {
+        float best = Float.MAX_VALUE;
+        for (float[] points : clouds) {
+            for (int p = 0; p < points.length; p += 3) {
+                float lx = points[p] - origin[0];
+                float ly = points[p + 1] - origin[1];
+                float lz = points[p + 2] - origin[2];
+                float along = lx * direction[0] + ly * direction[1] + lz * direction[2];
+                float squared = lx * lx + ly * ly + lz * lz - along * along;
+                if (squared > RADIUS * RADIUS) {
+                    continue;
+                }
+                float half = (float) Math.sqrt(RADIUS * RADIUS - squared);
+                float t = along - half >= 0 ? along - half : along + half;
+                if (t >= 0) {
+                    best = Math.min(best, t);
+                }
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void matchesTestingEveryPoint() {
+        float[][] clouds = room(2);
+        HitTester one = new HitTester(HitTester.DEFAULT_MAX_POINTS, RADIUS, null);
+        HitTester many = new HitTester(HitTester.DEFAULT_MAX_POINTS, RADIUS, WorkerPool.get());
+        for (float[] cloud : clouds) {
+            one.addPoints(cloud, POINTS_PER_CLOUD);
+            many.addPoints(cloud, POINTS_PER_CLOUD);
+        }
+        assertEquals(HitTester.DEFAULT_MAX_POINTS, one.getPointCount());
+
+        Random random = new Random(3);
+        HitTester.Hit other = new HitTester.Hit();
+        int hits = 0;
+        for (int ray = 0; ray < 300; ray++) {
+            randomRay(random, mOrigin, mDirection);
+            float expected = bruteForce(clouds, mOrigin, mDirection);
+            boolean hit = one.hitTest(mOrigin, mDirection, null, 0, mHit);
+            assertEquals(expected < Float.MAX_VALUE, hit);
+            assertEquals(hit, many.hitTest(mOrigin, mDirection, null, 0, other));
+            if (hit) {
+                hits++;
+                assertEquals(HitTester.TYPE_POINT, mHit.getType());
+                assertEquals(expected, mHit.getDistance(), 1e-4f);
+                assertEquals(mHit.getIndex(), other.getIndex());
+                assertEquals(mHit.getDistance(), other.getDistance(), 0);
+            }
+        }
+        // Most rays from inside a room hit something.
+        assertTrue("Hits " + hits, hits > 200);
+    }
+
+    @Test
+    public void keepsOnlyTheLatestPoints() {
+        HitTester tester = new HitTester(CLOUDS * 2, RADIUS, null);
+        float[] behind = new float[2 * 3];
+        behind[2] = behind[5] = 5;
+        // Pushed out by the clouds that come after.
+        tester.addPoints(behind, 2);
+        float[] ahead = {0, 0, -1, 0, 0, -2};
+        for (int i = 0; i < CLOUDS; i++) {
+            tester.addPoints(ahead, 2);
+        }
+        assertEquals(CLOUDS * 2, tester.getPointCount());
+        assertFalse(tester.hitTest(mOrigin, new float[]{0, 0, 1}, null, 0, mHit));
+        assertTrue(tester.hitTest(mOrigin, new float[]{0, 0, -1}, null, 0, mHit));
+        assertEquals(1 - RADIUS, mHit.getDistance(), 1e-5f);
+
+        // A cloud larger than its share is thinned.
+        tester.addPoints(new float[10 * 3], 10);
+        assertEquals(CLOUDS * 2, tester.getPointCount());
+
+        tester.clear();
+        assertEquals(0, tester.getPointCount());
+        assertFalse(tester.hitTest(mOrigin, new float[]{0, 0, -1}, null, 0, mHit));
+    }
+
+    @Test
+    public void benchmarkBuildAndQuery() {
+        float[][] clouds = room(4);
+        HitTester tester = new HitTester();
+        long build = 0;
+        for (float[] cloud : clouds) {
+            tester.addPoints(cloud, POINTS_PER_CLOUD);
+            build = Math.max(build, tester.getLastBuildNanos());
+        }
+        float[] spheres = new float[10 * HitTester.FLOATS_PER_SPHERE];
+        Random random = new Random(5);
+        for (int i = 0; i < spheres.length; i += HitTester.FLOATS_PER_SPHERE) {
+            spheres[i] = random.nextFloat() * 4 - 2;
+            spheres[i + 1] = random.nextFloat() * 2;
+            spheres[i + 2] = -random.nextFloat() * 2;
+            spheres[i + 3] = 0.1f;
+        }
+
+        int rays = 20000;
+        float[][] origins = new float[rays][3];
+        float[][] directions = new float[rays][3];
+        for (int i = 0; i < rays; i++) {
+            randomRay(random, origins[i], directions[i]);
+        }
+        for (int i = 0; i < rays; i++) {
+            tester.hitTest(origins[i], directions[i], spheres, 10, mHit);
+        }
+        long worst = 0;
+        int hits = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rays; i++) {
+            long rayStart = System.nanoTime();
+            if (tester.hitTest(origins[i], directions[i], spheres, 10, mHit)) {
+                hits++;
+            }
+            worst = Math.max(worst, System.nanoTime() - rayStart);
+        }
+        long elapsed = System.nanoTime() - start;
+        double mean = elapsed / (double) rays;
+        System.out.println(String.format("Hit testing %d points on %d cores: built in %.2fms,"
+                        + " %.1fus a ray (worst %.1fus), %d of %d rays hit",
+                tester.getPointCount(), WorkerPool.getParallelism(), build / 1e6, mean / 1e3,
+                worst / 1e3, hits, rays));
+        assertTrue(mean < 1e6);
+    }
+}
@@ -0,0 +1,265 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a simulated minute of hand held motion through the orientation filter, as a 400Hz
+ * gyroscope with bias and noise, a noisy accelerometer and a 100Hz game rotation vector, and
+ * compares the estimate with the true orientation. Also measures the cost per sample.
+ */
+public class OrientationFilterTest {
+    private static final int RATE = 400;
+    private static final long PERIOD_NANOS = 1000000000L / RATE;
+    private static final float GYRO_BIAS = 0.01f;
+
+    /** Sensor streams and the true orientation at each gyroscope sample. */
+    private static class Replay {
+        final int mSamples;
+        final long[] mTimestamps;
+        final float[] mGyro;
+        final float[] mAccelerometer;
+        final float[] mTruth;
+
+        Replay(int seconds, long seed) {
+            mSamples = seconds * RATE;
+            mTimestamps = new long[mSamples];
+            mGyro = new float[mSamples * 3];
+            mAccelerometer = new float[mSamples * 3];
+            mTruth = new float[mSamples * 4];
+
+            Random random = new Random(seed);
+            // Start tilted, like a phone held up in front of you.
+            double[] q = {Math.sin(0.6), 0, 0, Math.cos(0.6)};
+            double[] rate = new double[3];
+            double dt = 1.0 / RATE;
+            float[] rotation = new float[4];
+            float[] up = new float[3];
+            for (int i = 0; i < mSamples; i++) {
+                for (int axis = 0; axis < 3; axis++) {
+                    rate[axis] = 0.995 * rate[axis] + random.nextGaussian() * 0.05;
+                }
+                // Integrate the true orientation exactly.
+                double w = Math.sqrt(rate[0] * rate[0] + rate[1] * rate[1] + rate[2] * rate[2]);
+                double half = w * dt / 2;
+                double s = w < 1e-12 ? 0 : Math.sin(half) / w;
+                double dx = rate[0] * s, dy = rate[1] * s, dz = rate[2] * s, dw = Math.cos(half);
+                double nx = q[3] * dx + q[0] * dw + q[1] * dz - q[2] * dy;
+                double ny = q[3] * dy - q[0] * dz + q[1] * dw + q[2] * dx;
+                double nz = q[3] * dz + q[0] * dy - q[1] * dx + q[2] * dw;
+                double nw = q[3] * dw - q[0] * dx - q[1] * dy - q[2] * dz;
+                double length = Math.sqrt(nx * nx + ny * ny + nz * nz + nw * nw);
+                q[0] = nx / length;
+                q[1] = ny / length;
+                q[2] = nz / length;
+                q[3] = nw / length;
+
+                mTimestamps[i] = 1000000000L + i * PERIOD_NANOS;
+                for (int c = 0; c < 4; c++) {
+                    rotation[c] = (float) q[c];
+                    mTruth[i * 4 + c] = rotation[c];
+                }
+                for (int axis = 0; axis < 3; axis++) {
+                    mGyro[i * 3 + axis] =
+                            (float) (rate[axis] + GYRO_BIAS + random.nextGaussian() * 0.005);
+                }
+                // Gravity in device coordinates.
+                bodyUp(rotation, 0, up);
+                for (int axis = 0; axis < 3; axis++) {
+                    mAccelerometer[i * 3 + axis] = (float) (up[axis] * OrientationFilter.GRAVITY
+                            + random.nextGaussian() * 0.05);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the world's up direction in device coordinates for the orientation.
+     */
+    private static void bodyUp(float[] rotation, int offset, float[] out) {
+        float[] conjugate = new float[4];
+        PoseMath.conjugateQuaternion(rotation, offset, conjugate, 0);
+        PoseMath.rotateVector(conjugate, 0, new float[]{0, 0, 1}, 0, out, 0);
+    }
+
+    /**
+     * Runs the replay and returns {rms angle error, max angle error, rms tilt error} in degrees,
+     * skipping the first two seconds.
+     */
+    private static double[] run(Replay replay, boolean accelerometer, boolean rotationVector) {
+        OrientationFilter filter = new OrientationFilter();
+        float[] estimate = new float[4];
+        float[] estimatedUp = new float[3];
+        float[] trueUp = new float[3];
+        float[] reading = new float[4];
+        // Start every run from the truth, so only the drift differs.
+        filter.setInitialRotation(replay.mTruth, 0);
+        double sumSquared = 0, max = 0, tiltSquared = 0;
+        int count = 0;
+        for (int i = 0; i < replay.mSamples; i++) {
+            long t = replay.mTimestamps[i];
+            filter.onGyroscope(t, replay.mGyro[i * 3], replay.mGyro[i * 3 + 1],
+                    replay.mGyro[i * 3 + 2]);
+            if (accelerometer) {
+                filter.onAccelerometer(t, replay.mAccelerometer[i * 3],
+                        replay.mAccelerometer[i * 3 + 1], replay.mAccelerometer[i * 3 + 2]);
+            }
+            if (rotationVector && i % 4 == 0) {
+                System.arraycopy(replay.mTruth, i * 4, reading, 0, 4);
+                filter.onRotationVector(t, reading, 4);
+            }
+            if (i < 2 * RATE) {
+                continue;
+            }
+            filter.getRotation(estimate);
+            double error = Math.toDegrees(
+                    PoseMath.angleBetween(estimate, 0, replay.mTruth, i * 4));
+            bodyUp(estimate, 0, estimatedUp);
+            bodyUp(replay.mTruth, i * 4, trueUp);
+            double dot = estimatedUp[0] * trueUp[0] + estimatedUp[1] * trueUp[1]
+                    + estimatedUp[2] * trueUp[2];
+            double tilt = Math.toDegrees(Math.acos(Math.min(1, dot)));
+            sumSquared += error * error;
+            tiltSquared += tilt * tilt;
+            max = Math.max(max, error);
+            count++;
+        }
+        return new double[]{Math.sqrt(sumSquared / count), max, Math.sqrt(tiltSquared / count)};
+    }
+
+    @Test
+    public void initialisesTiltFromAccelerometer() {
+        OrientationFilter filter = new OrientationFilter();
+        assertFalse(filter.isInitialized());
+        // Lying on its back, then stood up on its bottom edge.
+        filter.onAccelerometer(1, 0, 0, OrientationFilter.GRAVITY);
+        assertTrue(filter.isInitialized());
+        float[] rotation = new float[4];
+        filter.getRotation(rotation);
+        assertEquals(1, rotation[3], 1e-6);
+
+        filter.reset();
+        filter.onAccelerometer(1, 0, OrientationFilter.GRAVITY, 0);
+        filter.getRotation(rotation);
+        float[] up = new float[3];
+        bodyUp(rotation, 0, up);
+        assertEquals(1, up[1], 1e-5);
+    }
+
+    @Test
+    public void translationIsHeldOrDamped() {
+        OrientationFilter filter = new OrientationFilter();
+        float[] translation = new float[3];
+        float[] upright = {0, 0, 0, 1};
+        // Accelerating along x for a second. The rotation vector keeps the acceleration from
+        // being taken for tilt.
+        filter.onRotationVector(0, upright, 4);
+        for (int i = 0; i < RATE; i++) {
+            filter.onAccelerometer(i * PERIOD_NANOS, 2, 0, OrientationFilter.GRAVITY);
+        }
+        filter.getTranslation(translation);
+        assertArrayEquals(new float[3], translation, 0);
+
+        filter.reset();
+        filter.setTranslationDamping(0.5f);
+        filter.onRotationVector(0, upright, 4);
+        for (int i = 0; i < RATE; i++) {
+            filter.onAccelerometer(i * PERIOD_NANOS, 2, 0, OrientationFilter.GRAVITY);
+        }
+        filter.getTranslation(translation);
+        assertTrue(translation[0] > 0.01f);
+        // Then still, it settles back towards the origin.
+        for (int i = RATE; i < 6 * RATE; i++) {
+            filter.onAccelerometer(i * PERIOD_NANOS, 0, 0, OrientationFilter.GRAVITY);
+        }
+        filter.getTranslation(translation);
+        assertEquals(0, translation[0], 0.01f);
+    }
+
+    @Test
+    public void replayAccuracy() {
+        Replay replay = new Replay(60, 11);
+        double[] gyroOnly = run(replay, false, false);
+        double[] withAccelerometer = run(replay, true, false);
+        double[] withRotationVector = run(replay, true, true);
+        System.out.println(String.format("Orientation error over 60s (rms / max / rms tilt):"
+                        + " gyro only %.2f / %.2f / %.2f deg, + accelerometer %.2f / %.2f / %.2f"
+                        + " deg, + game rotation vector %.2f / %.2f / %.2f deg",
+                gyroOnly[0], gyroOnly[1], gyroOnly[2], withAccelerometer[0],
+                withAccelerometer[1], withAccelerometer[2], withRotationVector[0],
+                withRotationVector[1], withRotationVector[2]));
+
+        // The bias drifts the gyro alone by tens of degrees a minute.
+        assertTrue(gyroOnly[0] > 10);
+        // The accelerometer holds the tilt, lagging the bias by about bias / gain, but not the
+        // heading.
+        assertTrue(withAccelerometer[2] < 2);
+        assertTrue(withAccelerometer[2] < gyroOnly[2] / 4);
+        // With the rotation vector everything stays close.
+        assertTrue(withRotationVector[0] < 1);
+        assertTrue(withRotationVector[1] < 2);
+    }
+
+    @Test
+    public void benchmarkPerSampleCost() throws Exception {
+        Replay replay = new Replay(10, 12);
+        OrientationFilter filter = new OrientationFilter();
+        float[] rotation = new float[4];
+        float[] rotationVector = new float[4];
+        filter.onRotationVector(0, replay.mTruth, 4);
+        int rounds = 20;
+        long best = Long.MAX_VALUE;
+        long allocated = -1;
+        for (int round = 0; round < rounds; round++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < replay.mSamples; i++) {
+                long t = (long) round * replay.mSamples * PERIOD_NANOS + replay.mTimestamps[i];
+                filter.onGyroscope(t, replay.mGyro[i * 3], replay.mGyro[i * 3 + 1],
+                        replay.mGyro[i * 3 + 2]);
+                filter.onAccelerometer(t, replay.mAccelerometer[i * 3],
+                        replay.mAccelerometer[i * 3 + 1], replay.mAccelerometer[i * 3 + 2]);
+                if (i % 4 == 0) {
+                    System.arraycopy(replay.mTruth, i * 4, rotationVector, 0, 4);
+                    filter.onRotationVector(t, rotationVector, 4);
+                }
+                filter.getRotation(rotation);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            long allocatedAfter = allocatedBytes();
+            if (allocatedBefore >= 0 && round == rounds - 1) {
+                allocated = allocatedAfter - allocatedBefore;
+            }
+        }
+        double perSample = best / (double) replay.mSamples;
+        System.out.println(String.format("Orientation filter: %.0fns per 400Hz sample"
+                        + " (gyroscope, accelerometer and a quarter of a rotation vector),"
+                        + " %.3f%% of a core; %s bytes allocated over %d samples",
+                perSample, perSample * RATE / 1e7,
+                allocated < 0 ? "unknown" : String.valueOf(allocated), replay.mSamples));
+        if (allocated >= 0) {
+            // Under a byte a sample: nothing per sample, only the reflective measurement itself.
+            assertTrue(allocated < replay.mSamples);
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 where the JVM can't say.
+     */
+    private static long allocatedBytes() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
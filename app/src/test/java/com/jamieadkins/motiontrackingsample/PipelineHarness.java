@@ -0,0 +1,285 @@
+package com.jamieadkins.motiontrackingsample;
+
+/**
+ * Runs the frame pipeline headless on a simulated clock, with a synthetic pose provider, a fake
+ * camera and a stub renderer in place of the sensors, Camera2 and Rajawali.
+ * <p/>
+ * Time only moves when the render thread sleeps, renders or waits for the buffer swap; as it
+ * passes, vsyncs go to the frame pacer, poses are emitted by the provider and camera images
+ * become ready to latch, each at its own rate. The device moves along a smooth analytic path,
+ * so the pose drawn over each camera image can be compared with where the device really was when
+ * the image was taken.
+ */
+class PipelineHarness implements FramePacer.Clock {
+    static final long MS = 1000000L;
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * Rates and delays of a run.
+     */
+    static class Config {
+        int mDisplayFps = 60;
+        int mPoseHz = 200;
+        int mCameraFps = 30;
+        /** From a pose's sample time to its delivery. */
+        long mPoseDelayNanos = 2 * MS;
+        /** From an image's capture to it being ready to latch. */
+        long mCameraDelayNanos = 20 * MS;
+        /** CPU time of a frame from the latch point to the end of the scene. */
+        long mRenderNanos = 4 * MS;
+
+        Config(int displayFps, int poseHz) {
+            mDisplayFps = displayFps;
+            mPoseHz = poseHz;
+        }
+    }
+
+    /**
+     * Emits poses sampled from the device path, through the real provider base class.
+     */
+    static class SyntheticPoseProvider extends PoseProvider {
+        private boolean mProviding;
+
+        SyntheticPoseProvider(PoseProviderListener listener) {
+            super(null, listener);
+        }
+
+        @Override
+        public void onStartPoseProviding() {
+            mProviding = true;
+        }
+
+        @Override
+        public void onStopPoseProviding() {
+            mProviding = false;
+        }
+
+        @Override
+        public void setup() {
+            mPoseProviderListener.onSetupComplete();
+        }
+
+        void emit(long sampleNanos) {
+            if (mProviding) {
+                float[] translation = new float[3];
+                float[] rotation = new float[4];
+                devicePose(sampleNanos, translation, rotation);
+                onNewPoseData(new PoseData(translation, rotation, sampleNanos),
+                        TrackingStateMachine.PoseStatus.VALID);
+            }
+        }
+    }
+
+    /**
+     * Camera whose newest ready image is latched, like a SurfaceTexture.
+     */
+    class FakeCamera implements FramePipeline.CameraFrameSource {
+        long mLatchedTimestamp = -1;
+
+        @Override
+        public long latchCameraFrame() {
+            long period = SECOND / mConfig.mCameraFps;
+            long newest = (mNow - mConfig.mCameraDelayNanos) / period * period;
+            if (newest > 0) {
+                mLatchedTimestamp = newest;
+            }
+            return mLatchedTimestamp;
+        }
+    }
+
+    /**
+     * Records the pose applied to each frame.
+     */
+    static class StubRenderer implements FramePipeline.Renderer {
+        long mPosesApplied;
+        long mLastPoseTimestamp = -1;
+        boolean mOutOfOrder;
+        float mScale = 1;
+
+        @Override
+        public void updateRenderCameraPose(PoseData pose) {
+            long timestamp = (long) pose.getTimestamp();
+            mOutOfOrder |= timestamp < mLastPoseTimestamp;
+            mLastPoseTimestamp = timestamp;
+            mPosesApplied++;
+        }
+
+        @Override
+        public void setVirtualLayerScale(float scale) {
+            mScale = scale;
+        }
+    }
+
+    /**
+     * What a run measured.
+     */
+    static class Result {
+        long mFrames;
+        long mMissedDeadlines;
+        long mCameraFrames;
+        long mPoses;
+        double mSimulatedSeconds;
+        double mWallNanosPerFrame;
+        LatencyHistogram mPoseAge;
+        LatencyHistogram mPoseToDisplay;
+        LatencyHistogram mAlignment;
+        double mMeanPositionError;
+        double mMaxPositionError;
+        double mMeanRotationError;
+        double mMaxRotationError;
+
+        @Override
+        public String toString() {
+            return String.format("%d frames (%.1f fps, %d missed), %d poses, %d camera images,"
+                            + " %.1fus wall per frame; pose age at latch %.2f/%.2fms,"
+                            + " pose to display %.2f/%.2fms, camera to pose %.2f/%.2fms,"
+                            + " misalignment %.1f/%.1fmm %.2f/%.2fdeg (mean/max)",
+                    mFrames, mFrames / mSimulatedSeconds, mMissedDeadlines, mPoses,
+                    mCameraFrames, mWallNanosPerFrame / 1e3, mPoseAge.getMeanNanos() / 1e6,
+                    mPoseAge.getMaxNanos() / 1e6, mPoseToDisplay.getMeanNanos() / 1e6,
+                    mPoseToDisplay.getMaxNanos() / 1e6, mAlignment.getMeanNanos() / 1e6,
+                    mAlignment.getMaxNanos() / 1e6, mMeanPositionError * 1e3,
+                    mMaxPositionError * 1e3, Math.toDegrees(mMeanRotationError),
+                    Math.toDegrees(mMaxRotationError));
+        }
+    }
+
+    private final Config mConfig;
+    private final long mVsyncPeriod;
+    private final long mPosePeriod;
+    private long mNow = 5 * MS;
+    private long mNextVsync;
+    private long mNextPoseSample;
+
+    final FramePacer mFramePacer;
+    final SyntheticPoseProvider mPoseProvider;
+    final FakeCamera mCamera = new FakeCamera();
+    final StubRenderer mRenderer = new StubRenderer();
+    final FramePipeline mPipeline;
+
+    PipelineHarness(Config config) {
+        mConfig = config;
+        mVsyncPeriod = SECOND / config.mDisplayFps;
+        mPosePeriod = SECOND / config.mPoseHz;
+        mNextVsync = mVsyncPeriod;
+        mNextPoseSample = mPosePeriod;
+        mFramePacer = new FramePacer(this, FramePacer.DEFAULT_SAFETY_MARGIN_NANOS);
+        ResolutionScaleController scale = new ResolutionScaleController(mVsyncPeriod);
+        mPipeline = new FramePipeline(this, mFramePacer, scale, mRenderer, mCamera);
+        mPoseProvider = new SyntheticPoseProvider(new PoseProvider.PoseProviderListener() {
+            @Override
+            public void onSetupComplete() {
+                mPoseProvider.onStartPoseProviding();
+            }
+
+            @Override
+            public void onNewPoseData(PoseData newPoseData) {
+                mPipeline.onNewPoseData(newPoseData);
+            }
+        });
+    }
+
+    /**
+     * Where the device is at a time: walking pace along a curve while looking around.
+     */
+    static void devicePose(long nanos, float[] translation, float[] rotation) {
+        double t = nanos / 1e9;
+        translation[0] = (float) (0.5 * Math.sin(t));
+        translation[1] = (float) (1.5 + 0.05 * Math.sin(11 * t));
+        translation[2] = (float) (-0.8 * t);
+        double yaw = 0.8 * Math.sin(1.3 * t);
+        double pitch = 0.2 * Math.sin(0.9 * t);
+        double cy = Math.cos(yaw / 2), sy = Math.sin(yaw / 2);
+        double cp = Math.cos(pitch / 2), sp = Math.sin(pitch / 2);
+        // Yaw about y, then pitch about x.
+        rotation[0] = (float) (cy * sp);
+        rotation[1] = (float) (sy * cp);
+        rotation[2] = (float) (-sy * sp);
+        rotation[3] = (float) (cy * cp);
+    }
+
+    @Override
+    public long nanoTime() {
+        return mNow;
+    }
+
+    @Override
+    public void sleepUntil(long nanos) {
+        advanceTo(nanos);
+    }
+
+    private void advanceTo(long nanos) {
+        while (true) {
+            long poseDelivery = mNextPoseSample + mConfig.mPoseDelayNanos;
+            long next = Math.min(mNextVsync, poseDelivery);
+            if (next > nanos) {
+                break;
+            }
+            mNow = Math.max(mNow, next);
+            if (next == mNextVsync) {
+                mFramePacer.onVsync(mNextVsync);
+                mNextVsync += mVsyncPeriod;
+            } else {
+                mPoseProvider.emit(mNextPoseSample);
+                mNextPoseSample += mPosePeriod;
+            }
+        }
+        mNow = Math.max(mNow, nanos);
+    }
+
+    /**
+     * Starts the provider and renders frames for the given simulated time.
+     */
+    Result run(double seconds) throws InterruptedException {
+        mPoseProvider.setup();
+        long end = mNow + (long) (seconds * SECOND);
+        float[] truthTranslation = new float[3];
+        float[] truthRotation = new float[4];
+        double positionErrorSum = 0;
+        double rotationErrorSum = 0;
+        Result result = new Result();
+        long measured = 0;
+        long start = mNow;
+        long wallStart = System.nanoTime();
+        while (mNow < end) {
+            mPipeline.awaitLatchPoint();
+            long cameraTimestamp = mPipeline.latchCameraFrame();
+            PoseData pose = mPipeline.applyLatestPose();
+            if (pose != null && cameraTimestamp > 0) {
+                // How far the drawn pose is from where the camera was for this image.
+                devicePose(cameraTimestamp, truthTranslation, truthRotation);
+                double distance = 0;
+                for (int axis = 0; axis < 3; axis++) {
+                    double d = pose.mTranslation[axis] - truthTranslation[axis];
+                    distance += d * d;
+                }
+                distance = Math.sqrt(distance);
+                double angle = PoseMath.angleBetween(pose.mRotation, 0, truthRotation, 0);
+                positionErrorSum += distance;
+                rotationErrorSum += angle;
+                result.mMaxPositionError = Math.max(result.mMaxPositionError, distance);
+                result.mMaxRotationError = Math.max(result.mMaxRotationError, angle);
+                measured++;
+            }
+            advanceTo(mNow + mConfig.mRenderNanos);
+            mPipeline.onFrameRendered();
+            // The buffer swap blocks until the next vsync.
+            advanceTo(mNextVsync);
+        }
+        long wallNanos = System.nanoTime() - wallStart;
+        mPoseProvider.onStopPoseProviding();
+
+        result.mFrames = mFramePacer.getFrameCount();
+        result.mMissedDeadlines = mFramePacer.getMissedDeadlineCount();
+        result.mCameraFrames = mPipeline.getCameraFrameCount();
+        result.mPoses = mPipeline.getPoseCount();
+        result.mSimulatedSeconds = (mNow - start) / (double) SECOND;
+        result.mWallNanosPerFrame = wallNanos / (double) result.mFrames;
+        result.mPoseAge = mPipeline.getPoseAgeHistogram();
+        result.mPoseToDisplay = mFramePacer.getPoseToDeadlineHistogram();
+        result.mAlignment = mPipeline.getAlignmentHistogram();
+        result.mMeanPositionError = measured == 0 ? 0 : positionErrorSum / measured;
+        result.mMeanRotationError = measured == 0 ? 0 : rotationErrorSum / measured;
+        return result;
+    }
+}
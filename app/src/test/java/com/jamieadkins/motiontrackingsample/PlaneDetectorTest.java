@@ -0,0 +1,155 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plane detection on a synthetic room, plus a per-cloud timing run against the frame budget.
+ * Everything but the timing run measures the budget on a clock that only moves when told to, so
+ * the search doesn't depend on how fast the machine is.
+ */
+public class PlaneDetectorTest {
+    private static final int POINTS_PER_CLOUD = 12000;
+
+    /**
+     * Moves by {@link #mStep} every time it is read.
+     */
+    private static class SteppedClock implements FramePacer.Clock {
+        long mNow;
+        long mStep;
+
+        @Override
+        public long nanoTime() {
+            long now = mNow;
+            mNow += mStep;
+            return now;
+        }
+
+        @Override
+        public void sleepUntil(long nanos) {
+            mNow = Math.max(mNow, nanos);
+        }
+    }
+
+    private SteppedClock mClock;
+
+    @Before
+    public void setUp() {
+        mClock = new SteppedClock();
+    }
+
+    private PlaneDetector createDetector() {
+        return new PlaneDetector(WorkerPool.get(), PlaneDetector.DEFAULT_BUDGET_NANOS, mClock);
+    }
+
+    @Test
+    public void findsFloorTableAndWalls() throws Exception {
+        PlaneDetector detector = createDetector();
+        SyntheticScene scene = new SyntheticScene(1);
+        for (int i = 0; i < 5; i++) {
+            detector.onNewPointCloud(scene.nextCloud(POINTS_PER_CLOUD, i));
+        }
+
+        List<Plane> planes = detector.getPlanes();
+        assertNotNull(find(planes, 0, 1, 0, SyntheticScene.FLOOR_Y));
+        assertNotNull(find(planes, 0, 1, 0, SyntheticScene.TABLE_Y));
+        assertNotNull(find(planes, 0, 0, 1, SyntheticScene.BACK_WALL_Z));
+        assertNotNull(find(planes, 1, 0, 0, SyntheticScene.SIDE_WALL_X));
+    }
+
+    @Test
+    public void refinesInsteadOfDuplicating() throws Exception {
+        PlaneDetector detector = createDetector();
+        SyntheticScene scene = new SyntheticScene(2);
+        detector.onNewPointCloud(scene.nextCloud(POINTS_PER_CLOUD, 0));
+        int planesAfterFirstCloud = detector.getPlanes().size();
+        Plane floor = find(detector.getPlanes(), 0, 1, 0, SyntheticScene.FLOOR_Y);
+        assertNotNull(floor);
+
+        for (int i = 1; i < 20; i++) {
+            detector.onNewPointCloud(scene.nextCloud(POINTS_PER_CLOUD, i));
+        }
+
+        List<Plane> planes = detector.getPlanes();
+        assertTrue(planes.size() <= planesAfterFirstCloud + 2);
+        Plane refined = find(planes, 0, 1, 0, SyntheticScene.FLOOR_Y);
+        assertNotNull(refined);
+        assertEquals(floor.getId(), refined.getId());
+        assertTrue(refined.getPointCount() > floor.getPointCount() * 10);
+        assertEquals(SyntheticScene.FLOOR_Y, refined.getCentroid()[1], 0.005);
+    }
+
+    @Test
+    public void normalsFaceTheSensor() throws Exception {
+        PlaneDetector detector = createDetector();
+        detector.onNewPointCloud(new SyntheticScene(3).nextCloud(POINTS_PER_CLOUD, 0));
+        float[] sensor = SyntheticScene.SENSOR_POSITION;
+        for (Plane plane : detector.getPlanes()) {
+            assertTrue(plane.distanceTo(sensor[0], sensor[1], sensor[2]) > 0);
+        }
+    }
+
+    @Test
+    public void stopsOnceTheBudgetIsSpent() throws Exception {
+        PlaneDetector detector = createDetector();
+        SyntheticScene scene = new SyntheticScene(5);
+        detector.onNewPointCloud(scene.nextCloud(POINTS_PER_CLOUD, 0));
+        List<Plane> before = detector.getPlanes();
+
+        // Every read of the clock now uses up the whole budget.
+        mClock.mStep = PlaneDetector.DEFAULT_BUDGET_NANOS;
+        detector.onNewPointCloud(scene.nextCloud(POINTS_PER_CLOUD, 1));
+
+        List<Plane> after = detector.getPlanes();
+        assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.get(i).getId(), after.get(i).getId());
+            assertEquals(before.get(i).getPointCount(), after.get(i).getPointCount());
+        }
+    }
+
+    @Test
+    public void benchmarkSyntheticScene() throws Exception {
+        PlaneDetector detector = new PlaneDetector();
+        SyntheticScene scene = new SyntheticScene(4);
+        // Warm up the JIT before timing.
+        for (int i = 0; i < 20; i++) {
+            detector.onNewPointCloud(scene.nextCloud(POINTS_PER_CLOUD, i));
+        }
+        detector.clear();
+
+        int clouds = 50;
+        long total = 0;
+        long worst = 0;
+        for (int i = 0; i < clouds; i++) {
+            PointCloud cloud = scene.nextCloud(POINTS_PER_CLOUD, i);
+            detector.onNewPointCloud(cloud);
+            total += detector.getLastUpdateNanos();
+            worst = Math.max(worst, detector.getLastUpdateNanos());
+        }
+        System.out.println(String.format("PlaneDetector: %d points/cloud on %d cores, "
+                        + "mean %.2f ms, worst %.2f ms, budget %.2f ms, %d planes",
+                POINTS_PER_CLOUD, WorkerPool.getParallelism(), total / 1e6 / clouds, worst / 1e6,
+                detector.getBudgetNanos() / 1e6, detector.getPlanes().size()));
+    }
+
+    private static Plane find(List<Plane> planes, float nx, float ny, float nz, float position) {
+        for (Plane plane : planes) {
+            float[] normal = plane.getNormal();
+            float dot = normal[0] * nx + normal[1] * ny + normal[2] * nz;
+            if (Math.abs(dot) < 0.99f) {
+                continue;
+            }
+            // Position along the axis is -d when the normal points along it.
+            float along = -plane.getOffset() * Math.signum(dot);
+            if (Math.abs(along - position) < 0.02f) {
+                return plane;
+            }
+        }
+        return null;
+    }
+}
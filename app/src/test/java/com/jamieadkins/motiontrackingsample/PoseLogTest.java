@@ -0,0 +1,133 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips, error bounds and seeking for the pose log codec, plus throughput and compression
+ * figures for an idealised and a replayed trajectory.
+ */
+public class PoseLogTest {
+    /** Bytes per sample of a raw {@code PoseData}: a long timestamp and seven floats. */
+    private static final int RAW_BYTES_PER_SAMPLE = 8 + 7 * 4;
+
+    private static final float TRANSLATION_ERROR = 0.001f;
+    private static final float ROTATION_ERROR = (float) Math.toRadians(0.1);
+
+    @Test
+    public void roundTripStaysWithinErrorBounds() throws Exception {
+        SyntheticTrajectory trajectory = SyntheticTrajectory.handheld(5000, 1);
+        PoseLogReader reader = new PoseLogReader(encode(trajectory, 256));
+        assertEquals(trajectory.size(), reader.getSampleCount());
+
+        float[] expectedRotation = new float[4];
+        for (int i = 0; i < trajectory.size(); i++) {
+            assertTrue(reader.next());
+            assertEquals(trajectory.mTimestamps[i], reader.getTimestamp());
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(trajectory.mTranslations[i * 3 + axis],
+                        reader.getTranslation()[axis], TRANSLATION_ERROR * 1.01);
+            }
+            System.arraycopy(trajectory.mRotations, i * 4, expectedRotation, 0, 4);
+            assertTrue(PoseMath.angleBetween(expectedRotation, 0, reader.getRotation(), 0)
+                    <= ROTATION_ERROR);
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void seekFindsTimestampAcrossBlocks() throws Exception {
+        SyntheticTrajectory trajectory = SyntheticTrajectory.handheld(3000, 2);
+        PoseLogReader reader = new PoseLogReader(encode(trajectory, 100));
+        assertEquals(30, reader.getBlockCount());
+
+        for (int i : new int[]{0, 1, 99, 100, 101, 1234, 2999}) {
+            assertTrue(reader.seek(trajectory.mTimestamps[i]));
+            assertTrue(reader.next());
+            assertEquals(trajectory.mTimestamps[i], reader.getTimestamp());
+        }
+        // Between two samples we land on the later one.
+        assertTrue(reader.seek(trajectory.mTimestamps[500] + 1));
+        assertTrue(reader.next());
+        assertEquals(trajectory.mTimestamps[501], reader.getTimestamp());
+        // Before the start and past the end.
+        assertTrue(reader.seek(0));
+        assertTrue(reader.next());
+        assertEquals(trajectory.mTimestamps[0], reader.getTimestamp());
+        assertFalse(reader.seek(trajectory.mTimestamps[2999] + 1));
+    }
+
+    @Test
+    public void partialFinalBlock() throws Exception {
+        SyntheticTrajectory trajectory = SyntheticTrajectory.walking(1001);
+        PoseLogReader reader = new PoseLogReader(encode(trajectory, 1000));
+        assertEquals(2, reader.getBlockCount());
+        int count = 0;
+        while (reader.next()) {
+            count++;
+        }
+        assertEquals(1001, count);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsGarbage() throws Exception {
+        new PoseLogReader(ByteBuffer.wrap(new byte[64]));
+    }
+
+    @Test
+    public void benchmarkWalking() throws Exception {
+        benchmark("walking", SyntheticTrajectory.walking(720000));
+    }
+
+    @Test
+    public void benchmarkReplayedHandheld() throws Exception {
+        benchmark("handheld replay", SyntheticTrajectory.handheld(720000, 3));
+    }
+
+    private static void benchmark(String name, SyntheticTrajectory trajectory) throws Exception {
+        // Warm up.
+        encode(trajectory, PoseLogWriter.DEFAULT_BLOCK_SIZE);
+
+        long start = System.nanoTime();
+        ByteBuffer encoded = encode(trajectory, PoseLogWriter.DEFAULT_BLOCK_SIZE);
+        long encodeNanos = System.nanoTime() - start;
+
+        PoseLogReader reader = new PoseLogReader(encoded);
+        start = System.nanoTime();
+        long checksum = 0;
+        while (reader.next()) {
+            checksum += reader.getTimestamp();
+        }
+        long decodeNanos = System.nanoTime() - start;
+        assertTrue(checksum != 0);
+
+        int samples = trajectory.size();
+        System.out.println(String.format("PoseLog %s: %d samples, %.2f bytes/sample, ratio %.1fx, "
+                        + "encode %.2f M samples/s, decode %.2f M samples/s", name, samples,
+                encoded.limit() / (double) samples,
+                samples * (double) RAW_BYTES_PER_SAMPLE / encoded.limit(),
+                samples / (encodeNanos / 1e9) / 1e6, samples / (decodeNanos / 1e9) / 1e6));
+    }
+
+    private static ByteBuffer encode(SyntheticTrajectory trajectory, int blockSize)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PoseLogWriter writer = new PoseLogWriter(out, blockSize, TRANSLATION_ERROR,
+                ROTATION_ERROR);
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        for (int i = 0; i < trajectory.size(); i++) {
+            System.arraycopy(trajectory.mTranslations, i * 3, translation, 0, 3);
+            System.arraycopy(trajectory.mRotations, i * 4, rotation, 0, 4);
+            writer.write(trajectory.mTimestamps[i], translation, rotation);
+        }
+        writer.close();
+        assertEquals(out.size(), writer.getBytesWritten());
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+}
@@ -0,0 +1,165 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams poses to a stand-in receiver over loopback and reports latency and packet rate.
+ */
+public class PoseStreamServerTest {
+    private DatagramChannel mReceiverChannel;
+    private Receiver mReceiver;
+    private PoseStreamServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mReceiverChannel = DatagramChannel.open();
+        mReceiverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        mReceiver = new Receiver(mReceiverChannel, 200000);
+        mReceiver.start();
+        mServer = new PoseStreamServer(
+                (InetSocketAddress) mReceiverChannel.getLocalAddress());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+        mReceiverChannel.close();
+        mReceiver.join();
+    }
+
+    @Test
+    public void packetsDecodeToThePublishedPose() throws Exception {
+        SyntheticTrajectory trajectory = SyntheticTrajectory.handheld(50, 3);
+        for (int i = 0; i < trajectory.size(); i++) {
+            mServer.publish(trajectory.poseAt(i));
+            // Give the sender time so nothing gets replaced.
+            waitForReceived(i + 1, 1000);
+        }
+        assertEquals(trajectory.size(), mReceiver.mCount);
+        for (int i = 0; i < trajectory.size(); i++) {
+            PoseData pose = mReceiver.mPoses[i];
+            assertEquals(trajectory.mTimestamps[i], (long) pose.getTimestamp());
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(trajectory.mTranslations[i * 3 + axis], pose.mTranslation[axis], 0);
+            }
+            for (int axis = 0; axis < 4; axis++) {
+                assertEquals(trajectory.mRotations[i * 4 + axis], pose.mRotation[axis], 0);
+            }
+            assertEquals(i, mReceiver.mSequences[i]);
+        }
+    }
+
+    @Test
+    public void benchmarkLatencyAt1kHz() throws Exception {
+        SyntheticTrajectory trajectory = SyntheticTrajectory.walking(2000);
+        for (int i = 0; i < trajectory.size(); i++) {
+            mServer.publish(trajectory.poseAt(i));
+            long until = System.nanoTime() + 1000000;
+            while (System.nanoTime() < until) {
+                Thread.yield();
+            }
+        }
+        waitForReceived(trajectory.size(), 2000);
+
+        int received = mReceiver.mCount;
+        long[] latencies = Arrays.copyOf(mReceiver.mLatencies, received);
+        Arrays.sort(latencies);
+        System.out.println(String.format(
+                "Pose stream at 1kHz: %d/%d received, latency p50 %.1fus p99 %.1fus max %.1fus",
+                received, trajectory.size(), latencies[received / 2] / 1000.0,
+                latencies[(int) (received * 0.99)] / 1000.0, latencies[received - 1] / 1000.0));
+        assertTrue(received > trajectory.size() * 0.95);
+    }
+
+    @Test
+    public void benchmarkFloodNeverBlocksPublisher() throws Exception {
+        SyntheticTrajectory trajectory = SyntheticTrajectory.handheld(1000, 4);
+        int count = 200000;
+        long worstPublish = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long before = System.nanoTime();
+            mServer.publish(trajectory.poseAt(i % trajectory.size()));
+            worstPublish = Math.max(worstPublish, System.nanoTime() - before);
+        }
+        long publishNanos = System.nanoTime() - start;
+        waitForReceived((int) mServer.getSentCount(), 1000);
+        long elapsed = System.nanoTime() - start;
+        // Settles the counters: the sender may still be holding the last pose.
+        mServer.stop();
+
+        System.out.println(String.format(
+                "Pose stream flood: published %d in %.1fms (worst %.1fus), sent %d, replaced %d, "
+                        + "dropped %d, received %d, %.0f packets/s",
+                count, publishNanos / 1e6, worstPublish / 1000.0, mServer.getSentCount(),
+                mServer.getReplacedCount(), mServer.getDroppedCount(), mReceiver.mCount,
+                mReceiver.mCount / (elapsed / 1e9)));
+        assertEquals(count, mServer.getPublishedCount());
+        assertEquals(count, mServer.getSentCount() + mServer.getReplacedCount()
+                + mServer.getDroppedCount() + mServer.getErrorCount());
+        assertTrue(mReceiver.mCount > 0);
+    }
+
+    private void waitForReceived(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mReceiver.mCount < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stand-in consumer that records every pose and its latency since publishing.
+     */
+    private static class Receiver extends Thread {
+        private final DatagramChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(PoseStreamServer.PACKET_BYTES);
+        private final PoseData[] mPoses;
+        private final int[] mSequences;
+        private final long[] mLatencies;
+        private volatile int mCount;
+
+        Receiver(DatagramChannel channel, int capacity) {
+            mChannel = channel;
+            mPoses = new PoseData[capacity];
+            mSequences = new int[capacity];
+            mLatencies = new long[capacity];
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    mBuffer.clear();
+                    mChannel.receive(mBuffer);
+                    long now = System.nanoTime();
+                    mBuffer.flip();
+                    int index = mCount;
+                    if (index == mPoses.length) {
+                        continue;
+                    }
+                    mPoses[index] = PoseStreamServer.decodePacket(mBuffer);
+                    mSequences[index] = mBuffer.getInt(PoseStreamServer.OFFSET_SEQUENCE);
+                    mLatencies[index] =
+                            now - mBuffer.getLong(PoseStreamServer.OFFSET_PUBLISH_NANOS);
+                    mCount = index + 1;
+                }
+            } catch (ClosedChannelException e) {
+                // Test finished.
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
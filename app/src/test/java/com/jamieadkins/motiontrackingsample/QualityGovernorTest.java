@@ -0,0 +1,224 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the quality governor with frame times and simulated thermal traces from a simple model
+ * of a phone heating up under load.
+ */
+public class QualityGovernorTest {
+    private static final long SECOND = 1000000000L;
+    private static final long VSYNC = 16666667L;
+
+    private static class Recorder implements QualityGovernor.Listener {
+        final List<QualityGovernor.Level> mLevels = new ArrayList<>();
+
+        @Override
+        public void onQualityLevelChanged(QualityGovernor.Level previous,
+                                          QualityGovernor.Level current) {
+            mLevels.add(current);
+        }
+    }
+
+    @Test
+    public void thermalStatusDropsStraightToItsFloor() {
+        Recorder recorder = new Recorder();
+        QualityGovernor governor = new QualityGovernor(recorder);
+        governor.onThermalStatus(QualityGovernor.THERMAL_STATUS_LIGHT, 0);
+        assertEquals(0, governor.getLevel().mIndex);
+        governor.onThermalStatus(QualityGovernor.THERMAL_STATUS_SEVERE, SECOND);
+        assertEquals(3, governor.getLevel().mIndex);
+        assertEquals(1, recorder.mLevels.size());
+        governor.onThermalStatus(QualityGovernor.THERMAL_STATUS_CRITICAL, 2 * SECOND);
+        assertEquals(4, governor.getLevel().mIndex);
+        // Cooling doesn't raise quality by itself, that waits for headroom.
+        governor.onThermalStatus(QualityGovernor.THERMAL_STATUS_NONE, 3 * SECOND);
+        assertEquals(4, governor.getLevel().mIndex);
+    }
+
+    @Test
+    public void batteryTemperatureMapsToThermalStatus() {
+        assertEquals(QualityGovernor.THERMAL_STATUS_NONE,
+                QualityGovernor.thermalStatusFromBatteryTemperature(25));
+        assertEquals(QualityGovernor.THERMAL_STATUS_LIGHT,
+                QualityGovernor.thermalStatusFromBatteryTemperature(39));
+        assertEquals(QualityGovernor.THERMAL_STATUS_MODERATE,
+                QualityGovernor.thermalStatusFromBatteryTemperature(42.5f));
+        assertEquals(QualityGovernor.THERMAL_STATUS_SEVERE,
+                QualityGovernor.thermalStatusFromBatteryTemperature(45));
+        assertEquals(QualityGovernor.THERMAL_STATUS_CRITICAL,
+                QualityGovernor.thermalStatusFromBatteryTemperature(50));
+        assertEquals(QualityGovernor.THERMAL_STATUS_EMERGENCY,
+                QualityGovernor.thermalStatusFromBatteryTemperature(60));
+    }
+
+    @Test
+    public void overloadStepsDownOneLevelAtATime() {
+        QualityGovernor governor = new QualityGovernor(null);
+        long now = 0;
+        // Frames taking the whole budget for three seconds.
+        for (; now < 3 * SECOND; now += VSYNC) {
+            governor.onFrameTime(VSYNC, VSYNC, now);
+        }
+        assertEquals(1, governor.getLevel().mIndex);
+        // Still overloaded: settle, then another two seconds before the next step.
+        for (; now < 6 * SECOND; now += VSYNC) {
+            governor.onFrameTime(VSYNC, VSYNC, now);
+        }
+        assertEquals(1, governor.getLevel().mIndex);
+        for (; now < 8 * SECOND; now += VSYNC) {
+            governor.onFrameTime(VSYNC, VSYNC, now);
+        }
+        assertEquals(2, governor.getLevel().mIndex);
+        assertEquals(2, governor.getStepDownCount());
+    }
+
+    @Test
+    public void headroomStepsBackUpSlowly() {
+        QualityGovernor governor = new QualityGovernor(null);
+        governor.onThermalStatus(QualityGovernor.THERMAL_STATUS_MODERATE, 0);
+        assertEquals(2, governor.getLevel().mIndex);
+        governor.onThermalStatus(QualityGovernor.THERMAL_STATUS_NONE, SECOND);
+        long now = SECOND;
+        for (; now < 30 * SECOND; now += VSYNC) {
+            governor.onFrameTime(VSYNC / 4, VSYNC, now);
+        }
+        assertEquals(2, governor.getLevel().mIndex);
+        for (; now < 35 * SECOND; now += VSYNC) {
+            governor.onFrameTime(VSYNC / 4, VSYNC, now);
+        }
+        assertEquals(1, governor.getLevel().mIndex);
+        // A warm spell holds it there.
+        governor.onThermalStatus(QualityGovernor.THERMAL_STATUS_LIGHT, now);
+        for (; now < 100 * SECOND; now += VSYNC) {
+            governor.onFrameTime(VSYNC / 4, VSYNC, now);
+        }
+        assertEquals(0, governor.getLevel().mIndex);
+        assertEquals(2, governor.getStepUpCount());
+    }
+
+    /**
+     * A phone whose temperature follows the power drawn at the current level towards a ceiling
+     * set by the surroundings, and whose CPU slows down once it gets hot.
+     */
+    private static class ThermalModel {
+        // Relative power at each level of the default ladder.
+        static final double[] POWER = {1.0, 0.9, 0.7, 0.45, 0.3};
+        static final double TIME_CONSTANT_SECONDS = 120;
+        static final double HEATING_DEGREES = 22;
+        static final double BASE_FRAME_MS = 12;
+
+        double mAmbient = 30;
+        double mTemperature = 30;
+
+        void step(int level, double seconds) {
+            double target = mAmbient + HEATING_DEGREES * POWER[level];
+            mTemperature += (target - mTemperature) * (1 - Math.exp(-seconds
+                    / TIME_CONSTANT_SECONDS));
+        }
+
+        int status() {
+            if (mTemperature < 38) {
+                return QualityGovernor.THERMAL_STATUS_NONE;
+            } else if (mTemperature < 41) {
+                return QualityGovernor.THERMAL_STATUS_LIGHT;
+            } else if (mTemperature < 44) {
+                return QualityGovernor.THERMAL_STATUS_MODERATE;
+            } else if (mTemperature < 47) {
+                return QualityGovernor.THERMAL_STATUS_SEVERE;
+            }
+            return QualityGovernor.THERMAL_STATUS_CRITICAL;
+        }
+
+        long frameNanos(int level) {
+            // Throttling stretches every frame.
+            double throttle = status() >= QualityGovernor.THERMAL_STATUS_SEVERE ? 1.6 : 1;
+            return (long) (BASE_FRAME_MS * 1e6 * (0.4 + 0.6 * POWER[level]) * throttle);
+        }
+    }
+
+    /**
+     * Results of a simulated session.
+     */
+    private static class Session {
+        long mFrames;
+        long mLateFrames;
+        int mHottestStatus;
+        double mHottest;
+        QualityGovernor mGovernor;
+    }
+
+    /**
+     * Runs a session, cooling the surroundings by {@code coolDegrees} half way through, with or
+     * without the governor.
+     */
+    private static Session simulate(int minutes, double coolDegrees, boolean governed) {
+        ThermalModel model = new ThermalModel();
+        QualityGovernor governor = new QualityGovernor(null);
+        Session session = new Session();
+        long end = minutes * 60 * SECOND;
+        long nextThermalPoll = 0;
+        long now = 0;
+        boolean cooled = false;
+        while (now < end) {
+            int level = governed ? governor.getLevel().mIndex : 0;
+            int interval = governed ? governor.getLevel().mFrameInterval : 1;
+            long budget = VSYNC * interval;
+            long frame = model.frameNanos(level);
+            // A late frame takes whole extra vsyncs.
+            long taken = (frame + budget - 1) / budget * budget;
+            session.mFrames++;
+            if (frame > budget) {
+                session.mLateFrames++;
+            }
+            model.step(level, taken / 1e9);
+            now += taken;
+            if (!cooled && now >= end / 2) {
+                model.mAmbient -= coolDegrees;
+                cooled = true;
+            }
+            if (now >= nextThermalPoll) {
+                governor.onThermalStatus(model.status(), now);
+                nextThermalPoll += 5 * SECOND;
+            }
+            governor.onFrameTime(frame, budget, now);
+            session.mHottestStatus = Math.max(session.mHottestStatus, model.status());
+            session.mHottest = Math.max(session.mHottest, model.mTemperature);
+        }
+        session.mGovernor = governor;
+        return session;
+    }
+
+    @Test
+    public void governedSessionStaysCoolerAndSmoother() {
+        Session ungoverned = simulate(40, 10, false);
+        Session governed = simulate(40, 10, true);
+        QualityGovernor governor = governed.mGovernor;
+        long[] atLevel = governor.getNanosAtLevel();
+        StringBuilder levels = new StringBuilder();
+        for (long nanos : atLevel) {
+            levels.append(String.format(" %.1f", nanos / 60e9));
+        }
+        System.out.println(String.format("40 minute session, surroundings cooling 10C half way:"
+                        + " ungoverned %.1fC peak, %d of %d frames late; governed %.1fC peak,"
+                        + " %d of %d frames late, %d steps down, %d up, minutes at each level%s",
+                ungoverned.mHottest, ungoverned.mLateFrames, ungoverned.mFrames,
+                governed.mHottest, governed.mLateFrames, governed.mFrames,
+                governor.getStepDownCount(), governor.getStepUpCount(), levels));
+
+        assertTrue(ungoverned.mHottestStatus >= QualityGovernor.THERMAL_STATUS_CRITICAL);
+        // It may touch severe before the lower levels take effect, but never goes critical.
+        assertTrue(governed.mHottestStatus < QualityGovernor.THERMAL_STATUS_CRITICAL);
+        assertTrue(governed.mLateFrames * 10 < ungoverned.mLateFrames);
+        // Once it has cooled it climbs back to the best level the surroundings can sustain; at
+        // full quality it would still heat up to moderate. No hunting up and down on the way.
+        assertEquals(1, governor.getLevel().mIndex);
+        assertTrue(governor.getStepUpCount() >= 1);
+        assertTrue(governor.getStepDownCount() + governor.getStepUpCount() <= 12);
+    }
+}
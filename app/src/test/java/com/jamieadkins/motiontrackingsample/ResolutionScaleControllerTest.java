@@ -0,0 +1,93 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the resolution controller against synthetic frame time traces. Frames cost a fixed part
+ * plus a part proportional to the rendered pixel count.
+ */
+public class ResolutionScaleControllerTest {
+    private static final long BUDGET = 16666667L;
+    private static final long MS = 1000000L;
+
+    private final Random mRandom = new Random(7);
+
+    private long frameTime(ResolutionScaleController controller, long fixed, long pixelCost,
+                           long jitter) {
+        float scale = controller.getScale();
+        long noise = jitter == 0 ? 0 : (long) (mRandom.nextGaussian() * jitter);
+        return Math.max(0, fixed + (long) (pixelCost * scale * scale) + noise);
+    }
+
+    private int run(ResolutionScaleController controller, int frames, long fixed, long pixelCost,
+                    long jitter) {
+        int changes = 0;
+        for (int i = 0; i < frames; i++) {
+            if (controller.onFrameTime(frameTime(controller, fixed, pixelCost, jitter))) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    @Test
+    public void lightSceneStaysAtFullResolution() {
+        ResolutionScaleController controller = new ResolutionScaleController(BUDGET);
+        assertEquals(0, run(controller, 1000, 3 * MS, 6 * MS, MS));
+        assertEquals(1.0f, controller.getScale(), 0);
+        assertEquals(0, controller.getFramesBelowMaxScale());
+    }
+
+    @Test
+    public void heavySceneSettlesWithinBudget() {
+        ResolutionScaleController controller = new ResolutionScaleController(BUDGET);
+        // 24ms at full resolution.
+        run(controller, 600, 4 * MS, 20 * MS, MS);
+        float settled = controller.getScale();
+        assertTrue(settled < 0.9f);
+        assertTrue(controller.getAverageFrameNanos() < BUDGET * 0.9);
+
+        // Once settled it stays put.
+        assertEquals(0, run(controller, 1000, 4 * MS, 20 * MS, MS));
+        assertEquals(settled, controller.getScale(), 0);
+        System.out.println(String.format("Heavy scene settled at %.2f, %.2fms average",
+                settled, controller.getAverageFrameNanos() / 1e6));
+    }
+
+    @Test
+    public void recoversWhenLoadDrops() {
+        ResolutionScaleController controller = new ResolutionScaleController(BUDGET);
+        run(controller, 300, 4 * MS, 20 * MS, 0);
+        assertTrue(controller.getScale() < 1.0f);
+        run(controller, 2000, 2 * MS, 6 * MS, 0);
+        assertEquals(1.0f, controller.getScale(), 0);
+        assertTrue(controller.getIncreaseCount() > 0);
+    }
+
+    @Test
+    public void neverLeavesBounds() {
+        ResolutionScaleController controller = new ResolutionScaleController(BUDGET, 0.6f, 0.9f);
+        assertEquals(0.9f, controller.getScale(), 0);
+        run(controller, 1000, 10 * MS, 100 * MS, 0);
+        assertEquals(0.6f, controller.getScale(), 1e-6);
+        assertEquals(0.6f, controller.getLowestScale(), 1e-6);
+        run(controller, 5000, 0, MS, 0);
+        assertEquals(0.9f, controller.getScale(), 1e-6);
+    }
+
+    @Test
+    public void hysteresisAvoidsOscillationNearBudget() {
+        ResolutionScaleController controller = new ResolutionScaleController(BUDGET);
+        // Just over the decrease threshold at full resolution, with a lot of noise.
+        int changes = run(controller, 10000, 3 * MS, 12 * MS, 3 * MS);
+        System.out.println(String.format(
+                "Noisy trace: %d changes (%d down, %d up) over 10000 frames, final %.2f",
+                changes, controller.getDecreaseCount(), controller.getIncreaseCount(),
+                controller.getScale()));
+        assertTrue(changes <= 4);
+    }
+}
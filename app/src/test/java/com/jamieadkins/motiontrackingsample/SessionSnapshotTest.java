@@ -0,0 +1,183 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips a session through a snapshot file, checks damaged files are turned down and
+ * measures saving and restoring 10k anchored markers.
+ */
+public class SessionSnapshotTest {
+    private File mFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        mFolder = File.createTempFile("session", "");
+        assertTrue(mFolder.delete() && mFolder.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mFolder.listFiles()) {
+            file.delete();
+        }
+        mFolder.delete();
+    }
+
+    private static void appendPoses(TrajectoryStore store, int count, long firstTimestamp) {
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        for (int i = 0; i < count; i++) {
+            translation[0] = i;
+            translation[1] = -i;
+            translation[2] = i * 0.5f;
+            rotation[PoseData.INDEX_ROTATION_Z] = (float) Math.sin(i * 0.01);
+            rotation[PoseData.INDEX_ROTATION_W] = (float) Math.cos(i * 0.01);
+            store.append(firstTimestamp + i * 5000000L, translation, rotation);
+        }
+    }
+
+    @Test
+    public void roundTripsTheSession() throws IOException {
+        AnchorStore anchors = new AnchorStore();
+        PoseData creationPose = new PoseData(new float[]{1, 2, 3}, new float[]{0, 0.6f, 0, 0.8f},
+                123456789L);
+        int first = anchors.createAnchor(1, 2, 3, creationPose);
+        int removed = anchors.createAnchor(4, 5, 6, null);
+        int last = anchors.createAnchor(7, 8, 9, null);
+        anchors.removeAnchor(removed);
+        anchors.applyCorrection(new float[]{0, 0, 0, 1}, new float[]{0, 1, 0});
+        TrajectoryStore trajectory = new TrajectoryStore(null, TrajectoryStore.UNBOUNDED);
+        appendPoses(trajectory, 100, 1000);
+
+        File file = new File(mFolder, SessionSnapshot.FILE_NAME);
+        long size = SessionSnapshot.save(file, anchors, new int[]{last}, 12.5, trajectory, 50,
+                TrackingState.LIMITED);
+        assertEquals(size, file.length());
+        assertEquals(SessionSnapshot.getSize(2, 1, 50), size);
+
+        SessionSnapshot snapshot = SessionSnapshot.open(file);
+        assertNotNull(snapshot);
+        assertEquals(TrackingState.LIMITED, snapshot.getTrackingState());
+        assertEquals(12.5, snapshot.getAnimationTime(), 0);
+        assertEquals(2, snapshot.getAnchorCount());
+        assertArrayEquals(new int[]{last}, snapshot.getMarkerAnchorIds());
+
+        AnchorStore restored = new AnchorStore();
+        restored.createAnchor(0, 0, 0, null);
+        snapshot.restoreAnchors(restored);
+        assertEquals(2, restored.size());
+        float[] position = new float[3];
+        float[] rotation = new float[4];
+        assertTrue(restored.getPosition(last, position));
+        assertArrayEquals(new float[]{7, 9, 9}, position, 0);
+        assertTrue(restored.getRotation(last, rotation));
+        assertArrayEquals(new float[]{0, 0, 0, 1}, rotation, 0);
+        assertFalse(restored.getPosition(removed, position));
+        assertNull(restored.getCreationPose(last));
+        PoseData restoredPose = restored.getCreationPose(first);
+        assertEquals(creationPose.getTimestamp(), restoredPose.getTimestamp(), 0);
+        assertArrayEquals(creationPose.mTranslation, restoredPose.mTranslation, 0);
+        assertArrayEquals(creationPose.mRotation, restoredPose.mRotation, 0);
+        // Radius queries see the restored anchors, and new ids don't reuse saved ones.
+        int[] found = new int[4];
+        assertEquals(1, restored.queryRadius(1, 3, 3, 0.1f, found));
+        assertEquals(first, found[0]);
+        assertEquals(last + 1, restored.createAnchor(0, 0, 0, null));
+
+        // The most recent 50, up to the first pose of the new session.
+        TrajectoryStore restoredTrajectory = new TrajectoryStore(null, TrajectoryStore.UNBOUNDED);
+        assertEquals(40, snapshot.restorePoses(restoredTrajectory, trajectory.getTimestamp(90)));
+        assertEquals(trajectory.getTimestamp(50), restoredTrajectory.getTimestamp(0));
+        restoredTrajectory.getTranslation(39, position);
+        assertArrayEquals(new float[]{89, -89, 44.5f}, position, 0);
+        restoredTrajectory.getRotation(39, rotation);
+        float[] expected = new float[4];
+        trajectory.getRotation(89, expected);
+        assertArrayEquals(expected, rotation, 0);
+    }
+
+    @Test
+    public void turnsDownDamagedFiles() throws IOException {
+        File file = new File(mFolder, SessionSnapshot.FILE_NAME);
+        assertNull(SessionSnapshot.open(file));
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[256]);
+        out.close();
+        assertNull(SessionSnapshot.open(file));
+
+        AnchorStore anchors = new AnchorStore();
+        anchors.createAnchor(1, 2, 3, null);
+        TrajectoryStore trajectory = new TrajectoryStore(null, TrajectoryStore.UNBOUNDED);
+        appendPoses(trajectory, 10, 0);
+        SessionSnapshot.save(file, anchors, new int[0], 0, trajectory, 10, null);
+        SessionSnapshot snapshot = SessionSnapshot.open(file);
+        assertNotNull(snapshot);
+        assertNull(snapshot.getTrackingState());
+
+        // Cut short.
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() - 4);
+        truncated.close();
+        assertNull(SessionSnapshot.open(file));
+    }
+
+    @Test
+    public void benchmarkSaveAndRestore() throws IOException {
+        int objects = 10000;
+        int poses = 200 * 60;
+        Random random = new Random(1);
+        AnchorStore anchors = new AnchorStore();
+        int[] markers = new int[objects];
+        for (int i = 0; i < objects; i++) {
+            PoseData pose = new PoseData(new float[]{random.nextFloat(), 0, 0},
+                    new float[]{0, 0, 0, 1}, i);
+            markers[i] = anchors.createAnchor(random.nextFloat() * 10, random.nextFloat(),
+                    random.nextFloat() * 10, i % 2 == 0 ? pose : null);
+        }
+        TrajectoryStore trajectory = new TrajectoryStore(null, TrajectoryStore.UNBOUNDED);
+        appendPoses(trajectory, poses, 0);
+        File file = new File(mFolder, SessionSnapshot.FILE_NAME);
+
+        long bestSave = Long.MAX_VALUE;
+        long bestOpen = Long.MAX_VALUE;
+        long bestRestore = Long.MAX_VALUE;
+        long size = 0;
+        AnchorStore restored = new AnchorStore();
+        for (int round = 0; round < 30; round++) {
+            long start = System.nanoTime();
+            size = SessionSnapshot.save(file, anchors, markers, 0, trajectory, poses,
+                    TrackingState.TRACKING);
+            bestSave = Math.min(bestSave, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            SessionSnapshot snapshot = SessionSnapshot.open(file);
+            bestOpen = Math.min(bestOpen, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            snapshot.restoreAnchors(restored);
+            snapshot.getMarkerAnchorIds();
+            TrajectoryStore restoredTrajectory =
+                    new TrajectoryStore(null, TrajectoryStore.UNBOUNDED);
+            snapshot.restorePoses(restoredTrajectory, Long.MAX_VALUE);
+            bestRestore = Math.min(bestRestore, System.nanoTime() - start);
+            assertEquals(poses, restoredTrajectory.size());
+        }
+        assertEquals(objects, restored.size());
+        System.out.println(String.format("Session snapshot: %d anchored markers and %d poses in"
+                + " %dKB, saved in %.2fms, opened in %.3fms, restored in %.2fms", objects, poses,
+                size / 1024, bestSave / 1e6, bestOpen / 1e6, bestRestore / 1e6));
+        // A few milliseconds, well inside what onPause can spend.
+        assertTrue(bestSave < 50000000L);
+    }
+}
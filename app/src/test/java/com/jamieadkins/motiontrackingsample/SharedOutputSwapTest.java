@@ -0,0 +1,68 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Swaps surfaces on an output that, like a camera's, refuses to drop the surface it was created
+ * with.
+ */
+public class SharedOutputSwapTest {
+    private final List<String> mCalls = new ArrayList<>();
+    private final List<String> mSurfaces = new ArrayList<>();
+    private final List<String> mApplied = new ArrayList<>();
+    private SharedOutputSwap.Output<String> mOutput;
+
+    @Before
+    public void setUp() {
+        mSurfaces.add("first");
+        mApplied.add("first");
+        mOutput = new SharedOutputSwap.Output<String>() {
+            @Override
+            public void addSurface(String surface) {
+                mCalls.add("add " + surface);
+                mSurfaces.add(surface);
+            }
+
+            @Override
+            public void removeSurface(String surface) {
+                mCalls.add("remove " + surface);
+                if (surface.equals(mSurfaces.get(0))) {
+                    throw new IllegalArgumentException("Can't remove the first surface");
+                }
+                mSurfaces.remove(surface);
+            }
+
+            @Override
+            public void update() {
+                mCalls.add("update");
+                mApplied.clear();
+                mApplied.addAll(mSurfaces);
+            }
+        };
+    }
+
+    @Test
+    public void keepsTheFirstSurface() throws Exception {
+        SharedOutputSwap.swap(mOutput, "first", "first", "second");
+
+        assertEquals(Arrays.asList("add second", "update"), mCalls);
+        assertEquals(Arrays.asList("first", "second"), mApplied);
+    }
+
+    @Test
+    public void swapsOutAddedSurfaces() throws Exception {
+        SharedOutputSwap.swap(mOutput, "first", "first", "second");
+        mCalls.clear();
+        SharedOutputSwap.swap(mOutput, "first", "second", "third");
+
+        assertEquals(Arrays.asList("add third", "remove second", "update"), mCalls);
+        assertEquals(Arrays.asList("first", "third"), mApplied);
+    }
+}
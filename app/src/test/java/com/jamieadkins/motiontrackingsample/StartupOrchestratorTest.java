@@ -0,0 +1,163 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the start up dependency graph, and compares a simulated cold start run one phase after
+ * another with the same phases run by the orchestrator. Phases sleep rather than spin, like the
+ * real ones, which mostly wait on services.
+ */
+public class StartupOrchestratorTest {
+    private static final long MS = 1000000L;
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static StartupOrchestrator.Task sleep(final long millis) {
+        return new StartupOrchestrator.Task() {
+            @Override
+            public boolean run() throws Exception {
+                Thread.sleep(millis);
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void dependentsStartAfterTheirDependencies() throws Exception {
+        StartupOrchestrator startup = new StartupOrchestrator(null);
+        startup.addPhase("a", mExecutor, sleep(20));
+        startup.addPhase("b", mExecutor, sleep(10), "a");
+        startup.addPhase("c", mExecutor, sleep(10), "b");
+        startup.start();
+        assertTrue(startup.awaitFinished(2000));
+
+        long endA = startup.getPhaseEndNanos("a");
+        long endB = startup.getPhaseEndNanos("b");
+        assertTrue(endB - startup.getPhaseNanos("b") >= endA);
+        assertTrue(startup.getPhaseEndNanos("c") - startup.getPhaseNanos("c") >= endB);
+    }
+
+    @Test
+    public void independentPhasesOverlap() throws Exception {
+        StartupOrchestrator startup = new StartupOrchestrator(null);
+        startup.addPhase("a", mExecutor, sleep(50));
+        startup.addPhase("b", mExecutor, sleep(50));
+        startup.addPhase("c", mExecutor, sleep(50));
+        startup.start();
+        assertTrue(startup.awaitFinished(2000));
+        assertTrue(startup.getTotalNanos() < 120 * MS);
+    }
+
+    @Test
+    public void callbackPhasesAndMilestonesFinishWhenCompleted() throws Exception {
+        StartupOrchestrator startup = new StartupOrchestrator(null);
+        startup.addPhase("open", StartupOrchestrator.DIRECT, new StartupOrchestrator.Task() {
+            @Override
+            public boolean run() {
+                return false;
+            }
+        });
+        startup.addMilestone("firstFrame", "open");
+        startup.start();
+
+        assertFalse(startup.isPhaseDone("open"));
+        // Completed before its dependency, so held until the dependency finishes.
+        startup.complete("firstFrame");
+        assertFalse(startup.isPhaseDone("firstFrame"));
+        startup.complete("open");
+        assertTrue(startup.isPhaseDone("firstFrame"));
+        assertTrue(startup.isFinished());
+
+        // Repeated and unknown completions are ignored.
+        startup.complete("open");
+        startup.complete("missing");
+    }
+
+    @Test
+    public void failureSkipsDependents() throws Exception {
+        final AtomicReference<String> failed = new AtomicReference<>();
+        StartupOrchestrator startup = new StartupOrchestrator(new StartupOrchestrator.Listener() {
+            @Override
+            public void onPhaseFailed(String name, Throwable error) {
+                failed.set(name);
+            }
+
+            @Override
+            public void onStartupFinished(StartupOrchestrator orchestrator) {
+            }
+        });
+        startup.addPhase("camera", mExecutor, new StartupOrchestrator.Task() {
+            @Override
+            public boolean run() throws Exception {
+                throw new Exception("No camera");
+            }
+        });
+        startup.addPhase("provider", mExecutor, sleep(5));
+        startup.addMilestone("stream", "camera", "provider");
+        startup.addMilestone("frame", "stream");
+        startup.start();
+
+        assertTrue(startup.awaitFinished(2000));
+        assertEquals("camera", failed.get());
+        assertTrue(startup.isPhaseDone("provider"));
+        assertFalse(startup.isPhaseDone("stream"));
+        assertFalse(startup.isPhaseDone("frame"));
+        assertTrue(startup.getTrace().contains("skipped"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownDependencyIsRejected() {
+        StartupOrchestrator startup = new StartupOrchestrator(null);
+        startup.addMilestone("frame", "scene");
+    }
+
+    @Test
+    public void coldStartFasterThanSerial() throws Exception {
+        // Rough shape of a cold start: binding the pose provider and opening the camera are
+        // mostly waiting on services, decoding the textures and building the scene are work.
+        long provider = 80, tracking = 20, camera = 60, assets = 40, scene = 30, cameraFrame = 30;
+
+        long start = System.nanoTime();
+        for (long phase : new long[]{provider, tracking, assets, scene, camera, cameraFrame}) {
+            Thread.sleep(phase);
+        }
+        long serial = System.nanoTime() - start;
+
+        StartupOrchestrator startup = new StartupOrchestrator(null);
+        startup.addPhase("assets", mExecutor, sleep(assets));
+        startup.addPhase("cameraOpen", mExecutor, sleep(camera));
+        startup.addPhase("poseProvider", mExecutor, sleep(provider));
+        startup.addPhase("tracking", mExecutor, sleep(tracking), "poseProvider");
+        startup.addPhase("scene", mExecutor, sleep(scene), "assets");
+        startup.addPhase("firstCameraFrame", mExecutor, sleep(cameraFrame), "cameraOpen", "scene");
+        startup.addMilestone("firstTrackedFrame", "firstCameraFrame", "tracking");
+        startup.start();
+        startup.complete("firstTrackedFrame");
+        assertTrue(startup.awaitFinished(2000));
+        long orchestrated = startup.getTotalNanos();
+
+        System.out.println(String.format("Cold start: serial %.1fms, orchestrated %.1fms",
+                serial / 1e6, orchestrated / 1e6));
+        System.out.println(startup.getTrace());
+        // The critical path is provider + tracking = 100ms against 260ms in sequence.
+        assertTrue(orchestrated < serial * 0.6);
+    }
+}
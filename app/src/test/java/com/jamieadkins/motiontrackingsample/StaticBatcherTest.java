@@ -0,0 +1,311 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks batched geometry against the objects it was built from, that changes only touch what
+ * they need to, and measures build cost and draw calls for a marker heavy scene through a
+ * headless uploader.
+ */
+public class StaticBatcherTest {
+    private static final float EPSILON = 1e-5f;
+    private static final float[] IDENTITY = {0, 0, 0, 1};
+
+    /**
+     * A UV sphere like Rajawali's, {@code (segments + 1)^2} vertices.
+     */
+    private static StaticBatcher.Mesh sphere(float radius, int segments) {
+        int vertexCount = (segments + 1) * (segments + 1);
+        float[] vertices = new float[vertexCount * 3];
+        float[] normals = new float[vertexCount * 3];
+        float[] textureCoords = new float[vertexCount * 2];
+        int vertex = 0;
+        for (int j = 0; j <= segments; j++) {
+            double polar = Math.PI * j / segments;
+            for (int i = 0; i <= segments; i++, vertex++) {
+                double azimuth = 2 * Math.PI * i / segments;
+                normals[vertex * 3] = (float) (Math.sin(polar) * Math.cos(azimuth));
+                normals[vertex * 3 + 1] = (float) Math.cos(polar);
+                normals[vertex * 3 + 2] = (float) (Math.sin(polar) * Math.sin(azimuth));
+                for (int axis = 0; axis < 3; axis++) {
+                    vertices[vertex * 3 + axis] = normals[vertex * 3 + axis] * radius;
+                }
+                textureCoords[vertex * 2] = i / (float) segments;
+                textureCoords[vertex * 2 + 1] = j / (float) segments;
+            }
+        }
+        int[] indices = new int[segments * segments * 6];
+        int index = 0;
+        for (int j = 0; j < segments; j++) {
+            for (int i = 0; i < segments; i++) {
+                int a = j * (segments + 1) + i;
+                int b = a + segments + 1;
+                indices[index++] = a;
+                indices[index++] = b;
+                indices[index++] = a + 1;
+                indices[index++] = b;
+                indices[index++] = b + 1;
+                indices[index++] = a + 1;
+            }
+        }
+        return new StaticBatcher.Mesh(vertices, normals, textureCoords, indices);
+    }
+
+    private static float[] aboutY(double radians) {
+        return new float[]{0, (float) Math.sin(radians / 2), 0, (float) Math.cos(radians / 2)};
+    }
+
+    /**
+     * Checks an object's vertices, normals and triangles in its batch against the mesh moved by
+     * hand.
+     */
+    private static void assertPlaced(StaticBatcher batcher, int handle, StaticBatcher.Mesh mesh,
+                                     float[] translation, float[] rotation, float scale) {
+        StaticBatcher.Batch batch = batcher.getBatch(handle);
+        int first = batcher.getFirstVertex(handle);
+        PoseData pose = new PoseData(translation, rotation, 0);
+        float[] expected = new float[3];
+        float[] normal = new float[3];
+        for (int i = 0; i < mesh.getVertexCount(); i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                expected[axis] = mesh.mVertices[i * 3 + axis] * scale;
+            }
+            pose.transformPoints(expected, 1);
+            PoseMath.rotateVector(rotation, 0, mesh.mNormals, i * 3, normal, 0);
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(expected[axis], batch.getVertices()[(first + i) * 3 + axis],
+                        EPSILON);
+                assertEquals(normal[axis], batch.getNormals()[(first + i) * 3 + axis], EPSILON);
+            }
+            assertEquals(mesh.mTextureCoords[i * 2],
+                    batch.getTextureCoords()[(first + i) * 2], 0);
+        }
+        // Its triangles point at its vertices.
+        boolean found = false;
+        for (int i = 0; i + mesh.getIndexCount() <= batch.getIndexCount() && !found; i += 3) {
+            found = true;
+            for (int j = 0; j < mesh.getIndexCount() && found; j++) {
+                found = batch.getIndices()[i + j] == mesh.mIndices[j] + first;
+            }
+        }
+        assertTrue(found);
+    }
+
+    /**
+     * Stands in for the renderer: counts what would be uploaded.
+     */
+    private static class CountingUploader implements StaticBatcher.Listener {
+        int mFullUploads;
+        int mPartialUploads;
+        long mVerticesUploaded;
+
+        @Override
+        public void onBatchChanged(StaticBatcher.Batch batch, boolean layoutChanged) {
+            if (layoutChanged) {
+                mFullUploads++;
+                mVerticesUploaded += batch.getVertexCount();
+            } else {
+                mPartialUploads++;
+                mVerticesUploaded += batch.getDirtyEnd() - batch.getDirtyStart();
+            }
+        }
+    }
+
+    @Test
+    public void mergesObjectsByMaterial() {
+        StaticBatcher batcher = new StaticBatcher();
+        StaticBatcher.Mesh small = sphere(0.1f, 4);
+        StaticBatcher.Mesh large = sphere(0.5f, 6);
+        float[] t1 = {1, 2, 3};
+        float[] t2 = {-1, 0, -4};
+        int a = batcher.add("stone", small, t1, aboutY(0.5), 1);
+        int b = batcher.add("stone", large, t2, aboutY(-1), 2);
+        int c = batcher.add("wood", small, t2, IDENTITY, 1);
+        assertEquals(2, batcher.getDrawCallCount());
+        assertEquals(3, batcher.getObjectCount());
+        assertSame(batcher.getBatch(a), batcher.getBatch(b));
+        assertFalse(batcher.getBatch(a).isInstanced());
+        assertPlaced(batcher, a, small, t1, aboutY(0.5), 1);
+        assertPlaced(batcher, b, large, t2, aboutY(-1), 2);
+        assertPlaced(batcher, c, small, t2, IDENTITY, 1);
+
+        // Removing the first object closes the gap and reindexes what follows.
+        batcher.remove(a);
+        batcher.update(new CountingUploader());
+        assertEquals(large.getVertexCount(), batcher.getBatch(b).getVertexCount());
+        assertEquals(0, batcher.getFirstVertex(b));
+        assertPlaced(batcher, b, large, t2, aboutY(-1), 2);
+        try {
+            batcher.remove(a);
+            fail("Expected the removed handle to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void instancesShareABatchAndPackTransforms() {
+        StaticBatcher batcher = new StaticBatcher();
+        StaticBatcher.Mesh marker = sphere(0.03f, 8);
+        List<Integer> handles = new ArrayList<>();
+        List<float[]> translations = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            float[] translation = {i, 0, -i};
+            translations.add(translation);
+            handles.add(batcher.addInstance("green", marker, translation, aboutY(i), 1));
+        }
+        StaticBatcher.Batch batch = batcher.getBatch(handles.get(0));
+        assertTrue(batch.isInstanced());
+        assertSame(marker, batch.getInstancedMesh());
+        assertEquals(1, batcher.getDrawCallCount());
+
+        // The packed matrix of each instance moves the mesh like its transform.
+        float[] matrix = new float[StaticBatcher.FLOATS_PER_INSTANCE];
+        batch.getInstanceTransforms().position(5 * StaticBatcher.FLOATS_PER_INSTANCE);
+        batch.getInstanceTransforms().get(matrix);
+        batch.getInstanceTransforms().position(0);
+        float[] expected = new float[StaticBatcher.FLOATS_PER_INSTANCE];
+        StaticBatcher.toMatrix(translations.get(5), aboutY(5), 1, expected);
+        assertArrayEquals(expected, matrix, 0);
+        assertEquals(5, matrix[12], 0);
+        assertEquals(-5, matrix[14], 0);
+
+        // Removing an instance moves the last into its place straight away.
+        batcher.remove(handles.get(3));
+        assertEquals(19 * marker.getVertexCount(), batch.getVertexCount());
+        assertEquals(19 * marker.getIndexCount(), batch.getIndexCount());
+        assertEquals(3 * marker.getVertexCount(), batcher.getFirstVertex(handles.get(19)));
+        assertPlaced(batcher, handles.get(19), marker, translations.get(19), aboutY(19), 1);
+        batch.getInstanceTransforms().position(3 * StaticBatcher.FLOATS_PER_INSTANCE);
+        batch.getInstanceTransforms().get(matrix);
+        batch.getInstanceTransforms().position(0);
+        assertEquals(19, matrix[12], 0);
+        for (int i = 0; i < 19; i++) {
+            if (i != 3) {
+                assertPlaced(batcher, handles.get(i), marker, translations.get(i), aboutY(i), 1);
+            }
+        }
+    }
+
+    @Test
+    public void changesOnlyTouchWhatTheyNeedTo() {
+        StaticBatcher batcher = new StaticBatcher();
+        StaticBatcher.Mesh marker = sphere(0.03f, 8);
+        StaticBatcher.Mesh rock = sphere(0.2f, 6);
+        int first = 0;
+        for (int i = 0; i < 100; i++) {
+            int handle = batcher.addInstance("green", marker, new float[]{i, 0, 0}, IDENTITY, 1);
+            if (i == 0) {
+                first = handle;
+            }
+        }
+        int rockHandle = batcher.add("stone", rock, new float[]{0, 0, -2}, IDENTITY, 1);
+        CountingUploader uploader = new CountingUploader();
+        assertEquals(2, batcher.update(uploader));
+        assertEquals(0, batcher.update(uploader));
+
+        // Moving one marker rewrites and uploads just its vertices.
+        long written = batcher.getVerticesWritten();
+        uploader = new CountingUploader();
+        batcher.setTransform(first, new float[]{0, 1, 0}, IDENTITY, 1);
+        assertEquals(marker.getVertexCount(), batcher.getVerticesWritten() - written);
+        assertEquals(1, batcher.update(uploader));
+        assertEquals(1, uploader.mPartialUploads);
+        assertEquals(marker.getVertexCount(), uploader.mVerticesUploaded);
+
+        // Adding one writes just its vertices; the other batch isn't touched.
+        written = batcher.getVerticesWritten();
+        uploader = new CountingUploader();
+        batcher.addInstance("green", marker, new float[]{0, 2, 0}, IDENTITY, 1);
+        assertEquals(marker.getVertexCount(), batcher.getVerticesWritten() - written);
+        assertEquals(1, batcher.update(uploader));
+
+        // Removing a merged object compacts only its own batch.
+        uploader = new CountingUploader();
+        batcher.remove(rockHandle);
+        assertEquals(1, batcher.update(uploader));
+        assertEquals(1, batcher.getDrawCallCount());
+    }
+
+    @Test
+    public void splitsBatchesAtTheShortIndexLimit() {
+        StaticBatcher batcher = new StaticBatcher();
+        StaticBatcher.Mesh mesh = sphere(0.1f, 30);
+        int perBatch = StaticBatcher.MAX_BATCH_VERTICES / mesh.getVertexCount();
+        int count = perBatch * 2 + 1;
+        for (int i = 0; i < count; i++) {
+            batcher.addInstance("green", mesh, new float[]{i, 0, 0}, IDENTITY, 1);
+        }
+        assertEquals(3, batcher.getDrawCallCount());
+        for (StaticBatcher.Batch batch : batcher.getBatches()) {
+            assertTrue(batch.getVertexCount() <= StaticBatcher.MAX_BATCH_VERTICES);
+        }
+    }
+
+    @Test
+    public void benchmarkMarkerScene() {
+        // Hundreds of markers in a few colours and some unique static props.
+        int markers = 600;
+        int props = 60;
+        String[] colours = {"green", "red", "blue", "yellow"};
+        StaticBatcher.Mesh marker = sphere(0.03f, 8);
+        StaticBatcher.Mesh[] propMeshes = {sphere(0.2f, 10), sphere(0.4f, 12), sphere(0.1f, 6)};
+        Random random = new Random(7);
+        float[][] positions = new float[markers + props][];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new float[]{random.nextFloat() * 10 - 5, random.nextFloat() * 2,
+                    -random.nextFloat() * 10};
+        }
+
+        long bestBuild = Long.MAX_VALUE;
+        StaticBatcher batcher = null;
+        int[] handles = new int[markers];
+        CountingUploader uploader = null;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            batcher = new StaticBatcher();
+            for (int i = 0; i < markers; i++) {
+                handles[i] = batcher.addInstance(colours[i % colours.length], marker,
+                        positions[i], IDENTITY, 1);
+            }
+            for (int i = 0; i < props; i++) {
+                batcher.add("stone", propMeshes[i % propMeshes.length], positions[markers + i],
+                        aboutY(i), 1);
+            }
+            uploader = new CountingUploader();
+            batcher.update(uploader);
+            bestBuild = Math.min(bestBuild, System.nanoTime() - start);
+        }
+        int objects = markers + props;
+        int drawCalls = batcher.getDrawCallCount();
+        long builtVertices = uploader.mVerticesUploaded;
+
+        // Incremental changes: a marker placed, one moved by a correction, one removed.
+        int changes = 2000;
+        uploader = new CountingUploader();
+        long start = System.nanoTime();
+        for (int i = 0; i < changes; i++) {
+            int handle = handles[i % markers];
+            batcher.remove(handle);
+            handles[i % markers] = batcher.addInstance(colours[i % colours.length], marker,
+                    positions[i % markers], IDENTITY, 1);
+            batcher.setTransform(handles[(i + 1) % markers], positions[i % markers],
+                    aboutY(i), 1);
+            batcher.update(uploader);
+        }
+        double perChange = (System.nanoTime() - start) / (double) changes;
+
+        System.out.println(String.format("Static batching: %d objects, %d vertices, in %d draw"
+                + " calls, built in %.2fms; %.1fus and %d vertices uploaded per add, move and"
+                + " remove", objects, builtVertices, drawCalls, bestBuild / 1e6, perChange / 1000,
+                uploader.mVerticesUploaded / changes));
+        assertEquals(colours.length + 1, drawCalls);
+        assertEquals(objects, batcher.getObjectCount());
+        assertTrue(bestBuild < 200000000L);
+    }
+}
@@ -0,0 +1,67 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.Random;
+
+/**
+ * Generates depth clouds of a simple room: a floor, a table and two walls, with sensor noise and a
+ * sprinkling of outliers. The room is y-up with the sensor standing at head height.
+ */
+class SyntheticScene {
+    static final float FLOOR_Y = 0.0f;
+    static final float TABLE_Y = 0.75f;
+    static final float BACK_WALL_Z = -2.5f;
+    static final float SIDE_WALL_X = -2.5f;
+    static final float[] SENSOR_POSITION = {0.0f, 1.5f, 0.0f};
+
+    private static final float NOISE = 0.005f;
+    private static final float OUTLIER_FRACTION = 0.02f;
+
+    private final Random mRandom;
+
+    SyntheticScene(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    PointCloud nextCloud(int numPoints, long timestamp) {
+        float[] points = new float[numPoints * 3];
+        for (int i = 0; i < numPoints; i++) {
+            float x, y, z;
+            float surface = mRandom.nextFloat();
+            if (mRandom.nextFloat() < OUTLIER_FRACTION) {
+                x = uniform(-2.5f, 2.5f);
+                y = uniform(0.0f, 2.5f);
+                z = uniform(-2.5f, 2.5f);
+            } else if (surface < 0.4f) {
+                x = uniform(-2.5f, 2.5f);
+                y = FLOOR_Y + noise();
+                z = uniform(-2.5f, 2.5f);
+            } else if (surface < 0.55f) {
+                x = uniform(0.0f, 1.2f);
+                y = TABLE_Y + noise();
+                z = uniform(-1.6f, -0.8f);
+            } else if (surface < 0.8f) {
+                x = uniform(-2.5f, 2.5f);
+                y = uniform(0.0f, 2.5f);
+                z = BACK_WALL_Z + noise();
+            } else {
+                x = SIDE_WALL_X + noise();
+                y = uniform(0.0f, 2.5f);
+                z = uniform(-2.5f, 2.5f);
+            }
+            points[i * 3] = x;
+            points[i * 3 + 1] = y;
+            points[i * 3 + 2] = z;
+        }
+        PointCloud cloud = new PointCloud(points, numPoints, timestamp);
+        System.arraycopy(SENSOR_POSITION, 0, cloud.mSensorPosition, 0, 3);
+        return cloud;
+    }
+
+    private float uniform(float min, float max) {
+        return min + mRandom.nextFloat() * (max - min);
+    }
+
+    private float noise() {
+        return (float) mRandom.nextGaussian() * NOISE;
+    }
+}
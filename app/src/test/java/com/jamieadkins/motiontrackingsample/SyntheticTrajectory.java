@@ -0,0 +1,87 @@
+package com.jamieadkins.motiontrackingsample;
+
+import java.util.Random;
+
+/**
+ * Pose streams for tests and benchmarks. {@link #walking} is an idealised 200Hz stroll in a
+ * circle; {@link #handheld} mimics a replayed device session, with hand shake, drifting rotation
+ * and jittery timestamps.
+ */
+class SyntheticTrajectory {
+    static final long PERIOD_NANOS = 5000000L;
+
+    final long[] mTimestamps;
+    final float[] mTranslations;
+    final float[] mRotations;
+
+    private SyntheticTrajectory(int samples) {
+        mTimestamps = new long[samples];
+        mTranslations = new float[samples * 3];
+        mRotations = new float[samples * 4];
+    }
+
+    int size() {
+        return mTimestamps.length;
+    }
+
+    PoseData poseAt(int i) {
+        float[] translation = {mTranslations[i * 3], mTranslations[i * 3 + 1],
+                mTranslations[i * 3 + 2]};
+        float[] rotation = {mRotations[i * 4], mRotations[i * 4 + 1], mRotations[i * 4 + 2],
+                mRotations[i * 4 + 3]};
+        return new PoseData(translation, rotation, mTimestamps[i]);
+    }
+
+    static SyntheticTrajectory walking(int samples) {
+        SyntheticTrajectory trajectory = new SyntheticTrajectory(samples);
+        for (int i = 0; i < samples; i++) {
+            double t = i * PERIOD_NANOS / 1e9;
+            double heading = t / 3.0;
+            trajectory.mTimestamps[i] = 1000000000L + i * PERIOD_NANOS;
+            trajectory.mTranslations[i * 3] = (float) (3 * Math.sin(heading));
+            trajectory.mTranslations[i * 3 + 1] = (float) (1.5 + 0.02 * Math.sin(t * 12));
+            trajectory.mTranslations[i * 3 + 2] = (float) (-3 * Math.cos(heading));
+            setYawPitch(trajectory.mRotations, i, -heading, 0.1 * Math.sin(t));
+        }
+        return trajectory;
+    }
+
+    static SyntheticTrajectory handheld(int samples, long seed) {
+        Random random = new Random(seed);
+        SyntheticTrajectory trajectory = new SyntheticTrajectory(samples);
+        double x = 0, y = 1.4, z = 0, vx = 0, vy = 0, vz = 0;
+        double yaw = 0, pitch = 0, yawRate = 0, pitchRate = 0;
+        long timestamp = 1000000000L;
+        for (int i = 0; i < samples; i++) {
+            double dt = PERIOD_NANOS / 1e9;
+            vx = 0.995 * vx + random.nextGaussian() * 0.02;
+            vy = 0.98 * vy + random.nextGaussian() * 0.005;
+            vz = 0.995 * vz + random.nextGaussian() * 0.02;
+            x += vx * dt;
+            y += vy * dt;
+            z += vz * dt;
+            yawRate = 0.99 * yawRate + random.nextGaussian() * 0.05;
+            pitchRate = 0.95 * pitchRate + random.nextGaussian() * 0.02;
+            yaw += yawRate * dt;
+            pitch = Math.max(-1, Math.min(1, pitch + pitchRate * dt));
+            timestamp += PERIOD_NANOS + (long) (random.nextGaussian() * 50000);
+
+            trajectory.mTimestamps[i] = timestamp;
+            trajectory.mTranslations[i * 3] = (float) (x + random.nextGaussian() * 0.0005);
+            trajectory.mTranslations[i * 3 + 1] = (float) (y + random.nextGaussian() * 0.0005);
+            trajectory.mTranslations[i * 3 + 2] = (float) (z + random.nextGaussian() * 0.0005);
+            setYawPitch(trajectory.mRotations, i, yaw, pitch);
+        }
+        return trajectory;
+    }
+
+    private static void setYawPitch(float[] rotations, int i, double yaw, double pitch) {
+        // Yaw about y, then pitch about x.
+        double cy = Math.cos(yaw / 2), sy = Math.sin(yaw / 2);
+        double cp = Math.cos(pitch / 2), sp = Math.sin(pitch / 2);
+        rotations[i * 4] = (float) (cy * sp);
+        rotations[i * 4 + 1] = (float) (sy * cp);
+        rotations[i * 4 + 2] = (float) (-sy * sp);
+        rotations[i * 4 + 3] = (float) (cy * cp);
+    }
+}
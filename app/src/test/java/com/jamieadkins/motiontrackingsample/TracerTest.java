@@ -0,0 +1,127 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the trace markers through the recording backend, and what they cost when tracing is off.
+ */
+public class TracerTest {
+    private static final long MS = 1000000L;
+
+    @After
+    public void tearDown() {
+        Tracer.setBackend(null);
+    }
+
+    private static int count(List<Tracer.Recorder.Event> events, String type, String name) {
+        int count = 0;
+        for (Tracer.Recorder.Event event : events) {
+            if (event.mType.equals(type) && (name == null || name.equals(event.mName))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void offByDefault() {
+        assertFalse(Tracer.isEnabled());
+        // Nothing to send them to, and nothing should break.
+        Tracer.beginSection("a");
+        Tracer.endSection();
+        Tracer.beginAsyncSection("b", 1);
+        Tracer.endAsyncSection("b", 1);
+        Tracer.setCounter("c", 1);
+        Tracer.RateCounter rate = new Tracer.RateCounter("rate");
+        rate.tick(0);
+        rate.tick(2000 * MS);
+    }
+
+    @Test
+    public void recorderKeepsMarkersInOrder() {
+        Tracer.Recorder recorder = new Tracer.Recorder();
+        Tracer.setBackend(recorder);
+        assertTrue(Tracer.isEnabled());
+        Tracer.beginSection("outer");
+        Tracer.beginSection("inner");
+        Tracer.endSection();
+        Tracer.endSection();
+        Tracer.beginAsyncSection("open", 7);
+        Tracer.setCounter("depth", 42);
+        Tracer.endAsyncSection("open", 7);
+
+        List<Tracer.Recorder.Event> events = recorder.getEvents();
+        assertEquals(7, events.size());
+        assertEquals("outer", events.get(0).mName);
+        assertEquals("inner", events.get(1).mName);
+        assertEquals(Tracer.Recorder.END, events.get(2).mType);
+        assertEquals(Tracer.Recorder.END, events.get(3).mType);
+        assertEquals(Tracer.Recorder.ASYNC_BEGIN, events.get(4).mType);
+        assertEquals(7, events.get(4).mValue);
+        assertEquals(42, events.get(5).mValue);
+        assertEquals(Tracer.Recorder.ASYNC_END, events.get(6).mType);
+        assertEquals(Thread.currentThread().getName(), events.get(0).mThread);
+
+        Tracer.setBackend(null);
+        Tracer.beginSection("dropped");
+        assertEquals(7, recorder.getEvents().size());
+    }
+
+    @Test
+    public void rateCounterReportsEverySecond() {
+        Tracer.Recorder recorder = new Tracer.Recorder();
+        Tracer.setBackend(recorder);
+        Tracer.RateCounter rate = new Tracer.RateCounter("poseRate");
+        // Three seconds at 200Hz.
+        for (int i = 0; i <= 600; i++) {
+            rate.tick(i * 5 * MS);
+        }
+        List<Tracer.Recorder.Event> events = recorder.getEvents();
+        assertEquals(3, events.size());
+        for (Tracer.Recorder.Event event : events) {
+            assertEquals("poseRate", event.mName);
+            assertEquals(200, event.mValue);
+        }
+    }
+
+    @Test
+    public void pipelineTracesPoseAge() throws InterruptedException {
+        Tracer.Recorder recorder = new Tracer.Recorder();
+        Tracer.setBackend(recorder);
+        PipelineHarness harness = new PipelineHarness(new PipelineHarness.Config(60, 500));
+        PipelineHarness.Result result = harness.run(1);
+
+        List<Tracer.Recorder.Event> events = recorder.getEvents();
+        // One pose age sample for every frame that had a pose.
+        assertEquals(result.mPoseAge.getCount(),
+                count(events, Tracer.Recorder.COUNTER, "poseAgeUs"));
+        for (Tracer.Recorder.Event event : events) {
+            if ("poseAgeUs".equals(event.mName)) {
+                assertTrue(event.mValue >= 0 && event.mValue <= 2000);
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkCostWhenOff() {
+        int calls = 50000000;
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                Tracer.beginSection("frame");
+                Tracer.setCounter("value", i);
+                Tracer.endSection();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double perMarker = best / (3.0 * calls);
+        System.out.println(String.format("Tracing off: %.2fns per marker", perMarker));
+        assertTrue(perMarker < 10);
+    }
+}
@@ -0,0 +1,110 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.jamieadkins.motiontrackingsample.TrackingStateMachine.PoseStatus.INITIALIZING;
+import static com.jamieadkins.motiontrackingsample.TrackingStateMachine.PoseStatus.INVALID;
+import static com.jamieadkins.motiontrackingsample.TrackingStateMachine.PoseStatus.LIMITED;
+import static com.jamieadkins.motiontrackingsample.TrackingStateMachine.PoseStatus.VALID;
+import static org.junit.Assert.*;
+
+public class TrackingStateMachineTest {
+    private static final long MS = 1000000L;
+
+    private final List<String> mTransitions = new ArrayList<>();
+
+    private TrackingStateMachine createMachine() {
+        TrackingStateMachine machine = new TrackingStateMachine(3, 20 * MS);
+        machine.setListener(new TrackingStateMachine.Listener() {
+            @Override
+            public void onTrackingStateChanged(TrackingState previous, TrackingState current,
+                                               long timeInPreviousNanos) {
+                mTransitions.add(previous + "->" + current + "@" + timeInPreviousNanos / MS);
+            }
+        });
+        return machine;
+    }
+
+    @Test
+    public void invalidPosesAreGated() throws Exception {
+        TrackingStateMachine machine = createMachine();
+        assertFalse(machine.update(INITIALIZING, 0));
+        assertTrue(machine.update(VALID, 10 * MS));
+        assertEquals(TrackingState.TRACKING, machine.getState());
+        assertTrue(machine.update(LIMITED, 20 * MS));
+        assertEquals(TrackingState.LIMITED, machine.getState());
+        assertFalse(machine.update(INVALID, 30 * MS));
+        assertEquals(TrackingState.LOST, machine.getState());
+    }
+
+    @Test
+    public void recoveryNeedsConfirmation() throws Exception {
+        TrackingStateMachine machine = createMachine();
+        machine.update(VALID, 0);
+        machine.update(INVALID, 100 * MS);
+
+        // Valid again, but not rendered until enough samples over enough time.
+        assertFalse(machine.update(VALID, 200 * MS));
+        assertEquals(TrackingState.RECOVERING, machine.getState());
+        assertFalse(machine.update(VALID, 205 * MS));
+        assertFalse(machine.update(VALID, 210 * MS));
+        assertEquals(TrackingState.RECOVERING, machine.getState());
+        assertTrue(machine.update(VALID, 220 * MS));
+        assertEquals(TrackingState.TRACKING, machine.getState());
+
+        assertEquals(1, machine.getRecoveryCount());
+        assertEquals(120 * MS, machine.getLastRecoveryNanos());
+        assertEquals(120 * MS, machine.getMeanRecoveryNanos());
+    }
+
+    @Test
+    public void lowAccuracyRecoversIntoLimited() throws Exception {
+        TrackingStateMachine machine = createMachine();
+        machine.update(LIMITED, 0);
+        machine.update(INVALID, 100 * MS);
+
+        // A sensor that only reports low accuracy must still get out of RECOVERING.
+        assertFalse(machine.update(LIMITED, 200 * MS));
+        assertEquals(TrackingState.RECOVERING, machine.getState());
+        assertFalse(machine.update(VALID, 210 * MS));
+        assertEquals(TrackingState.RECOVERING, machine.getState());
+        assertTrue(machine.update(LIMITED, 220 * MS));
+        assertEquals(TrackingState.LIMITED, machine.getState());
+
+        assertEquals(1, machine.getRecoveryCount());
+        assertEquals(120 * MS, machine.getLastRecoveryNanos());
+    }
+
+    @Test
+    public void relapseDuringRecoveryGoesBackToLost() throws Exception {
+        TrackingStateMachine machine = createMachine();
+        machine.update(VALID, 0);
+        machine.update(INVALID, 10 * MS);
+        machine.update(VALID, 20 * MS);
+        machine.update(INVALID, 30 * MS);
+        assertEquals(TrackingState.LOST, machine.getState());
+        assertEquals(2, machine.getEntryCount(TrackingState.LOST));
+        assertEquals(0, machine.getRecoveryCount());
+    }
+
+    @Test
+    public void reportsTransitionsWithDurations() throws Exception {
+        TrackingStateMachine machine = createMachine();
+        machine.update(INITIALIZING, 0);
+        machine.update(VALID, 50 * MS);
+        machine.update(VALID, 60 * MS);
+        machine.update(INVALID, 250 * MS);
+
+        assertEquals(2, mTransitions.size());
+        assertEquals("INITIALIZING->TRACKING@50", mTransitions.get(0));
+        assertEquals("TRACKING->LOST@200", mTransitions.get(1));
+
+        assertEquals(50 * MS, machine.getTimeInStateNanos(TrackingState.INITIALIZING, 300 * MS));
+        assertEquals(200 * MS, machine.getTimeInStateNanos(TrackingState.TRACKING, 300 * MS));
+        // The current stay counts towards the active state.
+        assertEquals(50 * MS, machine.getTimeInStateNanos(TrackingState.LOST, 300 * MS));
+    }
+}
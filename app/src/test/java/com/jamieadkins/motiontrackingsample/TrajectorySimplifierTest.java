@@ -0,0 +1,153 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays synthetic sessions through the simplifier, checks that interpolating the key poses
+ * reproduces every input pose within the error bounds, and reports reduction and throughput.
+ */
+public class TrajectorySimplifierTest {
+    private static final float POSITION_ERROR = 0.01f;
+    private static final float ROTATION_ERROR = (float) Math.toRadians(1);
+
+    /**
+     * Collects the key poses.
+     */
+    private static class Collector implements TrajectorySimplifier.Output {
+        long[] mTimestamps = new long[16];
+        float[] mTranslations = new float[16 * 3];
+        float[] mRotations = new float[16 * 4];
+        int mSize;
+
+        @Override
+        public void onKeyPose(long timestamp, float[] translation, float[] rotation) {
+            if (mSize == mTimestamps.length) {
+                mTimestamps = Arrays.copyOf(mTimestamps, mSize * 2);
+                mTranslations = Arrays.copyOf(mTranslations, mSize * 2 * 3);
+                mRotations = Arrays.copyOf(mRotations, mSize * 2 * 4);
+            }
+            mTimestamps[mSize] = timestamp;
+            System.arraycopy(translation, 0, mTranslations, mSize * 3, 3);
+            System.arraycopy(rotation, 0, mRotations, mSize * 4, 4);
+            mSize++;
+        }
+    }
+
+    private static Collector simplify(SyntheticTrajectory trajectory, int maxWindow) {
+        Collector collector = new Collector();
+        TrajectorySimplifier simplifier =
+                new TrajectorySimplifier(POSITION_ERROR, ROTATION_ERROR, maxWindow, collector);
+        for (int i = 0; i < trajectory.size(); i++) {
+            simplifier.add(trajectory.poseAt(i));
+        }
+        simplifier.flush();
+        assertEquals(collector.mSize, simplifier.getOutputCount());
+        return collector;
+    }
+
+    /**
+     * Interpolates the key poses at every input time and checks the error.
+     */
+    private static void assertWithinBounds(SyntheticTrajectory trajectory, Collector keys) {
+        assertEquals(trajectory.mTimestamps[0], keys.mTimestamps[0]);
+        assertEquals(trajectory.mTimestamps[trajectory.size() - 1],
+                keys.mTimestamps[keys.mSize - 1]);
+        float[] rotation = new float[4];
+        int k = 0;
+        for (int i = 0; i < trajectory.size(); i++) {
+            long t = trajectory.mTimestamps[i];
+            while (k < keys.mSize - 2 && keys.mTimestamps[k + 1] < t) {
+                k++;
+            }
+            long t0 = keys.mTimestamps[k];
+            long t1 = keys.mTimestamps[k + 1];
+            float f = t1 == t0 ? 0 : (float) ((t - t0) / (double) (t1 - t0));
+            double error = 0;
+            for (int axis = 0; axis < 3; axis++) {
+                float a = keys.mTranslations[k * 3 + axis];
+                float b = keys.mTranslations[(k + 1) * 3 + axis];
+                double e = a + (b - a) * f - trajectory.mTranslations[i * 3 + axis];
+                error += e * e;
+            }
+            assertTrue("position error at " + i, Math.sqrt(error) <= POSITION_ERROR * 1.001);
+            PoseMath.slerp(keys.mRotations, k * 4, keys.mRotations, (k + 1) * 4, f, rotation, 0);
+            assertTrue("rotation error at " + i, PoseMath.angleBetween(rotation, 0,
+                    trajectory.mRotations, i * 4) <= ROTATION_ERROR * 1.01);
+        }
+    }
+
+    @Test
+    public void straightLineNeedsOnlyTheEnds() {
+        int samples = 1000;
+        Collector collector = new Collector();
+        TrajectorySimplifier simplifier =
+                new TrajectorySimplifier(POSITION_ERROR, ROTATION_ERROR, samples, collector);
+        float[] rotation = {0, 0, 0, 1};
+        for (int i = 0; i < samples; i++) {
+            simplifier.add(i * 5000000L, new float[]{i * 0.001f, 1, -i * 0.002f}, rotation);
+        }
+        simplifier.flush();
+        assertEquals(2, collector.mSize);
+        assertEquals(500.0, simplifier.getReductionRatio(), 0);
+    }
+
+    @Test
+    public void turningOnTheSpotKeepsRotationKeyPoses() {
+        int samples = 2000;
+        Collector collector = new Collector();
+        TrajectorySimplifier simplifier =
+                new TrajectorySimplifier(POSITION_ERROR, ROTATION_ERROR, collector);
+        float[] translation = {0, 1.5f, 0};
+        float[] rotation = new float[4];
+        for (int i = 0; i < samples; i++) {
+            // Shaking the head: position fixed, yaw oscillating.
+            double yaw = 0.5 * Math.sin(i / 50.0);
+            rotation[1] = (float) Math.sin(yaw / 2);
+            rotation[3] = (float) Math.cos(yaw / 2);
+            simplifier.add(i * 5000000L, translation, rotation);
+        }
+        simplifier.flush();
+        assertTrue(collector.mSize > 20);
+        assertTrue(collector.mSize < samples / 4);
+    }
+
+    @Test
+    public void windowCapacityBoundsSegmentLength() {
+        SyntheticTrajectory trajectory = SyntheticTrajectory.walking(1000);
+        Collector keys = simplify(trajectory, 10);
+        // A key pose at least every 10 poses.
+        for (int k = 1; k < keys.mSize; k++) {
+            assertTrue(keys.mTimestamps[k] - keys.mTimestamps[k - 1]
+                    <= 10 * SyntheticTrajectory.PERIOD_NANOS);
+        }
+        assertWithinBounds(trajectory, keys);
+    }
+
+    @Test
+    public void replayedSessionsStayWithinBounds() {
+        int samples = 200 * 60 * 5;
+        String[] names = {"walking", "handheld"};
+        SyntheticTrajectory[] sessions = {SyntheticTrajectory.walking(samples),
+                SyntheticTrajectory.handheld(samples, 4)};
+        for (int s = 0; s < sessions.length; s++) {
+            SyntheticTrajectory trajectory = sessions[s];
+            // Warm up, then time.
+            simplify(trajectory, TrajectorySimplifier.DEFAULT_MAX_WINDOW);
+            long start = System.nanoTime();
+            Collector keys = simplify(trajectory, TrajectorySimplifier.DEFAULT_MAX_WINDOW);
+            long elapsed = System.nanoTime() - start;
+
+            assertWithinBounds(trajectory, keys);
+            double ratio = trajectory.size() / (double) keys.mSize;
+            System.out.println(String.format(
+                    "Simplified %s session: %d -> %d poses (%.1fx), %.2fM poses/s, %.0fns/pose",
+                    names[s], trajectory.size(), keys.mSize, ratio,
+                    trajectory.size() / (elapsed / 1e3), elapsed / (double) trajectory.size()));
+            assertTrue(ratio > 5);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the trajectory store's queries against a straightforward calculation over the raw
+ * samples, and benchmarks memory and query latency. The benchmark size defaults to 1M samples,
+ * about an hour and a half at 200Hz; run with {@code -Dtrajectory.benchmark.samples=10000000}
+ * for the full 10M.
+ */
+public class TrajectoryStoreTest {
+    private static final int BENCHMARK_SAMPLES =
+            Integer.getInteger("trajectory.benchmark.samples", 1000000);
+
+    private static TrajectoryStore fill(SyntheticTrajectory trajectory, TrajectoryStore store) {
+        for (int i = 0; i < trajectory.size(); i++) {
+            store.append(trajectory.poseAt(i));
+        }
+        return store;
+    }
+
+    /**
+     * The expected stats for samples [from, to), worked out directly.
+     */
+    private static double[] expected(SyntheticTrajectory trajectory, int from, int to) {
+        double distance = 0, angle = 0, maxSpeed = 0, maxAngular = 0;
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = from; i < to; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                min[axis] = Math.min(min[axis], trajectory.mTranslations[i * 3 + axis]);
+                max[axis] = Math.max(max[axis], trajectory.mTranslations[i * 3 + axis]);
+            }
+            if (i == from) {
+                continue;
+            }
+            double dx = trajectory.mTranslations[i * 3] - trajectory.mTranslations[i * 3 - 3];
+            double dy = trajectory.mTranslations[i * 3 + 1] - trajectory.mTranslations[i * 3 - 2];
+            double dz = trajectory.mTranslations[i * 3 + 2] - trajectory.mTranslations[i * 3 - 1];
+            double step = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            double turn = PoseMath.angleBetween(trajectory.mRotations, i * 4 - 4,
+                    trajectory.mRotations, i * 4);
+            double seconds = (trajectory.mTimestamps[i] - trajectory.mTimestamps[i - 1]) / 1e9;
+            distance += step;
+            angle += turn;
+            maxSpeed = Math.max(maxSpeed, step / seconds);
+            maxAngular = Math.max(maxAngular, turn / seconds);
+        }
+        return new double[]{distance, angle, maxSpeed, maxAngular,
+                min[0], min[1], min[2], max[0], max[1], max[2]};
+    }
+
+    private static void assertStats(double[] expected, TrajectoryStore.WindowStats stats) {
+        assertEquals(expected[0], stats.getDistance(), expected[0] * 1e-6);
+        assertEquals(expected[1], stats.getTotalRotation(), expected[1] * 1e-4);
+        assertEquals(expected[2], stats.getMaxSpeed(), expected[2] * 1e-6);
+        assertEquals(expected[3], stats.getMaxAngularSpeed(), expected[3] * 1e-3);
+        for (int axis = 0; axis < 3; axis++) {
+            assertEquals(expected[4 + axis], stats.getBoundsMin()[axis], 0);
+            assertEquals(expected[7 + axis], stats.getBoundsMax()[axis], 0);
+        }
+    }
+
+    @Test
+    public void windowQueriesMatchDirectCalculation() {
+        int samples = TrajectoryStore.CHUNK_SIZE * 3 + 1234;
+        SyntheticTrajectory trajectory = SyntheticTrajectory.handheld(samples, 3);
+        TrajectoryStore parallel = fill(trajectory, new TrajectoryStore());
+        TrajectoryStore sequential =
+                fill(trajectory, new TrajectoryStore(null, TrajectoryStore.UNBOUNDED));
+        assertEquals(samples, parallel.size());
+
+        int chunk = TrajectoryStore.CHUNK_SIZE;
+        int[][] windows = {{0, samples}, {10, 20}, {chunk - 5, chunk + 5},
+                {chunk / 2, chunk * 2 + chunk / 2}, {chunk, chunk * 2}, {samples - 1, samples}};
+        for (int[] window : windows) {
+            long from = trajectory.mTimestamps[window[0]];
+            long to = trajectory.mTimestamps[window[1] - 1];
+            double[] expected = expected(trajectory, window[0], window[1]);
+            TrajectoryStore.WindowStats stats = parallel.query(from, to);
+            assertEquals(window[1] - window[0], stats.getCount());
+            assertEquals(to - from, stats.getDurationNanos());
+            assertStats(expected, stats);
+            assertStats(expected, sequential.query(from, to));
+        }
+
+        TrajectoryStore.WindowStats all = parallel.queryAll();
+        assertEquals(samples, all.getCount());
+        assertEquals(all.getDistance() / (all.getDurationNanos() / 1e9), all.getMeanSpeed(), 1e-9);
+        assertTrue(all.getSpeedStdDev() > 0);
+
+        // Empty windows.
+        assertEquals(0, parallel.query(0, trajectory.mTimestamps[0] - 1).getCount());
+        assertEquals(0, new TrajectoryStore().queryAll().getCount());
+    }
+
+    @Test
+    public void findNearestPicksClosestSample() {
+        TrajectoryStore store = new TrajectoryStore();
+        assertEquals(-1, store.findNearest(100));
+        float[] translation = new float[3];
+        float[] rotation = {0, 0, 0, 1};
+        int samples = TrajectoryStore.CHUNK_SIZE + 10;
+        for (int i = 0; i < samples; i++) {
+            translation[0] = i;
+            store.append(1000 + i * 10L, translation, rotation);
+        }
+
+        assertEquals(0, store.findNearest(0));
+        assertEquals(samples - 1, store.findNearest(Long.MAX_VALUE));
+        assertEquals(3, store.findNearest(1030));
+        assertEquals(3, store.findNearest(1033));
+        assertEquals(4, store.findNearest(1036));
+        // Halfway goes to the earlier sample.
+        assertEquals(3, store.findNearest(1035));
+        // Across the chunk boundary.
+        int boundary = TrajectoryStore.CHUNK_SIZE;
+        assertEquals(boundary - 1, store.findNearest(1000 + boundary * 10L - 6));
+        assertEquals(boundary, store.findNearest(1000 + boundary * 10L - 4));
+
+        float[] out = new float[3];
+        store.getTranslation(boundary, out);
+        assertEquals(boundary, out[0], 0);
+        assertEquals(1000 + boundary * 10L, store.getTimestamp(boundary));
+    }
+
+    @Test
+    public void dropsOldestChunkWhenFull() {
+        TrajectoryStore store = new TrajectoryStore(null, TrajectoryStore.CHUNK_SIZE * 2);
+        float[] translation = new float[3];
+        float[] rotation = {0, 0, 0, 1};
+        for (int i = 0; i < TrajectoryStore.CHUNK_SIZE * 2 + 5; i++) {
+            store.append(i, translation, rotation);
+        }
+        assertEquals(TrajectoryStore.CHUNK_SIZE + 5, store.size());
+        assertEquals(TrajectoryStore.CHUNK_SIZE, store.getDroppedCount());
+        assertEquals(TrajectoryStore.CHUNK_SIZE, store.getTimestamp(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTimestampsGoingBackwards() {
+        TrajectoryStore store = new TrajectoryStore();
+        store.append(10, new float[3], new float[]{0, 0, 0, 1});
+        store.append(9, new float[3], new float[]{0, 0, 0, 1});
+    }
+
+    @Test
+    public void benchmarkMemoryAndQueries() {
+        int samples = BENCHMARK_SAMPLES;
+        TrajectoryStore store = new TrajectoryStore();
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            // The walking trajectory, generated on the fly so 10M samples fit in the heap.
+            double t = i * SyntheticTrajectory.PERIOD_NANOS / 1e9;
+            double heading = t / 3.0;
+            translation[0] = (float) (3 * Math.sin(heading));
+            translation[1] = (float) (1.5 + 0.02 * Math.sin(t * 12));
+            translation[2] = (float) (-3 * Math.cos(heading));
+            rotation[1] = (float) Math.sin(-heading / 2);
+            rotation[3] = (float) Math.cos(-heading / 2);
+            store.append(i * SyntheticTrajectory.PERIOD_NANOS, translation, rotation);
+        }
+        long append = System.nanoTime() - start;
+
+        // What the same samples take as PoseData objects, measured on a slice.
+        int slice = 100000;
+        long objectBytes = measureHeap(slice) / slice;
+
+        long end = (samples - 1) * SyntheticTrajectory.PERIOD_NANOS;
+        long minute = 60000000000L;
+        TrajectoryStore.WindowStats all = null;
+        long full = Long.MAX_VALUE;
+        long window = Long.MAX_VALUE;
+        long nearest = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            start = System.nanoTime();
+            all = store.queryAll();
+            full = Math.min(full, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                long from = (end - minute) / 100 * i;
+                assertTrue(store.query(from, from + minute).getCount() > 0);
+            }
+            window = Math.min(window, (System.nanoTime() - start) / 100);
+
+            start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < 100000; i++) {
+                found += store.findNearest(end / 100000 * i + 1234567) >= 0 ? 1 : 0;
+            }
+            nearest = Math.min(nearest, (System.nanoTime() - start) / found);
+        }
+        assertEquals(samples, all.getCount());
+        // A 3m circle walked at a third of a radian a second: 1m/s.
+        assertEquals(1.0, all.getMeanSpeed(), 0.05);
+
+        System.out.println(String.format("Trajectory store, %d samples (%.1f hours at 200Hz):"
+                        + " %.1fMB, %d bytes/sample against ~%d as PoseData, append %.0fns/sample",
+                samples, samples / 200.0 / 3600, store.getMemoryBytes() / 1e6,
+                TrajectoryStore.BYTES_PER_SAMPLE, objectBytes, append / (double) samples));
+        System.out.println(String.format("  full query %.1fms (%d workers), 1 minute window"
+                        + " %.1fus, nearest time %dns", full / 1e6, WorkerPool.getParallelism(),
+                window / 1e3, nearest));
+        System.out.println("  " + all);
+    }
+
+    private static long measureHeap(int samples) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        List<PoseData> poses = new ArrayList<>(samples);
+        float[] translation = new float[3];
+        float[] rotation = {0, 0, 0, 1};
+        for (int i = 0; i < samples; i++) {
+            poses.add(new PoseData(translation, rotation, i));
+        }
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        assertEquals(samples, poses.size());
+        return after - before;
+    }
+}
@@ -0,0 +1,258 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks composed lookups through static and time varying edges against the same transforms
+ * applied by hand, the static chain cache, and what a lookup costs at render rates.
+ */
+public class TransformTreeTest {
+    private static final float EPSILON = 1e-5f;
+    private static final float[] NO_TRANSLATION = {0, 0, 0};
+    private static final float[] IDENTITY = {0, 0, 0, 1};
+
+    private static float[] aboutZ(double radians) {
+        return new float[]{0, 0, (float) Math.sin(radians / 2), (float) Math.cos(radians / 2)};
+    }
+
+    private static void assertTransform(float[] expectedTranslation, float[] expectedRotation,
+                                        float[] translation, float[] rotation, float epsilon) {
+        assertArrayEquals(expectedTranslation, translation, epsilon);
+        assertEquals(0, PoseMath.angleBetween(expectedRotation, 0, rotation, 0), epsilon * 10);
+    }
+
+    @Test
+    public void composesStaticChains() {
+        TransformTree tree = new TransformTree();
+        int world = tree.addFrame("world");
+        int a = tree.addFrame("a");
+        int b = tree.addFrame("b");
+        tree.setStaticTransform(world, a, new float[]{1, 0, 0}, aboutZ(Math.PI / 2));
+        tree.setStaticTransform(a, b, new float[]{1, 0, 0}, IDENTITY);
+
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        assertTrue(tree.lookupTransform(world, b, 0, translation, rotation));
+        // b's origin is one along a's x, which points along the world's y.
+        assertTransform(new float[]{1, 1, 0}, aboutZ(Math.PI / 2), translation, rotation,
+                EPSILON);
+
+        // And back.
+        assertTrue(tree.lookupTransform(b, world, 0, translation, rotation));
+        float[] origin = translation.clone();
+        assertTransform(new float[]{-1, 1, 0}, aboutZ(-Math.PI / 2), origin, rotation, EPSILON);
+
+        // Siblings compose through their common parent.
+        int c = tree.addFrame("c");
+        tree.setStaticTransform(a, c, new float[]{0, 2, 0}, IDENTITY);
+        assertTrue(tree.lookupTransform(b, c, 0, translation, rotation));
+        assertTransform(new float[]{-1, 2, 0}, IDENTITY, translation, rotation, EPSILON);
+        assertTrue(tree.lookupTransform(c, c, 0, translation, rotation));
+        assertTransform(NO_TRANSLATION, IDENTITY, translation, rotation, EPSILON);
+    }
+
+    @Test
+    public void interpolatesTimeVaryingEdges() {
+        SyntheticTrajectory trajectory = SyntheticTrajectory.handheld(400, 3);
+        TransformTree tree = new TransformTree(1000);
+        int world = tree.addFrame("world");
+        int device = tree.addFrame("device");
+        int camera = tree.addFrame("camera");
+        float[] extrinsicTranslation = {0.03f, -0.01f, 0.005f};
+        float[] extrinsicRotation = {1, 0, 0, 0};
+        tree.setStaticTransform(device, camera, extrinsicTranslation, extrinsicRotation);
+        for (int i = 0; i < trajectory.size(); i++) {
+            PoseData pose = trajectory.poseAt(i);
+            tree.addTransform(world, device, trajectory.mTimestamps[i], pose.mTranslation,
+                    pose.mRotation);
+        }
+
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        float[] expectedTranslation = new float[3];
+        float[] expectedRotation = new float[4];
+        for (int i = 0; i < trajectory.size() - 1; i += 7) {
+            long t0 = trajectory.mTimestamps[i];
+            long t1 = trajectory.mTimestamps[i + 1];
+            long time = t0 + (t1 - t0) / 4;
+            float t = (time - t0) / (float) (t1 - t0);
+            // Device pose interpolated by hand, then the camera's mounting applied to it.
+            for (int axis = 0; axis < 3; axis++) {
+                float from = trajectory.mTranslations[i * 3 + axis];
+                expectedTranslation[axis] = from
+                        + (trajectory.mTranslations[i * 3 + 3 + axis] - from) * t;
+            }
+            PoseMath.slerp(trajectory.mRotations, i * 4, trajectory.mRotations, i * 4 + 4, t,
+                    expectedRotation, 0);
+            PoseData devicePose = new PoseData(expectedTranslation, expectedRotation, time);
+            float[] origin = extrinsicTranslation.clone();
+            devicePose.transformPoints(origin, 1);
+            PoseMath.multiplyQuaternions(expectedRotation, 0, extrinsicRotation, 0,
+                    expectedRotation, 0);
+
+            assertTrue(tree.lookupTransform(world, camera, time, translation, rotation));
+            assertTransform(origin, expectedRotation, translation, rotation, 1e-4f);
+        }
+
+        // Before the history there's nothing to go on; after it the newest sample holds.
+        assertFalse(tree.lookupTransform(world, camera, trajectory.mTimestamps[0] - 1,
+                translation, rotation));
+        int last = trajectory.size() - 1;
+        assertTrue(tree.lookupTransform(world, device, trajectory.mTimestamps[last] + 1000000000L,
+                translation, rotation));
+        assertTransform(trajectory.poseAt(last).mTranslation, trajectory.poseAt(last).mRotation,
+                translation, rotation, EPSILON);
+    }
+
+    @Test
+    public void historyDropsTheOldestSamples() {
+        TransformTree tree = new TransformTree(8);
+        int world = tree.addFrame("world");
+        int device = tree.addFrame("device");
+        for (int i = 0; i < 20; i++) {
+            tree.addTransform(world, device, i * 10, new float[]{i, 0, 0}, IDENTITY);
+        }
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        assertFalse(tree.lookupTransform(world, device, 115, translation, rotation));
+        assertTrue(tree.lookupTransform(world, device, 125, translation, rotation));
+        assertEquals(12.5f, translation[0], EPSILON);
+        assertTrue(tree.lookupTransform(world, device, 190, translation, rotation));
+        assertEquals(19, translation[0], EPSILON);
+    }
+
+    @Test
+    public void rejectsCyclesAndSeparateTrees() {
+        TransformTree tree = new TransformTree();
+        int world = tree.addFrame("world");
+        int device = tree.addFrame("device");
+        int camera = tree.addFrame("camera");
+        int elsewhere = tree.addFrame("elsewhere");
+        tree.setStaticTransform(world, device, NO_TRANSLATION, IDENTITY);
+        tree.setStaticTransform(device, camera, NO_TRANSLATION, IDENTITY);
+        try {
+            tree.setStaticTransform(camera, world, NO_TRANSLATION, IDENTITY);
+            fail("Expected the cycle to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            tree.addFrame("device");
+            fail("Expected the duplicate name to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(camera, tree.getFrame("camera"));
+        assertEquals(TransformTree.NO_FRAME, tree.getFrame("missing"));
+
+        float[] translation = {7, 7, 7};
+        float[] rotation = new float[4];
+        assertFalse(tree.lookupTransform(elsewhere, camera, 0, translation, rotation));
+        assertEquals(7, translation[0], 0);
+        tree.removeTransform(device);
+        assertFalse(tree.lookupTransform(world, camera, 0, translation, rotation));
+        assertTrue(tree.lookupTransform(device, camera, 0, translation, rotation));
+    }
+
+    @Test
+    public void staticChainsAreCachedUntilAnEdgeChanges() {
+        TransformTree tree = new TransformTree();
+        int world = tree.addFrame("world");
+        int device = tree.addFrame("device");
+        int camera = tree.addFrame("camera");
+        int display = tree.addFrame("display");
+        tree.setStaticTransform(device, camera, new float[]{0.03f, 0, 0}, IDENTITY);
+        tree.setStaticTransform(camera, display, NO_TRANSLATION, aboutZ(Math.PI / 2));
+
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        for (int i = 0; i < 100; i++) {
+            tree.addTransform(world, device, i, new float[]{i * 0.01f, 0, 0}, IDENTITY);
+            assertTrue(tree.lookupTransform(world, display, i, translation, rotation));
+        }
+        // One chain for the display, one for the world.
+        int rebuilds = tree.getChainRebuildCount();
+        assertTrue(rebuilds <= 3);
+        for (int i = 100; i < 200; i++) {
+            tree.addTransform(world, device, i, new float[]{i * 0.01f, 0, 0}, IDENTITY);
+            assertTrue(tree.lookupTransform(world, display, i, translation, rotation));
+        }
+        assertEquals(rebuilds, tree.getChainRebuildCount());
+        assertEquals(1.99f + 0.03f, translation[0], EPSILON);
+
+        // A screen rotation changes a static edge, and the next lookup sees it.
+        tree.setStaticTransform(camera, display, NO_TRANSLATION, aboutZ(Math.PI));
+        assertTrue(tree.lookupTransform(world, display, 199, translation, rotation));
+        assertTransform(new float[]{2.02f, 0, 0}, aboutZ(Math.PI), translation, rotation,
+                EPSILON);
+        assertTrue(tree.getChainRebuildCount() > rebuilds);
+    }
+
+    @Test
+    public void benchmarkLookupAtRenderRate() {
+        // The app's tree: a 200Hz device pose, then the camera, render camera and display.
+        TransformTree tree = new TransformTree();
+        int world = tree.addFrame("world");
+        int device = tree.addFrame("device");
+        int camera = tree.addFrame("camera");
+        int renderCamera = tree.addFrame("renderCamera");
+        int display = tree.addFrame("display");
+        tree.setStaticTransform(device, camera, new float[]{0.03f, -0.01f, 0},
+                new float[]{1, 0, 0, 0});
+        tree.setStaticTransform(camera, renderCamera, NO_TRANSLATION, new float[]{1, 0, 0, 0});
+        tree.setStaticTransform(renderCamera, display, NO_TRANSLATION, aboutZ(Math.PI / 2));
+        SyntheticTrajectory trajectory = SyntheticTrajectory.walking(TransformTree.DEFAULT_HISTORY);
+        for (int i = 0; i < trajectory.size(); i++) {
+            PoseData pose = trajectory.poseAt(i);
+            tree.addTransform(world, device, trajectory.mTimestamps[i], pose.mTranslation,
+                    pose.mRotation);
+        }
+        long first = trajectory.mTimestamps[0];
+        long span = trajectory.mTimestamps[trajectory.size() - 1] - first;
+
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        int lookups = 1000000;
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int round = 0; round < 5; round++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                // Times spread over the history, as a 60fps renderer looking up image times.
+                long time = first + (i * 16666667L) % span;
+                tree.lookupTransform(world, display, time, translation, rotation);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            allocated = allocatedBytes() - allocatedBefore;
+        }
+        double perLookup = best / (double) lookups;
+        System.out.println(String.format("Transform tree: world to display through a 200Hz edge"
+                + " and three static ones, %.0fns per lookup, %.4f%% of a 60fps frame, %d bytes"
+                + " allocated over %d lookups", perLookup, perLookup / 16666667 * 100,
+                allocated, lookups));
+        assertTrue(perLookup < 20000);
+        // Well under a byte a lookup, what's left is the probe itself.
+        if (allocated >= 0) {
+            assertTrue(allocated < lookups / 100);
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 where the JVM can't say.
+     */
+    private static long allocatedBytes() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.jamieadkins.motiontrackingsample;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the intrinsics scaling and measures the undistortion mesh's reprojection error: points
+ * placed on screen by the centred projection should land on the pixel the real lens imaged them
+ * at, once the GPU has interpolated the mesh's texture coordinates.
+ */
+public class UndistortionMeshTest {
+    // A wide phone lens, slightly off centre.
+    private static final double[] DISTORTION = {-0.28, 0.09, -0.01, 0.0008, -0.0005};
+    private static final Intrinsics LENS =
+            new Intrinsics(1920, 1080, 1450, 1452, 972.5, 529.0, DISTORTION);
+
+    @Test
+    public void defaultIntrinsicsAreUsable() {
+        Intrinsics intrinsics = new Intrinsics();
+        assertTrue(intrinsics.getWidth() > 0);
+        assertTrue(intrinsics.getFocalLengthInPixelsX() > 0);
+        assertTrue(intrinsics.getFocalLengthInPixelsY() > 0);
+        // The placeholder sensor is 16:9, so the fields of view should be too.
+        double aspect = (intrinsics.getWidth() / intrinsics.getFocalLengthInPixelsX())
+                / (intrinsics.getHeight() / intrinsics.getFocalLengthInPixelsY());
+        assertEquals(5.376 / 3.04, aspect, 1e-6);
+        assertTrue(intrinsics.isCentredPinhole());
+    }
+
+    @Test
+    public void scaledToCropsLikeACameraStream() {
+        Intrinsics sensor = new Intrinsics(4000, 3000, 3200, 3200, 2010, 1490, DISTORTION);
+        // 16:9 from a 4:3 sensor cuts off the top and bottom.
+        Intrinsics wide = sensor.scaledTo(1920, 1080);
+        assertEquals(0.48 * 3200, wide.getFocalLengthInPixelsX(), 1e-9);
+        assertEquals(0.48 * 2010, wide.getPrincipalPointX(), 1e-9);
+        assertEquals(0.48 * (1490 - 375), wide.getPrincipalPointY(), 1e-9);
+        assertArrayEquals(DISTORTION, wide.getDistortion(), 0);
+        // Same aspect ratio, just scaled.
+        Intrinsics small = sensor.scaledTo(640, 480);
+        assertEquals(0.16 * 3200, small.getFocalLengthInPixelsY(), 1e-9);
+        assertEquals(0.16 * 1490, small.getPrincipalPointY(), 1e-9);
+    }
+
+    @Test
+    public void centredPinholeMatchesThePlainQuad() {
+        UndistortionMesh mesh = new UndistortionMesh(new Intrinsics(1280, 720, 1000, 1000));
+        double[] ideal = new double[2];
+        for (int rotation = 0; rotation < 4; rotation++) {
+            float[] corners = CameraDisplayRotation.TEXTURE_COORDS[rotation];
+            float[] coords = mesh.getTextureCoords(rotation);
+            float[] vertices = mesh.getVertices();
+            for (int vertex = 0; vertex < coords.length / 2; vertex++) {
+                UndistortionMesh.idealTextureCoord(corners, vertices[vertex * 3] + 0.5,
+                        vertices[vertex * 3 + 1] + 0.5, ideal);
+                assertEquals(ideal[0], coords[vertex * 2], 1e-6);
+                assertEquals(ideal[1], coords[vertex * 2 + 1], 1e-6);
+            }
+        }
+        // Corners of the screen are corners of the image.
+        float[] coords = mesh.getTextureCoords(0);
+        assertEquals(CameraDisplayRotation.TEXTURE_COORDS[0][6], coords[0], 1e-6);
+        assertEquals(CameraDisplayRotation.TEXTURE_COORDS[0][7], coords[1], 1e-6);
+    }
+
+    @Test
+    public void meshIsSizedToTheImage() {
+        UndistortionMesh mesh = new UndistortionMesh(LENS);
+        assertEquals(48, mesh.getSegmentsX());
+        assertEquals(27, mesh.getSegmentsY());
+        assertEquals(49 * 28 * 3, mesh.getVertices().length);
+        assertEquals(48 * 27 * 6, mesh.getIndices().length);
+        UndistortionMesh small = new UndistortionMesh(LENS.scaledTo(640, 480));
+        assertEquals(16, small.getSegmentsX());
+        assertEquals(12, small.getSegmentsY());
+        // Worked out once.
+        assertSame(mesh.getTextureCoords(1), mesh.getTextureCoords(1));
+    }
+
+    /**
+     * Samples the mesh's texture coordinate at a point on screen the way the rasteriser does,
+     * across the cell's triangle.
+     */
+    private static void sample(UndistortionMesh mesh, float[] coords, double x, double y,
+                               double[] out) {
+        int columns = mesh.getSegmentsX();
+        int rows = mesh.getSegmentsY();
+        int i = Math.min(columns - 1, (int) (x * columns));
+        int j = Math.min(rows - 1, (int) (y * rows));
+        double u = x * columns - i;
+        double v = y * rows - j;
+        int bottomLeft = i * (rows + 1) + j;
+        int bottomRight = (i + 1) * (rows + 1) + j;
+        int topLeft = bottomLeft + 1;
+        int topRight = bottomRight + 1;
+        for (int axis = 0; axis < 2; axis++) {
+            if (u >= v) {
+                out[axis] = coords[bottomLeft * 2 + axis] * (1 - u)
+                        + coords[bottomRight * 2 + axis] * (u - v)
+                        + coords[topRight * 2 + axis] * v;
+            } else {
+                out[axis] = coords[bottomLeft * 2 + axis] * (1 - v)
+                        + coords[topRight * 2 + axis] * u
+                        + coords[topLeft * 2 + axis] * (v - u);
+            }
+        }
+    }
+
+    /**
+     * @return the mean and max error, in camera pixels, of points in view drawn through a mesh
+     * with the given cells, or through the plain quad if there are none.
+     */
+    private static double[] reprojectionError(Intrinsics lens, int columns, int rows) {
+        UndistortionMesh mesh = columns > 0 ? new UndistortionMesh(lens, columns, rows) : null;
+        float[] coords = mesh == null ? null : mesh.getTextureCoords(0);
+        int width = lens.getWidth();
+        int height = lens.getHeight();
+        Random random = new Random(42);
+        double[] distorted = new double[2];
+        double[] sampled = new double[2];
+        double total = 0;
+        double max = 0;
+        int points = 20000;
+        for (int n = 0; n < points; n++) {
+            // A point in view, 0.3 to 5m away.
+            double z = 0.3 + random.nextDouble() * 4.7;
+            double screenX = random.nextDouble();
+            double screenY = random.nextDouble();
+            double pointX = ((screenX * width) - width / 2.0) / lens.getFocalLengthInPixelsX() * z;
+            double pointY = (((1 - screenY) * height) - height / 2.0)
+                    / lens.getFocalLengthInPixelsY() * z;
+
+            // Where the real lens imaged it.
+            lens.distort(pointX / z, pointY / z, distorted);
+            double imageX = distorted[0] * lens.getFocalLengthInPixelsX()
+                    + lens.getPrincipalPointX();
+            double imageY = distorted[1] * lens.getFocalLengthInPixelsY()
+                    + lens.getPrincipalPointY();
+
+            // Where the centred projection drew it, and the image pixel shown there.
+            double drawnX = pointX / z * lens.getFocalLengthInPixelsX() / width + 0.5;
+            double drawnY = 0.5 - pointY / z * lens.getFocalLengthInPixelsY() / height;
+            if (mesh == null) {
+                UndistortionMesh.idealTextureCoord(CameraDisplayRotation.TEXTURE_COORDS[0],
+                        drawnX, drawnY, sampled);
+            } else {
+                sample(mesh, coords, drawnX, drawnY, sampled);
+            }
+            double error = Math.hypot(sampled[0] * width - imageX, sampled[1] * height - imageY);
+            total += error;
+            max = Math.max(max, error);
+        }
+        return new double[]{total / points, max};
+    }
+
+    @Test
+    public void reprojectionErrorIsUnderAPixel() {
+        double[] plain = reprojectionError(LENS, 0, 0);
+        System.out.println(String.format("Undistortion, 1920x1080: plain quad %.2f/%.2fpx"
+                + " (mean/max)", plain[0], plain[1]));
+        int[] cells = {4, 8, 16, 32, UndistortionMesh.segmentsFor(LENS.getWidth())};
+        double[] error = null;
+        for (int columns : cells) {
+            int rows = Math.max(1, Math.round(columns * 1080f / 1920));
+            error = reprojectionError(LENS, columns, rows);
+            System.out.println(String.format("Undistortion, 1920x1080: %dx%d mesh %.3f/%.3fpx",
+                    columns, rows, error[0], error[1]));
+        }
+        assertTrue(plain[1] > 50);
+        // The default grid.
+        assertTrue(error[0] < 0.1);
+        assertTrue(error[1] < 0.5);
+    }
+}